@@ -4,11 +4,13 @@ import huplay.demo.config.ModelConfig;
 import huplay.demo.config.ParameterReader;
 import huplay.demo.transformer.TransformerType;
 import huplay.demo.transformer.BaseTransformer;
-import huplay.demo.util.Util;
+import huplay.demo.util.Utility;
+import huplay.demo.util.UtilityLoader;
 import huplay.demo.config.Arguments;
 import huplay.demo.config.Config;
 
 import java.io.*;
+import java.lang.module.ModuleFinder;
 import java.util.*;
 
 import static huplay.demo.AppMain.displayConfig;
@@ -19,14 +21,21 @@ import static java.lang.Math.round;
 public class AppLoader
 {
     public static final PrintStream OUT = getPrintStream();
-    public static final Util UTIL = new Util();
+
+    /**
+     * Holder of the calculation library (backend), at default selected automatically (it can be changed by selectUtil)
+     * (It's created at the first use, so the launcher, which doesn't calculate, doesn't create a backend.)
+     */
+    public static class UtilHolder
+    {
+        public static Utility UTIL = UtilityLoader.load(UtilityLoader.AUTO);
+    }
 
     public static void main(String... args)
     {
         try
         {
             showLogo(OUT,"Demo LLM zoo", "1,2,3,4,,5,6,7,,8,9,10");
-            OUT.println("Util: " + UTIL.getUtilName() + "\n");
             new AppLoader().start(args);
         }
         catch (Exception e)
@@ -52,8 +61,11 @@ public class AppLoader
         // Check necessary files
         List<String> missingFiles = checkFiles(modelConfig, arguments.getModelPath());
 
-        // Download the missing files
-        download(missingFiles, modelConfig, arguments.getModelPath());
+        // Download the missing files (the benchmark can use a synthetic parameter file, see GenerateSyntheticModel)
+        if (!arguments.isBenchmark())
+        {
+            download(missingFiles, modelConfig, arguments.getModelPath());
+        }
 
         ParameterReader reader = new ParameterReader(arguments.getModelPath());
 
@@ -79,11 +91,20 @@ public class AppLoader
                 // Open the main app to launch the model
                 String command = "java" +
                                 " -Xmx" + memorySize + "m -Xms" + memorySize + "m" +
+                                (isVectorApiInstalled() ? " --add-modules=jdk.incubator.vector" : "") +
                                 " -cp " + userDir + "/app/target/demo-llm-zoo.jar" +
                                 " huplay.demo.AppMain" +
                                 " \"" + arguments.getRelativePath() + "\"" +
                                 " -max=" + config.getLengthLimit() +
-                                " -topK=" + config.getTopK();
+                                " -topK=" + config.getTopK() +
+                                " -threads=" + config.getThreadCount() +
+                                " -backend=" + config.getBackend() +
+                                (arguments.isBenchmark() ? " -bench" : "") +
+                                config.getSamplerSettings().toArguments() +
+                                (config.getQuantizationType() == null ? "" : " -quant=" + config.getQuantizationType()) +
+                                (arguments.getKvCacheType() == null ? "" : " -kvCache=" + arguments.getKvCacheType()) +
+                                (config.isStreaming() ? " -window=" + config.getWindowSize() + " -sinks=" + config.getSinkCount() : "") +
+                                (config.isTensorParallel() ? " -tensorParallel" : "");
 
                 OUT.println("Command:\n" + command + "\n");
                 Runtime.getRuntime().exec("cmd /k start cmd /c " + command);
@@ -95,6 +116,43 @@ public class AppLoader
         }
     }
 
+    /**
+     * Replaces the calculation library (backend) by the selected one (name, or auto/benchmark)
+     * The thread count is set before the selection, so the benchmark measures the backends with it.
+     */
+    public static void selectUtil(String backend, int threadCount)
+    {
+        if (backend.equals(UtilityLoader.AUTO))
+        {
+            UtilHolder.UTIL.setThreadCount(threadCount);
+        }
+        else
+        {
+            Utility selected;
+            try
+            {
+                selected = UtilityLoader.load(backend, threadCount);
+            }
+            catch (RuntimeException e)
+            {
+                throw new IdentifiedException(e.getMessage());
+            }
+
+            // The replaced backend releases its threads
+            Utility replaced = UtilHolder.UTIL;
+            UtilHolder.UTIL = selected;
+            replaced.shutdown();
+        }
+    }
+
+    /**
+     * Is the Vector API module part of the JVM (it has to be added to the launched app, it isn't resolved at default)
+     */
+    private static boolean isVectorApiInstalled()
+    {
+        return ModuleFinder.ofSystem().find("jdk.incubator.vector").isPresent();
+    }
+
     private void selectModel(Arguments arguments) throws Exception
     {
         String configRoot = arguments.getConfigRoot();
@@ -274,14 +332,14 @@ public class AppLoader
         Integer memorySize = config.getRequestedMemorySize();
         if (memorySize == 0)
         {
-            // Second, use the configured total memory size (if exists)
-            memorySize = config.getMemorySize();
+            // Second, use the configured total memory size (if exists, and the weights aren't quantized)
+            memorySize = config.getQuantizationType() == null ? config.getMemorySize() : null;
             if (memorySize == null || memorySize == 0)
             {
                 // Third, calculate the required memory
                 config.setCalculationOnly(true);
                 BaseTransformer transformer = TransformerType.getTransformer(config);
-                int parameterMemorySize = round((float) transformer.getParameterSize() / 1000 / 1000 * 4);
+                int parameterMemorySize = round((float) transformer.getParameterBytes() / 1000 / 1000);
 
                 memorySize = parameterMemorySize + 2048;
             }
@@ -1,11 +1,13 @@
 package huplay.demo;
 
 import huplay.demo.config.*;
+import huplay.demo.sampler.SamplerSettings;
 import huplay.demo.tokenizer.Token;
 import huplay.demo.tokenizer.Tokenizer;
 import huplay.demo.tokenizer.TokenizerType;
 import huplay.demo.transformer.BaseTransformer;
 import huplay.demo.transformer.TransformerType;
+import huplay.demo.util.FloatType;
 
 import java.io.*;
 import java.nio.charset.StandardCharsets;
@@ -14,8 +16,9 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 
-import static huplay.demo.AppLoader.UTIL;
+import static huplay.demo.AppLoader.UtilHolder.UTIL;
 import static huplay.demo.AppLoader.checkFiles;
+import static huplay.demo.AppLoader.selectUtil;
 
 public class AppMain
 {
@@ -26,7 +29,6 @@ public class AppMain
         try
         {
             Logo.showLogo(OUT, "Demo LLM zoo", "1,2,3,4,,5,6,7,,8,9,10");
-            OUT.println("Util: " + UTIL.getUtilName() + "\n");
             new AppMain().start(args);
         }
         catch (IdentifiedException e)
@@ -52,12 +54,17 @@ public class AppMain
         // Read arguments
         Arguments arguments = Arguments.readArguments(args);
 
+        // Select the calculation library (backend)
+        selectUtil(arguments.getBackend(), arguments.getThreadCount());
+        OUT.println("Util: " + UTIL.getUtilName() + "\n");
+
         // Read the modelConfig of the selected model
         ModelConfig modelConfig = ModelConfig.read(arguments);
 
         // Check necessary files
+        // (The benchmark can use a synthetic parameter file (see GenerateSyntheticModel), and the tokenizer isn't needed)
         List<String> missingFiles = checkFiles(modelConfig, arguments.getModelPath());
-        if (missingFiles.size() > 0)
+        if (missingFiles.size() > 0 && !arguments.isBenchmark())
         {
             throw new IdentifiedException("There are missing files: " + missingFiles);
         }
@@ -76,11 +83,21 @@ public class AppMain
         OUT.println("Done.");
         OUT.println("Parameter size:  " + Math.round((float) transformer.parameterSize / 1000_000) + "M");
 
-        if (!config.isCalculationOnly())
+        if (arguments.isBenchmark())
+        {
+            new Benchmark(config, transformer).run();
+        }
+        else if (!config.isCalculationOnly())
         {
             Tokenizer tokenizer = TokenizerType.getTokenizer(config);
             Generate processor = new Generate(config, tokenizer, transformer);
 
+            // The seed is printed, so the same generation can be reproduced by the -seed argument
+            if (!config.getSamplerSettings().isGreedy())
+            {
+                OUT.println("Random seed: " + processor.getSeed());
+            }
+
             int pos = 0;
             int lastToken = config.getEndOfTextToken();
 
@@ -157,7 +174,37 @@ public class AppMain
                 ", head size: " + config.getHeadSize());
 
         OUT.println("Maximum length of generated text: " + config.getLengthLimit());
-        OUT.println("Output is selected from the best " + config.getTopK() + " tokens (topK)");
+        SamplerSettings sampler = config.getSamplerSettings();
+        if (sampler.isGreedy())
+        {
+            OUT.println("Output is the best token (greedy)");
+        }
+        else
+        {
+            OUT.println("Output is selected from the best " + config.getTopK() + " tokens (topK)" +
+                    ", temperature: " + sampler.getTemperature() +
+                    (sampler.getTopP() < 1 ? ", topP: " + sampler.getTopP() : "") +
+                    (sampler.getMinP() > 0 ? ", minP: " + sampler.getMinP() : ""));
+        }
+
+        if (sampler.hasPenalty())
+        {
+            OUT.println("Repetition penalty: " + sampler.getRepetitionPenalty() +
+                    ", frequency penalty: " + sampler.getFrequencyPenalty());
+        }
+        if (config.getKvCacheType() != FloatType.FLOAT32)
+        {
+            OUT.println("Key/value cache: " + config.getKvCacheType());
+        }
+        if (config.isStreaming())
+        {
+            OUT.println("Streaming: " + config.getSinkCount() + " attention sinks, window: " + config.getWindowSize());
+        }
+        if (config.isTensorParallel())
+        {
+            OUT.println("Tensor parallel: " + config.getThreadCount() + " workers");
+        }
+
         OUT.println("Max memory: " + config.getMemorySize());
     }
 
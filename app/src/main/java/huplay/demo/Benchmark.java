@@ -0,0 +1,211 @@
+package huplay.demo;
+
+import huplay.demo.config.Config;
+import huplay.demo.transformer.BaseTransformer;
+import huplay.demo.transformer.InferenceSession;
+import huplay.demo.util.Vector;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.Arrays;
+
+import static huplay.demo.AppLoader.UtilHolder.UTIL;
+import static huplay.demo.AppMain.OUT;
+import static huplay.demo.config.ParameterType.TOKEN_EMBEDDINGS;
+import static huplay.demo.transformer.BaseTransformer.BATCH_SIZE;
+
+/**
+ * Speed measurement of the token processing at different prompt lengths (-bench)
+ * The tokenizer isn't used (the prompt is a fixed sequence of token ids), and the generated tokens are selected greedily,
+ * so it works with the random parameters of a synthetic model as well (see GenerateSyntheticModel).
+ */
+public class Benchmark
+{
+    // The measured prompt lengths (the ones which don't fit into the context are skipped)
+    private static final int[] PROMPT_LENGTHS = {1, 16, 64, 256, 1024};
+
+    // The measured number of sequences decoded together (continuous batching)
+    private static final int[] SEQUENCE_COUNTS = {1, 4, 8, 16};
+
+    private final Config config;
+    private final BaseTransformer transformer;
+
+    public Benchmark(Config config, BaseTransformer transformer)
+    {
+        this.config = config;
+        this.transformer = transformer;
+    }
+
+    public void run()
+    {
+        int decodeLength = Math.max(config.getLengthLimit(), 2);
+
+        // Warm-up, so the JIT compilation isn't measured
+        OUT.print("\nWarm-up... ");
+        measure(Math.max(1, Math.min(16, config.getContextSize() - decodeLength)), decodeLength);
+        OUT.println("Done.\n");
+
+        OUT.println("Generated tokens: " + decodeLength + ", threads: " + UTIL.getThreadCount());
+        OUT.println(" Prompt | Prefill tokens/s | Time to first token | Decode tokens/s | Peak heap");
+
+        for (int promptLength : PROMPT_LENGTHS)
+        {
+            if (promptLength + decodeLength > config.getContextSize()) break;
+
+            Result result = measure(promptLength, decodeLength);
+
+            OUT.println(String.format("%7d | %16.2f | %16.1f ms | %15.2f | %6d MB",
+                    promptLength,
+                    promptLength / result.timeToFirstToken,
+                    result.timeToFirstToken * 1000,
+                    (decodeLength - 1) / result.decodeTime,
+                    result.peakHeap / 1024 / 1024));
+        }
+
+        OUT.println("\n Sequences | Decode tokens/s (all sequences)");
+
+        for (int sequenceCount : SEQUENCE_COUNTS)
+        {
+            OUT.println(String.format("%10d | %31.2f", sequenceCount, measureSequences(sequenceCount, decodeLength)));
+        }
+    }
+
+    private Result measure(int promptLength, int decodeLength)
+    {
+        InferenceSession session = transformer.createSession();
+        resetPeakHeap();
+
+        long start = System.nanoTime();
+
+        // Prefill: the prompt tokens (except the last) are processed without the output (in batches)
+        for (int batchStart = 0; batchStart < promptLength - 1; batchStart += BATCH_SIZE)
+        {
+            int batchSize = Math.min(BATCH_SIZE, promptLength - 1 - batchStart);
+            int[] positions = new int[batchSize];
+            int[] tokens = new int[batchSize];
+
+            for (int i = 0; i < batchSize; i++)
+            {
+                positions[i] = batchStart + i;
+                tokens[i] = getPromptToken(batchStart + i);
+            }
+
+            transformer.executeBatch(session, positions, tokens);
+        }
+
+        // The last prompt token gives the first generated token
+        int pos = promptLength - 1;
+        int token = selectToken(transformer.execute(session, pos, getPromptToken(pos), true));
+
+        long firstToken = System.nanoTime();
+
+        // Decode: the generated token is the input of the next step
+        for (int i = 1; i < decodeLength; i++)
+        {
+            pos++;
+            token = selectToken(transformer.execute(session, pos, token, true));
+        }
+
+        long end = System.nanoTime();
+        session.clear();
+
+        return new Result((firstToken - start) / 1e9, (end - firstToken) / 1e9, getPeakHeap());
+    }
+
+    /**
+     * Decoding several sequences together (every sequence starts by a single different token)
+     * Returns the number of the processed tokens per second (sum of all sequences)
+     */
+    private double measureSequences(int sequenceCount, int decodeLength)
+    {
+        int steps = Math.min(decodeLength, config.getContextSize());
+
+        InferenceSession[] sessions = new InferenceSession[sequenceCount];
+        int[] positions = new int[sequenceCount];
+        int[] tokens = new int[sequenceCount];
+
+        for (int i = 0; i < sequenceCount; i++)
+        {
+            sessions[i] = transformer.createSession();
+            tokens[i] = getPromptToken(i);
+        }
+
+        long start = System.nanoTime();
+
+        for (int pos = 0; pos < steps; pos++)
+        {
+            Arrays.fill(positions, pos);
+            Vector[] hiddenStates = transformer.execute(sessions, positions, tokens);
+
+            for (int i = 0; i < sequenceCount; i++)
+            {
+                tokens[i] = selectToken(hiddenStates[i]);
+            }
+        }
+
+        long end = System.nanoTime();
+
+        for (InferenceSession session : sessions)
+        {
+            session.clear();
+        }
+
+        return sequenceCount * steps / ((end - start) / 1e9);
+    }
+
+    private int getPromptToken(int pos)
+    {
+        // Deterministic, but varying sequence of tokens
+        return (int) ((pos * 7919L + 13) % config.getTokenCount());
+    }
+
+    /**
+     * Greedy selection (the token with the highest logit), so the result doesn't depend on random choice
+     */
+    private int selectToken(Vector hiddenState)
+    {
+        return UTIL.mulVectorByTransposedMatrixAndFilter(hiddenState, transformer.matrix(TOKEN_EMBEDDINGS), 1)
+                .get(0).getIndex();
+    }
+
+    private static void resetPeakHeap()
+    {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+        {
+            if (pool.getType() == MemoryType.HEAP)
+            {
+                pool.resetPeakUsage();
+            }
+        }
+    }
+
+    private static long getPeakHeap()
+    {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+        {
+            if (pool.getType() == MemoryType.HEAP)
+            {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+
+        return peak;
+    }
+
+    private static class Result
+    {
+        // Time in seconds
+        private final double timeToFirstToken;
+        private final double decodeTime;
+        private final long peakHeap;
+
+        private Result(double timeToFirstToken, double decodeTime, long peakHeap)
+        {
+            this.timeToFirstToken = timeToFirstToken;
+            this.decodeTime = decodeTime;
+            this.peakHeap = peakHeap;
+        }
+    }
+}
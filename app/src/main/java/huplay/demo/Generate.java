@@ -2,8 +2,10 @@ package huplay.demo;
 
 import huplay.demo.util.IndexedValue;
 import huplay.demo.config.Config;
+import huplay.demo.sampler.Sampler;
 import huplay.demo.tokenizer.Tokenizer;
 import huplay.demo.transformer.BaseTransformer;
+import huplay.demo.transformer.InferenceSession;
 import huplay.demo.util.Vector;
 
 
@@ -12,8 +14,9 @@ import java.util.Collections;
 import java.util.List;
 
 import static huplay.demo.AppMain.OUT;
-import static huplay.demo.AppLoader.UTIL;
+import static huplay.demo.AppLoader.UtilHolder.UTIL;
 import static huplay.demo.config.ParameterType.TOKEN_EMBEDDINGS;
+import static huplay.demo.transformer.BaseTransformer.BATCH_SIZE;
 
 /**
  * Decoder-only Transformer implementation
@@ -23,12 +26,16 @@ public class Generate
     private final Config config;
     private final Tokenizer tokenizer;
     private final BaseTransformer transformer;
+    private final InferenceSession session;
+    private final Sampler sampler;
 
     public Generate(Config config, Tokenizer tokenizer, BaseTransformer transformer)
     {
         this.config = config;
         this.tokenizer = tokenizer;
         this.transformer = transformer;
+        this.session = transformer.createSession();
+        this.sampler = new Sampler(config.getSamplerSettings(), config.getTopK(), config.getTokenCount());
     }
 
     /**
@@ -51,10 +58,27 @@ public class Generate
         {
             // Iterating over on the input tokens (excluding the last one) and processing these by the transformer
             // We are not interested in the output of the transformer, but the inner state will be stored
-            for (int pos = 0; pos < intputSize - 1; pos++)
+            // (The tokens are processed in batches, so the weights are read once per batch instead of once per token)
+            for (int batchStart = 0; batchStart < intputSize - 1; batchStart += BATCH_SIZE)
             {
-                OUT.print("."); // Printing a dot to show there is a progress
-                transformer.execute(pos + startPos, inputTokens.get(pos), false);
+                int batchSize = Math.min(BATCH_SIZE, intputSize - 1 - batchStart);
+                int[] positions = new int[batchSize];
+                int[] tokens = new int[batchSize];
+
+                for (int i = 0; i < batchSize; i++)
+                {
+                    int pos = batchStart + i;
+                    positions[i] = getPosition(pos + startPos);
+                    tokens[i] = inputTokens.get(pos);
+                }
+
+                transformer.executeBatch(session, positions, tokens);
+
+                for (int i = 0; i < batchSize; i++)
+                {
+                    OUT.print("."); // Printing a dot to show there is a progress
+                    sampler.accept(tokens[i]);
+                }
             }
         }
 
@@ -66,7 +90,8 @@ public class Generate
         for (int pos = intputSize - 1; pos < config.getLengthLimit() + intputSize; pos++)
         {
             // Add the last input token or the previously generated new token as input
-            Vector hiddenState = transformer.execute(pos + startPos, token, true);
+            Vector hiddenState = transformer.execute(session, getPosition(pos + startPos), token, true);
+            sampler.accept(token);
 
             token = determineOutputToken(hiddenState);
             result.add(token);
@@ -74,30 +99,49 @@ public class Generate
             // Exit if the END_OF_TEXT token was chosen or the maximum length is reached
             if (token == config.getEndOfTextToken()) break;
 
-            // Exit if we reached the context size
-            if (intputSize + result.size() + startPos >= config.getContextSize()) break;
+            // Exit if we reached the context size (in streaming mode the old positions are dropped instead)
+            if (!config.isStreaming() && intputSize + result.size() + startPos >= config.getContextSize()) break;
         }
 
         return result;
     }
 
+    /**
+     * Position of the token used by the transformer
+     * In streaming mode the positions are relative to the key/value cache, which retains the attention sinks
+     * and the sliding window only, so after the window is full every new token gets the last position.
+     */
+    private int getPosition(int pos)
+    {
+        if (config.isStreaming())
+        {
+            return Math.min(pos, config.getSinkCount() + config.getWindowSize() - 1);
+        }
+
+        return pos;
+    }
+
     private int determineOutputToken(Vector hiddenState)
     {
         // Multiply (dot product) the output with all token embeddings.
         // It will give a higher value if the output is more similar to the token embedding
-        float[] logits = UTIL.mulVectorByTransposedMatrix(hiddenState, transformer.matrix(TOKEN_EMBEDDINGS)).getFloat32Values();
-
-        // Sort (higher to lower) the result of the dot products, retaining the order (index) of the related token
-        List<IndexedValue> orderedLogits = UTIL.reverseAndFilter(logits, config.getTopK());
-
-        // Convert the logits to probabilities
-        float[] probabilities = TransformerUtil.softmax(orderedLogits);
-
-        // Pick one token randomly, using a weighted random selection
-        int index = weightedRandomPick(probabilities);
+        // Only the best values are retained (topK, extended by the penalized tokens), with the index of the token
+        // (The vocabulary is split between the threads, and only the best values of the parts are merged)
+        // Select the token (see Sampler: penalties, temperature, topK, minP, topP, weighted random pick)
+        int selectedTokenId;
+        if (sampler.needsAllLogits())
+        {
+            // Without topK limit nothing is filtered, so the logits are sampled directly
+            selectedTokenId = sampler.sample(UTIL.mulVectorByTransposedMatrix(hiddenState,
+                    transformer.matrix(TOKEN_EMBEDDINGS)));
+        }
+        else
+        {
+            List<IndexedValue> candidates = UTIL.mulVectorByTransposedMatrixAndFilter(hiddenState,
+                    transformer.matrix(TOKEN_EMBEDDINGS), sampler.getCandidateCount());
 
-        // Lookup the token id
-        int selectedTokenId = orderedLogits.get(index).getIndex();
+            selectedTokenId = sampler.sample(candidates);
+        }
 
         // Print the generated token - It isn't perfect, because some words or letters represented by multiple tokens
         OUT.print(tokenizer.decode(Collections.singletonList(selectedTokenId)));
@@ -105,35 +149,14 @@ public class Generate
         return selectedTokenId;
     }
 
-    /**
-     * Weighted random selection from list of probabilities
-     */
-    public static int weightedRandomPick(float[] probabilities)
+    public long getSeed()
     {
-        float sum = 0;
-        float[] cumulativeProbabilities = new float[probabilities.length];
-
-        for (int i = 0; i < probabilities.length; i++)
-        {
-            sum = sum + probabilities[i] * 100;
-            cumulativeProbabilities[i] = sum;
-        }
-
-        int random = (int)(Math.random() * sum);
-
-        int index = 0;
-        for (int i = 0; i < probabilities.length; i++)
-        {
-            if (random < cumulativeProbabilities[i]) break;
-
-            index ++;
-        }
-
-        return index;
+        return sampler.getSeed();
     }
 
     public void clear()
     {
-        transformer.clear();
+        session.clear();
+        sampler.clear();
     }
 }
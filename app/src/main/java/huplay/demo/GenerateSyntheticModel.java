@@ -0,0 +1,242 @@
+package huplay.demo;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import huplay.demo.config.Arguments;
+import huplay.demo.config.Config;
+import huplay.demo.config.DataType;
+import huplay.demo.config.ModelConfig;
+import huplay.demo.config.SafetensorsModel;
+import huplay.demo.transformer.BaseTransformer;
+import huplay.demo.transformer.DeclaredParameter;
+import huplay.demo.transformer.TransformerType;
+import huplay.demo.util.HalfFloat;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import static huplay.demo.config.SafetensorsModel.TensorModel;
+
+/**
+ * Generates a safetensors file with random parameters for any configured model (using only the config.json),
+ * so the speed of the model can be measured (-bench) without downloading the trained parameters.
+ * The names and shapes of the parameters are collected from the transformer implementation (calculation only mode).
+ * The weights are normally distributed (with the configured initializer_range as deviation, at default 0.02),
+ * the normalization weights are 1, the biases are 0. (The output is meaningless, but the values are well scaled.)
+ * Usage: GenerateSyntheticModel <model-name> [-dtype=F32|F16|BF16]
+ * (The file is written to the model folder, so a separate DEMO_LLM_ZOO_MODEL_ROOT is advisable.)
+ */
+public class GenerateSyntheticModel
+{
+    public static final String FILE_NAME = "synthetic.safetensors";
+
+    private static final String ARG_DATA_TYPE = "-dtype=";
+
+    // Number of values written at once
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    public static void main(String... args)
+    {
+        try
+        {
+            DataType dataType = null;
+            List<String> arguments = new ArrayList<>();
+
+            for (String arg : args)
+            {
+                if (arg.toLowerCase(Locale.ROOT).startsWith(ARG_DATA_TYPE))
+                {
+                    dataType = DataType.valueOf(arg.substring(ARG_DATA_TYPE.length()).toUpperCase(Locale.ROOT));
+                }
+                else
+                {
+                    arguments.add(arg);
+                }
+            }
+
+            generate(Arguments.readArguments(arguments.toArray(new String[0])), dataType);
+        }
+        catch (IdentifiedException | IllegalArgumentException e)
+        {
+            System.out.println("ERROR: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Generates the parameter file to the model folder (the data type is read from the config if it's null)
+     */
+    public static File generate(Arguments arguments, DataType dataType)
+    {
+        if (arguments.getRelativePath() == null)
+        {
+            throw new IdentifiedException("The model isn't specified.");
+        }
+
+        ModelConfig modelConfig = ModelConfig.read(arguments);
+        Config config = Config.readConfig(arguments, modelConfig, null);
+
+        // Only the declarations of the parameters are needed
+        config.setCalculationOnly(true);
+        BaseTransformer transformer = TransformerType.getTransformer(config);
+
+        if (dataType == null)
+        {
+            dataType = getConfiguredDataType(config);
+        }
+
+        if (dataType != DataType.F32 && dataType != DataType.F16 && dataType != DataType.BF16)
+        {
+            throw new IdentifiedException("Not supported data type: " + dataType);
+        }
+
+        // The same parameter can be declared multiple times (for example the tied input/output embeddings)
+        Map<String, DeclaredParameter> parameters = new LinkedHashMap<>();
+        for (DeclaredParameter parameter : transformer.getDeclaredParameters())
+        {
+            parameters.putIfAbsent(parameter.getName(), parameter);
+        }
+
+        File folder = new File(arguments.getModelPath());
+        if (!folder.isDirectory() && !folder.mkdirs())
+        {
+            throw new IdentifiedException("Can't create the model folder: " + folder);
+        }
+
+        File file = new File(folder, FILE_NAME);
+        float deviation = config.getFloatOptional("initializer_range", 0.02f);
+
+        System.out.println("Generating " + file + " (" + dataType + ", "
+                + Math.round(transformer.getParameterSize() / 1000_000d) + "M parameters)");
+
+        write(file, parameters.values(), dataType, deviation);
+
+        return file;
+    }
+
+    private static DataType getConfiguredDataType(Config config)
+    {
+        String torchDataType = config.getStringOptional("torch_dtype", "float32");
+
+        switch (torchDataType)
+        {
+            case "float16": return DataType.F16;
+            case "bfloat16": return DataType.BF16;
+            default: return DataType.F32;
+        }
+    }
+
+    private static void write(File file, Collection<DeclaredParameter> parameters, DataType dataType,
+                              float deviation)
+    {
+        byte[] header = getHeader(parameters, dataType);
+
+        SplittableRandom random = new SplittableRandom(42);
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE * 4).order(ByteOrder.LITTLE_ENDIAN);
+
+        try (FileOutputStream stream = new FileOutputStream(file);
+             FileChannel channel = stream.getChannel())
+        {
+            // Length of the header (long), and the header
+            buffer.putLong(header.length);
+            buffer.put(header);
+            flush(buffer, channel);
+
+            for (DeclaredParameter parameter : parameters)
+            {
+                String type = parameter.getParameterType().name();
+                boolean isNormWeight = type.endsWith("NORM_WEIGHT");
+                boolean isBias = type.endsWith("BIAS");
+
+                for (long i = 0; i < parameter.getSize(); i++)
+                {
+                    float value = isNormWeight ? 1f : isBias ? 0f : deviation * gaussian(random);
+
+                    switch (dataType)
+                    {
+                        case F16: buffer.putShort(HalfFloat.floatToFloat16(value)); break;
+                        case BF16: buffer.putShort(HalfFloat.floatToBFloat16(value)); break;
+                        default: buffer.putFloat(value);
+                    }
+
+                    if (buffer.remaining() < 4)
+                    {
+                        flush(buffer, channel);
+                    }
+                }
+            }
+
+            flush(buffer, channel);
+        }
+        catch (IOException e)
+        {
+            throw new IdentifiedException("Parameter file write error. (" + file + ")", e);
+        }
+    }
+
+    private static void flush(ByteBuffer buffer, FileChannel channel) throws IOException
+    {
+        buffer.flip();
+        while (buffer.hasRemaining())
+        {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Approximation of the standard normal distribution (sum of 4 uniform values, rescaled to unit deviation)
+     * It's much faster than Random.nextGaussian(), which matters at billions of parameters.
+     */
+    private static float gaussian(SplittableRandom random)
+    {
+        double sum = random.nextDouble() + random.nextDouble() + random.nextDouble() + random.nextDouble();
+        return (float) ((sum - 2) * Math.sqrt(3));
+    }
+
+    private static byte[] getHeader(Collection<DeclaredParameter> parameters, DataType dataType)
+    {
+        Map<String, String> metadata = new HashMap<>();
+        metadata.put("format", "pt");
+
+        SafetensorsModel safetensorsModel = new SafetensorsModel(metadata);
+
+        long startOffset = 0;
+        for (DeclaredParameter parameter : parameters)
+        {
+            List<Integer> shape = new ArrayList<>();
+            for (int dimension : parameter.getShape())
+            {
+                shape.add(dimension);
+            }
+
+            long endOffset = startOffset + parameter.getSize() * dataType.getBits() / 8;
+            safetensorsModel.addTensor(parameter.getName(),
+                    new TensorModel(dataType.name(), shape, startOffset, endOffset));
+
+            startOffset = endOffset;
+        }
+
+        try
+        {
+            StringBuilder header = new StringBuilder(new ObjectMapper().writeValueAsString(safetensorsModel));
+
+            // The header is padded by spaces, so the tensor data is 8 bytes aligned
+            while (header.length() % 8 != 0)
+            {
+                header.append(' ');
+            }
+
+            return header.toString().getBytes(StandardCharsets.UTF_8);
+        }
+        catch (JsonProcessingException e)
+        {
+            throw new IdentifiedException("Can't create the header of the parameter file.", e);
+        }
+    }
+}
@@ -1,5 +1,9 @@
 package huplay.demo.config;
 
+import huplay.demo.sampler.SamplerSettings;
+import huplay.demo.util.FloatType;
+import huplay.demo.util.UtilityLoader;
+
 import java.io.*;
 import java.util.*;
 
@@ -9,9 +13,24 @@ import java.util.*;
 public class Arguments
 {
     private static final String ARG_CALC = "-calc";
+    private static final String ARG_BENCH = "-bench";
     private static final String ARG_MAX = "-max";
     private static final String ARG_TOP_K = "-topK";
     private static final String ARG_MEM = "-mem";
+    private static final String ARG_THREADS = "-threads";
+    private static final String ARG_QUANT = "-quant";
+    private static final String ARG_BACKEND = "-backend";
+    private static final String ARG_KV_CACHE = "-kvCache";
+    private static final String ARG_GREEDY = "-greedy";
+    private static final String ARG_TEMPERATURE = "-temperature";
+    private static final String ARG_TOP_P = "-topP";
+    private static final String ARG_MIN_P = "-minP";
+    private static final String ARG_REPETITION_PENALTY = "-repetitionPenalty";
+    private static final String ARG_FREQUENCY_PENALTY = "-frequencyPenalty";
+    private static final String ARG_SEED = "-seed";
+    private static final String ARG_WINDOW = "-window";
+    private static final String ARG_SINKS = "-sinks";
+    private static final String ARG_TENSOR_PARALLEL = "-tensorParallel";
 
     // The root folder of the model configurations
     // The default is the modelConfig, but it can be overridden by the DEMO_LLM_ZOO_CONFIG_ROOT environment variable
@@ -29,6 +48,34 @@ public class Arguments
     private boolean isCalculationOnly;
     private final Integer requestedMemorySize;
 
+    // Number of threads used by the matrix multiplications
+    private int threadCount = Runtime.getRuntime().availableProcessors();
+
+    // Float type of the weight matrices after loading (null: the stored type is used)
+    private FloatType quantizationType;
+
+    // Name of the calculation library (backend), or auto/benchmark to select it automatically
+    private String backend = UtilityLoader.AUTO;
+
+    // Speed measurement instead of the text generation (see Benchmark)
+    private boolean isBenchmark;
+
+    // Float type of the stored keys and values (null: the type set in the model.json is used, or float32)
+    private FloatType kvCacheType;
+
+    // Settings of the token selection (temperature, topP, minP, penalties, seed)
+    private SamplerSettings samplerSettings = new SamplerSettings();
+
+    // Streaming mode: size of the sliding window of the key/value cache (0: no streaming, limited by the context size)
+    private int windowSize = 0;
+
+    // Number of the first positions retained in streaming mode (attention sinks)
+    private int sinkCount = 4;
+
+    // Tensor parallel mode: the attention heads and the feed-forward neurons of the decoders are split between
+    // the threads (instead of splitting every matrix multiplication)
+    private boolean isTensorParallel;
+
     public Arguments(String configRoot, String modelRoot, String relativePath,
                      int lengthLimit, int topK, boolean isCalculationOnly, int requestedMemorySize)
     {
@@ -55,7 +102,16 @@ public class Arguments
         int maxLength = 25;
         int topK = 40;
         int requestedMemorySize = 0;
+        int threadCount = Runtime.getRuntime().availableProcessors();
         boolean isCalculationOnly = false;
+        boolean isBenchmark = false;
+        FloatType quantizationType = null;
+        String backend = UtilityLoader.AUTO;
+        FloatType kvCacheType = null;
+        SamplerSettings samplerSettings = new SamplerSettings();
+        int windowSize = 0;
+        int sinkCount = 4;
+        boolean isTensorParallel = false;
 
         if (args != null)
         {
@@ -65,6 +121,9 @@ public class Arguments
                 if (arg.charAt(0) == '-')
                 {
                     if (equals(arg, ARG_CALC)) isCalculationOnly = true;
+                    else if (equals(arg, ARG_BENCH)) isBenchmark = true;
+                    else if (equals(arg, ARG_GREEDY)) samplerSettings.setTemperature(0);
+                    else if (equals(arg, ARG_TENSOR_PARALLEL)) isTensorParallel = true;
                     else
                     {
                         String[] parts = arg.split("=");
@@ -76,6 +135,23 @@ public class Arguments
                             if (equals(key, ARG_MAX)) maxLength = readInt(value, maxLength);
                             else if (equals(key, ARG_TOP_K)) topK = readInt(value, topK);
                             else if (equals(key, ARG_MEM)) requestedMemorySize = readInt(value, 0);
+                            else if (equals(key, ARG_THREADS)) threadCount = readInt(value, threadCount);
+                            else if (equals(key, ARG_QUANT)) quantizationType = readFloatType(value);
+                            else if (equals(key, ARG_BACKEND)) backend = value.toLowerCase(Locale.ROOT);
+                            else if (equals(key, ARG_KV_CACHE)) kvCacheType = readFloatType(value);
+                            else if (equals(key, ARG_TEMPERATURE))
+                                samplerSettings.setTemperature(readFloat(value, samplerSettings.getTemperature()));
+                            else if (equals(key, ARG_TOP_P))
+                                samplerSettings.setTopP(readFloat(value, samplerSettings.getTopP()));
+                            else if (equals(key, ARG_MIN_P))
+                                samplerSettings.setMinP(readFloat(value, samplerSettings.getMinP()));
+                            else if (equals(key, ARG_REPETITION_PENALTY))
+                                samplerSettings.setRepetitionPenalty(readFloat(value, samplerSettings.getRepetitionPenalty()));
+                            else if (equals(key, ARG_FREQUENCY_PENALTY))
+                                samplerSettings.setFrequencyPenalty(readFloat(value, samplerSettings.getFrequencyPenalty()));
+                            else if (equals(key, ARG_SEED)) samplerSettings.setSeed(readLong(value));
+                            else if (equals(key, ARG_WINDOW)) windowSize = readInt(value, windowSize);
+                            else if (equals(key, ARG_SINKS)) sinkCount = readInt(value, sinkCount);
                         }
                         else
                         {
@@ -94,7 +170,20 @@ public class Arguments
             }
         }
 
-        return new Arguments(configRoot, modelRoot, modelPath, maxLength, topK, isCalculationOnly, requestedMemorySize);
+        Arguments arguments = new Arguments(configRoot, modelRoot, modelPath, maxLength, topK, isCalculationOnly,
+                requestedMemorySize);
+
+        arguments.setThreadCount(threadCount);
+        arguments.setQuantizationType(quantizationType);
+        arguments.setBackend(backend);
+        arguments.setBenchmark(isBenchmark);
+        arguments.setKvCacheType(kvCacheType);
+        arguments.setSamplerSettings(samplerSettings);
+        arguments.setWindowSize(windowSize);
+        arguments.setSinkCount(sinkCount);
+        arguments.setTensorParallel(isTensorParallel);
+
+        return arguments;
     }
 
     // Getters, setters
@@ -105,10 +194,28 @@ public class Arguments
     public int getTopK() {return topK;}
     public boolean isCalculationOnly() {return isCalculationOnly;}
     public Integer getRequestedMemorySize() {return requestedMemorySize;}
+    public int getThreadCount() {return threadCount;}
+    public FloatType getQuantizationType() {return quantizationType;}
+    public String getBackend() {return backend;}
+    public boolean isBenchmark() {return isBenchmark;}
+    public FloatType getKvCacheType() {return kvCacheType;}
+    public SamplerSettings getSamplerSettings() {return samplerSettings;}
+    public int getWindowSize() {return windowSize;}
+    public int getSinkCount() {return sinkCount;}
+    public boolean isTensorParallel() {return isTensorParallel;}
 
     // Setters
     public void setRelativePath(String relativePath) {this.relativePath = relativePath;}
     public void setCalculationOnly(boolean calculationOnly) {isCalculationOnly = calculationOnly;}
+    public void setThreadCount(int threadCount) {this.threadCount = threadCount;}
+    public void setQuantizationType(FloatType quantizationType) {this.quantizationType = quantizationType;}
+    public void setBackend(String backend) {this.backend = backend;}
+    public void setBenchmark(boolean benchmark) {isBenchmark = benchmark;}
+    public void setKvCacheType(FloatType kvCacheType) {this.kvCacheType = kvCacheType;}
+    public void setSamplerSettings(SamplerSettings samplerSettings) {this.samplerSettings = samplerSettings;}
+    public void setWindowSize(int windowSize) {this.windowSize = windowSize;}
+    public void setSinkCount(int sinkCount) {this.sinkCount = sinkCount;}
+    public void setTensorParallel(boolean tensorParallel) {isTensorParallel = tensorParallel;}
 
     public String getConfigPath()
     {
@@ -140,6 +247,50 @@ public class Arguments
         return defaultValue;
     }
 
+    private static float readFloat(String value, float defaultValue)
+    {
+        try
+        {
+            return Float.parseFloat(value);
+        }
+        catch (Exception e)
+        {
+            System.out.println("\nWARNING: The provided value can't be converted to float (" + value
+                    + "). Default value will be used.\n");
+        }
+
+        return defaultValue;
+    }
+
+    private static Long readLong(String value)
+    {
+        try
+        {
+            return Long.parseLong(value);
+        }
+        catch (Exception e)
+        {
+            System.out.println("\nWARNING: The provided value can't be converted to long (" + value
+                    + "). Random seed will be used.\n");
+        }
+
+        return null;
+    }
+
+    private static FloatType readFloatType(String value)
+    {
+        try
+        {
+            return FloatType.valueOf(value.toUpperCase(Locale.ROOT));
+        }
+        catch (Exception e)
+        {
+            System.out.println("\nWARNING: Unknown float type (" + value + "). The default type will be used.\n");
+        }
+
+        return null;
+    }
+
     private static String removeDoubleQuotes(String text)
     {
         if (text == null) return null;
@@ -5,6 +5,8 @@ import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import huplay.demo.IdentifiedException;
+import huplay.demo.sampler.SamplerSettings;
+import huplay.demo.util.FloatType;
 
 import java.io.File;
 import java.io.IOException;
@@ -73,6 +75,13 @@ public class Config
             // At some models the context size is unlimited, so this value isn't configured. Set it to max possible.
             if (config.contextSize == 0) config.contextSize = Integer.MAX_VALUE;
 
+            // In streaming mode the positions are re-indexed relative to the cache, so these have to fit the context
+            if (config.isStreaming() && (long) config.getSinkCount() + config.getWindowSize() > config.contextSize)
+            {
+                throw new IdentifiedException("The attention sinks and the window (" + config.getSinkCount() + " + "
+                        + config.getWindowSize() + ") can't be more than the context size (" + config.contextSize + ")");
+            }
+
             TypeReference<Map<String, Object>> typeRef = new TypeReference<>() {};
             config.allEntries = objectMapper.readValue(configFile, typeRef);
 
@@ -128,6 +137,44 @@ public class Config
         }
     }
 
+    public String getStringOptional(String key, String defaultValue)
+    {
+        Object value = allEntries.get(key);
+        return value == null ? defaultValue : value.toString();
+    }
+
+    public List<String> getStringListOptional(String key)
+    {
+        Object value = allEntries.get(key);
+        if (value == null) return null;
+
+        if (!(value instanceof List))
+        {
+            throw new IdentifiedException("Cannot read list property: " + key + " value: " + value);
+        }
+
+        List<String> list = new ArrayList<>();
+        for (Object item : (List<?>) value)
+        {
+            list.add(item.toString());
+        }
+
+        return list;
+    }
+
+    public float getFloatOptional(String key, float defaultValue)
+    {
+        try
+        {
+            Object value = allEntries.get(key);
+            return value == null ? defaultValue : Float.parseFloat(value.toString());
+        }
+        catch (Exception e)
+        {
+            throw new IdentifiedException("Cannot read float property: " + key + " exception: " + e.getMessage());
+        }
+    }
+
     // Getters
     public ModelConfig getModelConfig() {return modelConfig;}
     public ParameterReader getReader() {return reader;}
@@ -150,6 +197,13 @@ public class Config
     public boolean isCalculationOnly() {return arguments.isCalculationOnly();}
     public void setCalculationOnly(boolean calculationOnly) {arguments.setCalculationOnly(calculationOnly);}
     public Integer getRequestedMemorySize() {return arguments.getRequestedMemorySize();}
+    public int getThreadCount() {return arguments.getThreadCount();}
+    public String getBackend() {return arguments.getBackend();}
+    public SamplerSettings getSamplerSettings() {return arguments.getSamplerSettings();}
+    public FloatType getQuantizationType() {return arguments.getQuantizationType();}
+    public int getWindowSize() {return arguments.getWindowSize();}
+    public int getSinkCount() {return arguments.getSinkCount();}
+    public boolean isTensorParallel() {return arguments.isTensorParallel();}
 
     // Getters to ModelConfig
     public String getName() {return modelConfig.getName();}
@@ -168,4 +222,24 @@ public class Config
     {
         return hiddenSize / headCount;
     }
+
+    /**
+     * Streaming mode: only the attention sinks and the sliding window are retained in the key/value cache,
+     * so the generation isn't stopped at the end of the context
+     */
+    public boolean isStreaming()
+    {
+        return getWindowSize() > 0;
+    }
+
+    /**
+     * Float type of the key/value cache (set by argument, or in the model.json, the default is float32)
+     */
+    public FloatType getKvCacheType()
+    {
+        if (arguments.getKvCacheType() != null) return arguments.getKvCacheType();
+        if (modelConfig.getKvCacheType() != null) return modelConfig.getKvCacheType();
+
+        return FloatType.FLOAT32;
+    }
 }
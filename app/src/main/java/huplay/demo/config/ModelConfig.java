@@ -3,6 +3,7 @@ package huplay.demo.config;
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import huplay.demo.IdentifiedException;
+import huplay.demo.util.FloatType;
 
 import java.io.File;
 import java.io.IOException;
@@ -31,6 +32,9 @@ public class ModelConfig
     private Map<String, String> parameterNameOverrides;
     private Integer memorySize;
 
+    // Float type of the stored keys and values (attention cache), null: float32
+    private FloatType kvCacheType;
+
     public static ModelConfig read(Arguments arguments)
     {
         String modelConfigJson = arguments.getConfigPath() + "/model.json";
@@ -78,6 +82,7 @@ public class ModelConfig
     public String getParameterNaming() {return parameterNaming;}
     public String getDecoderParameterNaming() {return decoderParameterNaming;}
     public Map<String, String> getParameterNameOverrides() {return parameterNameOverrides;}
+    public FloatType getKvCacheType() {return kvCacheType;}
     public Integer getMemorySize() {return memorySize;}
 
     public String resolveFileName(String name)
@@ -5,6 +5,7 @@ import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import huplay.demo.IdentifiedException;
 import huplay.demo.util.FloatType;
+import huplay.demo.util.Matrix;
 import huplay.demo.util.Vector;
 
 import java.io.*;
@@ -13,7 +14,6 @@ import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
 
-import static huplay.demo.AppLoader.UTIL;
 import static huplay.demo.config.SafetensorsModel.TensorModel;
 
 /**
@@ -125,26 +125,47 @@ public class ParameterReader
         return new String(array, StandardCharsets.UTF_8);
     }
 
+    /**
+     * Reads a vector parameter, widened to float32
+     * (The vectors are small, the matrices are kept in the stored 16-bit format if that is used by the file.)
+     */
     public Vector readVector(String file, int size)
     {
-        return read(file, size, false);
+        return read(file, size, false).toFloat32();
     }
 
     public Vector readVectorOptional(String file, int size)
     {
-        return read(file, size, true);
+        Vector vector = read(file, size, true);
+        return vector == null ? null : vector.toFloat32();
     }
 
-    public Vector[] readMatrix(String file, int rows, int cols)
+    public Matrix readMatrix(String file, int rows, int cols)
     {
         Vector vector = read(file, rows * cols, false);
-        return vector == null ? null : UTIL.splitVector(vector, rows);
+        return vector == null ? null : new Matrix(vector, rows, cols);
     }
 
-    public Vector[] readMatrixOptional(String file, int rows, int cols)
+    public Matrix readMatrixOptional(String file, int rows, int cols)
     {
         Vector vector = read(file, rows * cols, true);
-        return vector == null ? null : UTIL.splitVector(vector, rows);
+        return vector == null ? null : new Matrix(vector, rows, cols);
+    }
+
+    /**
+     * The float type of a matrix parameter in the memory (the 16-bit floats are kept, anything else is float32)
+     */
+    public FloatType getFloatType(String id)
+    {
+        ParameterDescriptor descriptor = parameterDescriptors.get(id);
+
+        if (descriptor != null)
+        {
+            if (descriptor.getDataType() == DataType.F16) return FloatType.FLOAT16;
+            if (descriptor.getDataType() == DataType.BF16) return FloatType.BFLOAT16;
+        }
+
+        return FloatType.FLOAT32;
     }
 
     private void checkSize(ParameterDescriptor descriptor, long expectedSize)
@@ -208,23 +229,18 @@ public class ParameterReader
 
     private Vector readFloat16(FileInputStream stream, int size, long offset) throws IOException
     {
-        short[] array = new short[size];
-
-        ByteBuffer buffer = stream.getChannel().map(FileChannel.MapMode.READ_ONLY, offset, (long) size * 2);
-        buffer.order(ByteOrder.LITTLE_ENDIAN);
-        buffer.asShortBuffer().get(array, 0, size);
-
-        float[] ret = new float[size]; // TODO
-
-        for (int i = 0; i < size; i++)
-        {
-            ret[i] = toFloat32(array[i]);
-        }
-
-        return new Vector(FloatType.FLOAT16, array);
+        return new Vector(FloatType.FLOAT16, readShorts(stream, size, offset));
     }
 
     private Vector readBrainFloat16(FileInputStream stream, int size, long offset) throws IOException
+    {
+        return new Vector(FloatType.BFLOAT16, readShorts(stream, size, offset));
+    }
+
+    /**
+     * Reads the raw 16-bit values (the conversion to float32 happens at the calculations)
+     */
+    private short[] readShorts(FileInputStream stream, int size, long offset) throws IOException
     {
         short[] array = new short[size];
 
@@ -232,60 +248,6 @@ public class ParameterReader
         buffer.order(ByteOrder.LITTLE_ENDIAN);
         buffer.asShortBuffer().get(array, 0, size);
 
-        float[] ret = new float[size];
-
-        for (int i = 0; i < size; i++)
-        {
-            ret[i] = toFloat32(array[i]);
-        }
-
-        return new Vector(FloatType.BFLOAT16, array);
-    }
-
-    private float toFloat32(short value)
-    {
-        int signFlag = value & 0b1000_0000_0000_0000; // Extract sign (1st bit)
-        int exponent = value & 0b0111_1100_0000_0000; // Extract exponent (5 bits after exponent
-        int mantissa = value & 0b0000_0011_1111_1111; // Extract mantissa (last 10 bits)
-
-        if (exponent == 0b0111_1100_0000_0000)
-        {
-            // Infinity or NaN
-            if (mantissa == 0)
-            {
-                if (signFlag == 0) return Float.POSITIVE_INFINITY;
-                else return Float.NEGATIVE_INFINITY;
-            }
-            else return Float.NaN;
-        }
-        else if (exponent == 0)
-        {
-            // Zero or subnormal value
-            if (mantissa != 0)
-            {
-                exponent = 0x1c400;
-                do
-                {
-                    mantissa <<= 1;
-                    exponent -= 0b0000_0100_0000_0000;
-                }
-                while ((mantissa & 0b0000_0100_0000_0000) == 0);
-
-                mantissa &= 0b0000_0011_1111_1111;
-            }
-
-            return Float.intBitsToFloat(signFlag << 16 | (exponent | mantissa) << 13);
-        }
-        else
-        {
-            // Normal value
-            exponent += 0x1c000;
-            if (mantissa == 0 && exponent > 0x1c400)
-            {
-                return Float.intBitsToFloat(signFlag << 16 | exponent << 13 | 0b0000_0011_1111_1111);
-            }
-
-            return Float.intBitsToFloat(signFlag << 16 | (exponent | mantissa) << 13);
-        }
+        return array;
     }
 }
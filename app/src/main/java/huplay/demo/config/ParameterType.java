@@ -2,8 +2,8 @@ package huplay.demo.config;
 
 public enum ParameterType
 {
-    // Input
-    TOKEN_EMBEDDINGS,
+    // Input (the token embeddings are used for the output logits as well)
+    TOKEN_EMBEDDINGS(true),
     TOKEN_EMBEDDING_BIAS,
     POSITION_EMBEDDINGS,
 
@@ -12,19 +12,19 @@ public enum ParameterType
 
 
     // Attention block
-    ATT_QUERY_KEY_VALUE_WEIGHT,
+    ATT_QUERY_KEY_VALUE_WEIGHT(true),
     ATT_QUERY_KEY_VALUE_BIAS,
 
-    ATT_QUERY_WEIGHT,
+    ATT_QUERY_WEIGHT(true),
     ATT_QUERY_BIAS,
 
-    ATT_KEY_WEIGHT,
+    ATT_KEY_WEIGHT(true),
     ATT_KEY_BIAS,
 
-    ATT_VALUE_WEIGHT,
+    ATT_VALUE_WEIGHT(true),
     ATT_VALUE_BIAS,
 
-    ATT_PROJ_WEIGHT,
+    ATT_PROJ_WEIGHT(true),
     ATT_PROJ_BIAS,
 
     ATT_NORM_WEIGHT,
@@ -33,13 +33,13 @@ public enum ParameterType
     ROTARY_EMBEDDING,
 
     // Feed-forward block
-    MLP_1_WEIGHT,
+    MLP_1_WEIGHT(true),
     MLP_1_BIAS,
 
-    MLP_2_WEIGHT,
+    MLP_2_WEIGHT(true),
     MLP_2_BIAS,
 
-    MLP_3_WEIGHT,
+    MLP_3_WEIGHT(true),
     MLP_3_BIAS,
 
     MLP_NORM_WEIGHT,
@@ -48,5 +48,23 @@ public enum ParameterType
 
     // Output
     OUTPUT_NORM_WEIGHT,
-    OUTPUT_NORM_BIAS
+    OUTPUT_NORM_BIAS;
+
+    // The large matrices can be quantized (the position embeddings and the normalization are kept in float)
+    private final boolean isQuantizable;
+
+    ParameterType()
+    {
+        this(false);
+    }
+
+    ParameterType(boolean isQuantizable)
+    {
+        this.isQuantizable = isQuantizable;
+    }
+
+    public boolean isQuantizable()
+    {
+        return isQuantizable;
+    }
 }
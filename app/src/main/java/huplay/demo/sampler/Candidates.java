@@ -0,0 +1,169 @@
+package huplay.demo.sampler;
+
+import huplay.demo.util.IndexedValue;
+import huplay.demo.util.Vector;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The candidate tokens of the token selection with the logits and probabilities (stored in primitive arrays)
+ * The arrays are reused for every selected token, only extended if more candidates are provided.
+ * The probabilities are calculated on demand (softmax of the actual logits), and these aren't normalized
+ * (the sum of the retained probabilities is used instead), so the retained candidates don't have to be rescaled.
+ */
+public class Candidates
+{
+    private int[] tokens = new int[0];
+    private float[] logits = new float[0];
+    private double[] probabilities = new double[0];
+    private long[] sortKeys = new long[0];
+
+    private int size;
+    private boolean isSorted;
+    private boolean hasProbabilities;
+
+    /**
+     * Loads the candidates (token id and logit pairs)
+     */
+    public void load(List<IndexedValue> values)
+    {
+        ensureCapacity(values.size());
+
+        size = values.size();
+        for (int i = 0; i < size; i++)
+        {
+            tokens[i] = values.get(i).getIndex();
+            logits[i] = values.get(i).getValue();
+        }
+
+        isSorted = false;
+        hasProbabilities = false;
+    }
+
+    /**
+     * Loads all tokens as candidates (the logits of the full vocabulary, the token id is the index)
+     */
+    public void load(Vector logits)
+    {
+        ensureCapacity(logits.size());
+
+        size = logits.size();
+        for (int i = 0; i < size; i++)
+        {
+            tokens[i] = i;
+            this.logits[i] = logits.get(i);
+        }
+
+        isSorted = false;
+        hasProbabilities = false;
+    }
+
+    /**
+     * Sorts the candidates by logit (higher to lower, at equal logits by the lower token id)
+     * The logits and the token ids are packed into long values, so it's a primitive sort without object allocation.
+     */
+    public void sort()
+    {
+        if (isSorted) return;
+
+        for (int i = 0; i < size; i++)
+        {
+            // Float bits converted to an int with the same ordering as the float values, inverted for reverse order
+            int bits = Float.floatToIntBits(logits[i]);
+            int orderedBits = bits ^ ((bits >> 31) & 0x7fffffff);
+
+            sortKeys[i] = ((long) ~orderedBits << 32) | tokens[i];
+        }
+
+        Arrays.sort(sortKeys, 0, size);
+
+        for (int i = 0; i < size; i++)
+        {
+            int token = (int) sortKeys[i];
+            int orderedBits = ~(int) (sortKeys[i] >> 32);
+            int bits = orderedBits ^ ((orderedBits >> 31) & 0x7fffffff);
+
+            tokens[i] = token;
+            logits[i] = Float.intBitsToFloat(bits);
+        }
+
+        isSorted = true;
+        hasProbabilities = false;
+    }
+
+    /**
+     * Retains the first candidates (after sorting these are the best ones)
+     */
+    public void truncate(int newSize)
+    {
+        size = Math.max(Math.min(size, newSize), 1);
+    }
+
+    /**
+     * Probability of the candidate (not normalized, the sum is returned by getProbabilitySum)
+     */
+    public double getProbability(int i)
+    {
+        if (!hasProbabilities)
+        {
+            calculateProbabilities();
+        }
+
+        return probabilities[i];
+    }
+
+    public double getProbabilitySum()
+    {
+        double sum = 0;
+        for (int i = 0; i < size; i++)
+        {
+            sum += getProbability(i);
+        }
+
+        return sum;
+    }
+
+    /**
+     * Softmax of the logits (the exponents are relative to the maximum, so these can't overflow)
+     */
+    private void calculateProbabilities()
+    {
+        float max = Float.NEGATIVE_INFINITY;
+        for (int i = 0; i < size; i++)
+        {
+            max = Math.max(max, logits[i]);
+        }
+
+        for (int i = 0; i < size; i++)
+        {
+            probabilities[i] = Math.exp(logits[i] - max);
+        }
+
+        hasProbabilities = true;
+    }
+
+    public void setLogit(int i, float logit)
+    {
+        logits[i] = logit;
+
+        isSorted = false;
+        hasProbabilities = false;
+    }
+
+    private void ensureCapacity(int capacity)
+    {
+        if (tokens.length < capacity)
+        {
+            tokens = new int[capacity];
+            logits = new float[capacity];
+            probabilities = new double[capacity];
+            sortKeys = new long[capacity];
+        }
+    }
+
+    // Getters
+    public int size() {return size;}
+    public int getToken(int i) {return tokens[i];}
+    public float getLogit(int i) {return logits[i];}
+}
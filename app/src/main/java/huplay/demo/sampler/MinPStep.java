@@ -0,0 +1,30 @@
+package huplay.demo.sampler;
+
+/**
+ * Drops the candidates with a lower probability than minP times the probability of the best candidate
+ */
+public class MinPStep implements SamplerStep
+{
+    private final float minP;
+
+    public MinPStep(float minP)
+    {
+        this.minP = minP;
+    }
+
+    @Override
+    public void apply(Candidates candidates)
+    {
+        candidates.sort();
+
+        double limit = minP * candidates.getProbability(0);
+
+        int size = 1;
+        while (size < candidates.size() && candidates.getProbability(size) >= limit)
+        {
+            size++;
+        }
+
+        candidates.truncate(size);
+    }
+}
@@ -0,0 +1,39 @@
+package huplay.demo.sampler;
+
+/**
+ * Penalizes the tokens which are already in the history, to avoid repetitions
+ * The repetition penalty divides the positive logits and multiplies the negatives (so it's always a decrease),
+ * the frequency penalty is subtracted as many times as the token occurred.
+ */
+public class PenaltyStep implements SamplerStep
+{
+    private final TokenHistory history;
+    private final float repetitionPenalty;
+    private final float frequencyPenalty;
+
+    public PenaltyStep(TokenHistory history, float repetitionPenalty, float frequencyPenalty)
+    {
+        this.history = history;
+        this.repetitionPenalty = repetitionPenalty;
+        this.frequencyPenalty = frequencyPenalty;
+    }
+
+    @Override
+    public void apply(Candidates candidates)
+    {
+        for (int i = 0; i < candidates.size(); i++)
+        {
+            int count = history.getCount(candidates.getToken(i));
+
+            if (count > 0)
+            {
+                float logit = candidates.getLogit(i);
+
+                logit = logit > 0 ? logit / repetitionPenalty : logit * repetitionPenalty;
+                logit = logit - frequencyPenalty * count;
+
+                candidates.setLogit(i, logit);
+            }
+        }
+    }
+}
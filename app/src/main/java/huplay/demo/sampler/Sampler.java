@@ -0,0 +1,162 @@
+package huplay.demo.sampler;
+
+import huplay.demo.util.IndexedValue;
+import huplay.demo.util.Vector;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Token selection from the logits of the candidate tokens
+ * The steps (penalties, top-k, temperature, min-p, top-p) are executed in order on the candidates, and a token is
+ * picked randomly (weighted by the probabilities) from the retained ones. (At temperature 0 the best token is chosen.)
+ *
+ * The candidates are provided by the fused top-k multiplication (Utility.mulVectorByTransposedMatrixAndFilter),
+ * so only a few tokens are processed here, not the full vocabulary. (Without topK limit all tokens are candidates,
+ * then the logits of the full vocabulary are passed instead, see needsAllLogits.)
+ * The random generator is seeded, and it is reset for every new session, so the generation is reproducible.
+ */
+public class Sampler
+{
+    private final SamplerSettings settings;
+    private final int topK;
+    private final int tokenCount;
+    private final long seed;
+
+    private final TokenHistory history;
+    private final Candidates candidates = new Candidates();
+    private final List<SamplerStep> steps = new ArrayList<>();
+
+    private SplittableRandom random;
+
+    public Sampler(SamplerSettings settings, int topK, int tokenCount)
+    {
+        this.settings = settings;
+        this.topK = topK > 0 ? Math.min(topK, tokenCount) : tokenCount;
+        this.tokenCount = tokenCount;
+        this.seed = settings.getSeed() != null ? settings.getSeed() : ThreadLocalRandom.current().nextLong();
+        this.history = new TokenHistory(tokenCount);
+        this.random = new SplittableRandom(seed);
+
+        // The penalties are applied on the raw logits, before any filtering
+        if (settings.hasPenalty())
+        {
+            steps.add(new PenaltyStep(history, settings.getRepetitionPenalty(), settings.getFrequencyPenalty()));
+        }
+
+        if (settings.isGreedy())
+        {
+            steps.add(new TopKStep(1));
+        }
+        else
+        {
+            steps.add(new TopKStep(this.topK));
+
+            if (settings.getTemperature() != 1) steps.add(new TemperatureStep(settings.getTemperature()));
+            if (settings.getMinP() > 0) steps.add(new MinPStep(settings.getMinP()));
+            if (settings.getTopP() < 1) steps.add(new TopPStep(settings.getTopP()));
+        }
+    }
+
+    /**
+     * Number of the best tokens which has to be provided as candidates
+     * The penalties can only decrease the logits, so the result is exact if the already seen tokens are added
+     * to the topK (the penalized tokens may drop out, but the topK is still among the candidates).
+     */
+    public int getCandidateCount()
+    {
+        int count = settings.isGreedy() ? 1 : topK;
+
+        if (settings.hasPenalty())
+        {
+            count = count + history.getDistinctCount();
+        }
+
+        return Math.min(count, tokenCount);
+    }
+
+    /**
+     * Are all tokens candidates (so the logits can be sampled without filtering the best ones)
+     */
+    public boolean needsAllLogits()
+    {
+        return getCandidateCount() == tokenCount;
+    }
+
+    /**
+     * Selects a token from the candidates (token id and logit pairs)
+     */
+    public int sample(List<IndexedValue> values)
+    {
+        candidates.load(values);
+
+        return sample();
+    }
+
+    /**
+     * Selects a token from the logits of all tokens
+     */
+    public int sample(Vector logits)
+    {
+        candidates.load(logits);
+
+        return sample();
+    }
+
+    private int sample()
+    {
+        for (SamplerStep step : steps)
+        {
+            step.apply(candidates);
+        }
+
+        if (settings.isGreedy())
+        {
+            return candidates.getToken(0);
+        }
+
+        return weightedRandomPick();
+    }
+
+    /**
+     * Weighted random selection from the retained candidates
+     */
+    private int weightedRandomPick()
+    {
+        double random = this.random.nextDouble() * candidates.getProbabilitySum();
+
+        double sum = 0;
+        for (int i = 0; i < candidates.size() - 1; i++)
+        {
+            sum = sum + candidates.getProbability(i);
+            if (random < sum) return candidates.getToken(i);
+        }
+
+        // The last candidate (it is reached by the rounding errors as well)
+        return candidates.getToken(candidates.size() - 1);
+    }
+
+    /**
+     * Registers a processed token (input or generated), which is used by the penalties
+     */
+    public void accept(int token)
+    {
+        history.add(token);
+    }
+
+    /**
+     * Starts a new session (the history is deleted, and the random generator is reset to the initial seed)
+     */
+    public void clear()
+    {
+        history.clear();
+        random = new SplittableRandom(seed);
+    }
+
+    public long getSeed()
+    {
+        return seed;
+    }
+}
@@ -0,0 +1,91 @@
+package huplay.demo.sampler;
+
+import huplay.demo.IdentifiedException;
+
+/**
+ * Settings of the token selection (the default values give the original behaviour: random pick from the topK tokens)
+ */
+public class SamplerSettings
+{
+    // Divider of the logits (higher: more random, lower: more deterministic, 0: greedy, always the best token)
+    private float temperature = 1;
+
+    // Nucleus sampling: only the most probable tokens are retained, with a cumulative probability of topP (1: off)
+    private float topP = 1;
+
+    // Tokens with a lower probability than minP * (probability of the best token) are dropped (0: off)
+    private float minP = 0;
+
+    // The positive logits of the already seen tokens are divided, the negatives are multiplied by this (1: off)
+    private float repetitionPenalty = 1;
+
+    // Subtracted from the logit of a token as many times as the token is already seen (0: off)
+    private float frequencyPenalty = 0;
+
+    // Seed of the random generator, so the generation is reproducible (null: random seed)
+    private Long seed;
+
+    public boolean isGreedy()
+    {
+        return temperature == 0;
+    }
+
+    public boolean hasPenalty()
+    {
+        return repetitionPenalty != 1 || frequencyPenalty != 0;
+    }
+
+    /**
+     * Returns the non-default settings as command line arguments (to pass them to the main app)
+     */
+    public String toArguments()
+    {
+        StringBuilder arguments = new StringBuilder();
+
+        if (temperature != 1) arguments.append(" -temperature=").append(temperature);
+        if (topP != 1) arguments.append(" -topP=").append(topP);
+        if (minP != 0) arguments.append(" -minP=").append(minP);
+        if (repetitionPenalty != 1) arguments.append(" -repetitionPenalty=").append(repetitionPenalty);
+        if (frequencyPenalty != 0) arguments.append(" -frequencyPenalty=").append(frequencyPenalty);
+        if (seed != null) arguments.append(" -seed=").append(seed);
+
+        return arguments.toString();
+    }
+
+    // Getters, setters
+    public float getTemperature() {return temperature;}
+    public float getTopP() {return topP;}
+    public float getMinP() {return minP;}
+    public float getRepetitionPenalty() {return repetitionPenalty;}
+    public float getFrequencyPenalty() {return frequencyPenalty;}
+    public Long getSeed() {return seed;}
+
+    public void setTemperature(float temperature) {this.temperature = temperature;}
+    public void setTopP(float topP) {this.topP = topP;}
+    public void setMinP(float minP) {this.minP = minP;}
+    public void setSeed(Long seed) {this.seed = seed;}
+
+    /**
+     * The penalties can only decrease the logits of the seen tokens (the candidate count of the Sampler relies on it:
+     * a boosted token outside the topK wouldn't be among the candidates)
+     */
+    public void setRepetitionPenalty(float repetitionPenalty)
+    {
+        if (!(repetitionPenalty >= 1))
+        {
+            throw new IdentifiedException("The repetition penalty can't be less than 1 (" + repetitionPenalty + ")");
+        }
+
+        this.repetitionPenalty = repetitionPenalty;
+    }
+
+    public void setFrequencyPenalty(float frequencyPenalty)
+    {
+        if (!(frequencyPenalty >= 0))
+        {
+            throw new IdentifiedException("The frequency penalty can't be negative (" + frequencyPenalty + ")");
+        }
+
+        this.frequencyPenalty = frequencyPenalty;
+    }
+}
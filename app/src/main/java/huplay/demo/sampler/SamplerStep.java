@@ -0,0 +1,10 @@
+package huplay.demo.sampler;
+
+/**
+ * A step of the token selection, which modifies the logits or filters the candidates
+ * The steps are executed in order (see Sampler), so a new method can be added as a new step.
+ */
+public interface SamplerStep
+{
+    void apply(Candidates candidates);
+}
@@ -0,0 +1,23 @@
+package huplay.demo.sampler;
+
+/**
+ * Divides the logits by the temperature (above 1 the probabilities become more even, below 1 more peaked)
+ */
+public class TemperatureStep implements SamplerStep
+{
+    private final float temperature;
+
+    public TemperatureStep(float temperature)
+    {
+        this.temperature = temperature;
+    }
+
+    @Override
+    public void apply(Candidates candidates)
+    {
+        for (int i = 0; i < candidates.size(); i++)
+        {
+            candidates.setLogit(i, candidates.getLogit(i) / temperature);
+        }
+    }
+}
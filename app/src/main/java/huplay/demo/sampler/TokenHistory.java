@@ -0,0 +1,46 @@
+package huplay.demo.sampler;
+
+import java.util.Arrays;
+
+/**
+ * Counts the occurrences of the tokens in the actual session (used by the penalties)
+ */
+public class TokenHistory
+{
+    private final int[] counts;
+    private int distinctCount;
+
+    public TokenHistory(int tokenCount)
+    {
+        this.counts = new int[tokenCount];
+    }
+
+    public void add(int token)
+    {
+        if (counts[token] == 0)
+        {
+            distinctCount++;
+        }
+
+        counts[token]++;
+    }
+
+    public void clear()
+    {
+        Arrays.fill(counts, 0);
+        distinctCount = 0;
+    }
+
+    public int getCount(int token)
+    {
+        return counts[token];
+    }
+
+    /**
+     * Number of the different tokens in the history
+     */
+    public int getDistinctCount()
+    {
+        return distinctCount;
+    }
+}
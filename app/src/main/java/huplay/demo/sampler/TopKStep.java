@@ -0,0 +1,24 @@
+package huplay.demo.sampler;
+
+/**
+ * Retains the best k candidates
+ */
+public class TopKStep implements SamplerStep
+{
+    private final int topK;
+
+    public TopKStep(int topK)
+    {
+        this.topK = topK;
+    }
+
+    @Override
+    public void apply(Candidates candidates)
+    {
+        // Nothing to drop (the full vocabulary isn't sorted if the other steps don't need it)
+        if (candidates.size() <= topK) return;
+
+        candidates.sort();
+        candidates.truncate(topK);
+    }
+}
@@ -0,0 +1,32 @@
+package huplay.demo.sampler;
+
+/**
+ * Nucleus sampling: retains the smallest set of the best candidates with a cumulative probability of at least topP
+ */
+public class TopPStep implements SamplerStep
+{
+    private final float topP;
+
+    public TopPStep(float topP)
+    {
+        this.topP = topP;
+    }
+
+    @Override
+    public void apply(Candidates candidates)
+    {
+        candidates.sort();
+
+        double limit = topP * candidates.getProbabilitySum();
+        double sum = 0;
+
+        int size = 0;
+        while (size < candidates.size() && sum < limit)
+        {
+            sum += candidates.getProbability(size);
+            size++;
+        }
+
+        candidates.truncate(size);
+    }
+}
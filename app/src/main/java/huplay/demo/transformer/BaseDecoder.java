@@ -1,10 +1,14 @@
 package huplay.demo.transformer;
 
 import huplay.demo.config.Config;
+import huplay.demo.util.FloatType;
+import huplay.demo.util.ScratchArena;
 import huplay.demo.util.Vector;
+import huplay.demo.util.WorkerGroup;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
+
+import static huplay.demo.AppLoader.UtilHolder.UTIL;
 
 public abstract class BaseDecoder extends ParameterStore
 {
@@ -12,13 +16,27 @@ public abstract class BaseDecoder extends ParameterStore
     protected float attentionDividend;
     protected final int hiddenSize;
     protected final int headCount;
+    protected final int kvHeadCount;
     protected final int headSize;
     protected final int feedForwardSize;
     protected final boolean lastDecoder;
     protected final float epsilon;
 
-    protected final List<Vector[]> storedKeys = new ArrayList<>();
-    protected final List<Vector[]> storedValues = new ArrayList<>();
+    // Pool of the key/value cache blocks (the caches themselves belong to the sessions, see InferenceSession)
+    private KeyValueBlockPool blockPool;
+
+    // Number of the used last positions at local attention (0: global attention, all positions are used)
+    private int localWindowSize;
+
+    // Rotary position embedding of the keys (null: not used)
+    private RotaryPositionEmbedding positionEmbedding;
+
+    // Reusable working vectors of the executing thread (shared by all decoders of the transformer on a thread,
+    // because they are executed sequentially)
+    private ThreadLocal<ScratchArena> arenas = ThreadLocal.withInitial(ScratchArena::new);
+
+    // Tensor parallel mode: the workers, which calculate the parts of the layers (null: not used)
+    protected WorkerGroup workerGroup;
 
     public BaseDecoder(Config config, int decoderId)
     {
@@ -27,23 +45,149 @@ public abstract class BaseDecoder extends ParameterStore
         this.hiddenSize = config.getHiddenSize();
         this.headCount = config.getHeadCount();
         this.headSize = config.getHeadSize();
+
+        // Number of the key/value heads, which can be less than the query heads (Grouped Query Attention)
+        this.kvHeadCount = config.getIntOptional("num_key_value_heads", headCount);
         this.feedForwardSize = config.getFeedForwardSize();
         this.lastDecoder = (decoderId == config.getDecoderCount());
         this.epsilon = config.getEpsilon();
+        this.blockPool = createBlockPool(config);
+    }
+
+    /**
+     * Creates the pool of the key/value cache blocks (all decoders of a transformer use the same type of blocks)
+     */
+    static KeyValueBlockPool createBlockPool(Config config)
+    {
+        int headCount = config.getHeadCount();
+        int kvHeadCount = config.getIntOptional("num_key_value_heads", headCount);
+
+        return new KeyValueBlockPool(config.getKvCacheType(), kvHeadCount, config.getHeadSize());
+    }
+
+    /**
+     * Process the input (the hidden state is updated in place, and the same vector is returned)
+     * The key and value of the token is stored in the cache (of the processed session), the decoder itself isn't
+     * modified, so it can process different sessions at the same time.
+     */
+    public abstract Vector execute(Vector hiddenState, KeyValueCache cache, boolean isOutputProcessing);
+
+    /**
+     * Process a batch of tokens (the hidden states are updated in place)
+     * The key and value of every token is stored in the cache of the token: at the prefill of a session it's the
+     * same cache for all tokens, at a decoding step of several sessions it's the cache of the token's session.
+     * (The default implementation processes the tokens one by one, the decoders can override it to use
+     * matrix-matrix multiplications for the whole batch.)
+     */
+    public void executeBatch(Vector[] hiddenStates, KeyValueCache[] caches, boolean isOutputProcessing)
+    {
+        for (int i = 0; i < hiddenStates.length; i++)
+        {
+            execute(hiddenStates[i], caches[i], isOutputProcessing);
+        }
+    }
+
+    /**
+     * The working memory of the executing thread
+     */
+    protected ScratchArena arena()
+    {
+        return arenas.get();
+    }
+
+    /**
+     * Sets the working memory, shared with the other decoders
+     */
+    void setArenas(ThreadLocal<ScratchArena> arenas)
+    {
+        this.arenas = arenas;
+    }
+
+    /**
+     * Sets tensor parallel mode: the attention heads and the feed-forward neurons are split between the workers
+     * (The decoders which support it prepare the parts of the weights for the workers, the others ignore it.)
+     */
+    void setWorkerGroup(WorkerGroup workerGroup)
+    {
+        this.workerGroup = workerGroup;
+        prepareTensorParallel(workerGroup);
     }
 
     /**
-     * Process the input
+     * Tensor parallel mode: prepares the slices of the weights for the workers
      */
-    public abstract Vector execute(Vector hiddenState, boolean isOutputProcessing);
+    protected void prepareTensorParallel(WorkerGroup workerGroup)
+    {
+    }
 
     /**
-     * Clear stored values to start a new session
+     * Tensor parallel mode: adds the partial sums of the workers and the bias (if any) to the hidden state
+     * (Every worker calculates the output of a layer by its part of the input, so the output is the sum of these.)
      */
-    public void clear()
+    protected void addPartialSums(Vector[] partialSums, Vector bias, Vector hiddenState)
     {
-        storedKeys.clear();
-        storedValues.clear();
+        Vector sum = partialSums[0];
+        for (int i = 1; i < partialSums.length; i++)
+        {
+            UTIL.addVectors(sum, partialSums[i], sum);
+        }
+
+        if (bias != null)
+        {
+            UTIL.addVectors(sum, bias, sum);
+        }
+
+        // Residual connection
+        UTIL.addVectors(hiddenState, sum, hiddenState);
+    }
+
+    /**
+     * Copy of a part of a (float32) vector, for example the bias of the neurons processed by a worker
+     */
+    protected static Vector slice(Vector vector, int from, int to)
+    {
+        return new Vector(FloatType.FLOAT32, Arrays.copyOfRange(vector.getFloat32Values(), from, to));
+    }
+
+    /**
+     * Sets the pool of the key/value cache blocks, shared with the other decoders
+     */
+    void setBlockPool(KeyValueBlockPool blockPool)
+    {
+        this.blockPool = blockPool;
+    }
+
+    /**
+     * Sets local attention: only the last positions are used (and stored), the decoder uses a sliding window cache
+     */
+    protected void setLocalAttention(int windowSize)
+    {
+        this.localWindowSize = windowSize;
+    }
+
+    /**
+     * Sets rotary position embedding (RoPE): the cache stores the keys rotated, and rotates the query at the scores
+     */
+    protected void setPositionEmbedding(RotaryPositionEmbedding positionEmbedding)
+    {
+        this.positionEmbedding = positionEmbedding;
+    }
+
+    /**
+     * Creates a new (empty) key/value cache for a session
+     */
+    KeyValueCache createCache()
+    {
+        // At local attention the sliding window is used, except the streaming window is even smaller
+        boolean isStreamingSmaller = config.isStreaming()
+                && config.getSinkCount() + config.getWindowSize() <= localWindowSize;
+
+        if (localWindowSize > 0 && !isStreamingSmaller)
+        {
+            return new KeyValueCache(blockPool, 0, localWindowSize, positionEmbedding);
+        }
+
+        return new KeyValueCache(blockPool, config.getSinkCount(), config.getWindowSize(), positionEmbedding);
     }
 
     @Override
@@ -1,13 +1,21 @@
 package huplay.demo.transformer;
 
+import huplay.demo.IdentifiedException;
 import huplay.demo.config.Config;
+import huplay.demo.util.FloatType;
+import huplay.demo.util.ScratchArena;
 import huplay.demo.util.Vector;
+import huplay.demo.util.WorkerGroup;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 public abstract class BaseTransformer extends ParameterStore
 {
+    // Maximum number of input tokens processed together at the batched prefill
+    public static final int BATCH_SIZE = 64;
+
     protected final int decoderCount;
     protected final int hiddenSize;
     protected final int tokenCount;
@@ -17,6 +25,16 @@ public abstract class BaseTransformer extends ParameterStore
 
     protected final List<BaseDecoder> decoders = new ArrayList<>();
 
+    // Reusable working vectors of the executing thread, so processing a token doesn't allocate new ones
+    // (The transformer itself isn't modified at the execution, so several threads can use it at the same time.)
+    protected final ThreadLocal<ScratchArena> arenas = ThreadLocal.withInitial(ScratchArena::new);
+
+    // Memory blocks of the key/value caches (allocated on demand, and reused after a session is cleared)
+    protected final KeyValueBlockPool blockPool;
+
+    // Tensor parallel mode: the workers, which calculate the parts of the decoder layers (null: not used)
+    protected final WorkerGroup workerGroup;
+
     public BaseTransformer(Config config, DecoderType decoderType)
     {
         super(config);
@@ -26,27 +44,125 @@ public abstract class BaseTransformer extends ParameterStore
         this.embeddingCount = config.getTokenCount();
         this.contextSize = config.getContextSize();
         this.epsilon = config.getEpsilon();
+        this.blockPool = BaseDecoder.createBlockPool(config);
+        this.workerGroup = createWorkerGroup(config);
 
         for (int i = 0; i < decoderCount; i++)
         {
-            decoders.add(decoderType.getDecoder(i, config));
+            BaseDecoder decoder = decoderType.getDecoder(i, config);
+            decoder.setArenas(arenas);
+            decoder.setBlockPool(blockPool);
+            if (workerGroup != null) decoder.setWorkerGroup(workerGroup);
+            decoders.add(decoder);
         }
     }
 
     /**
-     * Process a single token
+     * Tensor parallel mode: a worker per thread, every worker calculates its part of the decoder layers
+     * (In calculation only mode the weights aren't loaded, so there is nothing to split.)
+     */
+    private static WorkerGroup createWorkerGroup(Config config)
+    {
+        if (!config.isTensorParallel() || config.isCalculationOnly())
+        {
+            return null;
+        }
+
+        // The workers store the key and value of their heads separately, so at a quantized cache the heads have to
+        // start at a quantization block boundary
+        FloatType kvCacheType = config.getKvCacheType();
+        boolean isQuantized = kvCacheType == FloatType.Q8 || kvCacheType == FloatType.Q4;
+
+        if (isQuantized && config.getHeadSize() % Vector.QUANTIZATION_BLOCK_SIZE != 0)
+        {
+            throw new IdentifiedException("Tensor parallel mode with a quantized key/value cache needs a head size "
+                    + "of a multiple of " + Vector.QUANTIZATION_BLOCK_SIZE + " (head size: " + config.getHeadSize() + ")");
+        }
+
+        return new WorkerGroup(config.getThreadCount());
+    }
+
+    /**
+     * Process a single token of a session
+     * (The returned vector is a working vector of the thread, which is overwritten at the next call.)
+     */
+    public abstract Vector execute(InferenceSession session, int pos, int token, boolean isOutputProcessing);
+
+    /**
+     * Process a batch of input tokens of a session (prefill), where no output is needed
+     */
+    public void executeBatch(InferenceSession session, int[] positions, int[] tokens)
+    {
+        InferenceSession[] sessions = new InferenceSession[tokens.length];
+        Arrays.fill(sessions, session);
+
+        executeBatch(sessions, positions, tokens, false);
+    }
+
+    /**
+     * Process the next token of several sessions in one step (continuous batching)
+     * Every session is at its own position, and the returned hidden states are in the order of the sessions.
+     * (The returned vectors are working vectors of the thread, which are overwritten at the next call.)
      */
-    public abstract Vector execute(int pos, int token, boolean isOutputProcessing);
+    public Vector[] execute(InferenceSession[] sessions, int[] positions, int[] tokens)
+    {
+        return executeBatch(sessions, positions, tokens, true);
+    }
+
+    /**
+     * Process a batch of tokens, the token i belongs to sessions[i]
+     * (The default implementation processes the tokens one by one, the transformers can override it to use
+     * matrix-matrix multiplications for the whole batch, so the weights are read once for all tokens.)
+     */
+    protected Vector[] executeBatch(InferenceSession[] sessions, int[] positions, int[] tokens,
+                                    boolean isOutputProcessing)
+    {
+        Vector[] hiddenStates = arena().vectors("hiddenStates", tokens.length, hiddenSize);
+
+        for (int i = 0; i < tokens.length; i++)
+        {
+            Vector hiddenState = execute(sessions[i], positions[i], tokens[i], isOutputProcessing);
+            System.arraycopy(hiddenState.getFloat32Values(), 0, hiddenStates[i].getFloat32Values(), 0, hiddenSize);
+        }
+
+        return hiddenStates;
+    }
 
     /**
-     * Clear stored values in all decoders to start a new session
+     * Creates a new (empty) session
+     * (The caches use the memory blocks of the transformer's pool, so the session has to be cleared at the end.)
      */
-    public void clear()
+    public InferenceSession createSession()
     {
+        List<KeyValueCache> caches = new ArrayList<>();
         for (BaseDecoder decoder : decoders)
         {
-            decoder.clear();
+            caches.add(decoder.createCache());
         }
+
+        return new InferenceSession(caches);
+    }
+
+    /**
+     * The caches of the tokens' sessions in a decoder
+     */
+    protected KeyValueCache[] getCaches(InferenceSession[] sessions, BaseDecoder decoder)
+    {
+        KeyValueCache[] caches = new KeyValueCache[sessions.length];
+        for (int i = 0; i < sessions.length; i++)
+        {
+            caches[i] = sessions[i].getCache(decoder);
+        }
+
+        return caches;
+    }
+
+    /**
+     * The working memory of the executing thread
+     */
+    protected ScratchArena arena()
+    {
+        return arenas.get();
     }
 
     @Override
@@ -69,6 +185,19 @@ public abstract class BaseTransformer extends ParameterStore
         return name;
     }
 
+    @Override
+    public List<DeclaredParameter> getDeclaredParameters()
+    {
+        List<DeclaredParameter> declaredParameters = new ArrayList<>(super.getDeclaredParameters());
+
+        for (BaseDecoder decoder : decoders)
+        {
+            declaredParameters.addAll(decoder.getDeclaredParameters());
+        }
+
+        return declaredParameters;
+    }
+
     @Override
     public long getParameterSize()
     {
@@ -81,4 +210,17 @@ public abstract class BaseTransformer extends ParameterStore
 
         return parameterSize;
     }
+
+    @Override
+    public long getParameterBytes()
+    {
+        long parameterBytes = super.getParameterBytes();
+
+        for (BaseDecoder decoder : decoders)
+        {
+            parameterBytes += decoder.getParameterBytes();
+        }
+
+        return parameterBytes;
+    }
 }
@@ -0,0 +1,36 @@
+package huplay.demo.transformer;
+
+import huplay.demo.config.ParameterType;
+
+/**
+ * A parameter declared by a transformer or decoder: the name within the parameter file, and the expected shape
+ */
+public class DeclaredParameter
+{
+    private final ParameterType parameterType;
+    private final String name;
+    private final int[] shape;
+
+    public DeclaredParameter(ParameterType parameterType, String name, int... shape)
+    {
+        this.parameterType = parameterType;
+        this.name = name;
+        this.shape = shape;
+    }
+
+    // Getters
+    public ParameterType getParameterType() {return parameterType;}
+    public String getName() {return name;}
+    public int[] getShape() {return shape;}
+
+    public long getSize()
+    {
+        long size = 1;
+        for (int dimension : shape)
+        {
+            size *= dimension;
+        }
+
+        return size;
+    }
+}
@@ -0,0 +1,47 @@
+package huplay.demo.transformer;
+
+import java.util.List;
+
+/**
+ * State of a text processed by a transformer (the key/value caches of the text in all decoders)
+ * The transformer holds only the weights, which aren't modified at the execution, so several sessions can use the
+ * same transformer at the same time (from different threads), or they can be processed together in one step
+ * (continuous batching), every session at its own position. A session can be used only by one thread at a time,
+ * and when it's cleared, the memory blocks of its caches are returned to the pool of the transformer.
+ */
+public class InferenceSession
+{
+    private final List<KeyValueCache> caches;
+
+    InferenceSession(List<KeyValueCache> caches)
+    {
+        this.caches = caches;
+    }
+
+    /**
+     * The key/value cache of the session in a decoder
+     */
+    public KeyValueCache getCache(BaseDecoder decoder)
+    {
+        return caches.get(decoder.decoderId);
+    }
+
+    /**
+     * Number of the stored positions (in streaming mode or at local attention it can be less than the processed)
+     */
+    public int size()
+    {
+        return caches.get(0).size();
+    }
+
+    /**
+     * Deletes the stored positions (to start a new text), and returns the memory blocks to the pool
+     */
+    public void clear()
+    {
+        for (KeyValueCache cache : caches)
+        {
+            cache.clear();
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package huplay.demo.transformer;
+
+import huplay.demo.IdentifiedException;
+import huplay.demo.util.FloatType;
+import huplay.demo.util.Vector;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import static huplay.demo.util.Vector.QUANTIZATION_BLOCK_SIZE;
+
+/**
+ * Pool of the fixed-size memory blocks of the key/value caches (shared by all decoders and sessions of a transformer)
+ * A block stores the keys (or the values) of a fixed number of positions in [position][head][headSize] order.
+ * The blocks are allocated on demand, when a cache is full, and the released blocks are reused by any other cache,
+ * so the memory is proportional to the actually stored positions, not to the context size of every cache.
+ */
+public class KeyValueBlockPool
+{
+    // Number of positions in a block. Smaller blocks waste less memory at the end of a sequence,
+    // but the attention is calculated block by block, so too small blocks would split the multiplications too much
+    public static final int DEFAULT_BLOCK_SIZE = 64;
+
+    private final FloatType floatType;
+    private final int headCount;
+    private final int headSize;
+    private final int blockSize;
+
+    private final Deque<Vector> freeBlocks = new ArrayDeque<>();
+    private int blockCount;
+
+    public KeyValueBlockPool(FloatType floatType, int headCount, int headSize)
+    {
+        this(floatType, headCount, headSize, DEFAULT_BLOCK_SIZE);
+    }
+
+    public KeyValueBlockPool(FloatType floatType, int headCount, int headSize, int blockSize)
+    {
+        if (floatType == FloatType.Q8 || floatType == FloatType.Q4)
+        {
+            // Every head has to be split into whole quantization blocks, so a block doesn't mix different heads
+            // (or positions), and the new position can be quantized without modifying the previous ones
+            if (headSize % QUANTIZATION_BLOCK_SIZE != 0)
+            {
+                throw new IdentifiedException("The " + floatType + " key/value cache requires a head size divisible by "
+                        + QUANTIZATION_BLOCK_SIZE + " (head size: " + headSize + ")");
+            }
+        }
+
+        this.floatType = floatType;
+        this.headCount = headCount;
+        this.headSize = headSize;
+        this.blockSize = blockSize;
+    }
+
+    /**
+     * Returns a free block (a new one is created if all existing blocks are in use)
+     * (The content of a reused block isn't cleared, the positions are overwritten before they are read.)
+     */
+    public synchronized Vector allocate()
+    {
+        Vector block = freeBlocks.poll();
+
+        if (block == null)
+        {
+            block = new Vector(floatType, blockSize * headCount * headSize);
+            blockCount++;
+        }
+
+        return block;
+    }
+
+    /**
+     * Returns a block to the pool, so it can be used by other caches
+     */
+    public synchronized void release(Vector block)
+    {
+        freeBlocks.push(block);
+    }
+
+    /**
+     * Number of the allocated blocks (in use or free)
+     */
+    public synchronized int getBlockCount()
+    {
+        return blockCount;
+    }
+
+    public synchronized int getFreeBlockCount()
+    {
+        return freeBlocks.size();
+    }
+
+    /**
+     * Memory size of the allocated blocks
+     */
+    public synchronized long getSizeInBytes()
+    {
+        return blockCount * Vector.getSizeInBytes(floatType, (long) blockSize * headCount * headSize);
+    }
+
+    // Getters
+    public FloatType getFloatType() {return floatType;}
+    public int getHeadCount() {return headCount;}
+    public int getHeadSize() {return headSize;}
+    public int getBlockSize() {return blockSize;}
+}
@@ -0,0 +1,382 @@
+package huplay.demo.transformer;
+
+import huplay.demo.IdentifiedException;
+import huplay.demo.util.FloatType;
+import huplay.demo.util.Matrix;
+import huplay.demo.util.ScratchArena;
+import huplay.demo.util.Vector;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static huplay.demo.AppLoader.UtilHolder.UTIL;
+import static huplay.demo.util.Vector.QUANTIZATION_BLOCK_SIZE;
+
+/**
+ * Storage of the keys and values of the processed tokens (attention cache of a sequence in a decoder)
+ * The keys and values are stored in fixed-size blocks, taken from a shared pool when the last block is full,
+ * and returned to the pool when the cache is cleared. The block table holds the blocks of the sequence in order.
+ * Within a block the keys (and the values) are stored in [position][head][headSize] order, so the keys of a head
+ * form a matrix (a strided view of the block, a row per position), and the attention scores are calculated
+ * by a matrix-vector multiplication per block instead of a dot product per position.
+ *
+ * In streaming mode only the first few positions (attention sinks) and a sliding window of the recent positions are
+ * retained, so the memory and the time of the attention is constant at unlimited length. The sinks are stored in
+ * the first block, the window in the following blocks, and the first window block is released if all of its
+ * positions are dropped.
+ *
+ * At rotary position embedding (RoPE) the keys are stored rotated by their position, and the query is rotated at
+ * the score calculation. The score depends only on the distance of the positions, so in streaming mode the window
+ * keys keep their original rotation: the query of the window is rotated by the same offset (the number of the dropped
+ * positions), and only the query of the sinks is rotated by its position within the cache.
+ *
+ * In tensor parallel mode the heads are calculated by different workers, so the position is added first (addPosition),
+ * and every worker stores the key and value of its own heads (storeHeads), then calculates the attention of these.
+ *
+ * The values can be stored in a compact format (FLOAT16, BFLOAT16, Q8 or Q4), which reduces the memory 2-5 times.
+ * The multiplications read the compact format directly (at Q8 the query is quantized as well, so the scores are
+ * calculated on integers), only the stored key and value are converted when a new position is added.
+ */
+public class KeyValueCache
+{
+    private final KeyValueBlockPool pool;
+    private final FloatType floatType;
+    private final int headCount;
+    private final int headSize;
+    private final int blockSize;
+
+    // Streaming mode: number of the retained first positions and size of the sliding window (0: unlimited)
+    private final int sinkCount;
+    private final int windowSize;
+
+    // Index of the first block of the window (after the block of the sinks)
+    private final int firstWindowBlock;
+
+    // Number of the dropped positions in the first window block
+    private int windowStart;
+
+    // Rotary position embedding of the keys (null: not used), the number of all dropped positions,
+    // and the position of the last added key
+    private final RotaryPositionEmbedding positionEmbedding;
+    private int droppedCount;
+    private int lastPosition;
+
+    // Block tables of the keys and values
+    private final List<Vector> keyBlocks = new ArrayList<>();
+    private final List<Vector> valueBlocks = new ArrayList<>();
+    private int size;
+
+    // Offset of the last added position within its key and value blocks
+    private Vector lastKeyBlock;
+    private Vector lastValueBlock;
+    private int lastOffset;
+
+    // Working vectors of the block by block calculation (per thread, because the heads can be calculated in parallel)
+    private static final ThreadLocal<ScratchArena> ARENAS = ThreadLocal.withInitial(ScratchArena::new);
+
+    public KeyValueCache(KeyValueBlockPool pool)
+    {
+        this(pool, 0, 0);
+    }
+
+    public KeyValueCache(KeyValueBlockPool pool, int sinkCount, int windowSize)
+    {
+        this(pool, sinkCount, windowSize, null);
+    }
+
+    public KeyValueCache(KeyValueBlockPool pool, int sinkCount, int windowSize,
+                         RotaryPositionEmbedding positionEmbedding)
+    {
+        this.pool = pool;
+        this.positionEmbedding = positionEmbedding;
+        this.floatType = pool.getFloatType();
+        this.headCount = pool.getHeadCount();
+        this.headSize = pool.getHeadSize();
+        this.blockSize = pool.getBlockSize();
+
+        if (windowSize > 0 && sinkCount > blockSize)
+        {
+            throw new IdentifiedException("The number of the attention sinks (" + sinkCount
+                    + ") can't be more than the key/value cache block size (" + blockSize + ")");
+        }
+
+        this.windowSize = windowSize;
+        this.sinkCount = windowSize > 0 ? sinkCount : 0;
+        this.firstWindowBlock = this.sinkCount > 0 ? 1 : 0;
+    }
+
+    /**
+     * Stores the key and value of the next position (the vectors contain all heads)
+     * (If the window is full, the oldest position of the window is dropped first.)
+     */
+    public void add(Vector key, Vector value)
+    {
+        addPosition();
+        storeHeads(key, value, 0, headCount);
+    }
+
+    /**
+     * Adds the next position, where the keys and values of the heads can be stored (see storeHeads)
+     * (If the window is full, the oldest position of the window is dropped first.)
+     */
+    public void addPosition()
+    {
+        if (windowSize > 0 && size == sinkCount + windowSize)
+        {
+            dropOldest();
+        }
+
+        int block;
+        int row;
+
+        if (size < sinkCount)
+        {
+            block = 0;
+            row = size;
+        }
+        else
+        {
+            int windowRow = windowStart + size - sinkCount;
+            block = firstWindowBlock + windowRow / blockSize;
+            row = windowRow % blockSize;
+        }
+
+        if (block == keyBlocks.size())
+        {
+            keyBlocks.add(pool.allocate());
+            valueBlocks.add(pool.allocate());
+        }
+
+        lastKeyBlock = keyBlocks.get(block);
+        lastValueBlock = valueBlocks.get(block);
+        lastOffset = row * headCount * headSize;
+        lastPosition = size + droppedCount;
+
+        size++;
+    }
+
+    /**
+     * Stores the key and value of a range of heads at the last added position
+     * (The vectors contain only the heads of the range. The different ranges can be stored by different threads,
+     * at a quantized cache the range has to start at a quantization block boundary.)
+     */
+    public void storeHeads(Vector key, Vector value, int fromHead, int toHead)
+    {
+        int offset = lastOffset + fromHead * headSize;
+        int count = (toHead - fromHead) * headSize;
+
+        if (positionEmbedding != null)
+        {
+            // The key is rotated by its position (on a copy, to keep the caller's vector)
+            Vector rotatedKey = ARENAS.get().vector("rotatedKey", count);
+            System.arraycopy(key.getFloat32Values(), 0, rotatedKey.getFloat32Values(), 0, count);
+            for (int i = 0; i < count; i += headSize)
+            {
+                positionEmbedding.rotate(rotatedKey.getFloat32Values(), i, lastPosition);
+            }
+
+            key = rotatedKey;
+        }
+
+        store(key, lastKeyBlock, offset, count);
+        store(value, lastValueBlock, offset, count);
+    }
+
+    /**
+     * Drops the oldest position of the window (the first window block is released if it became empty)
+     */
+    private void dropOldest()
+    {
+        windowStart++;
+        droppedCount++;
+        size--;
+
+        if (windowStart == blockSize)
+        {
+            pool.release(keyBlocks.remove(firstWindowBlock));
+            pool.release(valueBlocks.remove(firstWindowBlock));
+            windowStart = 0;
+        }
+    }
+
+    private void store(Vector vector, Vector buffer, int offset, int count)
+    {
+        if (floatType == FloatType.FLOAT32)
+        {
+            System.arraycopy(vector.getFloat32Values(), 0, buffer.getFloat32Values(), offset, count);
+        }
+        else if (buffer.isQuantized())
+        {
+            // The values are quantized block by block (the row starts at a block boundary)
+            for (int i = 0; i < count; i += QUANTIZATION_BLOCK_SIZE)
+            {
+                buffer.quantizeBlock((offset + i) / QUANTIZATION_BLOCK_SIZE, vector.getFloat32Values(), i,
+                        QUANTIZATION_BLOCK_SIZE);
+            }
+        }
+        else
+        {
+            for (int i = 0; i < count; i++)
+            {
+                buffer.set(offset + i, vector.get(i));
+            }
+        }
+    }
+
+    /**
+     * Calculates the attention scores of a head: the query multiplied by the stored keys of all positions
+     * (The scores vector has to be a float32 vector of the stored size.)
+     */
+    public void calculateScores(Vector query, int head, Vector scores)
+    {
+        Vector sinkQuery = query;
+        Vector windowQuery = query;
+
+        if (positionEmbedding != null)
+        {
+            // The query of the window is rotated by the position of the last key (which counts the dropped positions),
+            // the query of the sinks by its position within the cache (the same if nothing is dropped yet)
+            ScratchArena arena = ARENAS.get();
+            windowQuery = rotate(query, arena.vector("rotatedQuery", headSize), lastPosition);
+            sinkQuery = droppedCount == 0
+                    ? windowQuery
+                    : rotate(query, arena.vector("rotatedSinkQuery", headSize), size - 1);
+        }
+
+        if (keyBlocks.size() == 1)
+        {
+            UTIL.mulVectorByTransposedMatrix(windowQuery, view(keyBlocks.get(0), head, getFirstRow(0), size), scores);
+            return;
+        }
+
+        Vector blockScores = ARENAS.get().vector("blockScores", blockSize);
+
+        int position = 0;
+        for (int block = 0; block < keyBlocks.size(); block++)
+        {
+            int firstRow = getFirstRow(block);
+            int count = getRowCount(block);
+            blockScores.resize(count);
+
+            Vector blockQuery = block < firstWindowBlock ? sinkQuery : windowQuery;
+            UTIL.mulVectorByTransposedMatrix(blockQuery, view(keyBlocks.get(block), head, firstRow, count),
+                    blockScores);
+            System.arraycopy(blockScores.getFloat32Values(), 0, scores.getFloat32Values(), position, count);
+
+            position += count;
+        }
+    }
+
+    private Vector rotate(Vector query, Vector rotatedQuery, int position)
+    {
+        System.arraycopy(query.getFloat32Values(), 0, rotatedQuery.getFloat32Values(), 0, headSize);
+        positionEmbedding.rotate(rotatedQuery, position);
+
+        return rotatedQuery;
+    }
+
+    /**
+     * Calculates the attention result of a head: the sum of the stored values weighted by the scores
+     */
+    public void aggregateValues(Vector scores, int head, Vector result)
+    {
+        if (valueBlocks.size() == 1)
+        {
+            UTIL.mulVectorByMatrix(scores, view(valueBlocks.get(0), head, getFirstRow(0), size), result);
+            return;
+        }
+
+        ScratchArena arena = ARENAS.get();
+        Vector blockScores = arena.vector("blockScores", blockSize);
+        Vector blockResult = arena.vector("blockResult", headSize);
+
+        int position = 0;
+        for (int block = 0; block < valueBlocks.size(); block++)
+        {
+            int firstRow = getFirstRow(block);
+            int count = getRowCount(block);
+            blockScores.resize(count);
+            System.arraycopy(scores.getFloat32Values(), position, blockScores.getFloat32Values(), 0, count);
+
+            Matrix values = view(valueBlocks.get(block), head, firstRow, count);
+
+            // The result of the first block is written directly, the others are added to it
+            if (block == 0)
+            {
+                UTIL.mulVectorByMatrix(blockScores, values, result);
+            }
+            else
+            {
+                UTIL.mulVectorByMatrix(blockScores, values, blockResult);
+                UTIL.addVectors(result, blockResult, result);
+            }
+
+            position += count;
+        }
+    }
+
+    /**
+     * The stored keys (or values) of a head within a block (view of the block, a row per position)
+     */
+    private Matrix view(Vector block, int head, int firstRow, int count)
+    {
+        int rowSize = headCount * headSize;
+        return new Matrix(block, firstRow * rowSize + head * headSize, count, headSize, rowSize, 1);
+    }
+
+    /**
+     * The first used row of a block (only the first window block can start later)
+     */
+    private int getFirstRow(int block)
+    {
+        return block == firstWindowBlock ? windowStart : 0;
+    }
+
+    /**
+     * Number of the stored positions within a block
+     */
+    private int getRowCount(int block)
+    {
+        if (block < firstWindowBlock)
+        {
+            return Math.min(size, sinkCount);
+        }
+
+        // Rows of the window counted from the first row of the first window block
+        int windowEnd = windowStart + size - Math.min(size, sinkCount);
+        int blockStart = (block - firstWindowBlock) * blockSize;
+
+        return Math.min(blockSize, windowEnd - blockStart) - getFirstRow(block);
+    }
+
+    /**
+     * Deletes the stored positions, and returns the blocks to the pool
+     */
+    public void clear()
+    {
+        for (int i = 0; i < keyBlocks.size(); i++)
+        {
+            pool.release(keyBlocks.get(i));
+            pool.release(valueBlocks.get(i));
+        }
+
+        keyBlocks.clear();
+        valueBlocks.clear();
+        windowStart = 0;
+        droppedCount = 0;
+        size = 0;
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    /**
+     * Number of the blocks in use (for the keys and values together)
+     */
+    public int getBlockCount()
+    {
+        return keyBlocks.size() + valueBlocks.size();
+    }
+}
@@ -3,20 +3,31 @@ package huplay.demo.transformer;
 import huplay.demo.config.Config;
 import huplay.demo.config.ParameterReader;
 import huplay.demo.config.ParameterType;
+import huplay.demo.util.FloatType;
+import huplay.demo.util.Matrix;
 import huplay.demo.util.Vector;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
+import static huplay.demo.AppLoader.UtilHolder.UTIL;
+
 public abstract class ParameterStore
 {
     public Config config;
     public long parameterSize;
+    public long parameterBytes;
 
     public final ParameterReader reader;
 
     public final Map<ParameterType, Vector> vectorParams = new HashMap<>();
-    public final Map<ParameterType, Vector[]> matrixParams = new HashMap<>();
+    public final Map<ParameterType, Matrix> matrixParams = new HashMap<>();
+
+    // The declared parameters are collected in calculation only mode as well,
+    // so the expected content of the parameter files is known without reading them
+    public final List<DeclaredParameter> declaredParameters = new ArrayList<>();
 
     public ParameterStore(Config config)
     {
@@ -28,7 +39,9 @@ public abstract class ParameterStore
 
     protected void loadVector(ParameterType parameterType, String file, int size)
     {
+        declaredParameters.add(new DeclaredParameter(parameterType, formatName(file), size));
         parameterSize += size;
+        parameterBytes += (long) size * 4;
         if (!config.isCalculationOnly())
         {
             vectorParams.put(parameterType, reader.readVector(formatName(file), size));
@@ -37,7 +50,9 @@ public abstract class ParameterStore
 
     protected void loadVectorOptional(ParameterType parameterType, String file, int size)
     {
+        declaredParameters.add(new DeclaredParameter(parameterType, formatName(file), size));
         parameterSize += size;
+        parameterBytes += (long) size * 4;
         if (!config.isCalculationOnly())
         {
             vectorParams.put(parameterType, reader.readVectorOptional(formatName(file), size));
@@ -46,20 +61,64 @@ public abstract class ParameterStore
 
     protected void loadMatrix(ParameterType parameterType, String file, int rows, int cols)
     {
+        declaredParameters.add(new DeclaredParameter(parameterType, formatName(file), rows, cols));
         parameterSize += (long) rows * cols;
+        parameterBytes += Vector.getSizeInBytes(getFloatType(parameterType, file), (long) rows * cols);
         if (!config.isCalculationOnly())
         {
-            matrixParams.put(parameterType, reader.readMatrix(formatName(file), rows, cols));
+            Matrix matrix = reader.readMatrix(formatName(file), rows, cols);
+            matrixParams.put(parameterType, prepare(parameterType, matrix));
         }
     }
 
     protected void loadMatrixOptional(ParameterType parameterType, String file, int rows, int cols)
     {
+        declaredParameters.add(new DeclaredParameter(parameterType, formatName(file), rows, cols));
         parameterSize += (long) rows * cols;
+        parameterBytes += Vector.getSizeInBytes(getFloatType(parameterType, file), (long) rows * cols);
         if (!config.isCalculationOnly())
         {
-            matrixParams.put(parameterType, reader.readMatrixOptional(formatName(file), rows, cols));
+            Matrix matrix = reader.readMatrixOptional(formatName(file), rows, cols);
+            matrixParams.put(parameterType, prepare(parameterType, matrix));
+        }
+    }
+
+    /**
+     * The weight matrices are quantized if it's requested, otherwise the stored format is kept
+     * The multiplied matrices are converted into the form preferred by the calculation library (for example ND4j
+     * keeps them in persistent native arrays), so it happens only once, at loading.
+     */
+    private Matrix prepare(ParameterType parameterType, Matrix matrix)
+    {
+        if (matrix == null)
+        {
+            return null;
+        }
+
+        if (isQuantized(parameterType))
+        {
+            matrix = matrix.quantize(config.getQuantizationType());
+        }
+
+        return parameterType.isQuantizable() ? UTIL.prepare(matrix) : matrix;
+    }
+
+    private boolean isQuantized(ParameterType parameterType)
+    {
+        return config.getQuantizationType() != null && parameterType.isQuantizable();
+    }
+
+    /**
+     * The float type of a matrix in the memory (the vectors are always float32)
+     */
+    private FloatType getFloatType(ParameterType parameterType, String file)
+    {
+        if (isQuantized(parameterType))
+        {
+            return config.getQuantizationType();
         }
+
+        return reader == null ? FloatType.FLOAT32 : reader.getFloatType(formatName(file));
     }
 
     public Vector vector(ParameterType parameterType)
@@ -67,13 +126,23 @@ public abstract class ParameterStore
         return vectorParams.get(parameterType);
     }
 
-    public Vector[] matrix(ParameterType parameterType)
+    public Matrix matrix(ParameterType parameterType)
     {
         return matrixParams.get(parameterType);
     }
 
+    public List<DeclaredParameter> getDeclaredParameters()
+    {
+        return declaredParameters;
+    }
+
     public long getParameterSize()
     {
         return parameterSize;
     }
+
+    public long getParameterBytes()
+    {
+        return parameterBytes;
+    }
 }
@@ -0,0 +1,145 @@
+package huplay.demo.transformer;
+
+import huplay.demo.util.Vector;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Rotary Position Embedding (RoPE)
+ * The pairs of values (0-1, 2-3, ...) of a head vector are rotated by an angle of position * frequency, where the
+ * frequency decreases along the head (10000 ^ (-i / headSize)). The score of a query and a key is a dot product of
+ * the rotated vectors, so it depends on the distance of the positions.
+ * The cos and sin values are calculated once per position, and shared by all decoders (with the same head size).
+ * (Only the first positions are kept in the table, because in streaming mode the positions are unlimited.)
+ */
+public class RotaryPositionEmbedding
+{
+    // The table is extended by this number of positions when a later position is used
+    private static final int TABLE_STEP = 256;
+
+    // The cos and sin values of the later positions are calculated at the rotation
+    private static final int TABLE_LIMIT = 16384;
+
+    private static final Map<Integer, RotaryPositionEmbedding> INSTANCES = new ConcurrentHashMap<>();
+
+    private final int headSize;
+    private final double[] frequencies;
+
+    // Cos and sin values of the angles [position][pair] (replaced by a longer one if a later position is used)
+    private volatile Table table = new Table(new float[0], new float[0], 0);
+
+    private RotaryPositionEmbedding(int headSize)
+    {
+        this.headSize = headSize;
+        this.frequencies = new double[headSize / 2];
+
+        for (int i = 0; i < headSize; i += 2)
+        {
+            frequencies[i / 2] = 1.0 / Math.pow(10000.0, (double) i / headSize);
+        }
+    }
+
+    /**
+     * The (shared) position embedding of the head size
+     */
+    public static RotaryPositionEmbedding of(int headSize)
+    {
+        return INSTANCES.computeIfAbsent(headSize, RotaryPositionEmbedding::new);
+    }
+
+    /**
+     * Rotates a head vector (in place) by the position
+     */
+    public void rotate(Vector vector, int position)
+    {
+        rotate(vector.getFloat32Values(), 0, position);
+    }
+
+    /**
+     * Rotates a head (in place) by the position, the head starts at the offset of the values
+     */
+    public void rotate(float[] values, int offset, int position)
+    {
+        int pairCount = headSize / 2;
+
+        if (position >= TABLE_LIMIT)
+        {
+            for (int pair = 0; pair < pairCount; pair++)
+            {
+                double angle = position * frequencies[pair];
+                rotatePair(values, offset + pair * 2, (float) Math.cos(angle), (float) Math.sin(angle));
+            }
+            return;
+        }
+
+        Table table = getTable(position);
+        int tableOffset = position * pairCount;
+
+        for (int pair = 0; pair < pairCount; pair++)
+        {
+            rotatePair(values, offset + pair * 2, table.cos[tableOffset + pair], table.sin[tableOffset + pair]);
+        }
+    }
+
+    private static void rotatePair(float[] values, int i, float x, float y)
+    {
+        float value0 = values[i];
+        float value1 = values[i + 1];
+
+        values[i] = value0 * x - value1 * y;
+        values[i + 1] = value0 * y + value1 * x;
+    }
+
+    private Table getTable(int position)
+    {
+        Table actual = table;
+        if (position < actual.positionCount)
+        {
+            return actual;
+        }
+
+        synchronized (this)
+        {
+            if (position >= table.positionCount)
+            {
+                table = createTable(Math.min((position / TABLE_STEP + 1) * TABLE_STEP, TABLE_LIMIT));
+            }
+
+            return table;
+        }
+    }
+
+    private Table createTable(int positionCount)
+    {
+        int pairCount = headSize / 2;
+        float[] cos = new float[positionCount * pairCount];
+        float[] sin = new float[positionCount * pairCount];
+
+        for (int position = 0; position < positionCount; position++)
+        {
+            for (int pair = 0; pair < pairCount; pair++)
+            {
+                double angle = position * frequencies[pair];
+                cos[position * pairCount + pair] = (float) Math.cos(angle);
+                sin[position * pairCount + pair] = (float) Math.sin(angle);
+            }
+        }
+
+        return new Table(cos, sin, positionCount);
+    }
+
+    private static class Table
+    {
+        private final float[] cos;
+        private final float[] sin;
+        private final int positionCount;
+
+        private Table(float[] cos, float[] sin, int positionCount)
+        {
+            this.cos = cos;
+            this.sin = sin;
+            this.positionCount = positionCount;
+        }
+    }
+}
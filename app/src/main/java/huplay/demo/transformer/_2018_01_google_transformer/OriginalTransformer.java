@@ -4,6 +4,7 @@ import huplay.demo.config.Config;
 import huplay.demo.transformer.DecoderType;
 import huplay.demo.transformer.BaseDecoder;
 import huplay.demo.transformer.BaseTransformer;
+import huplay.demo.transformer.InferenceSession;
 import huplay.demo.util.Vector;
 
 import static huplay.demo.config.ParameterType.TOKEN_EMBEDDINGS;
@@ -49,10 +50,11 @@ public class OriginalTransformer extends BaseTransformer
         this.positionMatrix = calculatePositionMatrix();
     }
 
-    public Vector execute(int pos, int token, boolean isOutputProcessing)
+    public Vector execute(InferenceSession session, int pos, int token, boolean isOutputProcessing)
     {
         // Find the embeddings of the token
-        Vector hiddenState = matrix(TOKEN_EMBEDDINGS)[token];
+        Vector hiddenState = arena().vector("hiddenState", hiddenSize);
+        matrix(TOKEN_EMBEDDINGS).getRow(token, hiddenState);
 
         // Position embedding
         for (int i = 0; i < hiddenState.size(); i++)
@@ -63,7 +65,7 @@ public class OriginalTransformer extends BaseTransformer
         // Decoder stack
         for (BaseDecoder decoder : decoders)
         {
-            hiddenState = decoder.execute(hiddenState, isOutputProcessing);
+            hiddenState = decoder.execute(hiddenState, session.getCache(decoder), isOutputProcessing);
         }
 
         return hiddenState;
@@ -1,14 +1,13 @@
 package huplay.demo.transformer._2018_06_openai_gpt1;
 
-import huplay.demo.TransformerUtil;
 import huplay.demo.config.Config;
 import huplay.demo.transformer.BaseDecoder;
+import huplay.demo.transformer.KeyValueCache;
 import huplay.demo.util.Vector;
 
-import static huplay.demo.AppLoader.UTIL;
+import static huplay.demo.AppLoader.UtilHolder.UTIL;
 import static huplay.demo.TransformerUtil.*;
 import static huplay.demo.config.ParameterType.*;
-import static huplay.demo.util.Vector.newVectorArray;
 
 /**
  * OpenAI GPT-1 decoder implementation
@@ -39,127 +38,194 @@ public class GPT1Decoder extends BaseDecoder
         attentionDividend = sqrt(headSize);
     }
 
-    public Vector execute(Vector hiddenState, boolean isOutputProcessing)
+    public Vector execute(Vector hiddenState, KeyValueCache cache, boolean isOutputProcessing)
     {
         // Attention block
-        hiddenState = attentionBlock(hiddenState);
+        attentionBlock(hiddenState, cache);
 
         // Feed-forward block
         if (isOutputProcessing || ! lastDecoder) // No need to execute for input tokens at the last decoder
         {
-            hiddenState = feedForwardBlock(hiddenState);
+            feedForwardBlock(hiddenState);
         }
 
         return hiddenState;
     }
 
-    private Vector attentionBlock(Vector inputHiddenState)
+    /**
+     * Process a batch of tokens (the hidden states are updated in place)
+     * The neural layers are calculated by matrix-matrix multiplications, so the weights are read once for the batch.
+     * The attention is calculated token by token in order, using the cache of the token, so at the prefill every
+     * token sees only the previous ones (causal), and at a multi-session step every token sees only its session.
+     */
+    @Override
+    public void executeBatch(Vector[] hiddenStates, KeyValueCache[] caches, boolean isOutputProcessing)
+    {
+        int count = hiddenStates.length;
+
+        // Attention block
+        // Calculate the query-key-value vectors for all tokens
+        Vector[] queryKeyValues = arena().vectors("queryKeyValueBatch", count, hiddenSize * 3);
+        UTIL.mulMatrixByMatrix(hiddenStates, matrix(ATT_QUERY_KEY_VALUE_WEIGHT), queryKeyValues);
+
+        Vector[] attentionHeads = arena().vectors("attentionHeadsBatch", count, hiddenSize);
+        for (int i = 0; i < count; i++)
+        {
+            UTIL.addVectors(queryKeyValues[i], vector(ATT_QUERY_KEY_VALUE_BIAS), queryKeyValues[i]);
+            attendHeads(caches[i], queryKeyValues[i], attentionHeads[i]);
+        }
+
+        // Projection neural layer
+        Vector[] projections = arena().vectors("attentionProjectionBatch", count, hiddenSize);
+        UTIL.mulMatrixByMatrix(attentionHeads, matrix(ATT_PROJ_WEIGHT), projections);
+
+        for (int i = 0; i < count; i++)
+        {
+            UTIL.addVectors(projections[i], vector(ATT_PROJ_BIAS), projections[i]);
+
+            // Residual connection
+            UTIL.addVectors(hiddenStates[i], projections[i], hiddenStates[i]);
+
+            // Normalisation
+            UTIL.layerNorm(hiddenStates[i], vector(ATT_NORM_WEIGHT), vector(ATT_NORM_BIAS), epsilon, hiddenStates[i]);
+        }
+
+        // Feed-forward block
+        if (!isOutputProcessing && lastDecoder) return; // No need to execute for input tokens at the last decoder
+
+        // Layer 1: <mlpSize> neurons (usually 4 * <hiddenSize>) (using a gelu activation function)
+        Vector[] mlp = arena().vectors("mlpBatch", count, feedForwardSize);
+        UTIL.mulMatrixByMatrix(hiddenStates, matrix(MLP_1_WEIGHT), mlp);
+
+        for (int i = 0; i < count; i++)
+        {
+            UTIL.gelu(mlp[i], vector(MLP_1_BIAS), mlp[i]);
+        }
+
+        // Layer 2: <hiddenSize> neurons (without activation function)
+        Vector[] outputs = arena().vectors("mlpOutputBatch", count, hiddenSize);
+        UTIL.mulMatrixByMatrix(mlp, matrix(MLP_2_WEIGHT), outputs);
+
+        for (int i = 0; i < count; i++)
+        {
+            UTIL.addVectors(outputs[i], vector(MLP_2_BIAS), outputs[i]);
+
+            // Residual connection
+            UTIL.addVectors(hiddenStates[i], outputs[i], hiddenStates[i]);
+
+            // Normalisation
+            UTIL.layerNorm(hiddenStates[i], vector(MLP_NORM_WEIGHT), vector(MLP_NORM_BIAS), epsilon, hiddenStates[i]);
+        }
+    }
+
+    private void attentionBlock(Vector hiddenState, KeyValueCache cache)
     {
         // Attention
-        Vector hiddenState = attention(inputHiddenState);
+        Vector attentionOutput = attention(hiddenState, cache);
 
         // Residual connection
-        hiddenState = UTIL.addVectors(inputHiddenState, hiddenState);
+        UTIL.addVectors(hiddenState, attentionOutput, hiddenState);
 
         // Normalisation
-        hiddenState = layerNorm(hiddenState, vector(ATT_NORM_WEIGHT), vector(ATT_NORM_BIAS), epsilon);
-
-        return hiddenState;
+        UTIL.layerNorm(hiddenState, vector(ATT_NORM_WEIGHT), vector(ATT_NORM_BIAS), epsilon, hiddenState);
     }
 
-    private Vector feedForwardBlock(Vector inputHiddenState)
+    private void feedForwardBlock(Vector hiddenState)
     {
         // Neural layers
-        Vector hiddenState = neuralLayers(inputHiddenState);
+        Vector mlpOutput = neuralLayers(hiddenState);
 
         // Residual connection
-        hiddenState = UTIL.addVectors(inputHiddenState, hiddenState);
+        UTIL.addVectors(hiddenState, mlpOutput, hiddenState);
 
         //  Normalisation
-        hiddenState = layerNorm(hiddenState, vector(MLP_NORM_WEIGHT), vector(MLP_NORM_BIAS), epsilon);
-
-        return hiddenState;
+        UTIL.layerNorm(hiddenState, vector(MLP_NORM_WEIGHT), vector(MLP_NORM_BIAS), epsilon, hiddenState);
     }
 
-    private Vector attention(Vector hiddenState)
+    private Vector attention(Vector hiddenState, KeyValueCache cache)
     {
         // Calculate the query-key-value vectors for the actual token
-        Vector queryKeyValue = UTIL.mulVectorByMatrix(hiddenState, matrix(ATT_QUERY_KEY_VALUE_WEIGHT));
-        queryKeyValue = UTIL.addVectors(queryKeyValue, vector(ATT_QUERY_KEY_VALUE_BIAS));
+        Vector queryKeyValue = arena().vector("queryKeyValue", hiddenSize * 3);
+        UTIL.mulVectorByMatrix(hiddenState, matrix(ATT_QUERY_KEY_VALUE_WEIGHT), queryKeyValue);
+        UTIL.addVectors(queryKeyValue, vector(ATT_QUERY_KEY_VALUE_BIAS), queryKeyValue);
 
+        // Attention of all heads (the results of the heads are concatenated)
+        Vector attentionHeads = arena().vector("attentionHeads", hiddenSize);
+        attendHeads(cache, queryKeyValue, attentionHeads);
+
+        // Projection neural layer
+        Vector projection = arena().vector("attentionProjection", hiddenSize);
+        UTIL.mulVectorByMatrix(attentionHeads, matrix(ATT_PROJ_WEIGHT), projection);
+        UTIL.addVectors(projection, vector(ATT_PROJ_BIAS), projection);
+
+        return projection;
+    }
+
+    /**
+     * Stores the key and value of the actual token, and calculates the attention of all heads on the stored tokens
+     * (The results of the heads are concatenated into the attentionHeads vector.)
+     */
+    private void attendHeads(KeyValueCache cache, Vector queryKeyValue, Vector attentionHeads)
+    {
         // Split the query/key/value
-        Vector[] split = UTIL.splitVector(queryKeyValue, 3);
+        Vector[] split = arena().vectors("split", 3, hiddenSize);
+        UTIL.splitVector(queryKeyValue, split);
         Vector query = split[0];
         Vector key = split[1];
         Vector value = split[2];
 
-        // Split the query, key and value vectors into pieces for all heads
-        Vector[] queryByHead = UTIL.splitVector(query, headCount);
-        Vector[] keyByHead = UTIL.splitVector(key, headCount);
-        Vector[] valueByHead = UTIL.splitVector(value, headCount);
+        // Split the query vector into pieces for all heads
+        Vector[] queryByHead = arena().vectors("queryByHead", headCount, headSize);
+        UTIL.splitVector(query, queryByHead);
 
-        // Store the keys and values (these will be available while the following tokens will be processed)
-        storedKeys.add(keyByHead);
-        storedValues.add(valueByHead);
-        int storedSize = storedKeys.size();
+        // Store the key and value (these will be available while the following tokens will be processed)
+        // (The cache stores the values head by head, so the key and value are stored without splitting)
+        cache.add(key, value);
+        int storedSize = cache.size();
 
         // Declaration of the variable for collecting the attention results for all heads
-        Vector[] valueAggregate = newVectorArray(hiddenState.getFloatType(), headCount, headSize);
+        Vector[] valueAggregate = arena().vectors("valueAggregate", headCount, headSize);
 
         // Scoring the previous tokens (including the actual), separately for all heads
         for (int head = 0; head < headCount; head++)
         {
             // Calculate the scores
             Vector actualQuery = queryByHead[head];
-            Vector scores = new Vector(actualQuery.getFloatType(), storedSize);
+            Vector scores = arena().vector("scores", storedSize);
 
+            // The score is calculated multiplying the "actual" query vector and the "related" key vectors
+            // (The stored keys of the head form a matrix per cache block, so the scores are calculated by multiplications)
+            cache.calculateScores(actualQuery, head, scores);
+
+            // Divide the scores by the attention dividend
             for (int pos = 0; pos < storedSize; pos++)
             {
-                // The score is calculated multiplying the "actual" query vector and the "related" key vector
-                Vector relatedKey = storedKeys.get(pos)[head];
-                float score = UTIL.dotProduct(actualQuery, relatedKey);
-
-                // Divide the score by the attention dividend
-                scores.set(pos, score / attentionDividend);
+                scores.set(pos, scores.get(pos) / attentionDividend);
             }
 
             // Rescaling the scores to values between 0 and 1
-            scores = softmax(scores);
+            UTIL.softmax(scores, scores);
 
-            // Multiply the value matrices with the scores, and sum up
-            for (int pos = 0; pos < storedSize; pos++)
-            {
-                Vector relatedValue = storedValues.get(pos)[head];
-                Vector multipliedValue = UTIL.mulVectorByScalar(relatedValue, scores.get(pos));
-                valueAggregate[head] = UTIL.addVectors(valueAggregate[head], multipliedValue);
-            }
+            // Multiply the value vectors with the scores, and sum up (the scores multiplied by the values matrix)
+            cache.aggregateValues(scores, head, valueAggregate[head]);
         }
 
         // Concatenate the results for all heads
-        hiddenState = UTIL.flattenMatrix(valueAggregate);
-
-        // Projection neural layer
-        hiddenState = UTIL.mulVectorByMatrix(hiddenState, matrix(ATT_PROJ_WEIGHT));
-        hiddenState = UTIL.addVectors(hiddenState, vector(ATT_PROJ_BIAS));
-
-        return hiddenState;
+        UTIL.flattenMatrix(valueAggregate, attentionHeads);
     }
 
     private Vector neuralLayers(Vector hiddenState)
     {
         // Layer 1: <mlpSize> neurons (usually 4 * <hiddenSize>) (using a gelu activation function)
-        hiddenState = UTIL.mulVectorByMatrix(hiddenState, matrix(MLP_1_WEIGHT));
-        hiddenState = UTIL.addVectors(hiddenState, vector(MLP_1_BIAS));
-
-        for (int neuron = 0; neuron < feedForwardSize; neuron++)
-        {
-            hiddenState.set(neuron, TransformerUtil.gelu(hiddenState.get(neuron)));
-        }
+        Vector mlp = arena().vector("mlp", feedForwardSize);
+        UTIL.mulVectorByMatrix(hiddenState, matrix(MLP_1_WEIGHT), mlp);
+        UTIL.gelu(mlp, vector(MLP_1_BIAS), mlp);
 
         // Layer 2: <hiddenSize> neurons (without activation function)
-        hiddenState = UTIL.mulVectorByMatrix(hiddenState, matrix(MLP_2_WEIGHT));
-        hiddenState = UTIL.addVectors(hiddenState, vector(MLP_2_BIAS));
+        Vector output = arena().vector("mlpOutput", hiddenSize);
+        UTIL.mulVectorByMatrix(mlp, matrix(MLP_2_WEIGHT), output);
+        UTIL.addVectors(output, vector(MLP_2_BIAS), output);
 
-        return hiddenState;
+        return output;
     }
 }
@@ -4,10 +4,10 @@ import huplay.demo.transformer.DecoderType;
 import huplay.demo.config.Config;
 import huplay.demo.transformer.BaseTransformer;
 import huplay.demo.transformer.BaseDecoder;
+import huplay.demo.transformer.InferenceSession;
 import huplay.demo.util.Vector;
 
-import static huplay.demo.AppLoader.UTIL;
-import static huplay.demo.TransformerUtil.layerNorm;
+import static huplay.demo.AppLoader.UtilHolder.UTIL;
 import static huplay.demo.config.ParameterType.*;
 
 /**
@@ -34,26 +34,62 @@ public class GPT2 extends BaseTransformer
         loadVector(OUTPUT_NORM_BIAS, "ln_f.bias", hiddenSize);
     }
 
-    public Vector execute(int pos, int token, boolean isOutputProcessing)
+    public Vector execute(InferenceSession session, int pos, int token, boolean isOutputProcessing)
     {
         // Find the embeddings of the token
-        Vector hiddenState = matrix(TOKEN_EMBEDDINGS)[token];
+        Vector hiddenState = arena().vector("hiddenState", hiddenSize);
+        matrix(TOKEN_EMBEDDINGS).getRow(token, hiddenState);
 
         // Position embedding
-        hiddenState = UTIL.addVectors(hiddenState, matrix(POSITION_EMBEDDINGS)[pos]);
+        Vector position = arena().vector("position", hiddenSize);
+        matrix(POSITION_EMBEDDINGS).getRow(pos, position);
+        UTIL.addVectors(hiddenState, position, hiddenState);
 
         // Decoder stack
         for (BaseDecoder decoder : decoders)
         {
-            hiddenState = decoder.execute(hiddenState, isOutputProcessing);
+            hiddenState = decoder.execute(hiddenState, session.getCache(decoder), isOutputProcessing);
         }
 
         // Final normalization
         if (isOutputProcessing) // No need to execute for input tokens
         {
-            hiddenState = layerNorm(hiddenState, vector(OUTPUT_NORM_WEIGHT), vector(OUTPUT_NORM_BIAS), epsilon);
+            UTIL.layerNorm(hiddenState, vector(OUTPUT_NORM_WEIGHT), vector(OUTPUT_NORM_BIAS), epsilon, hiddenState);
         }
 
         return hiddenState;
     }
+
+    @Override
+    protected Vector[] executeBatch(InferenceSession[] sessions, int[] positions, int[] tokens,
+                                    boolean isOutputProcessing)
+    {
+        // Find the embeddings of the tokens, and add the position embeddings
+        Vector[] hiddenStates = arena().vectors("hiddenStates", tokens.length, hiddenSize);
+        Vector position = arena().vector("position", hiddenSize);
+        for (int i = 0; i < tokens.length; i++)
+        {
+            matrix(TOKEN_EMBEDDINGS).getRow(tokens[i], hiddenStates[i]);
+            matrix(POSITION_EMBEDDINGS).getRow(positions[i], position);
+            UTIL.addVectors(hiddenStates[i], position, hiddenStates[i]);
+        }
+
+        // Decoder stack (every decoder processes the whole batch)
+        for (BaseDecoder decoder : decoders)
+        {
+            decoder.executeBatch(hiddenStates, getCaches(sessions, decoder), isOutputProcessing);
+        }
+
+        // Final normalization
+        if (isOutputProcessing) // No need to execute for input tokens
+        {
+            for (int i = 0; i < tokens.length; i++)
+            {
+                UTIL.layerNorm(hiddenStates[i], vector(OUTPUT_NORM_WEIGHT), vector(OUTPUT_NORM_BIAS), epsilon,
+                        hiddenStates[i]);
+            }
+        }
+
+        return hiddenStates;
+    }
 }
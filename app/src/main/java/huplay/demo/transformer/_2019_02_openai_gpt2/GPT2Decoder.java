@@ -1,14 +1,15 @@
 package huplay.demo.transformer._2019_02_openai_gpt2;
 
-import huplay.demo.TransformerUtil;
 import huplay.demo.config.Config;
 import huplay.demo.transformer.BaseDecoder;
+import huplay.demo.transformer.KeyValueCache;
+import huplay.demo.util.Matrix;
 import huplay.demo.util.Vector;
+import huplay.demo.util.WorkerGroup;
 
-import static huplay.demo.AppLoader.UTIL;
+import static huplay.demo.AppLoader.UtilHolder.UTIL;
 import static huplay.demo.TransformerUtil.*;
 import static huplay.demo.config.ParameterType.*;
-import static huplay.demo.util.Vector.newVectorArray;
 
 /**
  * OpenAI GPT-2 decoder implementation
@@ -17,6 +18,9 @@ import static huplay.demo.util.Vector.newVectorArray;
  */
 public class GPT2Decoder extends BaseDecoder
 {
+    // Tensor parallel mode: the parts of the weights used by the workers (null: not in tensor parallel mode)
+    private Slice[] slices;
+
     public GPT2Decoder(Config config, int decoderId)
     {
         super(config, decoderId);
@@ -39,127 +43,371 @@ public class GPT2Decoder extends BaseDecoder
         attentionDividend = sqrt(headSize);
     }
 
-    public Vector execute(Vector hiddenState, boolean isOutputProcessing)
+    public Vector execute(Vector hiddenState, KeyValueCache cache, boolean isOutputProcessing)
     {
+        if (slices != null)
+        {
+            return executeTensorParallel(hiddenState, cache, isOutputProcessing);
+        }
+
         // Attention block
-        hiddenState = attentionBlock(hiddenState);
+        attentionBlock(hiddenState, cache);
 
         // Feed-forward block
         if (isOutputProcessing || ! lastDecoder) // No need to execute for input tokens at the last decoder
         {
-            hiddenState = feedForwardBlock(hiddenState);
+            feedForwardBlock(hiddenState);
         }
 
         return hiddenState;
     }
 
-    private Vector attentionBlock(Vector inputHiddenState)
+    /**
+     * Process a batch of tokens (the hidden states are updated in place)
+     * The neural layers are calculated by matrix-matrix multiplications, so the weights are read once for the batch.
+     * The attention is calculated token by token in order, using the cache of the token, so at the prefill every
+     * token sees only the previous ones (causal), and at a multi-session step every token sees only its session.
+     */
+    @Override
+    public void executeBatch(Vector[] hiddenStates, KeyValueCache[] caches, boolean isOutputProcessing)
     {
+        int count = hiddenStates.length;
+
+        // Attention block
         // Normalisation
-        Vector hiddenState = layerNorm(inputHiddenState, vector(ATT_NORM_WEIGHT), vector(ATT_NORM_BIAS), epsilon);
+        Vector[] normalized = arena().vectors("normalizedBatch", count, hiddenSize);
+        for (int i = 0; i < count; i++)
+        {
+            UTIL.layerNorm(hiddenStates[i], vector(ATT_NORM_WEIGHT), vector(ATT_NORM_BIAS), epsilon, normalized[i]);
+        }
 
-        // Attention
-        hiddenState = attention(hiddenState);
+        // Calculate the query-key-value vectors for all tokens
+        Vector[] queryKeyValues = arena().vectors("queryKeyValueBatch", count, hiddenSize * 3);
+        UTIL.mulMatrixByMatrix(normalized, matrix(ATT_QUERY_KEY_VALUE_WEIGHT), queryKeyValues);
 
-        // Residual connection
-        hiddenState = UTIL.addVectors(inputHiddenState, hiddenState);
+        Vector[] attentionHeads = arena().vectors("attentionHeadsBatch", count, hiddenSize);
+        for (int i = 0; i < count; i++)
+        {
+            UTIL.addVectors(queryKeyValues[i], vector(ATT_QUERY_KEY_VALUE_BIAS), queryKeyValues[i]);
+            attendHeads(caches[i], queryKeyValues[i], attentionHeads[i]);
+        }
+
+        // Projection neural layer
+        Vector[] projections = arena().vectors("attentionProjectionBatch", count, hiddenSize);
+        UTIL.mulMatrixByMatrix(attentionHeads, matrix(ATT_PROJ_WEIGHT), projections);
+
+        for (int i = 0; i < count; i++)
+        {
+            UTIL.addVectors(projections[i], vector(ATT_PROJ_BIAS), projections[i]);
+
+            // Residual connection
+            UTIL.addVectors(hiddenStates[i], projections[i], hiddenStates[i]);
+        }
+
+        // Feed-forward block
+        if (!isOutputProcessing && lastDecoder) return; // No need to execute for input tokens at the last decoder
+
+        // Normalisation
+        for (int i = 0; i < count; i++)
+        {
+            UTIL.layerNorm(hiddenStates[i], vector(MLP_NORM_WEIGHT), vector(MLP_NORM_BIAS), epsilon, normalized[i]);
+        }
+
+        // Layer 1: <mlpSize> neurons (usually 4 * <hiddenSize>) (using a gelu activation function)
+        Vector[] mlp = arena().vectors("mlpBatch", count, feedForwardSize);
+        UTIL.mulMatrixByMatrix(normalized, matrix(MLP_1_WEIGHT), mlp);
+
+        for (int i = 0; i < count; i++)
+        {
+            UTIL.gelu(mlp[i], vector(MLP_1_BIAS), mlp[i]);
+        }
+
+        // Layer 2: <hiddenSize> neurons (without activation function)
+        Vector[] outputs = arena().vectors("mlpOutputBatch", count, hiddenSize);
+        UTIL.mulMatrixByMatrix(mlp, matrix(MLP_2_WEIGHT), outputs);
+
+        for (int i = 0; i < count; i++)
+        {
+            UTIL.addVectors(outputs[i], vector(MLP_2_BIAS), outputs[i]);
+
+            // Residual connection
+            UTIL.addVectors(hiddenStates[i], outputs[i], hiddenStates[i]);
+        }
+    }
+
+    /**
+     * Tensor parallel mode: the heads and the feed-forward neurons are split between the workers
+     * Every worker calculates the query, key, value and attention of its heads, and multiplies its part of the
+     * attention result by the matching rows of the projection matrix, which gives a partial sum of the projection.
+     * At the feed-forward block every worker calculates its neurons of the first layer, and the partial sum of the
+     * second layer by the matching rows. So the workers are synchronised only at the sums (twice per decoder).
+     */
+    private Vector executeTensorParallel(Vector hiddenState, KeyValueCache cache, boolean isOutputProcessing)
+    {
+        Vector[] partialSums = arena().vectors("partialSums", slices.length, hiddenSize);
+
+        // Attention block
+        // Normalisation
+        Vector normalized = arena().vector("normalized", hiddenSize);
+        UTIL.layerNorm(hiddenState, vector(ATT_NORM_WEIGHT), vector(ATT_NORM_BIAS), epsilon, normalized);
+
+        // The workers store the key and value of their heads at the new position
+        cache.addPosition();
+        workerGroup.execute(worker -> attentionSlice(slices[worker], normalized, cache, partialSums[worker]));
+
+        // Sum of the projection parts, bias and residual connection
+        addPartialSums(partialSums, vector(ATT_PROJ_BIAS), hiddenState);
+
+        // Feed-forward block
+        if (isOutputProcessing || ! lastDecoder) // No need to execute for input tokens at the last decoder
+        {
+            // Normalisation
+            UTIL.layerNorm(hiddenState, vector(MLP_NORM_WEIGHT), vector(MLP_NORM_BIAS), epsilon, normalized);
+
+            workerGroup.execute(worker -> neuralLayersSlice(slices[worker], normalized, partialSums[worker]));
+
+            // Sum of the layer 2 parts, bias and residual connection
+            addPartialSums(partialSums, vector(MLP_2_BIAS), hiddenState);
+        }
 
         return hiddenState;
     }
 
-    private Vector feedForwardBlock(Vector inputHiddenState)
+    /**
+     * Tensor parallel mode: attention of the worker's heads, multiplied by its rows of the projection matrix
+     */
+    private void attentionSlice(Slice slice, Vector hiddenState, KeyValueCache cache, Vector partialSum)
+    {
+        int sliceHeadCount = slice.toHead - slice.fromHead;
+        if (sliceHeadCount == 0)
+        {
+            // More workers than heads
+            partialSum.clear();
+            return;
+        }
+
+        // Calculate the query, key and value vectors of the heads
+        int size = sliceHeadCount * headSize;
+        Vector query = arena().vector("sliceQuery", size);
+        UTIL.mulVectorByMatrix(hiddenState, slice.query, query);
+        UTIL.addVectors(query, slice.queryBias, query);
+        Vector key = arena().vector("sliceKey", size);
+        UTIL.mulVectorByMatrix(hiddenState, slice.key, key);
+        UTIL.addVectors(key, slice.keyBias, key);
+        Vector value = arena().vector("sliceValue", size);
+        UTIL.mulVectorByMatrix(hiddenState, slice.value, value);
+        UTIL.addVectors(value, slice.valueBias, value);
+
+        // Store the key and value of the heads
+        cache.storeHeads(key, value, slice.fromHead, slice.toHead);
+
+        // Attention of the heads (the results of the heads are concatenated)
+        Vector[] queryByHead = arena().vectors("sliceQueryByHead", sliceHeadCount, headSize);
+        UTIL.splitVector(query, queryByHead);
+
+        Vector[] valueAggregate = arena().vectors("sliceValueAggregate", sliceHeadCount, headSize);
+        for (int i = 0; i < sliceHeadCount; i++)
+        {
+            attendHead(cache, queryByHead[i], slice.fromHead + i, valueAggregate[i]);
+        }
+
+        Vector attentionHeads = arena().vector("sliceAttentionHeads", size);
+        UTIL.flattenMatrix(valueAggregate, attentionHeads);
+
+        // Part of the projection neural layer (by the rows of the worker's heads)
+        UTIL.mulVectorByMatrix(attentionHeads, slice.projection, partialSum);
+    }
+
+    /**
+     * Tensor parallel mode: the worker's neurons of layer 1, multiplied by its rows of layer 2
+     */
+    private void neuralLayersSlice(Slice slice, Vector hiddenState, Vector partialSum)
+    {
+        // Layer 1: the worker's part of the neurons (using a gelu activation function)
+        Vector mlp = arena().vector("sliceMlp", slice.toNeuron - slice.fromNeuron);
+        UTIL.mulVectorByMatrix(hiddenState, slice.mlp1, mlp);
+        UTIL.gelu(mlp, slice.mlp1Bias, mlp);
+
+        // Part of layer 2 (by the rows of the worker's neurons)
+        UTIL.mulVectorByMatrix(mlp, slice.mlp2, partialSum);
+    }
+
+    @Override
+    protected void prepareTensorParallel(WorkerGroup workerGroup)
+    {
+        slices = new Slice[workerGroup.getWorkerCount()];
+
+        for (int worker = 0; worker < slices.length; worker++)
+        {
+            Slice slice = new Slice();
+
+            // The heads of the worker, and the columns of these within the query, key and value
+            slice.fromHead = workerGroup.getPartStart(worker, headCount, 1);
+            slice.toHead = workerGroup.getPartStart(worker + 1, headCount, 1);
+            int from = slice.fromHead * headSize;
+            int to = slice.toHead * headSize;
+
+            Matrix queryKeyValue = matrix(ATT_QUERY_KEY_VALUE_WEIGHT);
+            Vector queryKeyValueBias = vector(ATT_QUERY_KEY_VALUE_BIAS);
+            slice.query = queryKeyValue.cols(from, to);
+            slice.key = queryKeyValue.cols(hiddenSize + from, hiddenSize + to);
+            slice.value = queryKeyValue.cols(hiddenSize * 2 + from, hiddenSize * 2 + to);
+            slice.queryBias = slice(queryKeyValueBias, from, to);
+            slice.keyBias = slice(queryKeyValueBias, hiddenSize + from, hiddenSize + to);
+            slice.valueBias = slice(queryKeyValueBias, hiddenSize * 2 + from, hiddenSize * 2 + to);
+            slice.projection = matrix(ATT_PROJ_WEIGHT).rows(from, to);
+
+            // The neurons of the worker (aligned to the quantization blocks)
+            slice.fromNeuron = workerGroup.getPartStart(worker, feedForwardSize, Vector.QUANTIZATION_BLOCK_SIZE);
+            slice.toNeuron = workerGroup.getPartStart(worker + 1, feedForwardSize, Vector.QUANTIZATION_BLOCK_SIZE);
+            slice.mlp1 = matrix(MLP_1_WEIGHT).cols(slice.fromNeuron, slice.toNeuron);
+            slice.mlp1Bias = slice(vector(MLP_1_BIAS), slice.fromNeuron, slice.toNeuron);
+            slice.mlp2 = matrix(MLP_2_WEIGHT).rows(slice.fromNeuron, slice.toNeuron);
+
+            slices[worker] = slice;
+        }
+    }
+
+    /**
+     * Tensor parallel mode: the part of the weights used by a worker (views of the matrices, no values are copied)
+     */
+    private static class Slice
+    {
+        int fromHead;
+        int toHead;
+        Matrix query;
+        Matrix key;
+        Matrix value;
+        Vector queryBias;
+        Vector keyBias;
+        Vector valueBias;
+        Matrix projection;
+
+        int fromNeuron;
+        int toNeuron;
+        Matrix mlp1;
+        Vector mlp1Bias;
+        Matrix mlp2;
+    }
+
+    private void attentionBlock(Vector hiddenState, KeyValueCache cache)
     {
         // Normalisation
-        Vector hiddenState = layerNorm(inputHiddenState, vector(MLP_NORM_WEIGHT), vector(MLP_NORM_BIAS), epsilon);
+        Vector normalized = arena().vector("normalized", hiddenSize);
+        UTIL.layerNorm(hiddenState, vector(ATT_NORM_WEIGHT), vector(ATT_NORM_BIAS), epsilon, normalized);
 
-        // Neural layers
-        hiddenState = neuralLayers(hiddenState);
+        // Attention
+        Vector attentionOutput = attention(normalized, cache);
 
         // Residual connection
-        hiddenState = UTIL.addVectors(inputHiddenState, hiddenState);
+        UTIL.addVectors(hiddenState, attentionOutput, hiddenState);
+    }
 
-        return hiddenState;
+    private void feedForwardBlock(Vector hiddenState)
+    {
+        // Normalisation
+        Vector normalized = arena().vector("normalized", hiddenSize);
+        UTIL.layerNorm(hiddenState, vector(MLP_NORM_WEIGHT), vector(MLP_NORM_BIAS), epsilon, normalized);
+
+        // Neural layers
+        Vector mlpOutput = neuralLayers(normalized);
+
+        // Residual connection
+        UTIL.addVectors(hiddenState, mlpOutput, hiddenState);
     }
 
-    private Vector attention(Vector hiddenState)
+    private Vector attention(Vector hiddenState, KeyValueCache cache)
     {
         // Calculate the query-key-value vectors for the actual token
-        Vector queryKeyValue = UTIL.mulVectorByMatrix(hiddenState, matrix(ATT_QUERY_KEY_VALUE_WEIGHT));
-        queryKeyValue = UTIL.addVectors(queryKeyValue, vector(ATT_QUERY_KEY_VALUE_BIAS));
+        Vector queryKeyValue = arena().vector("queryKeyValue", hiddenSize * 3);
+        UTIL.mulVectorByMatrix(hiddenState, matrix(ATT_QUERY_KEY_VALUE_WEIGHT), queryKeyValue);
+        UTIL.addVectors(queryKeyValue, vector(ATT_QUERY_KEY_VALUE_BIAS), queryKeyValue);
+
+        // Attention of all heads (the results of the heads are concatenated)
+        Vector attentionHeads = arena().vector("attentionHeads", hiddenSize);
+        attendHeads(cache, queryKeyValue, attentionHeads);
 
+        // Projection neural layer
+        Vector projection = arena().vector("attentionProjection", hiddenSize);
+        UTIL.mulVectorByMatrix(attentionHeads, matrix(ATT_PROJ_WEIGHT), projection);
+        UTIL.addVectors(projection, vector(ATT_PROJ_BIAS), projection);
+
+        return projection;
+    }
+
+    /**
+     * Stores the key and value of the actual token, and calculates the attention of all heads on the stored tokens
+     * (The results of the heads are concatenated into the attentionHeads vector.)
+     */
+    private void attendHeads(KeyValueCache cache, Vector queryKeyValue, Vector attentionHeads)
+    {
         // Split the query/key/value
-        Vector[] split = UTIL.splitVector(queryKeyValue, 3);
+        Vector[] split = arena().vectors("split", 3, hiddenSize);
+        UTIL.splitVector(queryKeyValue, split);
         Vector query = split[0];
         Vector key = split[1];
         Vector value = split[2];
 
-        // Split the query, key and value vectors into pieces for all heads
-        Vector[] queryByHead = UTIL.splitVector(query, headCount);
-        Vector[] keyByHead = UTIL.splitVector(key, headCount);
-        Vector[] valueByHead = UTIL.splitVector(value, headCount);
+        // Split the query vector into pieces for all heads
+        Vector[] queryByHead = arena().vectors("queryByHead", headCount, headSize);
+        UTIL.splitVector(query, queryByHead);
 
-        // Store the keys and values (these will be available while the following tokens will be processed)
-        storedKeys.add(keyByHead);
-        storedValues.add(valueByHead);
-        int storedSize = storedKeys.size();
+        // Store the key and value (these will be available while the following tokens will be processed)
+        // (The cache stores the values head by head, so the key and value are stored without splitting)
+        cache.add(key, value);
 
         // Declaration of the variable for collecting the attention results for all heads
-        Vector[] valueAggregate = newVectorArray(hiddenState.getFloatType(), headCount, headSize);
+        Vector[] valueAggregate = arena().vectors("valueAggregate", headCount, headSize);
 
         // Scoring the previous tokens (including the actual), separately for all heads
         for (int head = 0; head < headCount; head++)
         {
-            // Calculate the scores
-            Vector actualQuery = queryByHead[head];
-            Vector scores = new Vector(actualQuery.getFloatType(), storedSize);
-
-            for (int pos = 0; pos < storedSize; pos++)
-            {
-                // The score is calculated multiplying the "actual" query vector and the "related" key vector
-                Vector relatedKey = storedKeys.get(pos)[head];
-                float score = UTIL.dotProduct(actualQuery, relatedKey);
-
-                // Divide the score by the attention dividend
-                scores.set(pos, score / attentionDividend);
-            }
-
-            // Rescaling the scores to values between 0 and 1
-            scores = softmax(scores);
-
-            // Multiply the value matrices with the scores, and sum up
-            for (int pos = 0; pos < storedSize; pos++)
-            {
-                Vector relatedValue = storedValues.get(pos)[head];
-                Vector multipliedValue = UTIL.mulVectorByScalar(relatedValue, scores.get(pos));
-                valueAggregate[head] = UTIL.addVectors(valueAggregate[head], multipliedValue);
-            }
+            attendHead(cache, queryByHead[head], head, valueAggregate[head]);
         }
 
         // Concatenate the results for all heads
-        hiddenState = UTIL.flattenMatrix(valueAggregate);
+        UTIL.flattenMatrix(valueAggregate, attentionHeads);
+    }
 
-        // Projection neural layer
-        hiddenState = UTIL.mulVectorByMatrix(hiddenState, matrix(ATT_PROJ_WEIGHT));
-        hiddenState = UTIL.addVectors(hiddenState, vector(ATT_PROJ_BIAS));
+    /**
+     * Attention of a head: the stored values weighted by the scores of the stored keys
+     */
+    private void attendHead(KeyValueCache cache, Vector query, int head, Vector result)
+    {
+        int storedSize = cache.size();
 
-        return hiddenState;
+        // Calculate the scores
+        Vector scores = arena().vector("scores", storedSize);
+
+        // The score is calculated multiplying the "actual" query vector and the "related" key vectors
+        // (The stored keys of the head form a matrix per cache block, so the scores are calculated by multiplications)
+        cache.calculateScores(query, head, scores);
+
+        // Divide the scores by the attention dividend
+        for (int pos = 0; pos < storedSize; pos++)
+        {
+            scores.set(pos, scores.get(pos) / attentionDividend);
+        }
+
+        // Rescaling the scores to values between 0 and 1
+        UTIL.softmax(scores, scores);
+
+        // Multiply the value vectors with the scores, and sum up (the scores multiplied by the values matrix)
+        cache.aggregateValues(scores, head, result);
     }
 
     private Vector neuralLayers(Vector hiddenState)
     {
         // Layer 1: <mlpSize> neurons (usually 4 * <hiddenSize>) (using a gelu activation function)
-        hiddenState = UTIL.mulVectorByMatrix(hiddenState, matrix(MLP_1_WEIGHT));
-        hiddenState = UTIL.addVectors(hiddenState, vector(MLP_1_BIAS));
-
-        for (int neuron = 0; neuron < feedForwardSize; neuron++)
-        {
-            hiddenState.set(neuron, TransformerUtil.gelu(hiddenState.get(neuron)));
-        }
+        Vector mlp = arena().vector("mlp", feedForwardSize);
+        UTIL.mulVectorByMatrix(hiddenState, matrix(MLP_1_WEIGHT), mlp);
+        UTIL.gelu(mlp, vector(MLP_1_BIAS), mlp);
 
         // Layer 2: <hiddenSize> neurons (without activation function)
-        hiddenState = UTIL.mulVectorByMatrix(hiddenState, matrix(MLP_2_WEIGHT));
-        hiddenState = UTIL.addVectors(hiddenState, vector(MLP_2_BIAS));
+        Vector output = arena().vector("mlpOutput", hiddenSize);
+        UTIL.mulVectorByMatrix(mlp, matrix(MLP_2_WEIGHT), output);
+        UTIL.addVectors(output, vector(MLP_2_BIAS), output);
 
-        return hiddenState;
+        return output;
     }
 }
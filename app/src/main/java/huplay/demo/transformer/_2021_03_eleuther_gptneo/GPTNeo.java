@@ -3,18 +3,18 @@ package huplay.demo.transformer._2021_03_eleuther_gptneo;
 import huplay.demo.transformer.DecoderType;
 import huplay.demo.config.Config;
 import huplay.demo.transformer.BaseTransformer;
+import huplay.demo.transformer.InferenceSession;
 import huplay.demo.transformer.BaseDecoder;
 import huplay.demo.util.Vector;
 
-import static huplay.demo.AppLoader.UTIL;
-import static huplay.demo.TransformerUtil.layerNorm;
+import static huplay.demo.AppLoader.UtilHolder.UTIL;
 import static huplay.demo.config.ParameterType.*;
 
 /**
   EleutherAI GPT-NEO transformer
 
   Differences to GPT-2:
-    - Sparse decoders: Every second decoder uses local attention, using only the previous 256 tokens
+    - Local attention: Every second decoder uses only the previous 256 tokens (attention_layers, window_size)
     - No biases for the attention query/key/value matrices
     - query/key/value matrices are stored separately
     - No attention dividend, so the score isn't divided by a fixed value
@@ -35,24 +35,27 @@ public class GPTNeo extends BaseTransformer
         loadVector(OUTPUT_NORM_BIAS, "ln_f.bias", hiddenSize);
     }
 
-    public Vector execute(int pos, int token, boolean isOutputProcessing)
+    public Vector execute(InferenceSession session, int pos, int token, boolean isOutputProcessing)
     {
         // Find the embeddings of the token
-        Vector hiddenState = matrix(TOKEN_EMBEDDINGS)[token];
+        Vector hiddenState = arena().vector("hiddenState", hiddenSize);
+        matrix(TOKEN_EMBEDDINGS).getRow(token, hiddenState);
 
         // Position embedding
-        hiddenState = UTIL.addVectors(hiddenState, matrix(POSITION_EMBEDDINGS)[pos]);
+        Vector position = arena().vector("position", hiddenSize);
+        matrix(POSITION_EMBEDDINGS).getRow(pos, position);
+        UTIL.addVectors(hiddenState, position, hiddenState);
 
         // Decoder stack
         for (BaseDecoder decoder : decoders)
         {
-            hiddenState = decoder.execute(hiddenState, isOutputProcessing);
+            hiddenState = decoder.execute(hiddenState, session.getCache(decoder), isOutputProcessing);
         }
 
         // Final normalization
         if (isOutputProcessing) // No need to execute for input tokens
         {
-            hiddenState = layerNorm(hiddenState, vector(OUTPUT_NORM_WEIGHT), vector(OUTPUT_NORM_BIAS), epsilon);
+            UTIL.layerNorm(hiddenState, vector(OUTPUT_NORM_WEIGHT), vector(OUTPUT_NORM_BIAS), epsilon, hiddenState);
         }
 
         return hiddenState;
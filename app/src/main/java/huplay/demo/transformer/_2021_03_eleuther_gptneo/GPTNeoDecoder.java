@@ -1,14 +1,15 @@
 package huplay.demo.transformer._2021_03_eleuther_gptneo;
 
-import huplay.demo.TransformerUtil;
+import huplay.demo.IdentifiedException;
 import huplay.demo.config.Config;
 import huplay.demo.transformer.BaseDecoder;
+import huplay.demo.transformer.KeyValueCache;
 import huplay.demo.util.Vector;
 
-import static huplay.demo.AppLoader.UTIL;
-import static huplay.demo.TransformerUtil.*;
+import java.util.List;
+
+import static huplay.demo.AppLoader.UtilHolder.UTIL;
 import static huplay.demo.config.ParameterType.*;
-import static huplay.demo.util.Vector.newVectorArray;
 
 /**
  * EleutherAI GPT-NEO decoder implementation
@@ -17,8 +18,6 @@ import static huplay.demo.util.Vector.newVectorArray;
  */
 public class GPTNeoDecoder extends BaseDecoder
 {
-    private final int maxAttentionSize;
-
     public GPTNeoDecoder(Config config, int decoderId)
     {
         super(config, decoderId);
@@ -38,130 +37,125 @@ public class GPTNeoDecoder extends BaseDecoder
         loadMatrix(MLP_2_WEIGHT, "mlp.c_proj.weight", hiddenSize, feedForwardSize);
         loadVector(MLP_2_BIAS, "mlp.c_proj.bias", hiddenSize);
 
-        maxAttentionSize = 256; // TODO: Move sparse attention to logic, not as config
+        // The decoders use global and local attention alternately (set by the attention_layers in the config)
+        // At local attention only the last positions (window_size) are used, so the older ones aren't stored
+        List<String> attentionLayers = config.getStringListOptional("attention_layers");
+        if (attentionLayers != null && attentionLayers.size() != config.getDecoderCount())
+        {
+            throw new IdentifiedException("The number of the attention_layers (" + attentionLayers.size()
+                    + ") differs from the number of the decoders (" + config.getDecoderCount() + ")");
+        }
+
+        if (attentionLayers != null && "local".equals(attentionLayers.get(decoderId)))
+        {
+            setLocalAttention(config.getIntOptional("window_size", 256));
+        }
     }
 
-    public Vector execute(Vector hiddenState, boolean isOutputProcessing)
+    public Vector execute(Vector hiddenState, KeyValueCache cache, boolean isOutputProcessing)
     {
         // Attention block
-        hiddenState = attentionBlock(hiddenState);
+        attentionBlock(hiddenState, cache);
 
         // Feed-forward block
         if (isOutputProcessing || ! lastDecoder) // No need to execute for input tokens at the last decoder
         {
-            hiddenState = feedForwardBlock(hiddenState);
+            feedForwardBlock(hiddenState);
         }
 
         return hiddenState;
     }
 
-    private Vector attentionBlock(Vector inputHiddenState)
+    private void attentionBlock(Vector hiddenState, KeyValueCache cache)
     {
         // Normalisation
-        Vector hiddenState = layerNorm(inputHiddenState, vector(ATT_NORM_WEIGHT), vector(ATT_NORM_BIAS), epsilon);
+        Vector normalized = arena().vector("normalized", hiddenSize);
+        UTIL.layerNorm(hiddenState, vector(ATT_NORM_WEIGHT), vector(ATT_NORM_BIAS), epsilon, normalized);
 
         // Attention
-        hiddenState = attention(hiddenState);
+        Vector attentionOutput = attention(normalized, cache);
 
         // Residual connection
-        hiddenState = UTIL.addVectors(inputHiddenState, hiddenState);
-
-        return hiddenState;
+        UTIL.addVectors(hiddenState, attentionOutput, hiddenState);
     }
 
-    private Vector feedForwardBlock(Vector inputHiddenState)
+    private void feedForwardBlock(Vector hiddenState)
     {
         // Normalisation
-        Vector hiddenState = layerNorm(inputHiddenState, vector(MLP_NORM_WEIGHT), vector(MLP_NORM_BIAS), epsilon);
+        Vector normalized = arena().vector("normalized", hiddenSize);
+        UTIL.layerNorm(hiddenState, vector(MLP_NORM_WEIGHT), vector(MLP_NORM_BIAS), epsilon, normalized);
 
         // Neural layers
-        hiddenState = neuralLayers(hiddenState);
+        Vector mlpOutput = neuralLayers(normalized);
 
         // Residual connection
-        hiddenState = UTIL.addVectors(inputHiddenState, hiddenState);
-
-        return hiddenState;
+        UTIL.addVectors(hiddenState, mlpOutput, hiddenState);
     }
 
-    private Vector attention(Vector hiddenState)
+    private Vector attention(Vector hiddenState, KeyValueCache cache)
     {
         // Calculate the query, key and value vectors for the actual token
-        Vector query = UTIL.mulVectorByTransposedMatrix(hiddenState, matrix(ATT_QUERY_WEIGHT));
-        Vector key = UTIL.mulVectorByTransposedMatrix(hiddenState, matrix(ATT_KEY_WEIGHT));
-        Vector value = UTIL.mulVectorByTransposedMatrix(hiddenState, matrix(ATT_VALUE_WEIGHT));
-
-        // Split the query, key and value vectors into pieces for all heads
-        Vector[] queryByHead = UTIL.splitVector(query, headCount);
-        Vector[] keyByHead = UTIL.splitVector(key, headCount);
-        Vector[] valueByHead = UTIL.splitVector(value, headCount);
-
-        // Store the keys and values (these will be available while the following tokens will be processed)
-        storedKeys.add(keyByHead);
-        storedValues.add(valueByHead);
-        int storedSize = storedKeys.size();
-
-        // Used only at sparse attention:
-        /*if (storedSize > maxAttentionSize)
-        {
-            // Topping the maximum attention size we can drop the oldest stored values
-            storedKeys.remove(0);
-            storedValues.remove(0);
-        }*/
+        Vector query = arena().vector("query", hiddenSize);
+        UTIL.mulVectorByTransposedMatrix(hiddenState, matrix(ATT_QUERY_WEIGHT), query);
+        Vector key = arena().vector("key", hiddenSize);
+        UTIL.mulVectorByTransposedMatrix(hiddenState, matrix(ATT_KEY_WEIGHT), key);
+        Vector value = arena().vector("value", hiddenSize);
+        UTIL.mulVectorByTransposedMatrix(hiddenState, matrix(ATT_VALUE_WEIGHT), value);
+
+        // Split the query vector into pieces for all heads
+        Vector[] queryByHead = arena().vectors("queryByHead", headCount, headSize);
+        UTIL.splitVector(query, queryByHead);
+
+        // Store the key and value (these will be available while the following tokens will be processed)
+        // (The cache stores the values head by head, so the key and value are stored without splitting)
+        cache.add(key, value);
+        int storedSize = cache.size();
 
         // Declaration of the variable for collecting the attention results for all heads
-        Vector[] valueAggregate = newVectorArray(hiddenState.getFloatType(), headCount, headSize);
+        Vector[] valueAggregate = arena().vectors("valueAggregate", headCount, headSize);
 
         // Scoring the previous tokens (including the actual), separately for all heads
         for (int head = 0; head < headCount; head++)
         {
             // Calculate the scores
             Vector actualQuery = queryByHead[head];
-            Vector scores = new Vector(actualQuery.getFloatType(), storedSize);
+            Vector scores = arena().vector("scores", storedSize);
 
-            for (int pos = 0; pos < storedSize; pos++)
-            {
-                // The score is calculated multiplying the "actual" query vector and the "related" key vector
-                Vector relatedKey = storedKeys.get(pos)[head];
-                scores.set(pos, UTIL.dotProduct(actualQuery, relatedKey));
-            }
+            // The score is calculated multiplying the "actual" query vector and the "related" key vectors
+            // (The stored keys of the head form a matrix per cache block, so the scores are calculated by multiplications)
+            cache.calculateScores(actualQuery, head, scores);
 
             // Rescaling the scores to values between 0 and 1
-            scores = softmax(scores);
-
-            // Multiply the value matrices with the scores, and sum up
-            for (int pos = 0; pos < storedSize; pos++)
-            {
-                Vector relatedValue = storedValues.get(pos)[head];
-                Vector multipliedValue = UTIL.mulVectorByScalar(relatedValue, scores.get(pos));
-                valueAggregate[head] = UTIL.addVectors(valueAggregate[head], multipliedValue);
-            }
+            UTIL.softmax(scores, scores);
+
+            // Multiply the value vectors with the scores, and sum up (the scores multiplied by the values matrix)
+            cache.aggregateValues(scores, head, valueAggregate[head]);
         }
 
         // Concatenate the results for all heads
-        hiddenState = UTIL.flattenMatrix(valueAggregate);
+        Vector attentionHeads = arena().vector("attentionHeads", hiddenSize);
+        UTIL.flattenMatrix(valueAggregate, attentionHeads);
 
         // Projection neural layer
-        hiddenState = UTIL.mulVectorByTransposedMatrix(hiddenState, matrix(ATT_PROJ_WEIGHT));
-        hiddenState = UTIL.addVectors(hiddenState, vector(ATT_PROJ_BIAS));
+        Vector projection = arena().vector("attentionProjection", hiddenSize);
+        UTIL.mulVectorByTransposedMatrix(attentionHeads, matrix(ATT_PROJ_WEIGHT), projection);
+        UTIL.addVectors(projection, vector(ATT_PROJ_BIAS), projection);
 
-        return hiddenState;
+        return projection;
     }
 
     private Vector neuralLayers(Vector hiddenState)
     {
         // Layer 1: <mlpSize> neurons (usually 4 * <hiddenSize>) (using a gelu activation function)
-        hiddenState = UTIL.mulVectorByTransposedMatrix(hiddenState, matrix(MLP_1_WEIGHT));
-        hiddenState = UTIL.addVectors(hiddenState, vector(MLP_1_BIAS));
-
-        for (int neuron = 0; neuron < feedForwardSize; neuron++)
-        {
-            hiddenState.set(neuron, TransformerUtil.gelu(hiddenState.get(neuron)));
-        }
+        Vector mlp = arena().vector("mlp", feedForwardSize);
+        UTIL.mulVectorByTransposedMatrix(hiddenState, matrix(MLP_1_WEIGHT), mlp);
+        UTIL.gelu(mlp, vector(MLP_1_BIAS), mlp);
 
         // Layer 2: <hiddenSize> neurons (without activation function)
-        hiddenState = UTIL.mulVectorByTransposedMatrix(hiddenState, matrix(MLP_2_WEIGHT));
-        hiddenState = UTIL.addVectors(hiddenState, vector(MLP_2_BIAS));
+        Vector output = arena().vector("mlpOutput", hiddenSize);
+        UTIL.mulVectorByTransposedMatrix(mlp, matrix(MLP_2_WEIGHT), output);
+        UTIL.addVectors(output, vector(MLP_2_BIAS), output);
 
-        return hiddenState;
+        return output;
     }
 }
@@ -4,9 +4,10 @@ import huplay.demo.config.Config;
 import huplay.demo.transformer.BaseDecoder;
 import huplay.demo.transformer.BaseTransformer;
 import huplay.demo.transformer.DecoderType;
+import huplay.demo.transformer.InferenceSession;
 import huplay.demo.util.Vector;
 
-import static huplay.demo.TransformerUtil.layerNorm;
+import static huplay.demo.AppLoader.UtilHolder.UTIL;
 import static huplay.demo.config.ParameterType.*;
 
 /**
@@ -25,6 +26,7 @@ import static huplay.demo.config.ParameterType.*;
 
   Differences to GPT-NEO:
     - Rotary Position Embedding (RoPE)
+    - No local attention, all decoders use global attention
     - Uses bias at token embeddings
     - No bias at attention query/key/value matrices and projection (but has bias at the mlp component)
     - Feed-forward normalization parameters are common in all decoders, and the same used at final normalization
@@ -44,22 +46,23 @@ public class GPTJ extends BaseTransformer
         loadVector(OUTPUT_NORM_BIAS, "transformer.ln_f.bias", hiddenSize);
     }
 
-    public Vector execute(int pos, int token, boolean isOutputProcessing)
+    public Vector execute(InferenceSession session, int pos, int token, boolean isOutputProcessing)
     {
         // Find the embeddings of the token
-        Vector hiddenState = matrix(TOKEN_EMBEDDINGS)[token];
+        Vector hiddenState = arena().vector("hiddenState", hiddenSize);
+        matrix(TOKEN_EMBEDDINGS).getRow(token, hiddenState);
         //hiddenState = UTIL.addVectors(hiddenState, vector(TOKEN_EMBEDDING_BIAS));
 
         // Decoder stack
         for (BaseDecoder decoder : decoders)
         {
-            hiddenState = decoder.execute(hiddenState, isOutputProcessing);
+            hiddenState = decoder.execute(hiddenState, session.getCache(decoder), isOutputProcessing);
         }
 
         // Final normalization
         if (isOutputProcessing) // No need to execute for input tokens
         {
-            hiddenState = layerNorm(hiddenState, vector(OUTPUT_NORM_WEIGHT), vector(OUTPUT_NORM_BIAS), epsilon);
+            UTIL.layerNorm(hiddenState, vector(OUTPUT_NORM_WEIGHT), vector(OUTPUT_NORM_BIAS), epsilon, hiddenState);
         }
 
         return hiddenState;
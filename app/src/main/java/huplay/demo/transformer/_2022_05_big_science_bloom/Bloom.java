@@ -3,10 +3,11 @@ package huplay.demo.transformer._2022_05_big_science_bloom;
 import huplay.demo.transformer.DecoderType;
 import huplay.demo.config.Config;
 import huplay.demo.transformer.BaseTransformer;
+import huplay.demo.transformer.InferenceSession;
 import huplay.demo.transformer.BaseDecoder;
 import huplay.demo.util.Vector;
 
-import static huplay.demo.TransformerUtil.layerNorm;
+import static huplay.demo.AppLoader.UtilHolder.UTIL;
 import static huplay.demo.config.ParameterType.*;
 
 /**
@@ -37,24 +38,25 @@ public class Bloom extends BaseTransformer
         loadVector(OUTPUT_NORM_BIAS, "ln_f.bias", hiddenSize);
     }
 
-    public Vector execute(int pos, int token, boolean isOutputProcessing)
+    public Vector execute(InferenceSession session, int pos, int token, boolean isOutputProcessing)
     {
         // Find the embeddings of the token
-        Vector hiddenState = matrix(TOKEN_EMBEDDINGS)[token];
+        Vector hiddenState = arena().vector("hiddenState", hiddenSize);
+        matrix(TOKEN_EMBEDDINGS).getRow(token, hiddenState);
 
         // Input normalization
-        hiddenState = layerNorm(hiddenState,  vector(INPUT_NORM_WEIGHT), vector(INPUT_NORM_BIAS), epsilon);
+        UTIL.layerNorm(hiddenState, vector(INPUT_NORM_WEIGHT), vector(INPUT_NORM_BIAS), epsilon, hiddenState);
 
         // Decoder stack
         for (BaseDecoder decoder : decoders)
         {
-            hiddenState = decoder.execute(hiddenState, isOutputProcessing);
+            hiddenState = decoder.execute(hiddenState, session.getCache(decoder), isOutputProcessing);
         }
 
         // Final normalization
         if (isOutputProcessing) // No need to execute for input tokens
         {
-            hiddenState = layerNorm(hiddenState, vector(OUTPUT_NORM_WEIGHT), vector(OUTPUT_NORM_BIAS), epsilon);
+            UTIL.layerNorm(hiddenState, vector(OUTPUT_NORM_WEIGHT), vector(OUTPUT_NORM_BIAS), epsilon, hiddenState);
         }
 
         return hiddenState;
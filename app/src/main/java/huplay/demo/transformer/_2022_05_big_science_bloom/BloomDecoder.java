@@ -1,17 +1,13 @@
 package huplay.demo.transformer._2022_05_big_science_bloom;
 
-import huplay.demo.TransformerUtil;
 import huplay.demo.config.Config;
 import huplay.demo.transformer.BaseDecoder;
+import huplay.demo.transformer.KeyValueCache;
 import huplay.demo.util.Vector;
 
-import java.util.ArrayList;
-import java.util.List;
-
-import static huplay.demo.AppLoader.UTIL;
+import static huplay.demo.AppLoader.UtilHolder.UTIL;
 import static huplay.demo.TransformerUtil.*;
 import static huplay.demo.config.ParameterType.*;
-import static huplay.demo.util.Vector.newVectorArray;
 
 /**
  * BLOOM decoder implementation
@@ -22,19 +18,10 @@ public class BloomDecoder extends BaseDecoder
 {
     private final float[] positionSlope;
 
-    protected final List<List<Vector>> storedKeys = new ArrayList<>(headCount);
-    protected final List<List<Vector>> storedValues = new ArrayList<>(headCount);
-
     public BloomDecoder(Config config, int decoderId)
     {
         super(config, decoderId);
 
-        for (int i = 0; i < headCount; i++)
-        {
-            storedKeys.add(new ArrayList<>());
-            storedValues.add(new ArrayList<>());
-        }
-
         // Load parameters
         loadVector(ATT_NORM_WEIGHT, "input_layernorm.weight", hiddenSize);
         loadVector(ATT_NORM_BIAS, "input_layernorm.bias", hiddenSize);
@@ -61,130 +48,130 @@ public class BloomDecoder extends BaseDecoder
         }
     }
 
-    public Vector execute(Vector hiddenState, boolean isOutputProcessing)
+    public Vector execute(Vector hiddenState, KeyValueCache cache, boolean isOutputProcessing)
     {
         // Attention block
-        hiddenState = attentionBlock(hiddenState);
+        attentionBlock(hiddenState, cache);
 
         // Feed-forward block
         if (isOutputProcessing || ! lastDecoder) // No need to execute for input tokens at the last decoder
         {
-            hiddenState = feedForwardBlock(hiddenState);
+            feedForwardBlock(hiddenState);
         }
 
         return hiddenState;
     }
 
-    private Vector attentionBlock(Vector inputHiddenState)
+    private void attentionBlock(Vector hiddenState, KeyValueCache cache)
     {
         // Normalisation
-        Vector hiddenState = layerNorm(inputHiddenState, vector(ATT_NORM_WEIGHT), vector(ATT_NORM_BIAS), epsilon);
+        Vector normalized = arena().vector("normalized", hiddenSize);
+        UTIL.layerNorm(hiddenState, vector(ATT_NORM_WEIGHT), vector(ATT_NORM_BIAS), epsilon, normalized);
 
         // Attention
-        hiddenState = attention(hiddenState);
+        Vector attentionOutput = attention(normalized, cache);
 
         // Residual connection
-        hiddenState = UTIL.addVectors(inputHiddenState, hiddenState);
-
-        return hiddenState;
+        UTIL.addVectors(hiddenState, attentionOutput, hiddenState);
     }
 
-    private Vector feedForwardBlock(Vector inputHiddenState)
+    private void feedForwardBlock(Vector hiddenState)
     {
         // Normalisation
-        Vector hiddenState = layerNorm(inputHiddenState, vector(MLP_NORM_WEIGHT), vector(MLP_NORM_BIAS), epsilon);
+        Vector normalized = arena().vector("normalized", hiddenSize);
+        UTIL.layerNorm(hiddenState, vector(MLP_NORM_WEIGHT), vector(MLP_NORM_BIAS), epsilon, normalized);
 
         // Neural layers
-        hiddenState = neuralLayers(hiddenState);
+        Vector mlpOutput = neuralLayers(normalized);
 
         // Residual connection
-        hiddenState = UTIL.addVectors(inputHiddenState, hiddenState);
-
-        return hiddenState;
+        UTIL.addVectors(hiddenState, mlpOutput, hiddenState);
     }
 
-    private Vector attention(Vector hiddenState)
+    private Vector attention(Vector hiddenState, KeyValueCache cache)
     {
         // Calculate the query-key-value vectors for the actual token
-        Vector queryKeyValue = UTIL.mulVectorByTransposedMatrix(hiddenState, matrix(ATT_QUERY_KEY_VALUE_WEIGHT));
-        queryKeyValue = UTIL.addVectors(queryKeyValue, vector(ATT_QUERY_KEY_VALUE_BIAS));
+        Vector queryKeyValue = arena().vector("queryKeyValue", hiddenSize * 3);
+        UTIL.mulVectorByTransposedMatrix(hiddenState, matrix(ATT_QUERY_KEY_VALUE_WEIGHT), queryKeyValue);
+        UTIL.addVectors(queryKeyValue, vector(ATT_QUERY_KEY_VALUE_BIAS), queryKeyValue);
 
         // Split the query, key and value vectors into pieces for all heads
-        Vector[] queryKeyValuesByHead = UTIL.splitVector(queryKeyValue, headCount);
+        Vector[] queryKeyValuesByHead = arena().vectors("queryKeyValueByHead", headCount, headSize * 3);
+        UTIL.splitVector(queryKeyValue, queryKeyValuesByHead);
 
-        // Declaration of the variable for collecting the attention results for all heads
-        Vector[] valueAggregate = newVectorArray(hiddenState.getFloatType(), headCount, headSize);
+        // The query, key and value are stored together within the head's segment, so these are separated first
+        Vector[] queryByHead = arena().vectors("queryByHead", headCount, headSize);
+        Vector[] keyByHead = arena().vectors("keyByHead", headCount, headSize);
+        Vector[] valueByHead = arena().vectors("valueByHead", headCount, headSize);
 
-        // Scoring the previous tokens (including the actual), separately for all heads
         for (int head = 0; head < headCount; head++)
         {
-            Vector queryKeyValueByHead = queryKeyValuesByHead[head];
+            Vector[] split = new Vector[] {queryByHead[head], keyByHead[head], valueByHead[head]};
+            UTIL.splitVector(queryKeyValuesByHead[head], split);
+        }
 
-            // Split the query/key/value
-            Vector[] split = UTIL.splitVector(queryKeyValueByHead, 3);
-            Vector queryByHead = split[0];
-            Vector keyByHead = split[1];
-            Vector valueByHead = split[2];
+        // Store the key and value (these will be available while the following tokens will be processed)
+        Vector key = arena().vector("key", hiddenSize);
+        UTIL.flattenMatrix(keyByHead, key);
+        Vector value = arena().vector("value", hiddenSize);
+        UTIL.flattenMatrix(valueByHead, value);
 
-            storedKeys.get(head).add(keyByHead);
-            storedValues.get(head).add(valueByHead);
+        cache.add(key, value);
+        int storedSize = cache.size();
 
-            // Store the keys and values (these will be available while the following tokens will be processed)
-            int storedSize = storedKeys.get(head).size();
+        // Declaration of the variable for collecting the attention results for all heads
+        Vector[] valueAggregate = arena().vectors("valueAggregate", headCount, headSize);
 
+        // Scoring the previous tokens (including the actual), separately for all heads
+        for (int head = 0; head < headCount; head++)
+        {
             // Calculate the scores
-            Vector scores = new Vector(hiddenState.getFloatType(), storedSize);
+            Vector scores = arena().vector("scores", storedSize);
+
+            // The score is calculated multiplying the "actual" query vector and the "related" key vectors
+            // (The stored keys of the head form a matrix per cache block, so the scores are calculated by multiplications)
+            cache.calculateScores(queryByHead[head], head, scores);
 
             for (int pos = 0; pos < storedSize; pos++)
             {
-                // The score is calculated multiplying the "actual" query vector and the "related" key vector
-                Vector relatedKey = storedKeys.get(head).get(pos);
-                float score = UTIL.dotProduct(queryByHead, relatedKey);
-
                 // Position embedding at score
-                score = score - positionSlope[head] * (storedSize - pos - 1);
+                float score = scores.get(pos) - positionSlope[head] * (storedSize - pos - 1);
 
                 // Divide the score by the attention dividend
                 scores.set(pos, score / attentionDividend);
             }
 
             // Rescaling the scores to values between 0 and 1
-            scores = softmax(scores);
+            UTIL.softmax(scores, scores);
 
-            // Multiply the value matrices with the scores, and sum up
-            for (int pos = 0; pos < storedSize; pos++)
-            {
-                Vector relatedValue = storedValues.get(head).get(pos);
-                Vector multipliedValue = UTIL.mulVectorByScalar(relatedValue, scores.get(pos));
-                valueAggregate[head] = UTIL.addVectors(valueAggregate[head], multipliedValue);
-            }
+            // Multiply the value vectors with the scores, and sum up (the scores multiplied by the values matrix)
+            cache.aggregateValues(scores, head, valueAggregate[head]);
         }
 
         // Concatenate the results for all heads
-        hiddenState = UTIL.flattenMatrix(valueAggregate);
+        Vector attentionHeads = arena().vector("attentionHeads", hiddenSize);
+        UTIL.flattenMatrix(valueAggregate, attentionHeads);
 
         // Projection neural layer
-        hiddenState = UTIL.mulVectorByTransposedMatrix(hiddenState, matrix(ATT_PROJ_WEIGHT));
-        hiddenState = UTIL.addVectors(hiddenState, vector(ATT_PROJ_BIAS));
+        Vector projection = arena().vector("attentionProjection", hiddenSize);
+        UTIL.mulVectorByTransposedMatrix(attentionHeads, matrix(ATT_PROJ_WEIGHT), projection);
+        UTIL.addVectors(projection, vector(ATT_PROJ_BIAS), projection);
 
-        return hiddenState;
+        return projection;
     }
 
     private Vector neuralLayers(Vector hiddenState)
     {
         // Layer 1: <mlpSize> neurons (usually 4 * <hiddenSize>) (using a gelu activation function)
-        hiddenState = UTIL.mulVectorByTransposedMatrix(hiddenState, matrix(MLP_1_WEIGHT));
-        hiddenState = UTIL.addVectors(hiddenState, vector(MLP_1_BIAS));
-
-        for (int neuron = 0; neuron < feedForwardSize; neuron++)
-        {
-            hiddenState.set(neuron, TransformerUtil.gelu(hiddenState.get(neuron)));
-        }
+        Vector mlp = arena().vector("mlp", feedForwardSize);
+        UTIL.mulVectorByTransposedMatrix(hiddenState, matrix(MLP_1_WEIGHT), mlp);
+        UTIL.gelu(mlp, vector(MLP_1_BIAS), mlp);
 
         // Layer 2: <hiddenSize> neurons (without activation function)
-        hiddenState = UTIL.mulVectorByTransposedMatrix(hiddenState, matrix(MLP_2_WEIGHT));
-        hiddenState = UTIL.addVectors(hiddenState, vector(MLP_2_BIAS));
+        Vector output = arena().vector("mlpOutput", hiddenSize);
+        UTIL.mulVectorByTransposedMatrix(mlp, matrix(MLP_2_WEIGHT), output);
+        UTIL.addVectors(output, vector(MLP_2_BIAS), output);
 
-        return hiddenState;
+        return output;
     }
 }
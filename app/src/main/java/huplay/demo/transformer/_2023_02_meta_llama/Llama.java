@@ -4,9 +4,10 @@ import huplay.demo.transformer.DecoderType;
 import huplay.demo.config.Config;
 import huplay.demo.transformer.BaseTransformer;
 import huplay.demo.transformer.BaseDecoder;
+import huplay.demo.transformer.InferenceSession;
 import huplay.demo.util.Vector;
 
-import static huplay.demo.TransformerUtil.RMSLayerNorm;
+import static huplay.demo.AppLoader.UtilHolder.UTIL;
 import static huplay.demo.config.ParameterType.*;
 
 /**
@@ -34,23 +35,53 @@ public class Llama extends BaseTransformer
         loadVector(OUTPUT_NORM_WEIGHT, "norm.weight", hiddenSize);
     }
 
-    public Vector execute(int pos, int token, boolean isOutputProcessing)
+    public Vector execute(InferenceSession session, int pos, int token, boolean isOutputProcessing)
     {
         // Find the embeddings of the token
-        Vector hiddenState = matrix(TOKEN_EMBEDDINGS)[token];
+        Vector hiddenState = arena().vector("hiddenState", hiddenSize);
+        matrix(TOKEN_EMBEDDINGS).getRow(token, hiddenState);
 
         // Decoder stack
         for (BaseDecoder decoder : decoders)
         {
-            hiddenState = decoder.execute(hiddenState, isOutputProcessing);
+            hiddenState = decoder.execute(hiddenState, session.getCache(decoder), isOutputProcessing);
         }
 
         // Final normalization
         if (isOutputProcessing) // No need to execute for input tokens
         {
-            hiddenState = RMSLayerNorm(hiddenState, vector(OUTPUT_NORM_WEIGHT), epsilon);
+            UTIL.rmsNorm(hiddenState, vector(OUTPUT_NORM_WEIGHT), epsilon, hiddenState);
         }
 
         return hiddenState;
     }
+
+    @Override
+    protected Vector[] executeBatch(InferenceSession[] sessions, int[] positions, int[] tokens,
+                                    boolean isOutputProcessing)
+    {
+        // Find the embeddings of the tokens (the positions are embedded within the decoders, see RoPE)
+        Vector[] hiddenStates = arena().vectors("hiddenStates", tokens.length, hiddenSize);
+        for (int i = 0; i < tokens.length; i++)
+        {
+            matrix(TOKEN_EMBEDDINGS).getRow(tokens[i], hiddenStates[i]);
+        }
+
+        // Decoder stack (every decoder processes the whole batch)
+        for (BaseDecoder decoder : decoders)
+        {
+            decoder.executeBatch(hiddenStates, getCaches(sessions, decoder), isOutputProcessing);
+        }
+
+        // Final normalization
+        if (isOutputProcessing) // No need to execute for input tokens
+        {
+            for (int i = 0; i < tokens.length; i++)
+            {
+                UTIL.rmsNorm(hiddenStates[i], vector(OUTPUT_NORM_WEIGHT), epsilon, hiddenStates[i]);
+            }
+        }
+
+        return hiddenStates;
+    }
 }
@@ -1,14 +1,16 @@
 package huplay.demo.transformer._2023_02_meta_llama;
 
-import huplay.demo.TransformerUtil;
 import huplay.demo.config.Config;
 import huplay.demo.transformer.BaseDecoder;
+import huplay.demo.transformer.KeyValueCache;
+import huplay.demo.transformer.RotaryPositionEmbedding;
+import huplay.demo.util.Matrix;
 import huplay.demo.util.Vector;
+import huplay.demo.util.WorkerGroup;
 
-import static huplay.demo.AppLoader.UTIL;
+import static huplay.demo.AppLoader.UtilHolder.UTIL;
 import static huplay.demo.TransformerUtil.*;
 import static huplay.demo.config.ParameterType.*;
-import static huplay.demo.util.Vector.newVectorArray;
 
 /**
  * Meta Llama decoder implementation
@@ -17,9 +19,11 @@ import static huplay.demo.util.Vector.newVectorArray;
  */
 public class LlamaDecoder extends BaseDecoder
 {
-    private final int kvHeadCount;
     private final int kvHeadSize;
 
+    // Tensor parallel mode: the parts of the weights used by the workers (null: not in tensor parallel mode)
+    private Slice[] slices;
+
     public LlamaDecoder(Config config, int decoderId)
     {
         super(config, decoderId);
@@ -27,10 +31,9 @@ public class LlamaDecoder extends BaseDecoder
         // Load parameters
         loadMatrix(ATT_QUERY_WEIGHT, "self_attn.q_proj.weight", hiddenSize, hiddenSize);
 
-        // Read the optional config for the "key/value head" count
+        // The "key/value head" count is read from the optional config (num_key_value_heads, see BaseDecoder)
         // (At the original attention (MHA) there was only a single kind of head. Call it "query head" from now on.)
         // If the "query head" is different to the "key/value head" count, we are using Grouped Query Attention (GQA)
-        kvHeadCount = config.getIntOptional("num_key_value_heads", headCount);
         kvHeadSize = headCount / kvHeadCount;
         loadMatrix(ATT_KEY_WEIGHT, "self_attn.k_proj.weight", hiddenSize, hiddenSize / kvHeadSize);
         loadMatrix(ATT_VALUE_WEIGHT, "self_attn.v_proj.weight", hiddenSize, hiddenSize / kvHeadSize);
@@ -44,254 +47,497 @@ public class LlamaDecoder extends BaseDecoder
 
         // Calculate the attention dividend
         this.attentionDividend = sqrt(headSize);
+
+        // Rotary position embedding (RoPE): the keys are stored rotated by the cache, and the query is rotated there
+        setPositionEmbedding(RotaryPositionEmbedding.of(headSize));
     }
 
-    public Vector execute(Vector hiddenState, boolean isOutputProcessing)
+    public Vector execute(Vector hiddenState, KeyValueCache cache, boolean isOutputProcessing)
     {
+        if (slices != null)
+        {
+            return executeTensorParallel(hiddenState, cache, isOutputProcessing);
+        }
+
         // Attention block
-        hiddenState = attentionBlock(hiddenState);
+        attentionBlock(hiddenState, cache);
 
         // Feed-forward block
         if (isOutputProcessing || ! lastDecoder) // No need to execute for input tokens at the last decoder
         {
-            hiddenState = feedForwardBlock(hiddenState);
+            feedForwardBlock(hiddenState);
         }
 
         return hiddenState;
     }
 
-    private Vector attentionBlock(Vector inputHiddenState)
+    /**
+     * Process a batch of tokens (the hidden states are updated in place)
+     * The neural layers are calculated by matrix-matrix multiplications, so the weights are read once for the batch.
+     * The attention is calculated token by token in order, using the cache of the token, so at the prefill every
+     * token sees only the previous ones (causal), and at a multi-session step every token sees only its session.
+     */
+    @Override
+    public void executeBatch(Vector[] hiddenStates, KeyValueCache[] caches, boolean isOutputProcessing)
     {
+        int count = hiddenStates.length;
+        int kvSize = hiddenSize / kvHeadSize;
+
+        // Attention block
         // Normalisation
-        Vector hiddenState = RMSLayerNorm(inputHiddenState, vector(ATT_NORM_WEIGHT), epsilon);
+        Vector[] normalized = arena().vectors("normalizedBatch", count, hiddenSize);
+        for (int i = 0; i < count; i++)
+        {
+            UTIL.rmsNorm(hiddenStates[i], vector(ATT_NORM_WEIGHT), epsilon, normalized[i]);
+        }
+
+        // Calculate the query, key and value vectors for all tokens
+        Vector[] queries = arena().vectors("queryBatch", count, hiddenSize);
+        UTIL.mulMatrixByTransposedMatrix(normalized, matrix(ATT_QUERY_WEIGHT), queries);
+        Vector[] keys = arena().vectors("keyBatch", count, kvSize);
+        Vector[] values = arena().vectors("valueBatch", count, kvSize);
 
         if (kvHeadSize == 1)
         {
             // Multi Head Attention (MHA)
-            hiddenState = attention(hiddenState);
+            UTIL.mulMatrixByTransposedMatrix(normalized, matrix(ATT_KEY_WEIGHT), keys);
+            UTIL.mulMatrixByTransposedMatrix(normalized, matrix(ATT_VALUE_WEIGHT), values);
         }
         else
         {
             // Grouped Query Attention (GQA)
-            hiddenState = groupedQueryAttention(hiddenState);
+            UTIL.mulMatrixByMatrix(normalized, matrix(ATT_KEY_WEIGHT), keys);
+            UTIL.mulMatrixByMatrix(normalized, matrix(ATT_VALUE_WEIGHT), values);
         }
 
-        // Residual connection
-        hiddenState =  UTIL.addVectors(inputHiddenState, hiddenState);
+        Vector[] attentionHeads = arena().vectors("attentionHeadsBatch", count, hiddenSize);
+        for (int i = 0; i < count; i++)
+        {
+            if (kvHeadSize == 1)
+            {
+                attendHeads(caches[i], queries[i], keys[i], values[i], attentionHeads[i]);
+            }
+            else
+            {
+                attendGroupedHeads(caches[i], queries[i], keys[i], values[i], attentionHeads[i]);
+            }
+        }
 
-        return hiddenState;
+        // Projection neural layer
+        Vector[] projections = arena().vectors("attentionProjectionBatch", count, hiddenSize);
+        UTIL.mulMatrixByTransposedMatrix(attentionHeads, matrix(ATT_PROJ_WEIGHT), projections);
+
+        for (int i = 0; i < count; i++)
+        {
+            // Residual connection
+            UTIL.addVectors(hiddenStates[i], projections[i], hiddenStates[i]);
+        }
+
+        // Feed-forward block
+        if (!isOutputProcessing && lastDecoder) return; // No need to execute for input tokens at the last decoder
+
+        // Normalisation
+        for (int i = 0; i < count; i++)
+        {
+            UTIL.rmsNorm(hiddenStates[i], vector(MLP_NORM_WEIGHT), epsilon, normalized[i]);
+        }
+
+        // Feed parallel two layers with the same input
+        Vector[] gates = arena().vectors("mlpBatch", count, feedForwardSize);
+        UTIL.mulMatrixByTransposedMatrix(normalized, matrix(MLP_1_WEIGHT), gates);
+        Vector[] ups = arena().vectors("mlpUpBatch", count, feedForwardSize);
+        UTIL.mulMatrixByTransposedMatrix(normalized, matrix(MLP_2_WEIGHT), ups);
+
+        for (int i = 0; i < count; i++)
+        {
+            UTIL.swiglu(gates[i], ups[i], gates[i]);
+        }
+
+        // Use the third layer (no activation function)
+        Vector[] outputs = arena().vectors("mlpOutputBatch", count, hiddenSize);
+        UTIL.mulMatrixByTransposedMatrix(gates, matrix(MLP_3_WEIGHT), outputs);
+
+        for (int i = 0; i < count; i++)
+        {
+            // Residual connection
+            UTIL.addVectors(hiddenStates[i], outputs[i], hiddenStates[i]);
+        }
     }
 
-    private Vector feedForwardBlock(Vector inputHiddenState)
+    /**
+     * Tensor parallel mode: the key/value heads (with their query heads) and the feed-forward neurons are split
+     * between the workers
+     * Every worker calculates the query, key, value and attention of its heads, and multiplies its part of the
+     * attention result by the matching columns of the projection matrix, which gives a partial sum of the projection.
+     * At the feed-forward block every worker calculates its neurons of the gate and up layers, and the partial sum of
+     * the down layer by the matching columns. So the workers are synchronised only at the sums (twice per decoder).
+     */
+    private Vector executeTensorParallel(Vector hiddenState, KeyValueCache cache, boolean isOutputProcessing)
     {
+        Vector[] partialSums = arena().vectors("partialSums", slices.length, hiddenSize);
+
+        // Attention block
         // Normalisation
-        Vector hiddenState = RMSLayerNorm(inputHiddenState, vector(MLP_NORM_WEIGHT), epsilon);
+        Vector normalized = arena().vector("normalized", hiddenSize);
+        UTIL.rmsNorm(hiddenState, vector(ATT_NORM_WEIGHT), epsilon, normalized);
 
-        // Neural layers
-        hiddenState = neuralLayers(hiddenState);
+        // The workers store the key and value of their heads at the new position
+        cache.addPosition();
+        workerGroup.execute(worker -> attentionSlice(slices[worker], normalized, cache, partialSums[worker]));
 
-        // Residual connection
-        hiddenState = UTIL.addVectors(inputHiddenState, hiddenState);
+        // Sum of the projection parts and residual connection
+        addPartialSums(partialSums, null, hiddenState);
+
+        // Feed-forward block
+        if (isOutputProcessing || ! lastDecoder) // No need to execute for input tokens at the last decoder
+        {
+            // Normalisation
+            UTIL.rmsNorm(hiddenState, vector(MLP_NORM_WEIGHT), epsilon, normalized);
+
+            workerGroup.execute(worker -> neuralLayersSlice(slices[worker], normalized, partialSums[worker]));
+
+            // Sum of the down layer parts and residual connection
+            addPartialSums(partialSums, null, hiddenState);
+        }
 
         return hiddenState;
     }
 
-    protected Vector attention(Vector hiddenState)
+    /**
+     * Tensor parallel mode: attention of the worker's heads, multiplied by its columns of the projection matrix
+     * The query heads of a key/value head aren't adjacent (head % kvHeadCount is the group), so the query heads of the
+     * worker are in kvHeadSize ranges, every range has a query head for each key/value head of the worker.
+     */
+    private void attentionSlice(Slice slice, Vector hiddenState, KeyValueCache cache, Vector partialSum)
     {
-        // Calculate the query, key and value vectors for the actual token
-        Vector query = UTIL.mulVectorByTransposedMatrix(hiddenState, matrix(ATT_QUERY_WEIGHT));
-        Vector key = UTIL.mulVectorByTransposedMatrix(hiddenState, matrix(ATT_KEY_WEIGHT));
-        Vector value = UTIL.mulVectorByTransposedMatrix(hiddenState, matrix(ATT_VALUE_WEIGHT));
-
-        // Split the query, key and value vectors into pieces for all heads
-        Vector[] queryByHead = UTIL.splitVector(query, headCount);
-        Vector[] keyByHead = UTIL.splitVector(key, headCount);
-        Vector[] valueByHead = UTIL.splitVector(value, headCount);
+        int sliceHeadCount = slice.toKvHead - slice.fromKvHead;
+        if (sliceHeadCount == 0)
+        {
+            // More workers than key/value heads
+            partialSum.clear();
+            return;
+        }
 
-        // Position embedding (RoPE)
-        applyPosition(query, key);
+        // Calculate the key and value vectors of the heads
+        int size = sliceHeadCount * headSize;
+        Vector key = arena().vector("sliceKey", size);
+        Vector value = arena().vector("sliceValue", size);
+        if (kvHeadSize == 1)
+        {
+            UTIL.mulVectorByTransposedMatrix(hiddenState, slice.key, key);
+            UTIL.mulVectorByTransposedMatrix(hiddenState, slice.value, value);
+        }
+        else
+        {
+            UTIL.mulVectorByMatrix(hiddenState, slice.key, key);
+            UTIL.mulVectorByMatrix(hiddenState, slice.value, value);
+        }
 
-        // Store the keys and values (these will be available while the following tokens will be processed)
-        storedKeys.add(keyByHead);
-        storedValues.add(valueByHead);
-        int storedSize = storedKeys.size();
+        // Store the key and value of the heads
+        // (The cache applies the position embedding to the key, and to the query at the score calculation)
+        cache.storeHeads(key, value, slice.fromKvHead, slice.toKvHead);
 
-        // Declaration of the variable for collecting the attention results for all heads
-        Vector[] valueAggregate = newVectorArray(hiddenState.getFloatType(), headCount, headSize);
+        Vector query = arena().vector("sliceQuery", size);
+        Vector[] queryByHead = arena().vectors("sliceQueryByHead", sliceHeadCount, headSize);
+        Vector[] valueAggregate = arena().vectors("sliceValueAggregate", sliceHeadCount, headSize);
+        Vector attentionHeads = arena().vector("sliceAttentionHeads", size);
+        Vector projection = arena().vector("sliceProjection", hiddenSize);
 
-        // Scoring the previous tokens (including the actual), separately for all heads
-        for (int head = 0; head < headCount; head++)
+        for (int range = 0; range < kvHeadSize; range++)
         {
-            // Calculate the scores
-            Vector actualQuery = queryByHead[head];
-            Vector scores = new Vector(actualQuery.getFloatType(), storedSize);
+            // Calculate the query vector of the heads
+            UTIL.mulVectorByTransposedMatrix(hiddenState, slice.query[range], query);
 
-            for (int pos = 0; pos < storedSize; pos++)
+            // Attention of the heads (the results of the heads are concatenated)
+            UTIL.splitVector(query, queryByHead);
+            for (int i = 0; i < sliceHeadCount; i++)
             {
-                // The score is calculated multiplying the "actual" query vector and the "related" key vector
-                Vector relatedKey = storedKeys.get(pos)[head];
-                float score = UTIL.dotProduct(actualQuery, relatedKey);
+                attendHead(cache, queryByHead[i], slice.fromKvHead + i, valueAggregate[i]);
+            }
+            UTIL.flattenMatrix(valueAggregate, attentionHeads);
 
-                // Divide the score by the attention dividend
-                scores.set(pos, score / attentionDividend);
+            // Part of the projection neural layer (by the columns of the heads)
+            if (range == 0)
+            {
+                UTIL.mulVectorByTransposedMatrix(attentionHeads, slice.projection[range], partialSum);
+            }
+            else
+            {
+                UTIL.mulVectorByTransposedMatrix(attentionHeads, slice.projection[range], projection);
+                UTIL.addVectors(partialSum, projection, partialSum);
             }
+        }
+    }
 
-            // Rescaling the scores to values between 0 and 1
-            scores = softmax(scores);
+    /**
+     * Tensor parallel mode: the worker's neurons of the gate and up layers, multiplied by its columns of the down layer
+     */
+    private void neuralLayersSlice(Slice slice, Vector hiddenState, Vector partialSum)
+    {
+        int size = slice.toNeuron - slice.fromNeuron;
+
+        // Feed parallel two layers with the same input (the worker's part of the neurons)
+        Vector hiddenState1 = arena().vector("sliceMlp", size);
+        UTIL.mulVectorByTransposedMatrix(hiddenState, slice.gate, hiddenState1);
+        Vector hiddenState2 = arena().vector("sliceMlpUp", size);
+        UTIL.mulVectorByTransposedMatrix(hiddenState, slice.up, hiddenState2);
+
+        // Use SwiGLU activation function on the gate layer, and multiply the two outputs
+        UTIL.swiglu(hiddenState1, hiddenState2, hiddenState1);
+
+        // Part of the third layer (by the columns of the worker's neurons)
+        UTIL.mulVectorByTransposedMatrix(hiddenState1, slice.down, partialSum);
+    }
+
+    @Override
+    protected void prepareTensorParallel(WorkerGroup workerGroup)
+    {
+        slices = new Slice[workerGroup.getWorkerCount()];
+
+        for (int worker = 0; worker < slices.length; worker++)
+        {
+            Slice slice = new Slice();
 
-            // Multiply the value matrices with the scores, and sum up
-            for (int pos = 0; pos < storedSize; pos++)
+            // The key/value heads of the worker
+            slice.fromKvHead = workerGroup.getPartStart(worker, kvHeadCount, 1);
+            slice.toKvHead = workerGroup.getPartStart(worker + 1, kvHeadCount, 1);
+            int from = slice.fromKvHead * headSize;
+            int to = slice.toKvHead * headSize;
+
+            if (kvHeadSize == 1)
             {
-                Vector relatedValue = storedValues.get(pos)[head];
-                Vector multipliedValue = UTIL.mulVectorByScalar(relatedValue, scores.get(pos));
-                valueAggregate[head] = UTIL.addVectors(valueAggregate[head], multipliedValue);
+                // Multi Head Attention (MHA): the key and value weights are stored by the output rows
+                slice.key = matrix(ATT_KEY_WEIGHT).rows(from, to);
+                slice.value = matrix(ATT_VALUE_WEIGHT).rows(from, to);
+            }
+            else
+            {
+                // Grouped Query Attention (GQA): the key and value weights are stored by the input rows
+                slice.key = matrix(ATT_KEY_WEIGHT).cols(from, to);
+                slice.value = matrix(ATT_VALUE_WEIGHT).cols(from, to);
             }
-        }
 
-        // Concatenate the results for all heads
-        hiddenState = UTIL.flattenMatrix(valueAggregate);
+            // The query heads of the worker (a range of heads for every query head of a group)
+            slice.query = new Matrix[kvHeadSize];
+            slice.projection = new Matrix[kvHeadSize];
+            for (int range = 0; range < kvHeadSize; range++)
+            {
+                int rangeOffset = range * kvHeadCount * headSize;
+                slice.query[range] = matrix(ATT_QUERY_WEIGHT).rows(rangeOffset + from, rangeOffset + to);
+                slice.projection[range] = matrix(ATT_PROJ_WEIGHT).cols(rangeOffset + from, rangeOffset + to);
+            }
 
-        // Projection neural layer
-        hiddenState = UTIL.mulVectorByTransposedMatrix(hiddenState, matrix(ATT_PROJ_WEIGHT));
+            // The neurons of the worker (aligned to the quantization blocks)
+            slice.fromNeuron = workerGroup.getPartStart(worker, feedForwardSize, Vector.QUANTIZATION_BLOCK_SIZE);
+            slice.toNeuron = workerGroup.getPartStart(worker + 1, feedForwardSize, Vector.QUANTIZATION_BLOCK_SIZE);
+            slice.gate = matrix(MLP_1_WEIGHT).rows(slice.fromNeuron, slice.toNeuron);
+            slice.up = matrix(MLP_2_WEIGHT).rows(slice.fromNeuron, slice.toNeuron);
+            slice.down = matrix(MLP_3_WEIGHT).cols(slice.fromNeuron, slice.toNeuron);
 
-        return hiddenState;
+            slices[worker] = slice;
+        }
     }
 
-    protected void applyPosition(Vector query, Vector key)
+    /**
+     * Tensor parallel mode: the part of the weights used by a worker (views of the matrices, no values are copied)
+     */
+    private static class Slice
     {
-        for (int i = 0; i < hiddenSize; i += 2)
+        int fromKvHead;
+        int toKvHead;
+        Matrix key;
+        Matrix value;
+        Matrix[] query;
+        Matrix[] projection;
+
+        int fromNeuron;
+        int toNeuron;
+        Matrix gate;
+        Matrix up;
+        Matrix down;
+    }
+
+    private void attentionBlock(Vector hiddenState, KeyValueCache cache)
+    {
+        // Normalisation
+        Vector normalized = arena().vector("normalized", hiddenSize);
+        UTIL.rmsNorm(hiddenState, vector(ATT_NORM_WEIGHT), epsilon, normalized);
+
+        Vector attentionOutput;
+        if (kvHeadSize == 1)
+        {
+            // Multi Head Attention (MHA)
+            attentionOutput = attention(normalized, cache);
+        }
+        else
         {
-            int modulus = i % headSize;
-
-            double frequency = 1.0 / pow(10000.0f, (float) modulus / headSize);
-            double degree = frequency * storedKeys.size();
-            float x = cos(degree);
-            float y = sin(degree);
-
-            // Rotate query
-            float query0 = query.get(i);
-            query.set(i, query0 * x - query.get(i + 1) * y);
-            query.set(i + 1, query0 * y - query.get(i + 1) * x);
-
-            // Rotate key
-            float key0 = key.get(i);
-            key.set(i, key0 * x - key.get(i + 1) * y);
-            key.set(i + 1, key0 * y - key.get(i + 1) * x);
+            // Grouped Query Attention (GQA)
+            attentionOutput = groupedQueryAttention(normalized, cache);
         }
+
+        // Residual connection
+        UTIL.addVectors(hiddenState, attentionOutput, hiddenState);
     }
 
-    protected Vector groupedQueryAttention(Vector hiddenState)
+    private void feedForwardBlock(Vector hiddenState)
+    {
+        // Normalisation
+        Vector normalized = arena().vector("normalized", hiddenSize);
+        UTIL.rmsNorm(hiddenState, vector(MLP_NORM_WEIGHT), epsilon, normalized);
+
+        // Neural layers
+        Vector mlpOutput = neuralLayers(normalized);
+
+        // Residual connection
+        UTIL.addVectors(hiddenState, mlpOutput, hiddenState);
+    }
+
+    protected Vector attention(Vector hiddenState, KeyValueCache cache)
     {
         // Calculate the query, key and value vectors for the actual token
-        Vector query = UTIL.mulVectorByTransposedMatrix(hiddenState, matrix(ATT_QUERY_WEIGHT));
+        Vector query = arena().vector("query", hiddenSize);
+        UTIL.mulVectorByTransposedMatrix(hiddenState, matrix(ATT_QUERY_WEIGHT), query);
+        Vector key = arena().vector("key", hiddenSize);
+        UTIL.mulVectorByTransposedMatrix(hiddenState, matrix(ATT_KEY_WEIGHT), key);
+        Vector value = arena().vector("value", hiddenSize);
+        UTIL.mulVectorByTransposedMatrix(hiddenState, matrix(ATT_VALUE_WEIGHT), value);
 
-        // The key and value matrices are smaller (less head count) than the query matrix
-        Vector key = UTIL.mulVectorByMatrix(hiddenState, matrix(ATT_KEY_WEIGHT));
-        Vector value = UTIL.mulVectorByMatrix(hiddenState, matrix(ATT_VALUE_WEIGHT));
+        // Attention of all heads (the results of the heads are concatenated)
+        Vector attentionHeads = arena().vector("attentionHeads", hiddenSize);
+        attendHeads(cache, query, key, value, attentionHeads);
 
-        // Split the query, key and value vectors into pieces for all heads
-        Vector[] queryByHead = UTIL.splitVector(query, headCount);
-        Vector[] keyByGroup = UTIL.splitVector(key, headCount / kvHeadSize);
-        Vector[] valueByGroup = UTIL.splitVector(value, headCount / kvHeadSize);
+        // Projection neural layer
+        Vector projection = arena().vector("attentionProjection", hiddenSize);
+        UTIL.mulVectorByTransposedMatrix(attentionHeads, matrix(ATT_PROJ_WEIGHT), projection);
 
-        // Position embedding (RoPE)
-        applyGroupedPosition(query, key);
+        return projection;
+    }
 
-        // Store the keys and values (these will be available while the following tokens will be processed)
-        storedKeys.add(keyByGroup);
-        storedValues.add(valueByGroup);
-        int storedSize = storedKeys.size();
+    /**
+     * Stores the key and value of the actual token, and calculates the attention of all heads on the stored tokens
+     * (The results of the heads are concatenated into the attentionHeads vector.)
+     */
+    private void attendHeads(KeyValueCache cache, Vector query, Vector key, Vector value, Vector attentionHeads)
+    {
+        // Split the query vector into pieces for all heads
+        Vector[] queryByHead = arena().vectors("queryByHead", headCount, headSize);
+        UTIL.splitVector(query, queryByHead);
+
+        // Store the key and value (these will be available while the following tokens will be processed)
+        // (The cache stores the values head by head, so the key and value are stored without splitting)
+        // (The cache applies the position embedding to the key, and to the query at the score calculation)
+        cache.add(key, value);
 
         // Declaration of the variable for collecting the attention results for all heads
-        Vector[] valueAggregate = new Vector[headCount];
+        Vector[] valueAggregate = arena().vectors("valueAggregate", headCount, headSize);
 
         // Scoring the previous tokens (including the actual), separately for all heads
         for (int head = 0; head < headCount; head++)
         {
-            int group = head % kvHeadCount;
-
-            // Calculate the scores
-            Vector actualQuery = queryByHead[head];
-            Vector scores = new Vector(actualQuery.getFloatType(), storedSize);
-
-            for (int pos = 0; pos < storedSize; pos++)
-            {
-                // The score is calculated multiplying the "actual" query vector and the "related" key vector
-                Vector relatedKey = storedKeys.get(pos)[group];
-                float score = UTIL.dotProduct(actualQuery, relatedKey);
+            attendHead(cache, queryByHead[head], head, valueAggregate[head]);
+        }
 
-                // Divide the score by the attention dividend
-                scores.set(pos, score / attentionDividend);
-            }
+        // Concatenate the results for all heads
+        UTIL.flattenMatrix(valueAggregate, attentionHeads);
+    }
 
-            // Rescaling the scores to values between 0 and 1
-            scores = softmax(scores);
+    protected Vector groupedQueryAttention(Vector hiddenState, KeyValueCache cache)
+    {
+        // Calculate the query, key and value vectors for the actual token
+        Vector query = arena().vector("query", hiddenSize);
+        UTIL.mulVectorByTransposedMatrix(hiddenState, matrix(ATT_QUERY_WEIGHT), query);
 
-            // Multiply the value matrices with the scores, and sum up
-            for (int pos = 0; pos < storedSize; pos++)
-            {
-                Vector relatedValue = storedValues.get(pos)[group];
-                Vector multipliedValue = UTIL.mulVectorByScalar(relatedValue, scores.get(pos));
-                valueAggregate[head] = UTIL.addVectors(valueAggregate[head], multipliedValue);
-            }
-        }
+        // The key and value matrices are smaller (less head count) than the query matrix
+        Vector key = arena().vector("key", hiddenSize / kvHeadSize);
+        UTIL.mulVectorByMatrix(hiddenState, matrix(ATT_KEY_WEIGHT), key);
+        Vector value = arena().vector("value", hiddenSize / kvHeadSize);
+        UTIL.mulVectorByMatrix(hiddenState, matrix(ATT_VALUE_WEIGHT), value);
 
-        // Concatenate the results for all heads
-        hiddenState = UTIL.flattenMatrix(valueAggregate);
+        // Attention of all heads (the results of the heads are concatenated)
+        Vector attentionHeads = arena().vector("attentionHeads", hiddenSize);
+        attendGroupedHeads(cache, query, key, value, attentionHeads);
 
         // Projection neural layer
-        hiddenState = UTIL.mulVectorByTransposedMatrix(hiddenState, matrix(ATT_PROJ_WEIGHT));
+        Vector projection = arena().vector("attentionProjection", hiddenSize);
+        UTIL.mulVectorByTransposedMatrix(attentionHeads, matrix(ATT_PROJ_WEIGHT), projection);
 
-        return hiddenState;
+        return projection;
     }
 
-    protected void applyGroupedPosition(Vector query, Vector key)
+    /**
+     * Stores the key and value of the actual token, and calculates the attention of all query heads
+     * (The query heads of a group use the same stored keys and values.)
+     */
+    private void attendGroupedHeads(KeyValueCache cache, Vector query, Vector key, Vector value,
+                                    Vector attentionHeads)
     {
-        for (int i = 0; i < hiddenSize; i += 2)
-        {
-            int modulus = i % headSize;
+        // Split the query vector into pieces for all heads
+        Vector[] queryByHead = arena().vectors("queryByHead", headCount, headSize);
+        UTIL.splitVector(query, queryByHead);
 
-            double frequency = 1.0 / pow(10000.0f, (float) modulus / headSize);
-            double degree = frequency * storedKeys.size();
-            float x = cos(degree);
-            float y = sin(degree);
+        // Store the key and value (these will be available while the following tokens will be processed)
+        // (The cache stores the values group by group, so the key and value are stored without splitting)
+        // (The cache applies the position embedding to the key, and to the query at the score calculation)
+        cache.add(key, value);
 
-            // Rotate query
-            float query0 = query.get(i);
-            query.set(i, query0 * x - query.get(i + 1) * y);
-            query.set(i + 1, query0 * y - query.get(i + 1) * x);
+        // Declaration of the variable for collecting the attention results for all heads
+        Vector[] valueAggregate = arena().vectors("valueAggregate", headCount, headSize);
 
-            if (i < hiddenSize / kvHeadSize)
-            {
-                // Rotate key
-                float key0 = key.get(i);
-                key.set(i, key0 * x - key.get(i + 1) * y);
-                key.set(i + 1, key0 * y - key.get(i + 1) * x);
-            }
+        // Scoring the previous tokens (including the actual), separately for all heads
+        for (int head = 0; head < headCount; head++)
+        {
+            // The query heads of a group use the stored keys and values of the group
+            int group = head % kvHeadCount;
+            attendHead(cache, queryByHead[head], group, valueAggregate[head]);
         }
+
+        // Concatenate the results for all heads
+        UTIL.flattenMatrix(valueAggregate, attentionHeads);
     }
 
-    private Vector neuralLayers(Vector hiddenState)
+    /**
+     * Attention of a head: the stored values of the key/value head weighted by the scores of the stored keys
+     */
+    private void attendHead(KeyValueCache cache, Vector query, int kvHead, Vector result)
     {
-        // Feed parallel two layers with the same input
-        Vector hiddenState1 = UTIL.mulVectorByTransposedMatrix(hiddenState, matrix(MLP_1_WEIGHT));
-        Vector hiddenState2 = UTIL.mulVectorByTransposedMatrix(hiddenState, matrix(MLP_2_WEIGHT));
+        int storedSize = cache.size();
 
-        // Use SwiGLU activation function on the gate layer (no activation function on the other)
-        for (int neuron = 0; neuron < feedForwardSize; neuron++)
-        {
-            hiddenState1.set(neuron, TransformerUtil.swiglu(hiddenState1.get(neuron)));
-        }
+        // Calculate the scores
+        Vector scores = arena().vector("scores", storedSize);
+
+        // The score is calculated multiplying the "actual" query vector and the "related" key vectors
+        // (The stored keys of the head form a matrix per cache block, so the scores are calculated by multiplications)
+        cache.calculateScores(query, kvHead, scores);
 
-        // Multiply the two outputs
-        for (int neuron = 0; neuron < feedForwardSize; neuron++)
+        // Divide the scores by the attention dividend
+        for (int pos = 0; pos < storedSize; pos++)
         {
-            hiddenState1.set(neuron, hiddenState1.get(neuron) * hiddenState2.get(neuron));
+            scores.set(pos, scores.get(pos) / attentionDividend);
         }
 
+        // Rescaling the scores to values between 0 and 1
+        UTIL.softmax(scores, scores);
+
+        // Multiply the value vectors with the scores, and sum up (the scores multiplied by the values matrix)
+        cache.aggregateValues(scores, kvHead, result);
+    }
+
+    private Vector neuralLayers(Vector hiddenState)
+    {
+        // Feed parallel two layers with the same input
+        Vector hiddenState1 = arena().vector("mlp", feedForwardSize);
+        UTIL.mulVectorByTransposedMatrix(hiddenState, matrix(MLP_1_WEIGHT), hiddenState1);
+        Vector hiddenState2 = arena().vector("mlpUp", feedForwardSize);
+        UTIL.mulVectorByTransposedMatrix(hiddenState, matrix(MLP_2_WEIGHT), hiddenState2);
+
+        // Use SwiGLU activation function on the gate layer (no activation function on the other),
+        // and multiply the two outputs
+        UTIL.swiglu(hiddenState1, hiddenState2, hiddenState1);
+
         // Use the third layer (no activation function)
-        hiddenState = UTIL.mulVectorByTransposedMatrix(hiddenState1, matrix(MLP_3_WEIGHT));
+        Vector output = arena().vector("mlpOutput", hiddenSize);
+        UTIL.mulVectorByTransposedMatrix(hiddenState1, matrix(MLP_3_WEIGHT), output);
 
-        return hiddenState;
+        return output;
     }
 }
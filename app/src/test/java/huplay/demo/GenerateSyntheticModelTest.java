@@ -0,0 +1,72 @@
+package huplay.demo;
+
+import huplay.demo.config.Arguments;
+import huplay.demo.config.Config;
+import huplay.demo.config.DataType;
+import huplay.demo.config.ModelConfig;
+import huplay.demo.config.ParameterReader;
+import huplay.demo.transformer.BaseTransformer;
+import huplay.demo.transformer.InferenceSession;
+import huplay.demo.transformer.TransformerType;
+import huplay.demo.util.Vector;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+import static org.junit.Assert.*;
+
+public class GenerateSyntheticModelTest
+{
+    private static final String MODEL = "transformer/_2019_02_openai_gpt2";
+
+    @Rule
+    public TemporaryFolder modelRoot = new TemporaryFolder();
+
+    @Test
+    public void generateTest()
+    {
+        for (DataType dataType : new DataType[] {DataType.F32, DataType.F16, DataType.BF16})
+        {
+            String root = modelRoot.getRoot().getAbsolutePath();
+            File file = GenerateSyntheticModel.generate(getArguments(root), dataType);
+            assertTrue(file.isFile());
+
+            BaseTransformer original = getTransformer(getArguments(new File("src/test/resources").getAbsolutePath()));
+            BaseTransformer synthetic = getTransformer(getArguments(root));
+
+            assertEquals(original.getParameterSize(), synthetic.getParameterSize());
+
+            InferenceSession session = synthetic.createSession();
+            for (int pos = 0; pos < 3; pos++)
+            {
+                Vector result = synthetic.execute(session, pos, pos, true);
+
+                for (int i = 0; i < result.size(); i++)
+                {
+                    assertTrue(Float.isFinite(result.get(i)));
+                }
+            }
+        }
+    }
+
+    private Arguments getArguments(String modelRoot)
+    {
+        String configRoot = new File("src/test/resources").getAbsolutePath();
+
+        Arguments arguments = new Arguments(configRoot, modelRoot, MODEL, 25, 40, false, 0);
+        arguments.setThreadCount(1);
+
+        return arguments;
+    }
+
+    private BaseTransformer getTransformer(Arguments arguments)
+    {
+        ModelConfig modelConfig = ModelConfig.read(arguments);
+        ParameterReader reader = new ParameterReader(arguments.getModelPath());
+        Config config = Config.readConfig(arguments, modelConfig, reader);
+
+        return TransformerType.getTransformer(config);
+    }
+}
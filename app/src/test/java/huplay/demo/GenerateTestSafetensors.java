@@ -4,6 +4,7 @@ import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import huplay.demo.config.ParameterReader;
 import huplay.demo.config.SafetensorsModel;
+import huplay.demo.util.Matrix;
 import huplay.demo.util.Vector;
 
 import java.io.*;
@@ -165,12 +166,12 @@ public class GenerateTestSafetensors
                 else if (shape.length == 2)
                 {
                     // Write a matrix
-                    Vector[] values = reader.readMatrix(entry.getKey(), shape[0], shape[1]);
-                    for (Vector row : values)
+                    Matrix values = reader.readMatrix(entry.getKey(), shape[0], shape[1]);
+                    for (int row = 0; row < values.getRows(); row++)
                     {
-                        for (int i = 0; i < row.size(); i++)
+                        for (int i = 0; i < values.getCols(); i++)
                         {
-                            float value = row.get(i);
+                            float value = values.get(row, i);
                             out.writeFloat(toLittleEndian(value));
                         }
                     }
@@ -1,14 +1,47 @@
 package huplay.demo;
 
-import huplay.demo.util.Util;
+import huplay.demo.util.FloatType;
+import huplay.demo.util.IndexedValue;
+import huplay.demo.util.Matrix;
+import huplay.demo.util.ScratchArena;
+import huplay.demo.util.Utility;
+import huplay.demo.util.UtilityLoader;
+import huplay.demo.util.UtilityProvider;
 import huplay.demo.util.Vector;
 import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.util.ArrayList;
+import java.util.List;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
 
+/**
+ * Executed for every available calculation library (backend)
+ */
+@RunWith(Parameterized.class)
 public class UtilTest extends BaseTest
 {
-    private static final Util UTIL = new Util();
+    private final Utility util;
+
+    public UtilTest(String name, Utility util)
+    {
+        this.util = util;
+    }
+
+    @Parameterized.Parameters(name = "{0}")
+    public static List<Object[]> getUtilities()
+    {
+        List<Object[]> utilities = new ArrayList<>();
+        for (UtilityProvider provider : UtilityLoader.getAvailableProviders())
+        {
+            utilities.add(new Object[] {provider.getName(), provider.create()});
+        }
+
+        return utilities;
+    }
 
     @Test
     public void addVectorsTest()
@@ -17,7 +50,7 @@ public class UtilTest extends BaseTest
         Vector b = createVector(4, 5, 6, 7);
         float[] expectedResult = {5, 7, 9, 11};
 
-        assertVectorEquals(expectedResult, UTIL.addVectors(a, b), 0);
+        assertVectorEquals(expectedResult, util.addVectors(a, b), 0);
     }
 
     @Test
@@ -26,7 +59,57 @@ public class UtilTest extends BaseTest
         Vector a = createVector(5, 6, 7, 8);
         float[] expectedResult = {15, 18, 21, 24};
 
-        assertVectorEquals(expectedResult, UTIL.mulVectorByScalar(a, 3), 0);
+        assertVectorEquals(expectedResult, util.mulVectorByScalar(a, 3), 0);
+    }
+
+    @Test
+    public void mulVectorByScalarAndAddTest()
+    {
+        Vector a = createVector(5, 6, 7, 8);
+        Vector result = createVector(1, 2, 3, 4);
+        float[] expectedResult = {16, 20, 24, 28};
+
+        util.mulVectorByScalarAndAdd(a, 3, result);
+
+        assertVectorEquals(expectedResult, result, 0);
+    }
+
+    @Test
+    public void resultVectorTest()
+    {
+        Vector a = createVector(1, 2, 3, 4);
+        Vector b = createVector(4, 5, 6, 7);
+
+        // In place addition
+        util.addVectors(a, b, a);
+        assertVectorEquals(new float[] {5, 7, 9, 11}, a, 0);
+
+        // Reused vector (only the used size is processed)
+        ScratchArena arena = new ScratchArena();
+        Vector result = arena.vector("result", 6);
+        result = arena.vector("result", 3);
+
+        Matrix matrix = Matrix.of(createVector(1, 0, 2, 0), createVector(0, 3, 0, 4), createVector(0, 0, 5, 0));
+        util.mulVectorByTransposedMatrix(b, matrix, result);
+        assertVectorEquals(new float[] {16, 43, 30}, result, 0);
+
+        // Reused array of vectors: the vectors of a larger count are retained at a smaller count
+        Vector[] batch = arena.vectors("batch", 4, 5);
+        Vector[] smallerBatch = arena.vectors("batch", 2, 3);
+        assertEquals(2, smallerBatch.length);
+        assertSame(batch[0], smallerBatch[0]);
+        assertSame(batch[1], smallerBatch[1]);
+        assertEquals(3, smallerBatch[1].size());
+
+        // The array of a count is reused as well
+        assertSame(smallerBatch, arena.vectors("batch", 2, 4));
+        assertSame(batch, arena.vectors("batch", 4, 5));
+
+        // At a larger count or size the array is extended
+        Vector[] largerBatch = arena.vectors("batch", 6, 4);
+        assertEquals(6, largerBatch.length);
+        assertEquals(5, largerBatch[0].getCapacity());
+        assertEquals(4, largerBatch[5].size());
     }
 
     @Test
@@ -35,7 +118,7 @@ public class UtilTest extends BaseTest
         Vector a = createVector(5, 6, 7, 8);
         Vector b = createVector(4, 5, 6, 7);
 
-        assertEquals(5*4 + 6*5 + 7*6 + 8*7, UTIL.dotProduct(a, b), 0);
+        assertEquals(5*4 + 6*5 + 7*6 + 8*7, util.dotProduct(a, b), 0);
     }
 
     @Test
@@ -47,11 +130,616 @@ public class UtilTest extends BaseTest
         Vector b2 = createVector(0, 3, 0, 4);
         Vector b3 = createVector(0, 0, 5, 0);
         Vector b4 = createVector(6, 0, 0, 7);
-        Vector[] b = {b1, b2, b3, b4};
+        Matrix b = Matrix.of(b1, b2, b3, b4);
+
+        float[] expectedResult = {50, 15, 9, 76};
+
+        assertVectorEquals(expectedResult, util.mulVectorByMatrix(a, b), 0);
+    }
+
+    @Test
+    public void mulVectorByLargeMatrixTest()
+    {
+        // Size which isn't divisible by the vector lengths, so the vectorized and the remaining parts are both used
+        int rows = 37;
+        int cols = 43;
+
+        Vector a = new Vector(FloatType.FLOAT32, rows);
+        Matrix b = new Matrix(FloatType.FLOAT32, rows, cols);
+
+        for (int row = 0; row < rows; row++)
+        {
+            a.set(row, (row % 7) - 3);
+
+            for (int col = 0; col < cols; col++)
+            {
+                b.set(row, col, ((row * cols + col) % 11) - 5);
+            }
+        }
+
+        float[] expectedResult = new float[cols];
+        for (int col = 0; col < cols; col++)
+        {
+            for (int row = 0; row < rows; row++)
+            {
+                expectedResult[col] += a.get(row) * b.get(row, col);
+            }
+        }
+
+        assertVectorEquals(expectedResult, util.mulVectorByMatrix(a, b), 0);
+        assertVectorEquals(expectedResult, util.mulVectorByTransposedMatrix(a, b.transpose()), 0);
+    }
+
+    @Test
+    public void halfFloatVectorTest()
+    {
+        float[] values = {0, -0f, 1, -2.5f, 0.1f, 65504, 1e-7f, Float.POSITIVE_INFINITY};
+
+        Vector float16 = new Vector(FloatType.FLOAT16, values);
+        float[] expectedFloat16 = {0, -0f, 1, -2.5f, 0.0999755859375f, 65504, 1.1920929E-7f, Float.POSITIVE_INFINITY};
+        assertVectorEquals(expectedFloat16, float16, 0);
+
+        Vector bFloat16 = new Vector(FloatType.BFLOAT16, values);
+        float[] expectedBFloat16 = {0, -0f, 1, -2.5f, 0.10009765625f, 65536, 1.0011718E-7f, Float.POSITIVE_INFINITY};
+        assertVectorEquals(expectedBFloat16, bFloat16, 0);
+
+        assertVectorEquals(expectedFloat16, float16.toFloat32(), 0);
+        assertEquals(FloatType.FLOAT32, bFloat16.toFloat32().getFloatType());
+    }
+
+    @Test
+    public void mulVectorByHalfFloatMatrixTest()
+    {
+        // The small integer values are exact in every format, so the 16-bit matrices have to give the same result
+        int rows = 37;
+        int cols = 43;
+
+        for (FloatType floatType : new FloatType[] {FloatType.FLOAT16, FloatType.BFLOAT16})
+        {
+            Vector a = new Vector(FloatType.FLOAT32, rows);
+            Matrix b = new Matrix(floatType, rows, cols);
+            Matrix expected = new Matrix(FloatType.FLOAT32, rows, cols);
+
+            for (int row = 0; row < rows; row++)
+            {
+                a.set(row, (row % 7) - 3);
+
+                for (int col = 0; col < cols; col++)
+                {
+                    b.set(row, col, ((row * cols + col) % 11) - 5);
+                    expected.set(row, col, ((row * cols + col) % 11) - 5);
+                }
+            }
+
+            float[] expectedResult = util.mulVectorByMatrix(a, expected).getFloat32Values();
+
+            assertVectorEquals(expectedResult, util.mulVectorByMatrix(a, b), 0);
+            assertVectorEquals(expectedResult, util.mulVectorByTransposedMatrix(a, b.transpose()), 0);
+        }
+    }
+
+    @Test
+    public void mulVectorByPreparedMatrixTest()
+    {
+        // The prepared matrix (converted to the form of the backend at loading) has to give the same result
+        int rows = 37;
+        int cols = 43;
+
+        for (FloatType floatType : new FloatType[] {FloatType.FLOAT32, FloatType.FLOAT16})
+        {
+            Matrix b = new Matrix(floatType, rows, cols);
+
+            for (int row = 0; row < rows; row++)
+            {
+                for (int col = 0; col < cols; col++)
+                {
+                    b.set(row, col, ((row * cols + col) % 11) - 5);
+                }
+            }
+
+            Matrix prepared = util.prepare(b);
+            Matrix preparedTransposed = util.prepare(b.transpose());
+
+            assertEquals(b.get(3, 5), prepared.get(3, 5), 0);
+
+            // Repeated with different inputs, so the reused working buffers are checked as well
+            for (int i = 0; i < 3; i++)
+            {
+                Vector a = new Vector(FloatType.FLOAT32, rows);
+                Vector c = new Vector(FloatType.FLOAT32, cols);
+                for (int row = 0; row < rows; row++) a.set(row, ((row + i) % 7) - 3);
+                for (int col = 0; col < cols; col++) c.set(col, ((col + i) % 5) - 2);
+
+                assertVectorEquals(util.mulVectorByMatrix(a, b).getFloat32Values(),
+                        util.mulVectorByMatrix(a, prepared), 0);
+                assertVectorEquals(util.mulVectorByTransposedMatrix(c, b).getFloat32Values(),
+                        util.mulVectorByTransposedMatrix(c, prepared), 0);
+                assertVectorEquals(util.mulVectorByMatrix(c, b.transpose()).getFloat32Values(),
+                        util.mulVectorByMatrix(c, preparedTransposed), 0);
+            }
+
+            // The rows and the views of the prepared matrix (used at the embedding lookup and in tensor parallel mode)
+            assertVectorEquals(b.getRow(7).getFloat32Values(), prepared.getRow(7), 0);
+            assertVectorEquals(b.transpose().getRow(7).getFloat32Values(), prepared.transpose().getRow(7), 0);
+
+            Vector a = new Vector(FloatType.FLOAT32, 10);
+            Vector c = new Vector(FloatType.FLOAT32, 20);
+            for (int i = 0; i < 10; i++) a.set(i, (i % 7) - 3);
+            for (int i = 0; i < 20; i++) c.set(i, (i % 5) - 2);
+
+            assertVectorEquals(util.mulVectorByMatrix(a, b.rows(5, 15)).getFloat32Values(),
+                    util.mulVectorByMatrix(a, prepared.rows(5, 15)), 0);
+            assertVectorEquals(util.mulVectorByTransposedMatrix(c, b.rows(5, 15).cols(3, 23)).getFloat32Values(),
+                    util.mulVectorByTransposedMatrix(c, prepared.rows(5, 15).cols(3, 23)), 0);
+            assertVectorEquals(util.mulVectorByMatrix(c, b.cols(20, 40).transpose()).getFloat32Values(),
+                    util.mulVectorByMatrix(c, prepared.cols(20, 40).transpose()), 0);
+        }
+    }
+
+    @Test
+    public void quantizedVectorTest()
+    {
+        Vector vector = createVector(0.5f, -1, 0.25f, 2, -0.1f);
+        Vector quantized = vector.quantize(FloatType.Q8);
+
+        // Single block: the scale is max / 127, so the error is at most the half of that
+        assertVectorEquals(new float[] {0.5f, -1, 0.25f, 2, -0.1f}, quantized, 2f / 127 / 2);
+        assertEquals(2f, quantized.get(3), 0);
+        assertEquals(5 + 4, quantized.getSizeInBytes());
+    }
+
+    @Test
+    public void quantizeIntoTest()
+    {
+        // The same reusable target is used for vectors of different sizes and types
+        Vector target = new Vector(FloatType.Q8, 100);
+
+        for (int size : new int[] {70, 5, 64})
+        {
+            float[] values = new float[size];
+            for (int i = 0; i < size; i++)
+            {
+                values[i] = (float) Math.sin(i * 0.7) * (i + 1);
+            }
+
+            for (Vector vector : new Vector[] {createVector(values), new Vector(FloatType.FLOAT16, values)})
+            {
+                vector.quantizeInto(target);
+
+                Vector expected = vector.quantize(FloatType.Q8);
+                assertEquals(size, target.size());
+                assertVectorEquals(expected.toFloat32().getFloat32Values(), target, 0);
+            }
+        }
+    }
+
+    @Test
+    public void mulVectorByQuantizedMatrixTest()
+    {
+        // Every block contains 127 (so the scale is 1) in both layouts, so the quantization of the integers is exact
+        int rows = 64;
+        int cols = 96;
+
+        Vector a = new Vector(FloatType.FLOAT32, rows);
+        Matrix expected = new Matrix(FloatType.FLOAT32, rows, cols);
+
+        for (int row = 0; row < rows; row++)
+        {
+            a.set(row, row % 32 == 0 ? 127 : (row * 37 % 200) - 100);
+
+            for (int col = 0; col < cols; col++)
+            {
+                boolean isMax = row % 32 == 0 || col % 32 == 0;
+                expected.set(row, col, isMax ? 127 : ((row * cols + col) * 37 % 200) - 100);
+            }
+        }
+
+        Matrix b = expected.quantize(FloatType.Q8);
+        Matrix transposed = expected.transpose().quantize(FloatType.Q8);
+
+        float[] expectedResult = util.mulVectorByMatrix(a, expected).getFloat32Values();
+
+        assertVectorEquals(expectedResult, util.mulVectorByMatrix(a, b), 0);
+        assertVectorEquals(expectedResult, util.mulVectorByMatrix(a, transposed.transpose()), 0);
+        assertVectorEquals(expectedResult, util.mulVectorByTransposedMatrix(a, transposed), 0);
+
+        // The quantized input is reused by the next multiplication
+        for (int row = 0; row < rows; row++)
+        {
+            a.set(row, -a.get(row));
+        }
+
+        Vector negated = util.mulVectorByTransposedMatrix(a, transposed);
+        for (int col = 0; col < cols; col++)
+        {
+            assertEquals(-expectedResult[col], negated.get(col), 0);
+        }
+    }
+
+    @Test
+    public void quantized4VectorTest()
+    {
+        Vector vector = createVector(-1, 0.5f, 2, 0.25f, -0.1f);
+        Vector quantized = vector.quantize(FloatType.Q4);
+
+        // Single block: 15 steps between the minimum and maximum, so the error is at most the half of a step
+        assertVectorEquals(new float[] {-1, 0.5f, 2, 0.25f, -0.1f}, quantized, 3f / 15 / 2 + 1e-6f);
+        assertEquals(-1f, quantized.get(0), 0);
+        assertEquals(2f, quantized.get(2), 1e-6);
+        assertEquals(16 + 8, quantized.getSizeInBytes());
+    }
+
+    @Test
+    public void mulVectorByQuantized4MatrixTest()
+    {
+        int rows = 64;
+        int cols = 96;
+
+        Vector a = new Vector(FloatType.FLOAT32, rows);
+        for (int row = 0; row < rows; row++)
+        {
+            a.set(row, (row % 7) - 3);
+        }
+
+        Matrix expected = createQuantized4Matrix(rows, cols);
+        Matrix transposed = createQuantized4Matrix(cols, rows);
+
+        assertVectorEquals(util.mulVectorByMatrix(a, expected).getFloat32Values(),
+                util.mulVectorByMatrix(a, expected.quantize(FloatType.Q4)), 0);
+
+        assertVectorEquals(util.mulVectorByTransposedMatrix(a, transposed).getFloat32Values(),
+                util.mulVectorByTransposedMatrix(a, transposed.quantize(FloatType.Q4)), 0);
+    }
+
+    /**
+     * Every block (within the rows) contains 0 and 15, so the scale is 1 and the 4-bit quantization is exact
+     */
+    private Matrix createQuantized4Matrix(int rows, int cols)
+    {
+        Matrix matrix = new Matrix(FloatType.FLOAT32, rows, cols);
+
+        for (int row = 0; row < rows; row++)
+        {
+            for (int col = 0; col < cols; col++)
+            {
+                float value = (row * cols + col) * 7 % 16;
+                if (col % 32 == 0) value = 15;
+                if (col % 32 == 1) value = 0;
+
+                matrix.set(row, col, value);
+            }
+        }
+
+        return matrix;
+    }
+
+    @Test
+    public void layerNormTest()
+    {
+        Vector weight = createVector(0.5f, -1.234f, 1e-3f);
+        Vector bias = createVector(0.012f, -4.234e-3f, 1e-3f);
+        Vector result = new Vector(FloatType.FLOAT32, 3);
+
+        util.layerNorm(createVector(1, 2, 3), weight, bias, 1e-5f, result);
+
+        assertVectorEquals(new float[] {-0.6003678f, -0.004234f, 0.0022247357f}, result, 1e-6f);
+    }
+
+    @Test
+    public void layerNormLargeMeanTest()
+    {
+        // Large mean and small variance (the sum of squares minus the squared mean would cancel out),
+        // longer than a SIMD vector, so the tail is covered as well
+        int size = 37;
+        Vector vector = new Vector(FloatType.FLOAT32, size);
+        Vector weight = new Vector(FloatType.FLOAT32, size);
+        Vector bias = new Vector(FloatType.FLOAT32, size);
+        for (int i = 0; i < size; i++)
+        {
+            vector.set(i, 10000f + (i % 2 == 0 ? 0.25f : -0.25f) * (i % 3 + 1));
+            weight.set(i, 1f);
+        }
+
+        // Expected values calculated in double
+        double mean = 0;
+        for (int i = 0; i < size; i++)
+        {
+            mean += vector.get(i);
+        }
+        mean = mean / size;
+
+        double variance = 0;
+        for (int i = 0; i < size; i++)
+        {
+            variance += (vector.get(i) - mean) * (vector.get(i) - mean);
+        }
+        variance = variance / size;
+
+        float[] expected = new float[size];
+        for (int i = 0; i < size; i++)
+        {
+            expected[i] = (float) ((vector.get(i) - mean) / Math.sqrt(variance + 1e-5));
+        }
+
+        Vector result = new Vector(FloatType.FLOAT32, size);
+        util.layerNorm(vector, weight, bias, 1e-5f, result);
+
+        assertVectorEquals(expected, result, 1e-3f);
+    }
+
+    @Test
+    public void rmsNormTest()
+    {
+        Vector weight = createVector(0.5f, -1.234f, 1e-3f);
+        Vector vector = createVector(1, 2, 3);
+
+        // In place
+        util.rmsNorm(vector, weight, 1e-5f, vector);
+
+        assertVectorEquals(new float[] {0.23145477f, -1.1424607f, 0.0013887287f}, vector, 1e-6f);
+    }
+
+    @Test
+    public void geluTest()
+    {
+        // Longer than a SIMD vector, so the masked tail is covered as well
+        int size = 37;
+        Vector vector = new Vector(FloatType.FLOAT32, size);
+        Vector bias = new Vector(FloatType.FLOAT32, size);
+        float[] expected = new float[size];
+
+        for (int i = 0; i < size; i++)
+        {
+            vector.set(i, (i - 18) * 0.31f);
+            bias.set(i, 0.05f - i * 0.01f);
+            expected[i] = TransformerUtil.gelu(vector.get(i) + bias.get(i));
+        }
+
+        // In place
+        util.gelu(vector, bias, vector);
+
+        assertVectorEquals(expected, vector, 1e-6f);
+    }
+
+    @Test
+    public void swigluTest()
+    {
+        int size = 37;
+        Vector gate = new Vector(FloatType.FLOAT32, size);
+        Vector up = new Vector(FloatType.FLOAT32, size);
+        float[] expected = new float[size];
+
+        for (int i = 0; i < size; i++)
+        {
+            gate.set(i, (i - 18) * 0.43f);
+            up.set(i, 1.5f - i * 0.07f);
+            expected[i] = TransformerUtil.swiglu(gate.get(i)) * up.get(i);
+        }
+
+        // In place
+        util.swiglu(gate, up, gate);
+
+        assertVectorEquals(expected, gate, 1e-6f);
+    }
+
+    @Test
+    public void softmaxTest()
+    {
+        Vector vector = createVector(1, 2, 3, 4, 1, 2, 3);
+
+        float[] expected = {0.023640543f, 0.06426166f, 0.1746813f, 0.474833f, 0.023640543f, 0.06426166f, 0.1746813f};
+
+        // In place
+        util.softmax(vector, vector);
+
+        assertVectorEquals(expected, vector, 1e-7f);
+    }
+
+    @Test
+    public void parallelMulVectorByMatrixTest()
+    {
+        // Large enough to be split between the threads
+        int rows = 300;
+        int cols = 520;
+
+        Vector a = new Vector(FloatType.FLOAT32, rows);
+        Matrix b = new Matrix(FloatType.FLOAT32, rows, cols);
+
+        for (int row = 0; row < rows; row++)
+        {
+            a.set(row, (row % 7) - 3);
+
+            for (int col = 0; col < cols; col++)
+            {
+                b.set(row, col, ((row * cols + col) % 11) - 5);
+            }
+        }
+
+        int threadCount = util.getThreadCount();
+
+        util.setThreadCount(1);
+        Vector expectedResult = util.mulVectorByMatrix(a, b);
+        Vector expectedTransposedResult = util.mulVectorByTransposedMatrix(a, b.transpose());
+
+        util.setThreadCount(4);
+        assertVectorEquals(expectedResult.getFloat32Values(), util.mulVectorByMatrix(a, b), 0);
+        assertVectorEquals(expectedTransposedResult.getFloat32Values(),
+                util.mulVectorByTransposedMatrix(a, b.transpose()), 0);
+        util.setThreadCount(threadCount);
+    }
+
+    @Test
+    public void mulMatrixByMatrixTest()
+    {
+        // Every row of the result has to be the same as the vector by matrix multiplication
+        int rows = 96;
+        int cols = 75;
+        int count = 5;
+
+        for (FloatType floatType : new FloatType[] {FloatType.FLOAT32, FloatType.FLOAT16, FloatType.Q8})
+        {
+            Matrix b = new Matrix(FloatType.FLOAT32, rows, cols);
+            Matrix bt = new Matrix(FloatType.FLOAT32, cols, rows);
+
+            for (int row = 0; row < rows; row++)
+            {
+                for (int col = 0; col < cols; col++)
+                {
+                    b.set(row, col, ((row * cols + col) % 11) - 5);
+                    bt.set(col, row, ((row * cols + col) % 13) - 6);
+                }
+            }
+
+            if (floatType != FloatType.FLOAT32)
+            {
+                // (The Q8 matrix is used only transposed, at the other it isn't aligned to the quantization blocks)
+                bt = new Matrix(bt.getValues().quantize(floatType), 0, cols, rows, rows, 1);
+                if (floatType == FloatType.FLOAT16)
+                {
+                    b = new Matrix(b.getValues().quantize(floatType), 0, rows, cols, cols, 1);
+                }
+            }
+
+            Vector[] a = Vector.newVectorArray(FloatType.FLOAT32, count, rows);
+            for (int i = 0; i < count; i++)
+            {
+                for (int row = 0; row < rows; row++) a[i].set(row, ((row + i) % 7) - 3);
+            }
+
+            for (Matrix matrix : new Matrix[] {b, util.prepare(b)})
+            {
+                Vector[] result = Vector.newVectorArray(FloatType.FLOAT32, count, cols);
+                util.mulMatrixByMatrix(a, matrix, result);
+
+                for (int i = 0; i < count; i++)
+                {
+                    assertVectorEquals(util.mulVectorByMatrix(a[i], b).getFloat32Values(), result[i], 0);
+                }
+            }
+
+            for (Matrix matrix : new Matrix[] {bt, util.prepare(bt)})
+            {
+                Vector[] result = Vector.newVectorArray(FloatType.FLOAT32, count, cols);
+                util.mulMatrixByTransposedMatrix(a, matrix, result);
+
+                for (int i = 0; i < count; i++)
+                {
+                    assertVectorEquals(util.mulVectorByTransposedMatrix(a[i], bt).getFloat32Values(), result[i],
+                            floatType == FloatType.Q8 ? 1e-3f : 0);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void mulVectorByTransposedMatrixAndFilterTest()
+    {
+        // Large enough to be split into shards (and into chunks within the shards)
+        int rows = 3000;
+        int cols = 64;
+
+        Vector a = new Vector(FloatType.FLOAT32, cols);
+        Matrix b = new Matrix(FloatType.FLOAT32, rows, cols);
+
+        for (int col = 0; col < cols; col++)
+        {
+            a.set(col, (float) Math.sin(col));
+
+            for (int row = 0; row < rows; row++)
+            {
+                b.set(row, col, (float) Math.cos(row * 0.37 + col * 1.3));
+            }
+        }
+
+        int threadCount = util.getThreadCount();
+        util.setThreadCount(4);
+
+        for (Matrix matrix : new Matrix[] {b, util.prepare(b), b.quantize(FloatType.Q8)})
+        {
+            // The top values of the full result are expected
+            Vector logits = util.mulVectorByTransposedMatrix(a, matrix);
+            List<IndexedValue> expected = util.reverseAndFilter(logits.getFloat32Values(), 40);
+
+            List<IndexedValue> result = util.mulVectorByTransposedMatrixAndFilter(a, matrix, 40);
+
+            // (The vectorized reductions can differ in the last bits before and after the JIT compilation,
+            // so the order of the nearly equal values isn't checked)
+            assertEquals(expected.size(), result.size());
+            for (int i = 0; i < expected.size(); i++)
+            {
+                IndexedValue value = result.get(i);
+                assertEquals(expected.get(i).getValue(), value.getValue(), 1e-5f);
+                assertEquals(logits.get(value.getIndex()), value.getValue(), 1e-5f);
+            }
+        }
+
+        util.setThreadCount(threadCount);
+    }
+
+    @Test
+    public void mulVectorByTransposedViewTest()
+    {
+        Vector a = createVector(2, 5, 1, 8);
+
+        Vector b1 = createVector(1, 0, 2, 0);
+        Vector b2 = createVector(0, 3, 0, 4);
+        Vector b3 = createVector(0, 0, 5, 0);
+        Vector b4 = createVector(6, 0, 0, 7);
+        Matrix b = Matrix.of(b1, b2, b3, b4);
 
         float[] expectedResult = {4, 47, 5, 68};
 
-        assertVectorEquals(expectedResult, UTIL.mulVectorByTransposedMatrix(a, b), 0);
+        assertVectorEquals(expectedResult, util.mulVectorByMatrix(a, b.transpose()), 0);
+
+        assertVectorEquals(expectedResult, util.mulVectorByTransposedMatrix(a, b), 0);
+    }
+
+    @Test
+    public void mulVectorByStridedViewTest()
+    {
+        // View of the middle "head" of a [position][head][headSize] buffer (like the keys/values of the attention)
+        // Every block contains 127 (so the Q8 scale is 1), and the values are integers, so all types are exact
+        int positions = 40;
+        int heads = 3;
+        int headSize = 32;
+
+        float[] values = new float[positions * heads * headSize];
+        for (int i = 0; i < values.length; i++)
+        {
+            values[i] = i % 32 == 0 ? 127 : (i * 37 % 200) - 100;
+        }
+
+        Vector query = new Vector(FloatType.FLOAT32, headSize);
+        Vector scores = new Vector(FloatType.FLOAT32, positions);
+        for (int i = 0; i < headSize; i++)
+        {
+            query.set(i, i == 0 ? 127 : (i * 13 % 20) - 10);
+        }
+        for (int pos = 0; pos < positions; pos++)
+        {
+            scores.set(pos, (pos * 7 % 10) - 5);
+        }
+
+        float[] expectedScores = new float[positions];
+        float[] expectedAggregate = new float[headSize];
+        for (int pos = 0; pos < positions; pos++)
+        {
+            for (int i = 0; i < headSize; i++)
+            {
+                float value = values[pos * heads * headSize + headSize + i];
+                expectedScores[pos] += query.get(i) * value;
+                expectedAggregate[i] += scores.get(pos) * value;
+            }
+        }
+
+        for (FloatType floatType : new FloatType[] {FloatType.FLOAT32, FloatType.FLOAT16, FloatType.Q8})
+        {
+            Vector buffer = new Vector(floatType, values);
+            Matrix view = new Matrix(buffer, headSize, positions, headSize, heads * headSize, 1);
+
+            assertVectorEquals(expectedScores, util.mulVectorByTransposedMatrix(query, view), 0);
+            assertVectorEquals(expectedAggregate, util.mulVectorByMatrix(scores, view), 0);
+        }
     }
 
     @Test
@@ -62,11 +750,11 @@ public class UtilTest extends BaseTest
         Vector b1 = createVector(1, 4, 7, 10);
         Vector b2 = createVector(2, 5, 8, 11);
         Vector b3 = createVector(3, 6, 9, 12);
-        Vector[] b = {b1, b2, b3};
+        Matrix b = Matrix.of(b1, b2, b3);
 
         float[] expectedResult = {5 + 6*4 + 7*7 + 8*10, 5*2 + 6*5 + 7*8 + 8*11, 5*3 + 6*6 + 7*9 + 8*12};
 
-        assertVectorEquals(expectedResult, UTIL.mulVectorByTransposedMatrix(a, b), 0);
+        assertVectorEquals(expectedResult, util.mulVectorByTransposedMatrix(a, b), 0);
     }
 
     @Test
@@ -75,7 +763,7 @@ public class UtilTest extends BaseTest
         Vector vector = createVector(1, 2, 3, 4, 5, 6);
         float[][] expectedResult = {{1, 2}, {3, 4}, {5, 6}};
 
-        assertMatrixEquals(expectedResult, UTIL.splitVector(vector, 3), 0);
+        assertMatrixEquals(expectedResult, util.splitVector(vector, 3), 0);
     }
 
     @Test
@@ -88,7 +776,7 @@ public class UtilTest extends BaseTest
 
         float[] expectedResult = {1, 2, 3, 4, 5, 6};
 
-        assertVectorEquals(expectedResult, UTIL.flattenMatrix(matrix), 0);
+        assertVectorEquals(expectedResult, util.flattenMatrix(matrix), 0);
     }
 
     @Test
@@ -96,6 +784,6 @@ public class UtilTest extends BaseTest
     {
         Vector vector = createVector(1, 2, 3, 4, 5, 6);
 
-        assertEquals(3.5f, UTIL.average(vector), 0);
+        assertEquals(3.5f, util.average(vector), 0);
     }
 }
@@ -0,0 +1,232 @@
+package huplay.demo.sampler;
+
+import huplay.demo.IdentifiedException;
+import huplay.demo.util.FloatType;
+import huplay.demo.util.IndexedValue;
+import huplay.demo.util.Vector;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SamplerTest
+{
+    private static final int TOKEN_COUNT = 10;
+
+    @Test
+    public void candidatesSortTest()
+    {
+        Candidates candidates = new Candidates();
+        candidates.load(values(-1f, 2f, 0f, 2f, -3.5f, 7f));
+        candidates.sort();
+
+        assertEquals(6, candidates.size());
+
+        int[] expectedTokens = {5, 1, 3, 2, 0, 4};
+        float[] expectedLogits = {7f, 2f, 2f, 0f, -1f, -3.5f};
+
+        for (int i = 0; i < expectedTokens.length; i++)
+        {
+            assertEquals(expectedTokens[i], candidates.getToken(i));
+            assertEquals(expectedLogits[i], candidates.getLogit(i), 0);
+        }
+
+        candidates.truncate(2);
+        assertEquals(2, candidates.size());
+        assertEquals(1 + Math.exp(-5), candidates.getProbabilitySum(), 1e-9);
+    }
+
+    @Test
+    public void greedyTest()
+    {
+        SamplerSettings settings = new SamplerSettings();
+        settings.setTemperature(0);
+
+        Sampler sampler = new Sampler(settings, 40, TOKEN_COUNT);
+        assertEquals(1, sampler.getCandidateCount());
+
+        for (int i = 0; i < 10; i++)
+        {
+            assertEquals(3, sampler.sample(values(1f, 2f, 0f, 3f, 2.5f)));
+        }
+    }
+
+    @Test
+    public void seedTest()
+    {
+        SamplerSettings settings = new SamplerSettings();
+        settings.setSeed(42L);
+
+        Sampler sampler1 = new Sampler(settings, 40, TOKEN_COUNT);
+        Sampler sampler2 = new Sampler(settings, 40, TOKEN_COUNT);
+
+        List<Integer> tokens = new ArrayList<>();
+        for (int i = 0; i < 50; i++)
+        {
+            int token = sampler1.sample(values(1f, 1f, 1f, 1f, 1f));
+            assertEquals(token, sampler2.sample(values(1f, 1f, 1f, 1f, 1f)));
+            tokens.add(token);
+        }
+
+        // The same sequence is generated in a new session
+        sampler1.clear();
+        for (int i = 0; i < 50; i++)
+        {
+            assertEquals((int) tokens.get(i), sampler1.sample(values(1f, 1f, 1f, 1f, 1f)));
+        }
+    }
+
+    @Test
+    public void topKTest()
+    {
+        SamplerSettings settings = new SamplerSettings();
+        settings.setSeed(1L);
+
+        Sampler sampler = new Sampler(settings, 2, TOKEN_COUNT);
+        assertEquals(2, sampler.getCandidateCount());
+
+        boolean[] isSelected = sample(sampler, values(1f, 2f, 0f, 3f, 2.5f));
+        assertArrayEquals(new boolean[] {false, false, false, true, true}, isSelected);
+
+        // No limit
+        assertEquals(TOKEN_COUNT, new Sampler(settings, 0, TOKEN_COUNT).getCandidateCount());
+        assertEquals(TOKEN_COUNT, new Sampler(settings, 100, TOKEN_COUNT).getCandidateCount());
+    }
+
+    @Test
+    public void topPTest()
+    {
+        SamplerSettings settings = new SamplerSettings();
+        settings.setSeed(1L);
+        settings.setTopP(0.8f);
+
+        // Probabilities: 0.5, 0.25, 0.125, 0.125 (the first two tokens give 0.75, so the third is needed)
+        float ln2 = (float) Math.log(2);
+        boolean[] isSelected = sample(new Sampler(settings, 40, TOKEN_COUNT), values(3 * ln2, 2 * ln2, ln2, ln2));
+        assertArrayEquals(new boolean[] {true, true, true, false}, isSelected);
+    }
+
+    @Test
+    public void minPTest()
+    {
+        SamplerSettings settings = new SamplerSettings();
+        settings.setSeed(1L);
+        settings.setMinP(0.3f);
+
+        // Relative probabilities: 1, 0.5, 0.25, 0.125
+        float ln2 = (float) Math.log(2);
+        boolean[] isSelected = sample(new Sampler(settings, 40, TOKEN_COUNT), values(3 * ln2, 2 * ln2, ln2, 0));
+        assertArrayEquals(new boolean[] {true, true, false, false}, isSelected);
+    }
+
+    @Test
+    public void penaltyTest()
+    {
+        SamplerSettings settings = new SamplerSettings();
+        settings.setTemperature(0);
+        settings.setRepetitionPenalty(2f);
+        settings.setFrequencyPenalty(0.5f);
+
+        Sampler sampler = new Sampler(settings, 40, TOKEN_COUNT);
+
+        assertEquals(0, sampler.sample(values(4f, 3f, -1f)));
+
+        // Token 0: 4 / 2 - 0.5 = 1.5, which is less than 3
+        sampler.accept(0);
+        assertEquals(2, sampler.getCandidateCount());
+        assertEquals(1, sampler.sample(values(4f, 3f, -1f)));
+
+        // Token 1: 3 / 2 - 2 * 0.5 = 0.5, token 0: 4 / 2 - 2 * 0.5 = 1
+        sampler.accept(1);
+        sampler.accept(1);
+        sampler.accept(0);
+        assertEquals(3, sampler.getCandidateCount());
+        assertEquals(0, sampler.sample(values(4f, 3f, -1f)));
+
+        // The negative logits are multiplied: -1 * 2 - 0.5 = -2.5
+        Candidates candidates = new Candidates();
+        candidates.load(values(-1f));
+        TokenHistory history = new TokenHistory(TOKEN_COUNT);
+        history.add(0);
+        new PenaltyStep(history, 2f, 0.5f).apply(candidates);
+        assertEquals(-2.5f, candidates.getLogit(0), 0);
+
+        sampler.clear();
+        assertEquals(1, sampler.getCandidateCount());
+        assertEquals(0, sampler.sample(values(4f, 3f, -1f)));
+    }
+
+    @Test
+    public void allLogitsTest()
+    {
+        SamplerSettings settings = new SamplerSettings();
+        settings.setSeed(1L);
+
+        // Without topK limit the logits of the full vocabulary are sampled
+        Sampler sampler = new Sampler(settings, 0, 5);
+        assertTrue(sampler.needsAllLogits());
+        assertFalse(new Sampler(settings, 2, 5).needsAllLogits());
+
+        Vector logits = new Vector(FloatType.FLOAT32, new float[] {1f, -30f, 0f, 3f, 2.5f});
+        boolean[] isSelected = new boolean[5];
+        for (int i = 0; i < 1000; i++)
+        {
+            isSelected[sampler.sample(logits)] = true;
+        }
+
+        assertArrayEquals(new boolean[] {true, false, true, true, true}, isSelected);
+
+        // The penalties are applied on the logits (token 3: 3 / 2 - 0.5 = 1)
+        settings.setTemperature(0);
+        settings.setRepetitionPenalty(2f);
+        settings.setFrequencyPenalty(0.5f);
+
+        sampler = new Sampler(settings, 0, 5);
+        sampler.accept(3);
+        assertEquals(4, sampler.sample(logits));
+    }
+
+    @Test
+    public void invalidPenaltyTest()
+    {
+        SamplerSettings settings = new SamplerSettings();
+
+        // A penalty which increases the logits (or divides by zero) is rejected
+        for (float penalty : new float[] {0.5f, 0f, -1f, Float.NaN})
+        {
+            assertThrows(IdentifiedException.class, () -> settings.setRepetitionPenalty(penalty));
+        }
+
+        assertThrows(IdentifiedException.class, () -> settings.setFrequencyPenalty(-0.1f));
+        assertThrows(IdentifiedException.class, () -> settings.setFrequencyPenalty(Float.NaN));
+
+        assertEquals(1f, settings.getRepetitionPenalty(), 0);
+        assertEquals(0f, settings.getFrequencyPenalty(), 0);
+    }
+
+    private boolean[] sample(Sampler sampler, List<IndexedValue> values)
+    {
+        boolean[] isSelected = new boolean[values.size()];
+
+        for (int i = 0; i < 1000; i++)
+        {
+            isSelected[sampler.sample(values)] = true;
+        }
+
+        return isSelected;
+    }
+
+    private List<IndexedValue> values(float... logits)
+    {
+        List<IndexedValue> values = new ArrayList<>();
+
+        for (int i = 0; i < logits.length; i++)
+        {
+            values.add(new IndexedValue(logits[i], i));
+        }
+
+        return values;
+    }
+}
@@ -5,22 +5,279 @@ import huplay.demo.config.Arguments;
 import huplay.demo.config.Config;
 import huplay.demo.config.ModelConfig;
 import huplay.demo.config.ParameterReader;
+import huplay.demo.util.Vector;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
 
 public class BaseTransformerTest extends BaseTest
 {
+    // Tokens of the test sessions, and the steps where the sessions join the batch
+    private static final int[][] TOKENS = {{1, 2, 3, 4}, {5, 6}, {7, 8, 9}};
+    private static final int[] FIRST_STEPS = {0, 1, 2};
+
     protected Config getTestConfig(String relativePath)
+    {
+        return getTestConfig(relativePath, 1, false);
+    }
+
+    protected Config getTestConfig(String relativePath, int threadCount, boolean isTensorParallel)
+    {
+        Arguments arguments = getTestArguments(relativePath, threadCount);
+        arguments.setTensorParallel(isTensorParallel);
+
+        return readConfig(arguments);
+    }
+
+    /**
+     * Config of streaming mode (only the attention sinks and the window of the last positions are retained)
+     */
+    protected Config getStreamingTestConfig(String relativePath, int sinkCount, int windowSize)
+    {
+        Arguments arguments = getTestArguments(relativePath, 1);
+        arguments.setSinkCount(sinkCount);
+        arguments.setWindowSize(windowSize);
+
+        return readConfig(arguments);
+    }
+
+    private Arguments getTestArguments(String relativePath, int threadCount)
     {
         File resourcesDirectory = new File("src/test/resources");
         String root = resourcesDirectory.getAbsolutePath();
 
-        Arguments arguments = new Arguments(root, root, relativePath, 25, 40,
-                false, 0);
+        Arguments arguments = new Arguments(root, root, relativePath, 25, 40, false, 0);
+        arguments.setThreadCount(threadCount);
+
+        return arguments;
+    }
 
+    private Config readConfig(Arguments arguments)
+    {
         ModelConfig modelConfig = ModelConfig.read(arguments);
 
         ParameterReader reader = new ParameterReader(arguments.getModelPath());
         return Config.readConfig(arguments, modelConfig, reader);
     }
+
+    /**
+     * Processes sessions together (joining and leaving the batch between the steps), and compares the results to
+     * the sessions processed one by one
+     */
+    protected void assertSequences(BaseTransformer transformer)
+    {
+        float[][][] expected = processSessionsAlone(transformer);
+
+        InferenceSession[] sessions = new InferenceSession[TOKENS.length];
+        for (int step = 0; step < 5; step++)
+        {
+            // The sessions which are active in this step
+            List<Integer> active = new ArrayList<>();
+            for (int s = 0; s < TOKENS.length; s++)
+            {
+                int pos = step - FIRST_STEPS[s];
+                if (pos == 0) sessions[s] = transformer.createSession();
+                if (pos >= 0 && pos < TOKENS[s].length) active.add(s);
+            }
+
+            InferenceSession[] batch = new InferenceSession[active.size()];
+            int[] positions = new int[active.size()];
+            int[] batchTokens = new int[active.size()];
+            for (int i = 0; i < active.size(); i++)
+            {
+                int s = active.get(i);
+                batch[i] = sessions[s];
+                positions[i] = step - FIRST_STEPS[s];
+                batchTokens[i] = TOKENS[s][positions[i]];
+            }
+
+            Vector[] results = transformer.execute(batch, positions, batchTokens);
+
+            for (int i = 0; i < active.size(); i++)
+            {
+                int s = active.get(i);
+                assertVectorEquals(expected[s][positions[i]], results[i], 1e-6f);
+
+                // The finished session leaves the batch
+                if (positions[i] == TOKENS[s].length - 1) sessions[s].clear();
+            }
+        }
+    }
+
+    /**
+     * Processes sessions in parallel threads by the same transformer, and compares the results to the sessions
+     * processed one by one
+     */
+    protected void assertConcurrentSessions(BaseTransformer transformer) throws Exception
+    {
+        float[][][] expected = processSessionsAlone(transformer);
+
+        ExecutorService executor = Executors.newFixedThreadPool(TOKENS.length);
+        try
+        {
+            List<Future<float[][]>> futures = new ArrayList<>();
+            for (int round = 0; round < 10; round++)
+            {
+                for (int[] tokens : TOKENS)
+                {
+                    futures.add(executor.submit(() -> processSession(transformer, tokens)));
+                }
+            }
+
+            for (int i = 0; i < futures.size(); i++)
+            {
+                float[][] results = futures.get(i).get();
+                for (int pos = 0; pos < results.length; pos++)
+                {
+                    assertArrayEquals(expected[i % TOKENS.length][pos], results[pos], 1e-6f);
+                }
+            }
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Processes the sessions in tensor parallel mode, and compares the results to the normal mode
+     * (The partial sums of the workers are added in a different order, so the results can differ slightly.)
+     */
+    protected void assertTensorParallel(BaseTransformer transformer, BaseTransformer tensorParallel)
+    {
+        float[][][] expected = processSessionsAlone(transformer);
+        float[][][] results = processSessionsAlone(tensorParallel);
+
+        for (int s = 0; s < TOKENS.length; s++)
+        {
+            for (int pos = 0; pos < TOKENS[s].length; pos++)
+            {
+                assertArrayEquals(expected[s][pos], results[s][pos], 1e-5f);
+            }
+        }
+    }
+
+    /**
+     * Processes the first tokens of a session in one batch (prefill), and compares the results of the following tokens
+     * to the session processed token by token
+     * (The batch can be prefilled in more steps, the prefill of the second step has to see the first step's tokens.)
+     */
+    protected void assertPrefill(BaseTransformer transformer)
+    {
+        int[] tokens = {1, 2, 3, 4, 5, 6, 7};
+        float[][] expected = processSession(transformer, tokens);
+
+        // The lengths of the prefill steps
+        int[][] prefills = {{2}, {5}, {6}, {3, 2}, {1, 2, 3}};
+
+        for (int[] prefill : prefills)
+        {
+            InferenceSession session = transformer.createSession();
+
+            int pos = 0;
+            for (int length : prefill)
+            {
+                int[] positions = new int[length];
+                int[] batchTokens = new int[length];
+                for (int i = 0; i < length; i++)
+                {
+                    positions[i] = pos + i;
+                    batchTokens[i] = tokens[pos + i];
+                }
+
+                transformer.executeBatch(session, positions, batchTokens);
+                pos += length;
+            }
+
+            for (; pos < tokens.length; pos++)
+            {
+                Vector result = transformer.execute(session, pos, tokens[pos], true);
+                assertVectorEquals(expected[pos], result, 1e-5f);
+            }
+
+            session.clear();
+        }
+    }
+
+    /**
+     * Compares the results of the same tokens in different order
+     * (Without position embedding the result of the last token wouldn't depend on the order of the previous ones.)
+     */
+    protected void assertPositionEmbedding(BaseTransformer transformer)
+    {
+        float[][] results = processSession(transformer, new int[] {1, 2, 3});
+        float[][] swapped = processSession(transformer, new int[] {2, 1, 3});
+
+        float maxDifference = 0;
+        for (int i = 0; i < results[2].length; i++)
+        {
+            maxDifference = Math.max(maxDifference, Math.abs(results[2][i] - swapped[2][i]));
+        }
+
+        assertTrue("The order of the tokens doesn't change the result", maxDifference > 1e-3f);
+    }
+
+    /**
+     * Processes a sequence longer than the window in streaming mode, and compares the results to the retained tokens
+     * (the sinks and the window) processed from the start in normal mode
+     * (The keys and values of a single decoder depend only on the token, so the results have to be the same.)
+     */
+    protected void assertStreaming(BaseTransformer streaming, BaseTransformer transformer, int sinkCount,
+                                   int windowSize)
+    {
+        int[] tokens = {1, 2, 3, 4, 5, 6, 7, 8, 9, 1};
+
+        InferenceSession session = streaming.createSession();
+        for (int pos = 0; pos < tokens.length; pos++)
+        {
+            float[] result = streaming.execute(session, pos, tokens[pos], true).getFloat32Values().clone();
+
+            // The retained tokens: the sinks and the window, which ends at the actual token
+            int sinks = Math.min(pos + 1, sinkCount);
+            int windowStart = Math.max(sinks, pos + 1 - windowSize);
+            int[] retained = new int[sinks + pos + 1 - windowStart];
+            for (int i = 0; i < retained.length; i++)
+            {
+                retained[i] = i < sinks ? tokens[i] : tokens[windowStart + i - sinks];
+            }
+
+            float[][] expected = processSession(transformer, retained);
+            assertArrayEquals(expected[expected.length - 1], result, 1e-5f);
+        }
+
+        session.clear();
+    }
+
+    private float[][][] processSessionsAlone(BaseTransformer transformer)
+    {
+        float[][][] results = new float[TOKENS.length][][];
+        for (int s = 0; s < TOKENS.length; s++)
+        {
+            results[s] = processSession(transformer, TOKENS[s]);
+        }
+
+        return results;
+    }
+
+    private float[][] processSession(BaseTransformer transformer, int[] tokens)
+    {
+        InferenceSession session = transformer.createSession();
+
+        float[][] results = new float[tokens.length][];
+        for (int pos = 0; pos < tokens.length; pos++)
+        {
+            results[pos] = transformer.execute(session, pos, tokens[pos], true).getFloat32Values().clone();
+        }
+
+        session.clear();
+
+        return results;
+    }
 }
@@ -0,0 +1,294 @@
+package huplay.demo.transformer;
+
+import huplay.demo.BaseTest;
+import huplay.demo.IdentifiedException;
+import huplay.demo.util.FloatType;
+import huplay.demo.util.Vector;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class KeyValueCacheTest extends BaseTest
+{
+    @Test
+    public void storeTest()
+    {
+        // 2 heads, head size: 3, blocks of 64 positions (the last block is partially filled)
+        KeyValueBlockPool pool = new KeyValueBlockPool(FloatType.FLOAT32, 2, 3, 64);
+        KeyValueCache cache = new KeyValueCache(pool);
+
+        for (int pos = 0; pos < 600; pos++)
+        {
+            cache.add(createVector(pos, pos + 0.1f, pos + 0.2f, -pos, -pos - 0.1f, -pos - 0.2f),
+                    createVector(2 * pos, 2 * pos + 1, 2 * pos + 2, 3 * pos, 3 * pos + 1, 3 * pos + 2));
+        }
+
+        assertEquals(600, cache.size());
+        assertEquals(20, cache.getBlockCount());
+        assertEquals(20, pool.getBlockCount());
+
+        // The query selects the last element of the keys
+        Vector scores = new Vector(FloatType.FLOAT32, 600);
+        cache.calculateScores(createVector(0, 0, 1), 1, scores);
+
+        for (int pos = 0; pos < 600; pos++)
+        {
+            assertEquals(-pos - 0.2f, scores.get(pos), 0);
+        }
+
+        // The scores select the value of a single position (in the last and in the first block)
+        Vector result = new Vector(FloatType.FLOAT32, 3);
+        cache.aggregateValues(oneHot(600, 599), 0, result);
+        assertVectorEquals(new float[] {1198, 1199, 1200}, result, 0);
+
+        cache.aggregateValues(oneHot(600, 5), 1, result);
+        assertVectorEquals(new float[] {15, 16, 17}, result, 0);
+
+        // The blocks are returned to the pool, and these are reused by the next sequence
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getBlockCount());
+        assertEquals(20, pool.getFreeBlockCount());
+
+        KeyValueCache otherCache = new KeyValueCache(pool);
+        otherCache.add(createVector(1, 2, 3, 4, 5, 6), createVector(7, 8, 9, 10, 11, 12));
+        assertEquals(1, otherCache.size());
+        assertEquals(20, pool.getBlockCount());
+        assertEquals(18, pool.getFreeBlockCount());
+
+        scores = new Vector(FloatType.FLOAT32, 1);
+        otherCache.calculateScores(createVector(1, 0, 0), 1, scores);
+        assertEquals(4, scores.get(0), 0);
+
+        otherCache.aggregateValues(oneHot(1, 0), 1, result);
+        assertVectorEquals(new float[] {10, 11, 12}, result, 0);
+    }
+
+    @Test
+    public void blockSplitTest()
+    {
+        // The block by block calculation gives the same result as a single block
+        KeyValueCache singleBlock = new KeyValueCache(new KeyValueBlockPool(FloatType.FLOAT32, 2, 32, 256));
+        KeyValueCache smallBlocks = new KeyValueCache(new KeyValueBlockPool(FloatType.FLOAT32, 2, 32, 7));
+
+        for (int pos = 0; pos < 100; pos++)
+        {
+            singleBlock.add(createRow(pos, 1), createRow(pos, -1));
+            smallBlocks.add(createRow(pos, 1), createRow(pos, -1));
+        }
+
+        Vector query = createRow(1000, 1);
+        query.resize(32);
+
+        for (int head = 0; head < 2; head++)
+        {
+            Vector expectedScores = new Vector(FloatType.FLOAT32, 100);
+            Vector scores = new Vector(FloatType.FLOAT32, 100);
+            singleBlock.calculateScores(query, head, expectedScores);
+            smallBlocks.calculateScores(query, head, scores);
+            assertVectorEquals(expectedScores.getFloat32Values(), scores, 0);
+
+            Vector expected = new Vector(FloatType.FLOAT32, 32);
+            Vector result = new Vector(FloatType.FLOAT32, 32);
+            singleBlock.aggregateValues(scores, head, expected);
+            smallBlocks.aggregateValues(scores, head, result);
+            assertVectorEquals(expected.getFloat32Values(), result, 0.01f);
+        }
+    }
+
+    @Test
+    public void streamingTest()
+    {
+        // Sinks in a separate block, window through several blocks; sinks without separate block; no sinks
+        int[][] settings = {{2, 13}, {0, 13}, {0, 3}, {3, 1}};
+
+        for (int[] setting : settings)
+        {
+            int sinkCount = setting[0];
+            int windowSize = setting[1];
+
+            KeyValueBlockPool pool = new KeyValueBlockPool(FloatType.FLOAT32, 1, 2, 8);
+            KeyValueCache cache = new KeyValueCache(pool, sinkCount, windowSize);
+
+            for (int pos = 0; pos < 100; pos++)
+            {
+                cache.add(createVector(pos, 1), createVector(1, -pos));
+
+                int expectedSize = Math.min(pos + 1, sinkCount + windowSize);
+                assertEquals(expectedSize, cache.size());
+
+                // The sinks and the last positions are retained
+                Vector scores = new Vector(FloatType.FLOAT32, expectedSize);
+                cache.calculateScores(createVector(1, 0), 0, scores);
+
+                for (int i = 0; i < expectedSize; i++)
+                {
+                    float expected = i < sinkCount ? i : pos - (expectedSize - 1 - i);
+                    assertEquals(expected, scores.get(i), 0);
+                }
+
+                // Sum of the values of the retained positions
+                Vector result = new Vector(FloatType.FLOAT32, 2);
+                Vector ones = new Vector(FloatType.FLOAT32, expectedSize);
+                for (int i = 0; i < expectedSize; i++) ones.set(i, 1);
+
+                float sum = 0;
+                for (int i = 0; i < expectedSize; i++) sum += scores.get(i);
+
+                cache.aggregateValues(ones, 0, result);
+                assertEquals(expectedSize, result.get(0), 0);
+                assertEquals(-sum, result.get(1), 0);
+            }
+
+            // The memory is limited: the dropped blocks are reused
+            int maxBlocks = (sinkCount > 0 ? 1 : 0) + windowSize / 8 + 2;
+            assertTrue(pool.getBlockCount() <= 2 * maxBlocks);
+
+            cache.clear();
+            assertEquals(0, cache.size());
+            assertEquals(pool.getBlockCount(), pool.getFreeBlockCount());
+        }
+    }
+
+    @Test(expected = IdentifiedException.class)
+    public void tooManySinksTest()
+    {
+        new KeyValueCache(new KeyValueBlockPool(FloatType.FLOAT32, 1, 2, 8), 10, 100);
+    }
+
+    @Test
+    public void compactStoreTest()
+    {
+        FloatType[] floatTypes = {FloatType.FLOAT16, FloatType.BFLOAT16, FloatType.Q8, FloatType.Q4};
+        float[] deltas = {0.01f, 0.05f, 0.05f, 0.5f};
+
+        for (int t = 0; t < floatTypes.length; t++)
+        {
+            // 2 heads, head size: 32
+            KeyValueCache cache = new KeyValueCache(new KeyValueBlockPool(floatTypes[t], 2, 32));
+
+            for (int pos = 0; pos < 300; pos++)
+            {
+                cache.add(createRow(pos, 1), createRow(pos, -1));
+            }
+
+            for (int head = 0; head < 2; head++)
+            {
+                for (int i = 0; i < 32; i++)
+                {
+                    // The query selects a single element of the keys
+                    Vector scores = new Vector(FloatType.FLOAT32, 300);
+                    cache.calculateScores(oneHot(32, i), head, scores);
+
+                    for (int pos = 0; pos < 300; pos += 7)
+                    {
+                        float expected = value(pos, head * 32 + i);
+                        assertEquals(floatTypes[t].name(), expected, scores.get(pos), deltas[t]);
+                    }
+                }
+
+                for (int pos = 0; pos < 300; pos += 7)
+                {
+                    // The scores select the value of a single position
+                    Vector result = new Vector(FloatType.FLOAT32, 32);
+                    cache.aggregateValues(oneHot(300, pos), head, result);
+
+                    for (int i = 0; i < 32; i++)
+                    {
+                        float expected = value(pos, head * 32 + i);
+                        assertEquals(floatTypes[t].name(), -expected, result.get(i), deltas[t]);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void positionEmbeddingTest()
+    {
+        // No streaming, sinks in a separate block, no sinks; in float32 and in float16
+        int[][] settings = {{0, 0}, {2, 13}, {0, 5}};
+        FloatType[] floatTypes = {FloatType.FLOAT32, FloatType.FLOAT16};
+        float[] deltas = {1e-4f, 0.05f};
+
+        RotaryPositionEmbedding positionEmbedding = RotaryPositionEmbedding.of(32);
+
+        for (int t = 0; t < floatTypes.length; t++)
+        {
+            for (int[] setting : settings)
+            {
+                int sinkCount = setting[0];
+                int windowSize = setting[1];
+
+                KeyValueBlockPool pool = new KeyValueBlockPool(floatTypes[t], 2, 32, 8);
+                KeyValueCache cache = new KeyValueCache(pool, sinkCount, windowSize, positionEmbedding);
+
+                for (int pos = 0; pos < 40; pos++)
+                {
+                    cache.add(createRow(pos, 1), createRow(pos, -1));
+                    int size = cache.size();
+
+                    for (int head = 0; head < 2; head++)
+                    {
+                        Vector query = createRow(1000 + pos, 1);
+                        query.resize(32);
+
+                        Vector scores = new Vector(FloatType.FLOAT32, size);
+                        cache.calculateScores(query, head, scores);
+
+                        // The query and the retained keys rotated by their positions within the cache
+                        Vector rotatedQuery = createRow(1000 + pos, 1);
+                        positionEmbedding.rotate(rotatedQuery.getFloat32Values(), 0, size - 1);
+
+                        for (int i = 0; i < size; i++)
+                        {
+                            int keyPos = i < sinkCount || windowSize == 0 ? i : pos - (size - 1 - i);
+                            Vector key = createRow(keyPos, 1);
+                            positionEmbedding.rotate(key.getFloat32Values(), head * 32, i);
+
+                            float expected = 0;
+                            for (int j = 0; j < 32; j++)
+                            {
+                                expected += rotatedQuery.get(j) * key.get(head * 32 + j);
+                            }
+
+                            assertEquals(floatTypes[t].name(), expected, scores.get(i), deltas[t]);
+                        }
+                    }
+                }
+
+                cache.clear();
+            }
+        }
+    }
+
+    @Test(expected = IdentifiedException.class)
+    public void unalignedQuantizedTest()
+    {
+        new KeyValueBlockPool(FloatType.Q8, 2, 24);
+    }
+
+    private Vector oneHot(int size, int index)
+    {
+        Vector vector = new Vector(FloatType.FLOAT32, size);
+        vector.set(index, 1);
+
+        return vector;
+    }
+
+    private Vector createRow(int pos, float sign)
+    {
+        float[] values = new float[64];
+        for (int i = 0; i < values.length; i++)
+        {
+            values[i] = sign * value(pos, i);
+        }
+
+        return createVector(values);
+    }
+
+    private float value(int pos, int i)
+    {
+        return (float) Math.sin(pos * 0.37 + i * 0.11) * 3;
+    }
+}
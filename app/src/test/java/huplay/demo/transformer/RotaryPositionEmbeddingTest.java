@@ -0,0 +1,60 @@
+package huplay.demo.transformer;
+
+import huplay.demo.BaseTest;
+import huplay.demo.util.Vector;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class RotaryPositionEmbeddingTest extends BaseTest
+{
+    @Test
+    public void rotateTest()
+    {
+        RotaryPositionEmbedding positionEmbedding = RotaryPositionEmbedding.of(4);
+
+        // The first pair is rotated by the position (in radians), the second by position / 100
+        Vector vector = createVector(1, 0, 0, 1);
+        positionEmbedding.rotate(vector, 2);
+
+        assertVectorEquals(new float[] {(float) Math.cos(2), (float) Math.sin(2),
+                (float) -Math.sin(0.02), (float) Math.cos(0.02)}, vector, 1e-6f);
+
+        // Position 0 doesn't modify the vector
+        vector = createVector(1, 2, 3, 4);
+        positionEmbedding.rotate(vector, 0);
+
+        assertVectorEquals(new float[] {1, 2, 3, 4}, vector, 0);
+    }
+
+    @Test
+    public void relativePositionTest()
+    {
+        RotaryPositionEmbedding positionEmbedding = RotaryPositionEmbedding.of(4);
+
+        // The dot product of the rotated vectors depends only on the distance of the positions
+        // (Also at a position after the end of the first table part, and after the end of the table.)
+        float expected = score(positionEmbedding, 5, 2);
+        assertEquals(expected, score(positionEmbedding, 8, 5), 1e-5f);
+        assertEquals(expected, score(positionEmbedding, 1000, 997), 1e-4f);
+        assertEquals(expected, score(positionEmbedding, 16385, 16382), 1e-3f);
+        assertEquals(score(positionEmbedding, 6, 0), score(positionEmbedding, 16386, 16380), 1e-3f);
+    }
+
+    private float score(RotaryPositionEmbedding positionEmbedding, int queryPosition, int keyPosition)
+    {
+        Vector query = createVector(0.5f, -1, 2, 0.25f);
+        Vector key = createVector(1.5f, 0.5f, -0.75f, 1);
+
+        positionEmbedding.rotate(query, queryPosition);
+        positionEmbedding.rotate(key, keyPosition);
+
+        float score = 0;
+        for (int i = 0; i < 4; i++)
+        {
+            score += query.get(i) * key.get(i);
+        }
+
+        return score;
+    }
+}
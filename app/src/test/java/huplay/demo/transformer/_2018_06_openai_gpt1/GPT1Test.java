@@ -2,6 +2,7 @@ package huplay.demo.transformer._2018_06_openai_gpt1;
 
 import huplay.demo.config.Config;
 import huplay.demo.transformer.BaseTransformerTest;
+import huplay.demo.transformer.InferenceSession;
 import huplay.demo.util.Vector;
 import org.junit.Test;
 
@@ -14,8 +15,10 @@ public class GPT1Test extends BaseTransformerTest
 
         GPT1 transformer = new GPT1(config);
 
+        InferenceSession session = transformer.createSession();
+
         // First run (no previously stored tokens)
-        Vector result = transformer.execute(0, 0, true);
+        Vector result = transformer.execute(session, 0, 0, true);
 
         float[] expected = new float[] {
                 0.30690542f, -0.9076174f, 0.506058f, 0.22302012f, 0.15793128f, -0.7363872f,
@@ -24,7 +27,7 @@ public class GPT1Test extends BaseTransformerTest
         assertVectorEquals(expected, result, 1e-6f);
 
         // Second run
-        result = transformer.execute(1, 1, true);
+        result = transformer.execute(session, 1, 1, true);
 
         expected = new float[] {
                 0.009709928f, -0.8714771f, 0.20586778f, 0.40443808f, 0.24443056f, -0.52534175f,
@@ -32,4 +35,28 @@ public class GPT1Test extends BaseTransformerTest
 
         assertVectorEquals(expected, result, 1e-6f);
     }
+
+    @Test
+    public void testSequences()
+    {
+        Config config = getTestConfig("transformer/_2018_06_openai_gpt1");
+
+        assertSequences(new GPT1(config));
+    }
+
+    @Test
+    public void testConcurrentSessions() throws Exception
+    {
+        Config config = getTestConfig("transformer/_2018_06_openai_gpt1");
+
+        assertConcurrentSessions(new GPT1(config));
+    }
+
+    @Test
+    public void testPrefill()
+    {
+        Config config = getTestConfig("transformer/_2018_06_openai_gpt1");
+
+        assertPrefill(new GPT1(config));
+    }
 }
@@ -2,6 +2,7 @@ package huplay.demo.transformer._2019_02_openai_gpt2;
 
 import huplay.demo.config.Config;
 import huplay.demo.transformer.BaseTransformerTest;
+import huplay.demo.transformer.InferenceSession;
 
 import huplay.demo.util.Vector;
 import org.junit.Test;
@@ -15,8 +16,10 @@ public class GPT2Test extends BaseTransformerTest
 
         GPT2 transformer = new GPT2(config);
 
+        InferenceSession session = transformer.createSession();
+
         // First run (no previously stored tokens)
-        Vector result = transformer.execute(0, 0, true);
+        Vector result = transformer.execute(session, 0, 0, true);
 
         float[] expected = new float[] {
                 0.27687562f, -0.28724107f, 1.0454319f, 0.7014351f, 1.1113691f, -1.2056924f,
@@ -25,7 +28,7 @@ public class GPT2Test extends BaseTransformerTest
         assertVectorEquals(expected, result, 1e-6f);
 
         // Second run
-        result = transformer.execute(1, 1, true);
+        result = transformer.execute(session, 1, 1, true);
 
         expected = new float[] {
                 1.4605376f, 1.7202338f, -0.79042673f, -1.6437954f, -0.06698311f, -2.2982268f,
@@ -33,4 +36,40 @@ public class GPT2Test extends BaseTransformerTest
 
         assertVectorEquals(expected, result, 1e-6f);
     }
+
+    @Test
+    public void testSequences()
+    {
+        Config config = getTestConfig("transformer/_2019_02_openai_gpt2");
+
+        assertSequences(new GPT2(config));
+    }
+
+    @Test
+    public void testConcurrentSessions() throws Exception
+    {
+        Config config = getTestConfig("transformer/_2019_02_openai_gpt2");
+
+        assertConcurrentSessions(new GPT2(config));
+    }
+
+    @Test
+    public void testPrefill()
+    {
+        Config config = getTestConfig("transformer/_2019_02_openai_gpt2");
+
+        assertPrefill(new GPT2(config));
+    }
+
+    @Test
+    public void testTensorParallel()
+    {
+        Config config = getTestConfig("transformer/_2019_02_openai_gpt2");
+
+        // Two workers (with different number of heads), and more workers than heads
+        assertTensorParallel(new GPT2(config),
+                new GPT2(getTestConfig("transformer/_2019_02_openai_gpt2", 2, true)));
+        assertTensorParallel(new GPT2(config),
+                new GPT2(getTestConfig("transformer/_2019_02_openai_gpt2", 4, true)));
+    }
 }
@@ -1,21 +1,30 @@
 package huplay.demo.transformer._2021_03_eleuther_gptneo;
 
+import huplay.demo.IdentifiedException;
 import huplay.demo.config.Config;
 import huplay.demo.transformer.BaseTransformerTest;
+import huplay.demo.transformer.InferenceSession;
 import huplay.demo.util.Vector;
 import org.junit.Test;
 
+import static org.junit.Assert.assertTrue;
+
 public class GPTNEOTest extends BaseTransformerTest
 {
+    private static final String MODEL = "transformer/_2021_03_eleuther_gptneo";
+    private static final String LOCAL_MODEL = "transformer/_2021_03_eleuther_gptneo_local";
+
     @Test
     public void testTransformer()
     {
-        Config config = getTestConfig("transformer/_2021_03_eleuther_gptneo");
+        Config config = getTestConfig(MODEL);
 
         GPTNeo transformer = new GPTNeo(config);
 
+        InferenceSession session = transformer.createSession();
+
         // First run (no previously stored tokens)
-        Vector result = transformer.execute(0, 0, true);
+        Vector result = transformer.execute(session, 0, 0, true);
 
         float[] expected = new float[] {
                 1.7172791f, -3.3157616f, 0.6131638f, -0.8746113f, -3.4446273f, 1.2662675f,
@@ -24,7 +33,7 @@ public class GPTNEOTest extends BaseTransformerTest
         assertVectorEquals(expected, result, 1e-6f);
 
         // Second run
-        result = transformer.execute(1, 1, true);
+        result = transformer.execute(session, 1, 1, true);
 
         expected = new float[] {
                 0.5547548f, 4.879557f, -1.5965443f, -0.41758344f, 1.7790486f, -2.1507523f,
@@ -32,4 +41,77 @@ public class GPTNEOTest extends BaseTransformerTest
 
         assertVectorEquals(expected, result, 1e-6f);
     }
+
+    @Test
+    public void testSequences()
+    {
+        Config config = getTestConfig(MODEL);
+
+        assertSequences(new GPTNeo(config));
+    }
+
+    @Test
+    public void testConcurrentSessions() throws Exception
+    {
+        Config config = getTestConfig(MODEL);
+
+        assertConcurrentSessions(new GPTNeo(config));
+    }
+
+    @Test
+    public void testLocalAttention()
+    {
+        // The same parameters, but the decoder uses local attention with a window of 2 positions
+        GPTNeo transformer = new GPTNeo(getTestConfig(LOCAL_MODEL));
+        GPTNeo global = new GPTNeo(getTestConfig(MODEL));
+
+        InferenceSession session = transformer.createSession();
+        InferenceSession globalSession = global.createSession();
+
+        int[] tokens = {1, 2, 3, 4};
+
+        // Expected results of a reference implementation, which uses the keys and values of the last 2 positions
+        float[][] expected = {
+                {1.2350701f, 0.5001382f, -2.3545086f, 0.23638329f, 0.72193603f, 0.04605575f,
+                        2.9003774f, -7.559484f, 3.5782138f, -0.30064521f, 0.76624706f, -0.45960708f},
+                {0.62576822f, 3.5839705f, -2.867251f, -0.10778739f, 2.7160323f, -1.1368485f,
+                        1.5762448f, -3.0222277f, 4.6428817f, -1.0465952f, -0.037452531f, -1.9965693f},
+                {-0.77961199f, 0.6697765f, -0.64630761f, 2.2525592f, 0.9782697f, -5.778469f,
+                        2.0326017f, 3.0481098f, 3.1082346f, -2.8386863f, 0.73006921f, -1.1984332f},
+                {-2.1328024f, 1.544384f, -1.1991486f, 1.951524f, -0.46323305f, -3.6467236f,
+                        3.1893878f, 5.3415197f, 0.29060918f, -2.8064072f, 0.59380742f, -0.67436141f}};
+
+        for (int pos = 0; pos < tokens.length; pos++)
+        {
+            Vector result = transformer.execute(session, pos, tokens[pos], true);
+            assertVectorEquals(expected[pos], result, 1e-5f);
+
+            // Within the window the result is the same as at global attention, later the old positions are dropped
+            Vector globalResult = global.execute(globalSession, pos, tokens[pos], true);
+            float maxDifference = 0;
+            for (int i = 0; i < result.size(); i++)
+            {
+                maxDifference = Math.max(maxDifference, Math.abs(result.get(i) - globalResult.get(i)));
+            }
+
+            if (pos < 2)
+            {
+                assertTrue("Different result within the window", maxDifference < 1e-5f);
+            }
+            else
+            {
+                assertTrue("The positions out of the window are used", maxDifference > 1e-3f);
+            }
+        }
+
+        session.clear();
+        globalSession.clear();
+    }
+
+    @Test(expected = IdentifiedException.class)
+    public void testInvalidAttentionLayers()
+    {
+        // The attention_layers list is shorter than the number of the decoders
+        new GPTNeo(getTestConfig("transformer/_2021_03_eleuther_gptneo_invalid"));
+    }
 }
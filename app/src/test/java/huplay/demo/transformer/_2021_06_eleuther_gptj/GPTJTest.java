@@ -2,6 +2,7 @@ package huplay.demo.transformer._2021_06_eleuther_gptj;
 
 import huplay.demo.config.Config;
 import huplay.demo.transformer.BaseTransformerTest;
+import huplay.demo.transformer.InferenceSession;
 import huplay.demo.util.Vector;
 import org.junit.Ignore;
 import org.junit.Test;
@@ -16,8 +17,10 @@ public class GPTJTest extends BaseTransformerTest
 
         GPTJ transformer = new GPTJ(config);
 
+        InferenceSession session = transformer.createSession();
+
         // First run (no previously stored tokens)
-        Vector result = transformer.execute(0, 0, true);
+        Vector result = transformer.execute(session, 0, 0, true);
 
         float[] expected = new float[] {
                 -1.043406f, 0.8742118f, 0.6131638f, -0.8746113f, -3.4446273f, 1.2662675f,
@@ -26,7 +29,7 @@ public class GPTJTest extends BaseTransformerTest
         assertVectorEquals(expected, result, 1e-6f);
 
         // Second run
-        result = transformer.execute(1, 1, true);
+        result = transformer.execute(session, 1, 1, true);
 
         expected = new float[] {
                 0.5547548f, 4.879557f, -1.5965443f, -0.41758344f, 1.7790486f, -2.1507523f,
@@ -0,0 +1,103 @@
+package huplay.demo.transformer._2023_02_meta_llama;
+
+import huplay.demo.config.Config;
+import huplay.demo.transformer.BaseTransformerTest;
+import huplay.demo.transformer.InferenceSession;
+import huplay.demo.util.Vector;
+import org.junit.Test;
+
+public class LlamaTest extends BaseTransformerTest
+{
+    private static final String MODEL = "transformer/_2023_02_meta_llama";
+
+    // Grouped Query Attention (less key/value heads than query heads)
+    private static final String GQA_MODEL = "transformer/_2023_02_meta_llama_gqa";
+
+    @Test
+    public void testTransformer()
+    {
+        // Result of the 4th token, calculated by a reference implementation (the query and the key of every position
+        // rotated by the pairs of values, angle: position * 10000 ^ (-i / headSize))
+        float[] expected = new float[] {
+                1.7983482f, -0.12189167f, 1.0706692f, -1.6927418f, 1.6024868f, -1.6476531f,
+                0.53207914f, -1.4603871f, 0.98384715f, 0.2916972f, 0.40423671f, 0.1331563f,
+                1.4263058f, -0.58987636f, 0.5067945f, -0.54730433f, 0.00076697793f, 0.96134554f,
+                0.70639043f, -0.9709524f, -0.84396451f, -1.4595436f, 1.6479375f, -0.96312833f,
+                -0.12516712f, -0.55373807f, -0.38922184f, 0.6480213f, -0.020574702f, -0.52911331f,
+                0.21164299f, -1.6724902f};
+
+        assertLastResult(new Llama(getTestConfig(MODEL)), expected);
+    }
+
+    @Test
+    public void testGroupedQueryAttention()
+    {
+        float[] expected = new float[] {
+                1.3243609f, 1.55425f, -1.3331534f, 0.98737412f, -0.33957405f, -0.62665099f,
+                1.3490881f, -0.13146117f, 0.34680419f, -0.43597961f, -1.5284228f, -0.72880682f,
+                0.80326266f, -0.85832606f, 0.1972971f, 0.60693135f, 0.034864213f, 1.5198822f,
+                -0.14397363f, 0.29796053f, 0.29558484f, 0.35708362f, 2.9314507f, 1.9480103f,
+                0.034168429f, 0.91735527f, -0.60611381f, 1.0786135f, -0.42543389f, 0.032512172f,
+                0.052192467f, -0.42850379f};
+
+        assertLastResult(new Llama(getTestConfig(GQA_MODEL)), expected);
+    }
+
+    @Test
+    public void testPositionEmbedding()
+    {
+        assertPositionEmbedding(new Llama(getTestConfig(MODEL)));
+        assertPositionEmbedding(new Llama(getTestConfig(GQA_MODEL)));
+    }
+
+    @Test
+    public void testPrefill()
+    {
+        assertPrefill(new Llama(getTestConfig(MODEL)));
+        assertPrefill(new Llama(getTestConfig(GQA_MODEL)));
+    }
+
+    @Test
+    public void testTensorParallel()
+    {
+        for (String model : new String[] {MODEL, GQA_MODEL})
+        {
+            Config config = getTestConfig(model);
+
+            // Different number of heads per worker, and more workers than (key/value) heads
+            for (int workerCount : new int[] {2, 3, 5})
+            {
+                assertTensorParallel(new Llama(config), new Llama(getTestConfig(model, workerCount, true)));
+            }
+        }
+    }
+
+    @Test
+    public void testStreaming()
+    {
+        for (String model : new String[] {MODEL, GQA_MODEL})
+        {
+            Config config = getTestConfig(model);
+
+            // With and without attention sinks
+            assertStreaming(new Llama(getStreamingTestConfig(model, 2, 3)), new Llama(config), 2, 3);
+            assertStreaming(new Llama(getStreamingTestConfig(model, 0, 4)), new Llama(config), 0, 4);
+        }
+    }
+
+    private void assertLastResult(Llama transformer, float[] expected)
+    {
+        InferenceSession session = transformer.createSession();
+
+        int[] tokens = {1, 2, 3, 4};
+        Vector result = null;
+        for (int pos = 0; pos < tokens.length; pos++)
+        {
+            result = transformer.execute(session, pos, tokens[pos], true);
+        }
+
+        assertVectorEquals(expected, result, 1e-5f);
+
+        session.clear();
+    }
+}
@@ -0,0 +1,61 @@
+package huplay.demo.benchmark;
+
+import huplay.demo.util.FloatType;
+import huplay.demo.util.Utility;
+import huplay.demo.util.UtilityLoader;
+import huplay.demo.util.Vector;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Common settings of the benchmarks: every benchmark is executed with all backends
+ * (The Vector API module is added to the forked JVM, so that backend is available as well.)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"--add-modules=jdk.incubator.vector", "-Xmx4g"})
+public abstract class BaseBenchmark
+{
+    @Param({"standard", "vector-api", "nd4j"})
+    public String backend;
+
+    // Number of threads used by the matrix multiplications
+    @Param({"1"})
+    public int threads;
+
+    protected Utility util;
+
+    @Setup(Level.Trial)
+    public void setupUtility()
+    {
+        util = UtilityLoader.load(backend);
+        util.setThreadCount(threads);
+    }
+
+    protected static Vector randomVector(Random random, int size)
+    {
+        Vector vector = new Vector(FloatType.FLOAT32, size);
+
+        for (int i = 0; i < size; i++)
+        {
+            vector.set(i, (float) random.nextGaussian());
+        }
+
+        return vector;
+    }
+}
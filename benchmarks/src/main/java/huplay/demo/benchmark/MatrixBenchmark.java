@@ -0,0 +1,77 @@
+package huplay.demo.benchmark;
+
+import huplay.demo.util.FloatType;
+import huplay.demo.util.Matrix;
+import huplay.demo.util.Vector;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+
+import java.util.Random;
+
+/**
+ * Benchmarks of the vector-matrix multiplications (the same matrix is used in both directions)
+ * The shapes: MLP layer of GPT-2 (768x3072) and Llama-7B (4096x11008),
+ * token embeddings of Llama (4096x32000) and GPT-2 (768x50257)
+ * The float type of the matrix can be changed, for example: -p floatType=FLOAT16,Q8,Q4
+ */
+public class MatrixBenchmark extends BaseBenchmark
+{
+    @Param({"768x3072", "4096x11008", "4096x32000", "768x50257"})
+    public String shape;
+
+    @Param({"FLOAT32"})
+    public String floatType;
+
+    private Matrix matrix;
+    private Vector rowInput;
+    private Vector colInput;
+    private Vector rowResult;
+    private Vector colResult;
+
+    private long flops;
+    private long bytes;
+
+    @Setup(Level.Trial)
+    public void setupMatrix()
+    {
+        String[] parts = shape.split("x");
+        int rows = Integer.parseInt(parts[0]);
+        int cols = Integer.parseInt(parts[1]);
+
+        Random random = new Random(42);
+
+        Matrix values = new Matrix(randomVector(random, rows * cols), rows, cols);
+        matrix = floatType.equals("FLOAT32") ? values : values.quantize(FloatType.valueOf(floatType));
+
+        rowInput = randomVector(random, rows);
+        colInput = randomVector(random, cols);
+        rowResult = new Vector(FloatType.FLOAT32, cols);
+        colResult = new Vector(FloatType.FLOAT32, rows);
+
+        // A multiplication and an addition per matrix element, and every element is read once
+        flops = 2L * rows * cols;
+        bytes = matrix.getValues().getSizeInBytes() + 4L * (rows + cols);
+    }
+
+    @Benchmark
+    public Vector mulVectorByMatrix(Throughput throughput)
+    {
+        throughput.flops += flops;
+        throughput.bytes += bytes;
+
+        util.mulVectorByMatrix(rowInput, matrix, rowResult);
+        return rowResult;
+    }
+
+    @Benchmark
+    public Vector mulVectorByTransposedMatrix(Throughput throughput)
+    {
+        throughput.flops += flops;
+        throughput.bytes += bytes;
+
+        util.mulVectorByTransposedMatrix(colInput, matrix, colResult);
+        return colResult;
+    }
+}
@@ -0,0 +1,26 @@
+package huplay.demo.benchmark;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Counters of the floating point operations and the accessed bytes of the benchmarked calls
+ * JMH reports these as rates (per second), so the results are directly the FLOP/s and the B/s values.
+ */
+@State(Scope.Thread)
+@AuxCounters(AuxCounters.Type.OPERATIONS)
+public class Throughput
+{
+    public long flops;
+    public long bytes;
+
+    @Setup(Level.Iteration)
+    public void clean()
+    {
+        flops = 0;
+        bytes = 0;
+    }
+}
@@ -0,0 +1,101 @@
+package huplay.demo.benchmark;
+
+import huplay.demo.util.Vector;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+
+import java.util.Random;
+
+/**
+ * Benchmarks of the vector operations
+ * The sizes: hidden size of GPT-2 (768) and Llama-7B (4096), feed forward size of GPT-2 (3072) and Llama-7B (11008),
+ * vocabulary size of Llama (32000) and GPT-2 (50257)
+ */
+public class VectorBenchmark extends BaseBenchmark
+{
+    @Param({"768", "3072", "4096", "11008", "32000", "50257"})
+    public int size;
+
+    private Vector vector1;
+    private Vector vector2;
+    private Vector weight;
+    private Vector bias;
+    private Vector result;
+
+    @Setup(Level.Trial)
+    public void setupVectors()
+    {
+        Random random = new Random(42);
+
+        vector1 = randomVector(random, size);
+        vector2 = randomVector(random, size);
+        weight = randomVector(random, size);
+        bias = randomVector(random, size);
+        result = randomVector(random, size);
+    }
+
+    @Benchmark
+    public float dotProduct(Throughput throughput)
+    {
+        throughput.flops += 2L * size;
+        throughput.bytes += 8L * size;
+
+        return util.dotProduct(vector1, vector2);
+    }
+
+    @Benchmark
+    public Vector normalize(Throughput throughput)
+    {
+        throughput.bytes += 8L * size;
+
+        util.normalize(vector1, 1e-5f, result);
+        return result;
+    }
+
+    @Benchmark
+    public Vector layerNorm(Throughput throughput)
+    {
+        throughput.bytes += 16L * size;
+
+        util.layerNorm(vector1, weight, bias, 1e-5f, result);
+        return result;
+    }
+
+    @Benchmark
+    public Vector rmsNorm(Throughput throughput)
+    {
+        throughput.bytes += 12L * size;
+
+        util.rmsNorm(vector1, weight, 1e-5f, result);
+        return result;
+    }
+
+    @Benchmark
+    public Vector softmax(Throughput throughput)
+    {
+        throughput.bytes += 8L * size;
+
+        util.softmax(vector1, result);
+        return result;
+    }
+
+    @Benchmark
+    public Vector gelu(Throughput throughput)
+    {
+        throughput.bytes += 12L * size;
+
+        util.gelu(vector1, bias, result);
+        return result;
+    }
+
+    @Benchmark
+    public Vector swiglu(Throughput throughput)
+    {
+        throughput.bytes += 12L * size;
+
+        util.swiglu(vector1, vector2, result);
+        return result;
+    }
+}
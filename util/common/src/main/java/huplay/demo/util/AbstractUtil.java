@@ -1,11 +1,360 @@
 package huplay.demo.util;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
 import java.util.List;
+import java.util.PriorityQueue;
 import java.util.TreeSet;
 
 public abstract class AbstractUtil implements Utility
 {
+    // Number of rows calculated at once by the filtered multiplication (the partial result fits into the L1 cache)
+    private static final int FILTER_CHUNK_SIZE = 256;
+
+    // Number of matrix rows (or columns) multiplied by all vectors at once at the matrix-matrix multiplications
+    // (This part of the matrix stays in the cache while it's used by the vectors, so it's read only once.)
+    private static final int MATRIX_BLOCK_SIZE = 64;
+
+    // Ascending order by value (at equal values the higher index is the lower, so the lower index is retained)
+    protected static final Comparator<IndexedValue> BY_VALUE = Comparator.comparingDouble(IndexedValue::getValue)
+            .thenComparing(Comparator.comparingInt(IndexedValue::getIndex).reversed());
+
+    // Working vectors of the calling threads (the quantized inputs are reused by the next multiplications)
+    private static final ThreadLocal<ScratchArena> ARENAS = ThreadLocal.withInitial(ScratchArena::new);
+
+    private WorkerPool workerPool = new WorkerPool(Runtime.getRuntime().availableProcessors());
+
+    @Override
+    public void setThreadCount(int threadCount)
+    {
+        if (threadCount != workerPool.getThreadCount())
+        {
+            workerPool.shutdown();
+            workerPool = new WorkerPool(threadCount);
+        }
+    }
+
+    @Override
+    public int getThreadCount()
+    {
+        return workerPool.getThreadCount();
+    }
+
+    @Override
+    public void shutdown()
+    {
+        workerPool.shutdown();
+    }
+
+    @Override
+    public Matrix prepare(Matrix matrix)
+    {
+        // The Java implementations use the matrix as it is stored
+        return matrix;
+    }
+
+    /**
+     * Multiply vector by matrix, calculating only the result columns within the range
+     */
+    protected abstract void mulVectorByMatrix(Vector vector, Matrix matrix, Vector result, int fromCol, int toCol);
+
+    /**
+     * Multiply vector by transposed matrix, calculating only the result rows within the range
+     */
+    protected abstract void mulVectorByTransposedMatrix(Vector vector, Matrix matrix, Vector result,
+                                                        int fromRow, int toRow);
+
+    @Override
+    public void mulVectorByMatrix(Vector vector, Matrix matrix, Vector result)
+    {
+        // The result columns are independent, so these can be calculated in parallel
+        workerPool.execute(matrix.getCols(), matrix.getRows(),
+                (fromCol, toCol) -> mulVectorByMatrix(vector, matrix, result, fromCol, toCol));
+    }
+
+    @Override
+    public void mulVectorByTransposedMatrix(Vector vector, Matrix matrix, Vector result)
+    {
+        // At a Q8 matrix the input is quantized as well, so the dot products can be calculated on integers
+        Vector input = quantizeInput(vector, matrix);
+
+        // The result rows are independent, so these can be calculated in parallel
+        workerPool.execute(matrix.getRows(), matrix.getCols(),
+                (fromRow, toRow) -> mulVectorByTransposedMatrix(input, matrix, result, fromRow, toRow));
+    }
+
+    /**
+     * Multiply the vectors by matrix, calculating only the result columns within the range (for all vectors)
+     * The backends override it by a register tiled kernel, which uses every loaded matrix value for several vectors.
+     */
+    protected void mulMatrixByMatrix(Vector[] vectors, Matrix matrix, Vector[] result, int fromCol, int toCol)
+    {
+        for (int i = 0; i < vectors.length; i++)
+        {
+            mulVectorByMatrix(vectors[i], matrix, result[i], fromCol, toCol);
+        }
+    }
+
+    /**
+     * Multiply the vectors by transposed matrix, calculating only the result rows within the range (for all vectors)
+     * The backends override it by a register tiled kernel, which uses every loaded matrix value for several vectors.
+     */
+    protected void mulMatrixByTransposedMatrix(Vector[] vectors, Matrix matrix, Vector[] result,
+                                               int fromRow, int toRow)
+    {
+        for (int i = 0; i < vectors.length; i++)
+        {
+            mulVectorByTransposedMatrix(vectors[i], matrix, result[i], fromRow, toRow);
+        }
+    }
+
+    @Override
+    public void mulMatrixByMatrix(Vector[] vectors, Matrix matrix, Vector[] result)
+    {
+        if (vectors.length == 1)
+        {
+            // A single vector is multiplied by the vector kernel (it reads the matrix in the order of the storage)
+            mulVectorByMatrix(vectors[0], matrix, result[0]);
+            return;
+        }
+
+        // The columns are split between the threads (fork-join), and every block of columns is multiplied by
+        // all vectors, so the block is read from the memory only once (cache blocking)
+        workerPool.execute(matrix.getCols(), (long) matrix.getRows() * vectors.length, (fromCol, toCol) ->
+        {
+            for (int from = fromCol; from < toCol; from += MATRIX_BLOCK_SIZE)
+            {
+                int to = Math.min(from + MATRIX_BLOCK_SIZE, toCol);
+                mulMatrixByMatrix(vectors, matrix, result, from, to);
+            }
+        });
+    }
+
+    @Override
+    public void mulMatrixByTransposedMatrix(Vector[] vectors, Matrix matrix, Vector[] result)
+    {
+        if (vectors.length == 1)
+        {
+            mulVectorByTransposedMatrix(vectors[0], matrix, result[0]);
+            return;
+        }
+
+        // At a Q8 matrix the inputs are quantized as well (see mulVectorByTransposedMatrix)
+        Vector[] inputs = vectors;
+
+        if (isQuantizedInput(matrix))
+        {
+            inputs = ARENAS.get().vectors("quantizedInputs", FloatType.Q8, vectors.length, vectors[0].size());
+            for (int i = 0; i < vectors.length; i++)
+            {
+                vectors[i].quantizeInto(inputs[i]);
+            }
+        }
+
+        Vector[] quantizedInputs = inputs;
+
+        // The rows are split between the threads (fork-join), and every block of rows is multiplied by all vectors,
+        // so the block is read from the memory only once (cache blocking)
+        workerPool.execute(matrix.getRows(), (long) matrix.getCols() * vectors.length, (fromRow, toRow) ->
+        {
+            for (int from = fromRow; from < toRow; from += MATRIX_BLOCK_SIZE)
+            {
+                int to = Math.min(from + MATRIX_BLOCK_SIZE, toRow);
+                mulMatrixByTransposedMatrix(quantizedInputs, matrix, result, from, to);
+            }
+        });
+    }
+
+    /**
+     * Is the input quantized before the multiplication by the matrix (at Q8 matrices with aligned blocks)
+     */
+    private static boolean isQuantizedInput(Matrix matrix)
+    {
+        return matrix.getFloatType().equals(FloatType.Q8) && matrix.hasAlignedBlocks();
+    }
+
+    /**
+     * Returns the input of the multiplication: the quantized copy of the vector in a working vector of the calling
+     * thread at Q8 matrices (valid until the next multiplication of the thread), otherwise the vector itself
+     */
+    private static Vector quantizeInput(Vector vector, Matrix matrix)
+    {
+        if (!isQuantizedInput(matrix))
+        {
+            return vector;
+        }
+
+        Vector input = ARENAS.get().vector("quantizedInput", FloatType.Q8, vector.size());
+        vector.quantizeInto(input);
+
+        return input;
+    }
+
+    /**
+     * Are all vectors stored as float32 values (the tiled kernels work on the float32 arrays directly)
+     */
+    protected static boolean isFloat32(Vector[] vectors)
+    {
+        for (Vector vector : vectors)
+        {
+            if (vector.getFloatType() != FloatType.FLOAT32)
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    @Override
+    public List<IndexedValue> mulVectorByTransposedMatrixAndFilter(Vector vector, Matrix matrix, int count)
+    {
+        Vector input = quantizeInput(vector, matrix);
+
+        List<IndexedValue> candidates = new ArrayList<>();
+
+        // Every shard (range of rows) is calculated chunk by chunk, retaining only the top values of the shard
+        workerPool.execute(matrix.getRows(), matrix.getCols(), (fromRow, toRow) ->
+        {
+            PriorityQueue<IndexedValue> topValues = new PriorityQueue<>(count + 1, BY_VALUE);
+            Vector chunk = new Vector(FloatType.FLOAT32, FILTER_CHUNK_SIZE);
+
+            for (int from = fromRow; from < toRow; from += FILTER_CHUNK_SIZE)
+            {
+                int size = Math.min(FILTER_CHUNK_SIZE, toRow - from);
+                mulVectorByTransposedMatrix(input, matrix.rows(from, from + size), chunk, 0, size);
+
+                for (int i = 0; i < size; i++)
+                {
+                    addCandidate(topValues, count, chunk.get(i), from + i);
+                }
+            }
+
+            synchronized (candidates)
+            {
+                candidates.addAll(topValues);
+            }
+        });
+
+        // Only the candidates of the shards are merged
+        return selectTop(candidates, count);
+    }
+
+    /**
+     * Adds the value to the top values (min-heap) if it's larger than the smallest retained value
+     */
+    protected static void addCandidate(PriorityQueue<IndexedValue> topValues, int count, float value, int index)
+    {
+        if (topValues.size() < count)
+        {
+            topValues.add(new IndexedValue(value, index));
+        }
+        else if (value > topValues.peek().getValue())
+        {
+            topValues.poll();
+            topValues.add(new IndexedValue(value, index));
+        }
+    }
+
+    /**
+     * Returns the top [count] values of the candidates in reversed order
+     */
+    protected static List<IndexedValue> selectTop(Collection<IndexedValue> candidates, int count)
+    {
+        List<IndexedValue> ordered = new ArrayList<>(candidates);
+        ordered.sort(BY_VALUE.reversed());
+
+        return new ArrayList<>(ordered.subList(0, Math.min(count, ordered.size())));
+    }
+
+    /**
+     * Dot product of two quantized vectors (the second is used from the offset, which must be at a block boundary)
+     * The integer values are multiplied and summed within a block, and the block sum is scaled by both scales.
+     */
+    protected float quantizedDotProduct(Vector vector1, Vector vector2, int offset2, int size)
+    {
+        byte[] values1 = vector1.getQuantizedValues();
+        byte[] values2 = vector2.getQuantizedValues();
+        float[] scales1 = vector1.getScales();
+        float[] scales2 = vector2.getScales();
+
+        int blockSize = Vector.QUANTIZATION_BLOCK_SIZE;
+        int blockOffset2 = offset2 / blockSize;
+
+        float sum = 0;
+
+        for (int block = 0; block < size / blockSize; block++)
+        {
+            int blockSum = 0;
+            int index1 = block * blockSize;
+            int index2 = offset2 + index1;
+
+            for (int i = 0; i < blockSize; i++)
+            {
+                blockSum += values1[index1 + i] * values2[index2 + i];
+            }
+
+            sum = sum + blockSum * scales1[block] * scales2[blockOffset2 + block];
+        }
+
+        return sum;
+    }
+
+    @Override
+    public Vector addVectors(Vector vector1, Vector vector2)
+    {
+        Vector ret = new Vector(vector1.getFloatType(), vector1.size());
+        addVectors(vector1, vector2, ret);
+
+        return ret;
+    }
+
+    @Override
+    public Vector mulVectorByScalar(Vector vector, float scalar)
+    {
+        Vector ret = new Vector(vector.getFloatType(), vector.size());
+        mulVectorByScalar(vector, scalar, ret);
+
+        return ret;
+    }
+
+    @Override
+    public Vector mulVectorByMatrix(Vector vector, Matrix matrix)
+    {
+        Vector ret = new Vector(vector.getFloatType(), matrix.getCols());
+        mulVectorByMatrix(vector, matrix, ret);
+
+        return ret;
+    }
+
+    @Override
+    public Vector mulVectorByTransposedMatrix(Vector vector, Matrix matrix)
+    {
+        Vector ret = new Vector(vector.getFloatType(), matrix.getRows());
+        mulVectorByTransposedMatrix(vector, matrix, ret);
+
+        return ret;
+    }
+
+    @Override
+    public Vector[] splitVector(Vector vector, int count)
+    {
+        Vector[] ret = Vector.newVectorArray(vector.getFloatType(), count, vector.size() / count);
+        splitVector(vector, ret);
+
+        return ret;
+    }
+
+    @Override
+    public Vector flattenMatrix(Vector[] matrix)
+    {
+        Vector ret = new Vector(matrix[0].getFloatType(), matrix.length * matrix[0].size());
+        flattenMatrix(matrix, ret);
+
+        return ret;
+    }
+
     @Override
     public float max(Vector vector)
     {
@@ -41,40 +390,138 @@ public abstract class AbstractUtil implements Utility
 
     @Override
     public Vector normalize(Vector vector, float epsilon)
+    {
+        Vector norm = new Vector(vector.getFloatType(), vector.size());
+        normalize(vector, epsilon, norm);
+
+        return norm;
+    }
+
+    @Override
+    public void normalize(Vector vector, float epsilon, Vector result)
     {
         float average = average(vector);
         float averageDiff = averageDiff(vector, average, epsilon);
 
-        Vector norm = new Vector(vector.getFloatType(), vector.size());
+        for (int i = 0; i < vector.size(); i++)
+        {
+            result.set(i, (vector.get(i) - average) / averageDiff);
+        }
+    }
+
+    @Override
+    public void layerNorm(Vector vector, Vector weight, Vector bias, float epsilon, Vector result)
+    {
+        int size = vector.size();
+
+        // The sum and the sum of squares are collected in the same pass (in double, to avoid the loss of precision)
+        double sum = 0;
+        double squareSum = 0;
+
+        for (int i = 0; i < size; i++)
+        {
+            double value = vector.get(i);
+            sum = sum + value;
+            squareSum = squareSum + value * value;
+        }
+
+        double average = sum / size;
+        double variance = Math.max(squareSum / size - average * average, 0);
+
+        float mean = (float) average;
+        float deviation = (float) Math.sqrt(variance + epsilon);
+
+        // Normalization, and applying the trained weights and biases
+        for (int i = 0; i < size; i++)
+        {
+            result.set(i, (vector.get(i) - mean) / deviation * weight.get(i) + bias.get(i));
+        }
+    }
+
+    @Override
+    public void rmsNorm(Vector vector, Vector weight, float epsilon, Vector result)
+    {
+        int size = vector.size();
+
+        // Calculate the sum of squares
+        float sum = 0f;
+        for (int i = 0; i < size; i++)
+        {
+            float value = vector.get(i);
+            sum += value * value;
+        }
 
+        // Calculate root mean square
+        float scale = 1f / (float) Math.sqrt(sum / size + epsilon);
+
+        // Normalize and scale
+        for (int i = 0; i < size; i++)
+        {
+            result.set(i, weight.get(i) * (scale * vector.get(i)));
+        }
+    }
+
+    @Override
+    public void gelu(Vector vector, Vector bias, Vector result)
+    {
         for (int i = 0; i < vector.size(); i++)
         {
-            norm.set(i, (vector.get(i) - average) / averageDiff);
+            float value = bias == null ? vector.get(i) : vector.get(i) + bias.get(i);
+            result.set(i, (float) (0.5 * value * (1 + Math.tanh(Math.sqrt(2 / Math.PI)
+                    * (value + 0.044715 * value * value * value)))));
         }
+    }
 
-        return norm;
+    @Override
+    public void swiglu(Vector gate, Vector up, Vector result)
+    {
+        for (int i = 0; i < gate.size(); i++)
+        {
+            float value = gate.get(i);
+            float activated = (float) (value * (1f / (1f + Math.exp(-value))));
+            result.set(i, activated * up.get(i));
+        }
+    }
+
+    @Override
+    public void softmax(Vector vector, Vector result)
+    {
+        float max = max(vector);
+
+        // The exponents are stored in the result, so these are calculated only once
+        double total = 0;
+        for (int i = 0; i < vector.size(); i++)
+        {
+            float exp = (float) Math.exp(vector.get(i) - max);
+            result.set(i, exp);
+
+            total = total + exp;
+        }
+
+        for (int i = 0; i < vector.size(); i++)
+        {
+            result.set(i, (float) (result.get(i) / total));
+        }
     }
 
     @Override
     public float averageDiff(Vector values, float average, float epsilon)
     {
-        Vector squareDiff = new Vector(values.getFloatType(), values.size());
+        // The squared differences are summed directly (without collecting them into a temporary vector)
+        double sum = 0;
 
         for (int i = 0; i < values.size(); i++)
         {
             float diff = values.get(i) - average;
-            squareDiff.set(i, diff * diff);
+            sum = sum + diff * diff;
         }
 
-        float averageSquareDiff = average(squareDiff);
+        float averageSquareDiff = (float) sum / values.size();
 
         return (float) Math.sqrt(averageSquareDiff + epsilon);
     }
 
-
-    /**
-     * Sort values to reversed order and filter out the lowest values (retain the top [count] values)
-     */
+    @Override
     public List<IndexedValue> reverseAndFilter(float[] values, int count)
     {
         TreeSet<IndexedValue> indexedValues = new TreeSet<>(new IndexedValue.ReverseComparator());
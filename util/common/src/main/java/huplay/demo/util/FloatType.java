@@ -4,5 +4,11 @@ public enum FloatType
 {
     FLOAT32,
     FLOAT16,
-    BFLOAT16
+    BFLOAT16,
+
+    // 8-bit integers with a float32 scale per block of 32 values (value = integer * scale)
+    Q8,
+
+    // 4-bit integers (two in a byte) with a float32 scale and minimum per block of 32 values (integer * scale + min)
+    Q4
 }
@@ -0,0 +1,135 @@
+package huplay.demo.util;
+
+/**
+ * Conversion between float32 and the 16-bit float formats
+ * FLOAT16 (IEEE 754 half precision): 1 sign bit, 5 exponent bits, 10 mantissa bits
+ * BFLOAT16 (brain float): 1 sign bit, 8 exponent bits, 7 mantissa bits (the upper half of a float32)
+ */
+public final class HalfFloat
+{
+    // Every float16 value is decoded in advance (65536 * 4 bytes), so the decoding is a single array lookup
+    private static final float[] FLOAT16_TABLE = new float[65536];
+
+    static
+    {
+        for (int i = 0; i < FLOAT16_TABLE.length; i++)
+        {
+            FLOAT16_TABLE[i] = decodeFloat16((short) i);
+        }
+    }
+
+    private HalfFloat()
+    {
+    }
+
+    public static float float16ToFloat(short value)
+    {
+        return FLOAT16_TABLE[value & 0xFFFF];
+    }
+
+    public static float bFloat16ToFloat(short value)
+    {
+        // The brain float is the upper 16 bits of a float32
+        return Float.intBitsToFloat(value << 16);
+    }
+
+    /**
+     * Converts a float32 to float16, rounding to the nearest value (ties to even)
+     */
+    public static short floatToFloat16(float value)
+    {
+        int bits = Float.floatToRawIntBits(value);
+        int sign = (bits >>> 16) & 0x8000;
+        int exponent = (bits >>> 23) & 0xFF;
+        int mantissa = bits & 0x7FFFFF;
+
+        if (exponent == 0xFF)
+        {
+            // Infinity or NaN (the NaN keeps a non-zero mantissa)
+            return (short) (sign | 0x7C00 | (mantissa != 0 ? 0x200 | (mantissa >>> 13) : 0));
+        }
+
+        int halfExponent = exponent - 127 + 15;
+
+        if (halfExponent >= 0x1F)
+        {
+            // Too large, converted to infinity
+            return (short) (sign | 0x7C00);
+        }
+
+        if (halfExponent <= 0)
+        {
+            // Subnormal value (or zero)
+            if (halfExponent < -10)
+            {
+                return (short) sign;
+            }
+
+            mantissa = mantissa | 0x800000;
+            int shift = 14 - halfExponent;
+            int half = mantissa >>> shift;
+            int remainder = mantissa & ((1 << shift) - 1);
+            int halfway = 1 << (shift - 1);
+
+            if (remainder > halfway || (remainder == halfway && (half & 1) == 1))
+            {
+                half++;
+            }
+
+            return (short) (sign | half);
+        }
+
+        // Normal value (a carry of the rounding correctly overflows into the exponent)
+        int half = (halfExponent << 10) | (mantissa >>> 13);
+        int remainder = mantissa & 0x1FFF;
+
+        if (remainder > 0x1000 || (remainder == 0x1000 && (half & 1) == 1))
+        {
+            half++;
+        }
+
+        return (short) (sign | half);
+    }
+
+    /**
+     * Converts a float32 to brain float, rounding to the nearest value (ties to even)
+     */
+    public static short floatToBFloat16(float value)
+    {
+        int bits = Float.floatToRawIntBits(value);
+
+        if ((bits & 0x7FFFFFFF) > 0x7F800000)
+        {
+            // NaN (the truncated mantissa can't be zero)
+            return (short) ((bits >>> 16) | 0x40);
+        }
+
+        int rounding = 0x7FFF + ((bits >>> 16) & 1);
+
+        return (short) ((bits + rounding) >>> 16);
+    }
+
+    private static float decodeFloat16(short value)
+    {
+        int sign = (value & 0x8000) << 16;
+        int exponent = (value >>> 10) & 0x1F;
+        int mantissa = value & 0x3FF;
+
+        if (exponent == 0x1F)
+        {
+            // Infinity or NaN
+            return Float.intBitsToFloat(sign | 0x7F800000 | (mantissa << 13));
+        }
+        else if (exponent == 0)
+        {
+            // Zero or subnormal value (mantissa * 2^-24)
+            float subnormal = mantissa * 0x1p-24f;
+            return sign == 0 ? subnormal : -subnormal;
+        }
+        else
+        {
+            // Normal value
+            return Float.intBitsToFloat(sign | ((exponent - 15 + 127) << 23) | (mantissa << 13));
+        }
+    }
+}
@@ -1,36 +1,207 @@
 package huplay.demo.util;
 
+/**
+ * Two-dimensional tensor, backed by a single contiguous buffer (a Vector)
+ * The position of an element within the buffer is: offset + row * rowStride + col * colStride
+ * (A row-major matrix has rowStride = cols and colStride = 1, the transposed view simply swaps the strides.)
+ */
 public class Matrix
 {
-    private FloatType floatType;
-    private Vector[] values;
+    private final Vector values;
+    private final int offset;
+    private final int rows;
+    private final int cols;
+    private final int rowStride;
+    private final int colStride;
 
-    public Matrix(FloatType floatType, Vector[] values)
+    public Matrix(FloatType floatType, int rows, int cols)
     {
-        if (floatType.equals(FloatType.FLOAT32))
+        this(new Vector(floatType, rows * cols), rows, cols);
+    }
+
+    public Matrix(Vector values, int rows, int cols)
+    {
+        this(values, 0, rows, cols, cols, 1);
+    }
+
+    public Matrix(Vector values, int offset, int rows, int cols, int rowStride, int colStride)
+    {
+        if (offset + (long) (rows - 1) * rowStride + (long) (cols - 1) * colStride >= values.size())
+        {
+            throw new RuntimeException("Matrix (" + rows + "x" + cols + ") doesn't fit into the buffer (size: "
+                    + values.size() + ")");
+        }
+
+        this.values = values;
+        this.offset = offset;
+        this.rows = rows;
+        this.cols = cols;
+        this.rowStride = rowStride;
+        this.colStride = colStride;
+    }
+
+    /**
+     * Matrix without a heap buffer: the values are stored by the subclass (for example in native memory)
+     * (The subclass has to override the element access, the views and the float type.)
+     */
+    protected Matrix(int rows, int cols)
+    {
+        this.values = null;
+        this.offset = 0;
+        this.rows = rows;
+        this.cols = cols;
+        this.rowStride = cols;
+        this.colStride = 1;
+    }
+
+    /**
+     * Creates a matrix from the rows (the values are copied into a single buffer)
+     */
+    public static Matrix of(Vector... rows)
+    {
+        Matrix matrix = new Matrix(rows[0].getFloatType(), rows.length, rows[0].size());
+
+        for (int row = 0; row < rows.length; row++)
         {
-            this.values = values;
+            for (int col = 0; col < rows[row].size(); col++)
+            {
+                matrix.set(row, col, rows[row].get(col));
+            }
         }
-        if (floatType.equals(FloatType.FLOAT16))
+
+        return matrix;
+    }
+
+    /**
+     * Transposed view of the same buffer (no values are copied)
+     */
+    public Matrix transpose()
+    {
+        return new Matrix(values, offset, cols, rows, colStride, rowStride);
+    }
+
+    /**
+     * View of a range of rows of the same buffer (no values are copied)
+     */
+    public Matrix rows(int fromRow, int toRow)
+    {
+        return new Matrix(values, offset + fromRow * rowStride, toRow - fromRow, cols, rowStride, colStride);
+    }
+
+    /**
+     * View of a range of columns of the same buffer (no values are copied)
+     */
+    public Matrix cols(int fromCol, int toCol)
+    {
+        return new Matrix(values, offset + fromCol * colStride, rows, toCol - fromCol, rowStride, colStride);
+    }
+
+    /**
+     * Returns a quantized copy of the matrix (stored row by row, so the quantization blocks are within the rows)
+     * The values are converted block by block, so a float32 copy of the large matrices isn't needed.
+     */
+    public Matrix quantize(FloatType floatType)
+    {
+        int size = rows * cols;
+        Vector quantized = new Vector(floatType, size);
+
+        if (!quantized.isQuantized())
         {
+            // Simple conversion (for example to a 16-bit float type)
+            Matrix matrix = new Matrix(quantized, rows, cols);
+            for (int row = 0; row < rows; row++)
+            {
+                for (int col = 0; col < cols; col++)
+                {
+                    matrix.set(row, col, get(row, col));
+                }
+            }
 
+            return matrix;
         }
-        else if (floatType.equals(FloatType.BFLOAT16))
+
+        float[] block = new float[Vector.QUANTIZATION_BLOCK_SIZE];
+
+        for (int blockIndex = 0; blockIndex * block.length < size; blockIndex++)
         {
+            int start = blockIndex * block.length;
+            int count = Math.min(block.length, size - start);
+
+            for (int i = 0; i < count; i++)
+            {
+                block[i] = get((start + i) / cols, (start + i) % cols);
+            }
+
+            quantized.quantizeBlock(blockIndex, block, 0, count);
         }
-        else
+
+        return new Matrix(quantized, rows, cols);
+    }
+
+    /**
+     * Returns a copy of a row as a float32 vector
+     */
+    public Vector getRow(int row)
+    {
+        Vector ret = new Vector(FloatType.FLOAT32, cols);
+        getRow(row, ret);
+
+        return ret;
+    }
+
+    /**
+     * Copies a row into the provided vector
+     */
+    public void getRow(int row, Vector result)
+    {
+        for (int col = 0; col < cols; col++)
         {
-            throw new RuntimeException("Unsupported vector float type: " + floatType.name());
+            result.set(col, get(row, col));
         }
     }
 
-    public Vector[] getValues()
+    public float get(int row, int col)
     {
-        return values;
+        return values.get(offset + row * rowStride + col * colStride);
     }
 
-    public Vector get(int index)
+    public void set(int row, int col, float value)
+    {
+        values.set(offset + row * rowStride + col * colStride, value);
+    }
+
+    /**
+     * Is every row stored in a contiguous block (the rows can be processed as flat arrays)
+     */
+    public boolean hasContiguousRows()
+    {
+        return colStride == 1;
+    }
+
+    /**
+     * Does every row start at a block boundary of a quantized buffer (the rows can be processed block by block)
+     */
+    public boolean hasAlignedBlocks()
+    {
+        int blockSize = Vector.QUANTIZATION_BLOCK_SIZE;
+        return hasContiguousRows() && offset % blockSize == 0 && rowStride % blockSize == 0 && cols % blockSize == 0;
+    }
+
+    // Getters
+    public FloatType getFloatType() {return values.getFloatType();}
+    public Vector getValues() {return values;}
+    public float[] getFloat32Values() {return values.getFloat32Values();}
+    public int getOffset() {return offset;}
+    public int getRows() {return rows;}
+    public int getCols() {return cols;}
+    public int getRowStride() {return rowStride;}
+    public int getColStride() {return colStride;}
+
+    /**
+     * Position of the first element of a row within the buffer
+     */
+    public int rowOffset(int row)
     {
-        return values[index];
+        return offset + row * rowStride;
     }
 }
@@ -0,0 +1,94 @@
+package huplay.demo.util;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Reusable working vectors, so the calculation of a token doesn't have to allocate new ones
+ * The vectors are identified by name, created at the first request, and the same instance is returned later.
+ * (If a larger vector is requested, the capacity is extended, but the content isn't retained.)
+ */
+public class ScratchArena
+{
+    private final Map<String, Vector> vectors = new HashMap<>();
+    private final Map<String, Vector[]> vectorArrays = new HashMap<>();
+    private final Map<String, Vector[][]> arrayViews = new HashMap<>();
+
+    /**
+     * Returns a float32 working vector of the requested size
+     */
+    public Vector vector(String name, int size)
+    {
+        return vector(name, FloatType.FLOAT32, size);
+    }
+
+    /**
+     * Returns a working vector of the requested float type and size (for example the quantized copy of an input)
+     */
+    public Vector vector(String name, FloatType floatType, int size)
+    {
+        Vector vector = vectors.get(name);
+
+        if (vector == null || vector.getFloatType() != floatType || vector.getCapacity() < size)
+        {
+            // Vectors with growing size (like the attention scores) are extended with reserve
+            int capacity = vector == null || vector.getFloatType() != floatType
+                    ? size
+                    : Math.max(size, vector.getCapacity() * 2);
+
+            vector = new Vector(floatType, capacity);
+            vectors.put(name, vector);
+        }
+
+        vector.resize(size);
+
+        return vector;
+    }
+
+    /**
+     * Returns an array of float32 working vectors (a matrix) of the requested size
+     */
+    public Vector[] vectors(String name, int count, int size)
+    {
+        return vectors(name, FloatType.FLOAT32, count, size);
+    }
+
+    /**
+     * Returns an array of working vectors of the requested float type and size
+     * The vectors are retained if a smaller count is requested (like a shrinking batch), and the array of the first
+     * count vectors is cached per count, so a varying count doesn't allocate either.
+     */
+    public Vector[] vectors(String name, FloatType floatType, int count, int size)
+    {
+        Vector[] array = vectorArrays.get(name);
+
+        if (array == null || array.length < count || array[0].getFloatType() != floatType
+                || array[0].getCapacity() < size)
+        {
+            boolean isReusable = array != null && array[0].getFloatType() == floatType;
+            int length = isReusable ? Math.max(count, array.length) : count;
+            int capacity = isReusable ? Math.max(size, array[0].getCapacity()) : size;
+
+            array = Vector.newVectorArray(floatType, length, capacity);
+            vectorArrays.put(name, array);
+            arrayViews.put(name, new Vector[length + 1][]);
+        }
+
+        Vector[][] views = arrayViews.get(name);
+        Vector[] view = views[count];
+
+        if (view == null)
+        {
+            view = count == array.length ? array : Arrays.copyOf(array, count);
+            views[count] = view;
+        }
+
+        for (Vector vector : view)
+        {
+            vector.resize(size);
+        }
+
+        return view;
+    }
+}
@@ -2,15 +2,43 @@ package huplay.demo.util;
 
 import java.util.List;
 
+/**
+ * Calculation library interface
+ * The methods with a result parameter write the result into the provided vector (without allocating a new one),
+ * so the same working vectors can be reused for every processed token.
+ */
 public interface Utility
 {
     String getUtilName();
 
+    /**
+     * Sets the number of threads used by the matrix multiplications (1: single-threaded execution)
+     */
+    void setThreadCount(int threadCount);
+
+    int getThreadCount();
+
+    /**
+     * Stops the threads of the implementation (it can't be used after that)
+     */
+    void shutdown();
+
+    /**
+     * Converts a parameter matrix into the form preferred by the implementation (called once, at loading)
+     * The returned matrix has the same shape and values, so it can be used by the other implementations as well.
+     */
+    Matrix prepare(Matrix matrix);
+
     /**
      * Vector to vector addition
      */
     Vector addVectors(Vector vector1, Vector vector2);
 
+    /**
+     * Vector to vector addition into the result vector (it can be the same as any of the inputs)
+     */
+    void addVectors(Vector vector1, Vector vector2, Vector result);
+
     /**
      * Dot product calculation (multiplying vector by vector)
      */
@@ -21,26 +49,75 @@ public interface Utility
      */
     Vector mulVectorByScalar(Vector vector, float scalar);
 
+    /**
+     * Multiply vector by a scalar into the result vector (it can be the same as the input)
+     */
+    void mulVectorByScalar(Vector vector, float scalar, Vector result);
+
+    /**
+     * Multiply vector by a scalar and add it to the result vector (result += vector * scalar)
+     */
+    void mulVectorByScalarAndAdd(Vector vector, float scalar, Vector result);
+
     /**
      * Multiply vector by matrix
      */
-    Vector mulVectorByMatrix(Vector vector, Vector[] matrix);
+    Vector mulVectorByMatrix(Vector vector, Matrix matrix);
+
+    /**
+     * Multiply vector by matrix into the result vector (it must be different to the input)
+     */
+    void mulVectorByMatrix(Vector vector, Matrix matrix, Vector result);
 
     /**
      * Multiply vector by transposed matrix
      */
-    Vector mulVectorByTransposedMatrix(Vector vector, Vector[] matrix);
+    Vector mulVectorByTransposedMatrix(Vector vector, Matrix matrix);
+
+    /**
+     * Multiply vector by transposed matrix into the result vector (it must be different to the input)
+     */
+    void mulVectorByTransposedMatrix(Vector vector, Matrix matrix, Vector result);
+
+    /**
+     * Multiply every vector (the rows of the first matrix) by matrix into the rows of the result
+     * The matrix is read only once for all vectors, so it's much faster than multiplying the vectors one by one.
+     */
+    void mulMatrixByMatrix(Vector[] vectors, Matrix matrix, Vector[] result);
+
+    /**
+     * Multiply every vector (the rows of the first matrix) by transposed matrix into the rows of the result
+     * The matrix is read only once for all vectors, so it's much faster than multiplying the vectors one by one.
+     */
+    void mulMatrixByTransposedMatrix(Vector[] vectors, Matrix matrix, Vector[] result);
+
+    /**
+     * Multiply vector by transposed matrix, retaining only the top [count] values of the result (in reversed order)
+     * The rows are split into shards, and every shard keeps only its own top values, so the full result isn't stored.
+     * (Used to select the most likely tokens from the logits.)
+     */
+    List<IndexedValue> mulVectorByTransposedMatrixAndFilter(Vector vector, Matrix matrix, int count);
 
     /**
      * Split a vector to a matrix
      */
     Vector[] splitVector(Vector vector, int count);
 
+    /**
+     * Split a vector into the rows of the result matrix (the number of rows determines the number of segments)
+     */
+    void splitVector(Vector vector, Vector[] result);
+
     /**
      * Merge the rows of a matrix to a single vector
      */
     Vector flattenMatrix(Vector[] matrix);
 
+    /**
+     * Merge the rows of a matrix into the result vector
+     */
+    void flattenMatrix(Vector[] matrix, Vector result);
+
     /**
      * Finds the maximum value in the vector
      */
@@ -51,6 +128,11 @@ public interface Utility
      */
     float max(List<IndexedValue> vector);
 
+    /**
+     * Sort values to reversed order and filter out the lowest values (retain the top [count] values)
+     */
+    List<IndexedValue> reverseAndFilter(float[] values, int count);
+
     /**
      * Calculate average (mean) value
      */
@@ -65,4 +147,44 @@ public interface Utility
      * Standard normalization - (value - avg) * sqrt( (value - avg)^2 + epsilon)
      */
     Vector normalize(Vector vector, float epsilon);
+
+    /**
+     * Standard normalization into the result vector (it can be the same as the input)
+     */
+    void normalize(Vector vector, float epsilon, Vector result);
+
+    /**
+     * Layer normalization with applying the trained weights and biases (fused: the mean and variance are calculated
+     * without allocation, and the result is written by the same call)
+     * The backends can read the input more than once, only the precision is part of the contract: the variance has to
+     * stay accurate at a large mean as well. The Java implementation collects the sum and the sum of squares in a
+     * single pass in double (its precision covers the cancellation), while the float lanes of the Vector API don't
+     * have enough digits for that, so it uses a shifted sum for the mean and a second pass for the variance.
+     * The result vector can be the same as the input, so it can be executed in place.
+     */
+    void layerNorm(Vector vector, Vector weight, Vector bias, float epsilon, Vector result);
+
+    /**
+     * Root Mean Square Layer Normalization (RMS) with applying the trained weights
+     * The result vector can be the same as the input, so it can be executed in place.
+     */
+    void rmsNorm(Vector vector, Vector weight, float epsilon, Vector result);
+
+    /**
+     * GELU activation applied after adding the bias (the bias is optional, it can be null)
+     * The result vector can be the same as the input, so it can be executed in place.
+     */
+    void gelu(Vector vector, Vector bias, Vector result);
+
+    /**
+     * SwiGLU: SiLU (swish) activation on the gate vector, multiplied by the up vector
+     * The result vector can be the same as any of the inputs, so it can be executed in place.
+     */
+    void swiglu(Vector gate, Vector up, Vector result);
+
+    /**
+     * Calculate softmax - rescale the values into a range between 0 and 1 (calculating the exponents only once)
+     * The result vector can be the same as the input, so it can be executed in place.
+     */
+    void softmax(Vector vector, Vector result);
 }
@@ -0,0 +1,181 @@
+package huplay.demo.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+
+/**
+ * Finds the calculation libraries (backends) on the classpath, and creates the selected one
+ */
+public final class UtilityLoader
+{
+    // Selects the available backend with the highest priority
+    public static final String AUTO = "auto";
+
+    // Selects the fastest available backend, measured by a short matrix multiplication benchmark
+    public static final String BENCHMARK = "benchmark";
+
+    private static final int BENCHMARK_SIZE = 1024;
+    private static final int BENCHMARK_ROUNDS = 20;
+
+    private UtilityLoader()
+    {
+    }
+
+    /**
+     * Returns the backends which can be used in the actual JVM, in the order of priority (highest first)
+     */
+    public static List<UtilityProvider> getAvailableProviders()
+    {
+        List<UtilityProvider> providers = new ArrayList<>();
+
+        Iterator<UtilityProvider> iterator = ServiceLoader.load(UtilityProvider.class).iterator();
+        while (true)
+        {
+            try
+            {
+                if (!iterator.hasNext()) break;
+
+                UtilityProvider provider = iterator.next();
+                if (provider.isAvailable())
+                {
+                    providers.add(provider);
+                }
+            }
+            catch (ServiceConfigurationError | LinkageError e)
+            {
+                // The provider can't be loaded in this JVM (for example it was compiled for a newer Java version)
+            }
+        }
+
+        providers.sort(Comparator.comparingInt(UtilityProvider::getPriority).reversed());
+
+        return providers;
+    }
+
+    /**
+     * Creates the backend by name, or selects it automatically (auto or benchmark), using all processors
+     */
+    public static Utility load(String backend)
+    {
+        return load(backend, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates the backend by name, or selects it automatically (auto or benchmark), using the given number of threads
+     * (At the benchmark the backends are measured with this thread count, and the not selected ones are shut down.)
+     */
+    public static Utility load(String backend, int threadCount)
+    {
+        List<UtilityProvider> providers = getAvailableProviders();
+
+        if (providers.isEmpty())
+        {
+            throw new RuntimeException("There is no available calculation library (backend) on the classpath");
+        }
+
+        String name = backend == null ? AUTO : backend.toLowerCase(Locale.ROOT);
+
+        if (name.equals(AUTO))
+        {
+            return create(providers.get(0), threadCount);
+        }
+        else if (name.equals(BENCHMARK))
+        {
+            return selectFastest(providers, threadCount);
+        }
+
+        for (UtilityProvider provider : providers)
+        {
+            if (provider.getName().equals(name))
+            {
+                return create(provider, threadCount);
+            }
+        }
+
+        throw new RuntimeException("Unknown or unavailable backend: " + backend + " (available: "
+                + getNames(providers) + ", " + AUTO + ", " + BENCHMARK + ")");
+    }
+
+    private static Utility create(UtilityProvider provider, int threadCount)
+    {
+        Utility utility = provider.create();
+        utility.setThreadCount(threadCount);
+
+        return utility;
+    }
+
+    private static Utility selectFastest(List<UtilityProvider> providers, int threadCount)
+    {
+        // Matrix with the typical size of a small model's weights (4 MB, larger than the L2 cache)
+        Vector vector = new Vector(FloatType.FLOAT32, BENCHMARK_SIZE);
+        Matrix matrix = new Matrix(FloatType.FLOAT32, BENCHMARK_SIZE, BENCHMARK_SIZE);
+        Vector result = new Vector(FloatType.FLOAT32, BENCHMARK_SIZE);
+
+        for (int row = 0; row < BENCHMARK_SIZE; row++)
+        {
+            vector.set(row, (row % 17) * 0.01f);
+
+            for (int col = 0; col < BENCHMARK_SIZE; col++)
+            {
+                matrix.set(row, col, ((row + col) % 13) * 0.01f);
+            }
+        }
+
+        Utility fastest = null;
+        long fastestTime = Long.MAX_VALUE;
+
+        for (UtilityProvider provider : providers)
+        {
+            Utility utility = create(provider, threadCount);
+
+            // The first rounds are for the warm-up (JIT compilation), only the second rounds are measured
+            for (int i = 0; i < BENCHMARK_ROUNDS; i++)
+            {
+                utility.mulVectorByTransposedMatrix(vector, matrix, result);
+            }
+
+            long start = System.nanoTime();
+            for (int i = 0; i < BENCHMARK_ROUNDS; i++)
+            {
+                utility.mulVectorByTransposedMatrix(vector, matrix, result);
+            }
+            long time = System.nanoTime() - start;
+
+            if (time < fastestTime)
+            {
+                if (fastest != null)
+                {
+                    fastest.shutdown();
+                }
+
+                fastest = utility;
+                fastestTime = time;
+            }
+            else
+            {
+                utility.shutdown();
+            }
+        }
+
+        return fastest;
+    }
+
+    private static String getNames(List<UtilityProvider> providers)
+    {
+        List<String> names = new ArrayList<>();
+        for (UtilityProvider provider : providers)
+        {
+            names.add(provider.getName());
+        }
+
+        Collections.sort(names);
+
+        return String.join(", ", names);
+    }
+}
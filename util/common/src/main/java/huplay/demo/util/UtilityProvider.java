@@ -0,0 +1,26 @@
+package huplay.demo.util;
+
+/**
+ * Service provider of a calculation library (backend)
+ * The implementations are registered in the META-INF/services/huplay.demo.util.UtilityProvider file of their jar,
+ * so every backend on the classpath can be found at runtime (see UtilityLoader).
+ */
+public interface UtilityProvider
+{
+    /**
+     * Name of the backend (used to select it by the -backend argument)
+     */
+    String getName();
+
+    /**
+     * At automatic selection the available backend with the highest priority is used
+     */
+    int getPriority();
+
+    /**
+     * Can the backend be used in the actual JVM (checked without creating the Utility)
+     */
+    boolean isAvailable();
+
+    Utility create();
+}
@@ -2,13 +2,23 @@ package huplay.demo.util;
 
 public class Vector
 {
+    // Number of values sharing the same scale (and minimum) at the quantized vectors
+    public static final int QUANTIZATION_BLOCK_SIZE = 32;
+
     private final FloatType floatType;
     private float[] float32Values;
     private short[] float16Values;
+    private byte[] quantizedValues;
+    private float[] scales;
+    private float[] mins;
+
+    // Number of used elements (can be less than the allocated capacity at reusable vectors)
+    private int size;
 
     public Vector(FloatType floatType, int size)
     {
         this.floatType = floatType;
+        this.size = size;
         if (floatType.equals(FloatType.FLOAT32))
         {
             float32Values = new float[size];
@@ -21,6 +31,10 @@ public class Vector
         {
             float16Values = new short[size];
         }
+        else if (floatType.equals(FloatType.Q8) || floatType.equals(FloatType.Q4))
+        {
+            allocateQuantized(size);
+        }
         else
         {
             throw new RuntimeException("Unsupported vector float type: " + floatType.name());
@@ -30,16 +44,29 @@ public class Vector
     public Vector(FloatType floatType, float[] values)
     {
         this.floatType = floatType;
+        this.size = values.length;
         if (floatType.equals(FloatType.FLOAT32))
         {
             float32Values = values;
         }
-        else if (floatType.equals(FloatType.FLOAT16))
+        else if (floatType.equals(FloatType.FLOAT16) || floatType.equals(FloatType.BFLOAT16))
         {
-
+            // Converted to the 16-bit storage
+            float16Values = new short[values.length];
+            for (int i = 0; i < values.length; i++)
+            {
+                set(i, values[i]);
+            }
         }
-        else if (floatType.equals(FloatType.BFLOAT16))
+        else if (floatType.equals(FloatType.Q8) || floatType.equals(FloatType.Q4))
         {
+            allocateQuantized(values.length);
+
+            for (int block = 0; block < scales.length; block++)
+            {
+                int offset = block * QUANTIZATION_BLOCK_SIZE;
+                quantizeBlock(block, values, offset, Math.min(QUANTIZATION_BLOCK_SIZE, values.length - offset));
+            }
         }
         else
         {
@@ -50,19 +77,136 @@ public class Vector
     public Vector(FloatType floatType, short[] values)
     {
         this.floatType = floatType;
-        if (floatType.equals(FloatType.FLOAT32))
+        this.size = values.length;
+        if (floatType.equals(FloatType.FLOAT16) || floatType.equals(FloatType.BFLOAT16))
         {
+            float16Values = values;
         }
-        else if (floatType.equals(FloatType.FLOAT16))
+        else
         {
-            float16Values = values;
+            throw new RuntimeException("Unsupported 16-bit vector float type: " + floatType.name());
         }
-        else if (floatType.equals(FloatType.BFLOAT16))
+    }
+
+    private void allocateQuantized(int size)
+    {
+        int blockCount = (size + QUANTIZATION_BLOCK_SIZE - 1) / QUANTIZATION_BLOCK_SIZE;
+        scales = new float[blockCount];
+
+        if (floatType.equals(FloatType.Q8))
         {
+            quantizedValues = new byte[size];
         }
         else
         {
-            throw new RuntimeException("Unsupported vector float type: " + floatType.name());
+            quantizedValues = new byte[blockCount * QUANTIZATION_BLOCK_SIZE / 2];
+            mins = new float[blockCount];
+        }
+    }
+
+    /**
+     * Quantizes the values of a block (count values from the offset of the array)
+     * Q8: symmetric quantization, the scale is the largest absolute value of the block divided by 127
+     * Q4: the range between the minimum and maximum is split to 15 steps. The value at the position i (in the block)
+     * is stored in the lower 4 bits of the byte i, the value at i + 16 in the upper 4 bits of the same byte.
+     */
+    public void quantizeBlock(int block, float[] values, int offset, int count)
+    {
+        int start = block * QUANTIZATION_BLOCK_SIZE;
+
+        if (floatType.equals(FloatType.Q8))
+        {
+            float max = 0;
+            for (int i = 0; i < count; i++)
+            {
+                max = Math.max(max, Math.abs(values[offset + i]));
+            }
+
+            float scale = max / 127;
+            scales[block] = scale;
+
+            for (int i = 0; i < count; i++)
+            {
+                quantizedValues[start + i] = scale == 0 ? 0 : (byte) Math.round(values[offset + i] / scale);
+            }
+        }
+        else if (floatType.equals(FloatType.Q4))
+        {
+            float min = Float.POSITIVE_INFINITY;
+            float max = Float.NEGATIVE_INFINITY;
+            for (int i = 0; i < count; i++)
+            {
+                min = Math.min(min, values[offset + i]);
+                max = Math.max(max, values[offset + i]);
+            }
+
+            float scale = (max - min) / 15;
+            scales[block] = scale;
+            mins[block] = min;
+
+            int byteOffset = start / 2;
+            for (int i = 0; i < QUANTIZATION_BLOCK_SIZE / 2; i++)
+            {
+                quantizedValues[byteOffset + i] = 0;
+            }
+
+            for (int i = 0; i < count; i++)
+            {
+                int value = scale == 0 ? 0 : Math.round((values[offset + i] - min) / scale);
+                value = Math.max(0, Math.min(15, value));
+
+                quantizedValues[byteOffset + (i & 15)] |= (byte) (i < 16 ? value : value << 4);
+            }
+        }
+        else
+        {
+            throw new RuntimeException("Unsupported quantization type: " + floatType.name());
+        }
+    }
+
+    /**
+     * Returns a quantized copy of the vector
+     */
+    public Vector quantize(FloatType floatType)
+    {
+        float[] values = new float[size];
+        for (int i = 0; i < size; i++)
+        {
+            values[i] = get(i);
+        }
+
+        return new Vector(floatType, values);
+    }
+
+    /**
+     * Quantizes the vector into the target vector, which is resized to the size of this vector
+     * (The target can be a reusable vector, so the quantization doesn't allocate memory.)
+     */
+    public void quantizeInto(Vector target)
+    {
+        target.resize(size);
+
+        float[] values = float32Values;
+        float[] block = values == null ? new float[QUANTIZATION_BLOCK_SIZE] : null;
+
+        for (int offset = 0; offset < size; offset += QUANTIZATION_BLOCK_SIZE)
+        {
+            int count = Math.min(QUANTIZATION_BLOCK_SIZE, size - offset);
+
+            if (values != null)
+            {
+                target.quantizeBlock(offset / QUANTIZATION_BLOCK_SIZE, values, offset, count);
+            }
+            else
+            {
+                // The 16-bit and quantized values are converted block by block
+                for (int i = 0; i < count; i++)
+                {
+                    block[i] = get(offset + i);
+                }
+
+                target.quantizeBlock(offset / QUANTIZATION_BLOCK_SIZE, block, 0, count);
+            }
         }
     }
 
@@ -93,6 +237,26 @@ public class Vector
         return float16Values;
     }
 
+    public byte[] getQuantizedValues()
+    {
+        return quantizedValues;
+    }
+
+    public float[] getScales()
+    {
+        return scales;
+    }
+
+    public float[] getMins()
+    {
+        return mins;
+    }
+
+    public boolean isQuantized()
+    {
+        return floatType.equals(FloatType.Q8) || floatType.equals(FloatType.Q4);
+    }
+
     public float get(int index)
     {
         if (floatType.equals(FloatType.FLOAT32))
@@ -101,11 +265,24 @@ public class Vector
         }
         else if (floatType.equals(FloatType.FLOAT16))
         {
-            return 1; // TODO
+            return HalfFloat.float16ToFloat(float16Values[index]);
         }
         else if (floatType.equals(FloatType.BFLOAT16))
         {
-            return 1; // TODO
+            return HalfFloat.bFloat16ToFloat(float16Values[index]);
+        }
+        else if (floatType.equals(FloatType.Q8))
+        {
+            return quantizedValues[index] * scales[index / QUANTIZATION_BLOCK_SIZE];
+        }
+        else if (floatType.equals(FloatType.Q4))
+        {
+            int block = index / QUANTIZATION_BLOCK_SIZE;
+            int position = index % QUANTIZATION_BLOCK_SIZE;
+            int packed = quantizedValues[block * QUANTIZATION_BLOCK_SIZE / 2 + (position & 15)];
+            int value = position < 16 ? packed & 0x0F : (packed >> 4) & 0x0F;
+
+            return value * scales[block] + mins[block];
         }
         else
         {
@@ -121,15 +298,69 @@ public class Vector
         }
         else if (floatType.equals(FloatType.FLOAT16))
         {
-            float16Values[index] = 1; // TODO
+            float16Values[index] = HalfFloat.floatToFloat16(value);
         }
         else if (floatType.equals(FloatType.BFLOAT16))
         {
-            float16Values[index] = 1; // TODO
+            float16Values[index] = HalfFloat.floatToBFloat16(value);
+        }
+        else
+        {
+            // The scale is shared within the block, so a quantized value can't be modified separately
+            throw new RuntimeException("Unsupported modification of vector type: " + floatType.name());
+        }
+    }
+
+    /**
+     * Returns a float32 copy of a 16-bit vector (a float32 vector is returned as it is)
+     */
+    public Vector toFloat32()
+    {
+        if (floatType.equals(FloatType.FLOAT32))
+        {
+            return this;
+        }
+
+        Vector ret = new Vector(FloatType.FLOAT32, size);
+        for (int i = 0; i < size; i++)
+        {
+            ret.float32Values[i] = get(i);
+        }
+
+        return ret;
+    }
+
+    /**
+     * Number of bytes used to store the values (including the scales of the quantized vectors)
+     */
+    public long getSizeInBytes()
+    {
+        return getSizeInBytes(floatType, getCapacity());
+    }
+
+    /**
+     * Number of bytes used to store the provided number of values of the float type
+     */
+    public static long getSizeInBytes(FloatType floatType, long size)
+    {
+        switch (floatType)
+        {
+            case FLOAT32: return size * 4;
+            case Q8: return size + (size + QUANTIZATION_BLOCK_SIZE - 1) / QUANTIZATION_BLOCK_SIZE * 4;
+            case Q4: return (size + QUANTIZATION_BLOCK_SIZE - 1) / QUANTIZATION_BLOCK_SIZE * (16 + 8);
+            default: return size * 2;
         }
     }
 
     public int size()
+    {
+        return size;
+    }
+
+    /**
+     * Number of the allocated elements
+     */
+    public int getCapacity()
     {
         if (floatType.equals(FloatType.FLOAT32))
         {
@@ -143,9 +374,41 @@ public class Vector
         {
             return float16Values.length;
         }
+        else if (floatType.equals(FloatType.Q8))
+        {
+            return quantizedValues.length;
+        }
+        else if (floatType.equals(FloatType.Q4))
+        {
+            return quantizedValues.length * 2;
+        }
         else
         {
             throw new RuntimeException("Unsupported vector float type: " + floatType.name());
         }
     }
+
+    /**
+     * Changes the number of used elements (within the allocated capacity)
+     */
+    public void resize(int size)
+    {
+        if (size > getCapacity())
+        {
+            throw new RuntimeException("Vector size (" + size + ") is larger than the capacity (" + getCapacity() + ")");
+        }
+
+        this.size = size;
+    }
+
+    /**
+     * Sets all elements to zero
+     */
+    public void clear()
+    {
+        for (int i = 0; i < size; i++)
+        {
+            set(i, 0);
+        }
+    }
 }
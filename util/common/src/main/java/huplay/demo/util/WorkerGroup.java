@@ -0,0 +1,152 @@
+package huplay.demo.util;
+
+import java.util.concurrent.Phaser;
+
+/**
+ * Fixed set of worker threads, where every worker always executes its own part of an operation
+ * Unlike the WorkerPool (where any thread can execute any range), the worker i always processes the part i, so the
+ * data used only by that part (for example a slice of the weights) stays in the cache of the worker's core.
+ * The first worker is the calling thread, the others wait for the next operation between the calls.
+ */
+public class WorkerGroup
+{
+    // Is the thread executing a task of a worker group (the work is already distributed, see WorkerPool)
+    private static final ThreadLocal<Boolean> WORKER_TASK = ThreadLocal.withInitial(() -> false);
+
+    private final int workerCount;
+
+    // The start and the end of an operation is a phase change, where all workers (and the calling thread) arrive
+    private final Phaser phaser;
+
+    private volatile WorkerTask task;
+    private volatile Throwable failure;
+    private volatile boolean isShutdown;
+
+    /**
+     * Operation executed by every worker (worker: 0 to workerCount - 1)
+     */
+    public interface WorkerTask
+    {
+        void execute(int worker);
+    }
+
+    public WorkerGroup(int workerCount)
+    {
+        this.workerCount = Math.max(workerCount, 1);
+        this.phaser = new Phaser(this.workerCount);
+
+        for (int worker = 1; worker < this.workerCount; worker++)
+        {
+            int id = worker;
+            Thread thread = new Thread(() -> work(id), "worker-group-" + id);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Executes the task by all workers, and returns when every worker finished
+     * (The operations are executed one after the other, so the group can be shared by several threads.)
+     */
+    public synchronized void execute(WorkerTask task)
+    {
+        if (isShutdown)
+        {
+            throw new RuntimeException("The worker group is shut down");
+        }
+
+        this.task = task;
+        this.failure = null;
+
+        // Start of the operation
+        phaser.arriveAndAwaitAdvance();
+
+        try
+        {
+            WORKER_TASK.set(true);
+            task.execute(0);
+        }
+        catch (RuntimeException | Error e)
+        {
+            failure = e;
+        }
+        finally
+        {
+            WORKER_TASK.set(false);
+        }
+
+        // End of the operation
+        phaser.arriveAndAwaitAdvance();
+
+        this.task = null;
+
+        // The failure of any worker is thrown on the calling thread
+        if (failure instanceof Error) throw (Error) failure;
+        if (failure != null) throw (RuntimeException) failure;
+    }
+
+    private void work(int worker)
+    {
+        WORKER_TASK.set(true);
+
+        while (true)
+        {
+            phaser.arriveAndAwaitAdvance();
+
+            if (isShutdown) return;
+
+            try
+            {
+                task.execute(worker);
+            }
+            catch (RuntimeException | Error e)
+            {
+                failure = e;
+            }
+
+            phaser.arriveAndAwaitAdvance();
+        }
+    }
+
+    /**
+     * Stops the worker threads
+     */
+    public synchronized void shutdown()
+    {
+        if (!isShutdown)
+        {
+            isShutdown = true;
+
+            // The waiting workers are released, and these exit at the shutdown flag
+            phaser.arriveAndAwaitAdvance();
+        }
+    }
+
+    /**
+     * Is the current thread executing a task of a worker group
+     */
+    public static boolean isWorkerTask()
+    {
+        return WORKER_TASK.get();
+    }
+
+    public int getWorkerCount()
+    {
+        return workerCount;
+    }
+
+    /**
+     * The first item of the worker's part, if the items are split evenly between the workers
+     * The part of the worker is from getPartStart(worker) (inclusive) to getPartStart(worker + 1) (exclusive).
+     * The boundaries are multiples of the alignment (the remainder belongs to the last worker).
+     */
+    public int getPartStart(int worker, int size, int alignment)
+    {
+        if (worker == workerCount)
+        {
+            return size;
+        }
+
+        return (int) ((long) (size / alignment) * worker / workerCount) * alignment;
+    }
+}
@@ -0,0 +1,104 @@
+package huplay.demo.util;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Thread pool to split an operation into ranges (for example the output rows of a matrix multiplication)
+ * If the work is too small to be worth distributing, it's executed on the calling thread. (Also within a task of a
+ * WorkerGroup, where the work is already distributed, and every worker should process its own part.)
+ */
+public class WorkerPool
+{
+    // Minimum number of multiply-add operations per task (below that the synchronisation costs more than the gain)
+    public static final long MIN_WORK_PER_TASK = 32 * 1024;
+
+    // The range boundaries are aligned to this (a cache line of float values)
+    private static final int ALIGNMENT = 16;
+
+    private final int threadCount;
+    private final ForkJoinPool pool;
+
+    /**
+     * Operation on a range of items (from: inclusive, to: exclusive)
+     */
+    public interface RangeTask
+    {
+        void execute(int from, int to);
+    }
+
+    public WorkerPool(int threadCount)
+    {
+        this.threadCount = Math.max(threadCount, 1);
+        this.pool = this.threadCount > 1 ? new ForkJoinPool(this.threadCount) : null;
+    }
+
+    /**
+     * Executes the task on the range of 0 (inclusive) to size (exclusive), split into parts for the workers
+     * The workPerItem is the number of multiply-add operations per item, used to decide the number of parts
+     */
+    public void execute(int size, long workPerItem, RangeTask task)
+    {
+        long parts = Math.min(threadCount, (size * workPerItem) / MIN_WORK_PER_TASK);
+
+        if (pool == null || parts < 2 || WorkerGroup.isWorkerTask())
+        {
+            task.execute(0, size);
+        }
+        else
+        {
+            int partSize = (int) ((size + parts - 1) / parts);
+            partSize = ((partSize + ALIGNMENT - 1) / ALIGNMENT) * ALIGNMENT;
+
+            pool.invoke(new Part(task, 0, size, partSize));
+        }
+    }
+
+    public void shutdown()
+    {
+        if (pool != null)
+        {
+            pool.shutdown();
+        }
+    }
+
+    public int getThreadCount()
+    {
+        return threadCount;
+    }
+
+    /**
+     * Splits the range into halves until the part size is reached
+     */
+    private static class Part extends RecursiveAction
+    {
+        private final RangeTask task;
+        private final int from;
+        private final int to;
+        private final int partSize;
+
+        private Part(RangeTask task, int from, int to, int partSize)
+        {
+            this.task = task;
+            this.from = from;
+            this.to = to;
+            this.partSize = partSize;
+        }
+
+        @Override
+        protected void compute()
+        {
+            if (to - from <= partSize)
+            {
+                task.execute(from, to);
+            }
+            else
+            {
+                int parts = (to - from + partSize - 1) / partSize;
+                int middle = from + (parts / 2) * partSize;
+
+                invokeAll(new Part(task, from, middle, partSize), new Part(task, middle, to, partSize));
+            }
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package huplay.demo.util;
+
+import org.bytedeco.javacpp.FloatPointer;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.indexing.NDArrayIndex;
+
+/**
+ * Parameter matrix stored in a persistent ND4j array (created once at loading by Nd4jUtil.prepare)
+ * The native array is a float32 copy, so the multiplications don't have to convert the weights at every call.
+ * The original (heap) values aren't kept, so the weights are stored only once: the element access (for example the
+ * embedding lookup) reads the native array, and the views (rows, cols, transpose) are views of the native array.
+ */
+public class Nd4jMatrix extends Matrix
+{
+    private final INDArray array;
+
+    // Transposed view of the same native array (no values are copied)
+    private final INDArray transposedArray;
+
+    public Nd4jMatrix(INDArray array)
+    {
+        super((int) array.rows(), (int) array.columns());
+
+        this.array = array;
+        this.transposedArray = array.transpose();
+    }
+
+    public INDArray getArray()
+    {
+        return array;
+    }
+
+    public INDArray getTransposedArray()
+    {
+        return transposedArray;
+    }
+
+    @Override
+    public Matrix transpose()
+    {
+        return new Nd4jMatrix(transposedArray);
+    }
+
+    @Override
+    public Matrix rows(int fromRow, int toRow)
+    {
+        return new Nd4jMatrix(array.get(NDArrayIndex.interval(fromRow, toRow), NDArrayIndex.all()));
+    }
+
+    @Override
+    public Matrix cols(int fromCol, int toCol)
+    {
+        return new Nd4jMatrix(array.get(NDArrayIndex.all(), NDArrayIndex.interval(fromCol, toCol)));
+    }
+
+    @Override
+    public void getRow(int row, Vector result)
+    {
+        if (!array.isView() && array.ordering() == 'c' && result.getFloatType() == FloatType.FLOAT32)
+        {
+            // The row is copied from the native memory at once
+            FloatPointer pointer = (FloatPointer) array.data().pointer();
+            new FloatPointer(pointer).position((long) row * getCols()).get(result.getFloat32Values(), 0, getCols());
+        }
+        else
+        {
+            super.getRow(row, result);
+        }
+    }
+
+    @Override
+    public float get(int row, int col)
+    {
+        return array.getFloat(row, col);
+    }
+
+    @Override
+    public void set(int row, int col, float value)
+    {
+        array.putScalar(row, col, value);
+    }
+
+    @Override
+    public FloatType getFloatType()
+    {
+        return FloatType.FLOAT32;
+    }
+}
@@ -0,0 +1,370 @@
+package huplay.demo.util;
+
+import org.bytedeco.javacpp.FloatPointer;
+import org.nd4j.linalg.api.buffer.DataType;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+public class Nd4jUtil extends AbstractUtil
+{
+    // Reusable native arrays for the input and output vectors of the multiplications, identified by slot and size
+    // ND4j works on off-heap memory, so the vectors have to be copied, but the native arrays aren't allocated
+    // at every call. (Per thread, so the parallel calculations don't overwrite each other's values.)
+    private final ThreadLocal<Map<Long, INDArray>> stagingArrays = ThreadLocal.withInitial(HashMap::new);
+
+    @Override
+    public String getUtilName()
+    {
+        return "ND4j";
+    }
+
+    /**
+     * The parameter matrices are copied to persistent native arrays at loading
+     * (The quantized matrices are kept in the compact format, these are converted at every multiplication.)
+     */
+    @Override
+    public Matrix prepare(Matrix matrix)
+    {
+        if (matrix instanceof Nd4jMatrix || matrix.getValues().isQuantized())
+        {
+            return matrix;
+        }
+
+        // The heap values aren't referenced by the prepared matrix, so these can be released after the copy
+        try (INDArray array = toINDArray(matrix))
+        {
+            return new Nd4jMatrix(array.dup('c'));
+        }
+    }
+
+    // The vector operations are executed in Java, because every ND4j call has a fixed overhead (tens of microseconds)
+    // which is much more than the calculation itself at the vector sizes of a model.
+    // ND4j is used only for the matrix multiplications, where the native (BLAS) implementation pays off.
+
+    @Override
+    public void addVectors(Vector vector1, Vector vector2, Vector result)
+    {
+        for (int i = 0; i < vector1.size(); i++)
+        {
+            result.set(i, vector1.get(i) + vector2.get(i));
+        }
+    }
+
+    @Override
+    public float dotProduct(Vector vector1, Vector vector2)
+    {
+        float sum = 0;
+
+        for (int i = 0; i < vector1.size(); i++)
+        {
+            sum = sum + vector1.get(i) * vector2.get(i);
+        }
+
+        return sum;
+    }
+
+    @Override
+    public void mulVectorByScalar(Vector vector, float scalar, Vector result)
+    {
+        for (int i = 0; i < vector.size(); i++)
+        {
+            result.set(i, vector.get(i) * scalar);
+        }
+    }
+
+    @Override
+    public void mulVectorByScalarAndAdd(Vector vector, float scalar, Vector result)
+    {
+        for (int i = 0; i < vector.size(); i++)
+        {
+            result.set(i, result.get(i) + vector.get(i) * scalar);
+        }
+    }
+
+    @Override
+    public void mulVectorByMatrix(Vector vector, Matrix matrix, Vector result)
+    {
+        if (matrix instanceof Nd4jMatrix)
+        {
+            // result = transpose(matrix) * vector
+            gemv(((Nd4jMatrix) matrix).getTransposedArray(), vector, result);
+        }
+        else
+        {
+            super.mulVectorByMatrix(vector, matrix, result);
+        }
+    }
+
+    @Override
+    public void mulVectorByTransposedMatrix(Vector vector, Matrix matrix, Vector result)
+    {
+        if (matrix instanceof Nd4jMatrix)
+        {
+            // result = matrix * vector
+            gemv(((Nd4jMatrix) matrix).getArray(), vector, result);
+        }
+        else
+        {
+            super.mulVectorByTransposedMatrix(vector, matrix, result);
+        }
+    }
+
+    @Override
+    public void mulMatrixByMatrix(Vector[] vectors, Matrix matrix, Vector[] result)
+    {
+        if (matrix instanceof Nd4jMatrix)
+        {
+            // result = vectors * matrix
+            gemm(vectors, ((Nd4jMatrix) matrix).getArray(), false, result);
+        }
+        else
+        {
+            super.mulMatrixByMatrix(vectors, matrix, result);
+        }
+    }
+
+    @Override
+    public void mulMatrixByTransposedMatrix(Vector[] vectors, Matrix matrix, Vector[] result)
+    {
+        if (matrix instanceof Nd4jMatrix)
+        {
+            // result = vectors * transpose(matrix)
+            gemm(vectors, ((Nd4jMatrix) matrix).getArray(), true, result);
+        }
+        else
+        {
+            super.mulMatrixByTransposedMatrix(vectors, matrix, result);
+        }
+    }
+
+    @Override
+    public List<IndexedValue> mulVectorByTransposedMatrixAndFilter(Vector vector, Matrix matrix, int count)
+    {
+        if (matrix instanceof Nd4jMatrix)
+        {
+            // The shards would use views of the matrix (without the native array), so here a single BLAS call
+            // calculates the full result, and it is filtered afterwards
+            Vector result = new Vector(FloatType.FLOAT32, matrix.getRows());
+            gemv(((Nd4jMatrix) matrix).getArray(), vector, result);
+
+            PriorityQueue<IndexedValue> topValues = new PriorityQueue<>(count + 1, BY_VALUE);
+            for (int i = 0; i < result.size(); i++)
+            {
+                addCandidate(topValues, count, result.get(i), i);
+            }
+
+            return selectTop(topValues, count);
+        }
+
+        return super.mulVectorByTransposedMatrixAndFilter(vector, matrix, count);
+    }
+
+    /**
+     * Matrix-vector multiplication on the persistent array of the matrix, by a single BLAS call (gemv)
+     * (The BLAS library uses its own threads, so it isn't split by the worker pool.)
+     */
+    private void gemv(INDArray matrix, Vector vector, Vector result)
+    {
+        INDArray input = stage(0, vector);
+        INDArray output = getStagingArray(1, (int) matrix.rows());
+
+        // The transposed multiplication uses the transposed view, because ND4j doesn't support the 'T' flag here
+        Nd4j.getBlasWrapper().level2().gemv('c', 'N', 1.0, matrix, input, 0.0, output);
+
+        copyInto(output, result);
+    }
+
+    /**
+     * Matrix-matrix multiplication on the persistent array of the matrix, by a single BLAS call (gemm)
+     * The vectors are the rows of the input matrix, and the rows of the result are copied into the result vectors.
+     */
+    private void gemm(Vector[] vectors, INDArray matrix, boolean transpose, Vector[] result)
+    {
+        int count = vectors.length;
+        int size = vectors[0].size();
+        int resultSize = result[0].size();
+
+        INDArray input = getStagingArray(2, count * size).reshape('c', count, size);
+        INDArray output = getStagingArray(3, count * resultSize).reshape('c', count, resultSize);
+
+        // The vectors are copied one by one to their row of the native array
+        FloatPointer inputPointer = (FloatPointer) input.data().pointer();
+        for (int i = 0; i < count; i++)
+        {
+            Vector vector = vectors[i].getFloatType().equals(FloatType.FLOAT32) ? vectors[i] : vectors[i].toFloat32();
+            new FloatPointer(inputPointer).position((long) i * size).put(vector.getFloat32Values(), 0, size);
+        }
+
+        Nd4j.gemm(input, matrix, output, false, transpose, 1.0, 0.0);
+
+        FloatPointer outputPointer = (FloatPointer) output.data().pointer();
+        for (int i = 0; i < count; i++)
+        {
+            new FloatPointer(outputPointer).position((long) i * resultSize)
+                    .get(result[i].getFloat32Values(), 0, resultSize);
+        }
+    }
+
+    // The matrices without persistent array (quantized matrices or views, like the attention cache) are calculated
+    // in Java, because these would have to be copied to the native memory at every call
+
+    @Override
+    protected void mulVectorByMatrix(Vector vector, Matrix matrix, Vector result, int fromCol, int toCol)
+    {
+        for (int col = fromCol; col < toCol; col++)
+        {
+            result.set(col, 0);
+        }
+
+        // Adding the rows multiplied by the vector's elements, so the matrix is read in the order of the storage
+        for (int row = 0; row < matrix.getRows(); row++)
+        {
+            float value = vector.get(row);
+
+            for (int col = fromCol; col < toCol; col++)
+            {
+                result.set(col, result.get(col) + value * matrix.get(row, col));
+            }
+        }
+    }
+
+    @Override
+    protected void mulVectorByTransposedMatrix(Vector vector, Matrix matrix, Vector result, int fromRow, int toRow)
+    {
+        for (int row = fromRow; row < toRow; row++)
+        {
+            if (vector.isQuantized())
+            {
+                // Quantized input and matrix: the dot products are calculated on the integer values
+                result.set(row, quantizedDotProduct(vector, matrix.getValues(), matrix.rowOffset(row), matrix.getCols()));
+            }
+            else
+            {
+                float sum = 0;
+
+                for (int col = 0; col < matrix.getCols(); col++)
+                {
+                    sum = sum + vector.get(col) * matrix.get(row, col);
+                }
+
+                result.set(row, sum);
+            }
+        }
+    }
+
+    @Override
+    public void splitVector(Vector vector, Vector[] result)
+    {
+        // It is a simple copy of the segments, which doesn't need the native library
+        int size = vector.size() / result.length;
+
+        for (int i = 0; i < result.length; i++)
+        {
+            System.arraycopy(vector.getFloat32Values(), i * size, result[i].getFloat32Values(), 0, size);
+        }
+    }
+
+    @Override
+    public void flattenMatrix(Vector[] matrix, Vector result)
+    {
+        // It is a simple copy of the rows, which doesn't need the native library
+        int size = matrix[0].size();
+
+        for (int i = 0; i < matrix.length; i++)
+        {
+            System.arraycopy(matrix[i].getFloat32Values(), 0, result.getFloat32Values(), i * size, size);
+        }
+    }
+
+    @Override
+    public float average(Vector vector)
+    {
+        double sum = 0;
+
+        for (int i = 0; i < vector.size(); i++)
+        {
+            sum = sum + vector.get(i);
+        }
+
+        return (float) sum / vector.size();
+    }
+
+    /**
+     * Returns the reusable native array of the slot, filled by the values of the vector
+     */
+    private INDArray stage(int slot, Vector vector)
+    {
+        if (!vector.getFloatType().equals(FloatType.FLOAT32))
+        {
+            // The 16-bit or quantized values are converted to float32
+            vector = vector.toFloat32();
+        }
+
+        INDArray array = getStagingArray(slot, vector.size());
+
+        // Only the used part of a reusable vector is copied
+        FloatPointer pointer = (FloatPointer) array.data().pointer();
+        pointer.put(vector.getFloat32Values(), 0, vector.size());
+
+        return array;
+    }
+
+    private INDArray getStagingArray(int slot, int size)
+    {
+        long key = ((long) slot << 32) | size;
+
+        return stagingArrays.get().computeIfAbsent(key, k -> Nd4j.create(DataType.FLOAT, size));
+    }
+
+    private INDArray toINDArray(Matrix matrix)
+    {
+        if (!matrix.getFloatType().equals(FloatType.FLOAT32))
+        {
+            // The 16-bit or quantized values are widened to float32 (ND4j gets a copy of the values anyway)
+            return Nd4j.create(toFloat32(matrix));
+        }
+
+        float[] values = matrix.getFloat32Values();
+        if (matrix.getOffset() > 0)
+        {
+            values = Arrays.copyOfRange(values, matrix.getOffset(), values.length);
+        }
+
+        long[] shape = new long[] {matrix.getRows(), matrix.getCols()};
+        long[] stride = new long[] {matrix.getRowStride(), matrix.getColStride()};
+
+        // The buffer of the matrix is used with its own strides, so a transposed view is handled without copying
+        return Nd4j.create(values, shape, stride, 'c', DataType.FLOAT);
+    }
+
+    private float[][] toFloat32(Matrix matrix)
+    {
+        float[][] values = new float[matrix.getRows()][matrix.getCols()];
+
+        for (int row = 0; row < matrix.getRows(); row++)
+        {
+            for (int col = 0; col < matrix.getCols(); col++)
+            {
+                values[row][col] = matrix.get(row, col);
+            }
+        }
+
+        return values;
+    }
+
+    /**
+     * Copies the result of an ND4j operation into the provided vector
+     * (ND4j stores the values off-heap, so here a copy can't be avoided)
+     */
+    private void copyInto(INDArray array, Vector result)
+    {
+        FloatPointer pointer = (FloatPointer) array.data().pointer();
+        pointer.get(result.getFloat32Values(), 0, (int) array.length());
+    }
+}
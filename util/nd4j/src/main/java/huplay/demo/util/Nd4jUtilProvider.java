@@ -0,0 +1,42 @@
+package huplay.demo.util;
+
+/**
+ * Provider of the ND4j implementation
+ * It has the lowest priority (it loads large native libraries), so it's used only if it's selected explicitly,
+ * or it wins the benchmark.
+ */
+public class Nd4jUtilProvider implements UtilityProvider
+{
+    @Override
+    public String getName()
+    {
+        return "nd4j";
+    }
+
+    @Override
+    public int getPriority()
+    {
+        return 10;
+    }
+
+    @Override
+    public boolean isAvailable()
+    {
+        try
+        {
+            // Checked without initialising the class (that would load the native libraries)
+            Class.forName("org.nd4j.linalg.factory.Nd4j", false, getClass().getClassLoader());
+            return true;
+        }
+        catch (ClassNotFoundException | LinkageError e)
+        {
+            return false;
+        }
+    }
+
+    @Override
+    public Utility create()
+    {
+        return new Nd4jUtil();
+    }
+}
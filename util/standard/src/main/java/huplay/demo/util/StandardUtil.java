@@ -0,0 +1,319 @@
+package huplay.demo.util;
+
+import java.util.Arrays;
+
+public class StandardUtil extends AbstractUtil
+{
+    @Override
+    public String getUtilName()
+    {
+        return "Standard";
+    }
+
+    @Override
+    public void addVectors(Vector vector1, Vector vector2, Vector result)
+    {
+        for (int i = 0; i < vector1.size(); i++)
+        {
+            result.set(i, vector1.get(i) + vector2.get(i));
+        }
+    }
+
+    @Override
+    public float dotProduct(Vector vector1, Vector vector2)
+    {
+        float sum = 0;
+
+        for (int i = 0; i < vector1.size(); i++)
+        {
+            sum = sum + vector1.get(i) * vector2.get(i);
+        }
+
+        return sum;
+    }
+
+    @Override
+    public void mulVectorByScalar(Vector vector, float scalar, Vector result)
+    {
+        for (int i = 0; i < vector.size(); i++)
+        {
+            result.set(i, vector.get(i) * scalar);
+        }
+    }
+
+    @Override
+    public void mulVectorByScalarAndAdd(Vector vector, float scalar, Vector result)
+    {
+        for (int i = 0; i < vector.size(); i++)
+        {
+            result.set(i, result.get(i) + vector.get(i) * scalar);
+        }
+    }
+
+    @Override
+    protected void mulVectorByMatrix(Vector vector, Matrix matrix, Vector result, int fromCol, int toCol)
+    {
+        Vector values = matrix.getValues();
+
+        for (int col = fromCol; col < toCol; col++)
+        {
+            result.set(col, 0);
+        }
+
+        // Adding the rows multiplied by the vector's elements, so the matrix is read in the order of the storage
+        if (values.getFloatType() == FloatType.FLOAT32 && vector.getFloatType() == FloatType.FLOAT32
+                && result.getFloatType() == FloatType.FLOAT32)
+        {
+            // Separate loop on the arrays for float32, so the other storage types (for example a 16-bit attention
+            // cache) don't slow down the access of the float32 values (by the type checks of Vector.get)
+            float[] input = vector.getFloat32Values();
+            float[] matrixValues = values.getFloat32Values();
+            float[] output = result.getFloat32Values();
+
+            for (int row = 0; row < matrix.getRows(); row++)
+            {
+                float value = input[row];
+                int index = matrix.rowOffset(row) + fromCol * matrix.getColStride();
+
+                for (int col = fromCol; col < toCol; col++)
+                {
+                    output[col] = output[col] + value * matrixValues[index];
+                    index += matrix.getColStride();
+                }
+            }
+        }
+        else
+        {
+            for (int row = 0; row < matrix.getRows(); row++)
+            {
+                float value = vector.get(row);
+                int index = matrix.rowOffset(row) + fromCol * matrix.getColStride();
+
+                for (int col = fromCol; col < toCol; col++)
+                {
+                    result.set(col, result.get(col) + value * values.get(index));
+                    index += matrix.getColStride();
+                }
+            }
+        }
+    }
+
+    @Override
+    protected void mulVectorByTransposedMatrix(Vector vector, Matrix matrix, Vector result, int fromRow, int toRow)
+    {
+        Vector values = matrix.getValues();
+
+        if (vector.isQuantized())
+        {
+            // Quantized input and matrix: the dot products are calculated on the integer values
+            for (int row = fromRow; row < toRow; row++)
+            {
+                result.set(row, quantizedDotProduct(vector, values, matrix.rowOffset(row), matrix.getCols()));
+            }
+        }
+        else if (values.getFloatType() == FloatType.FLOAT32 && vector.getFloatType() == FloatType.FLOAT32)
+        {
+            // Separate loop on the arrays for float32 (see mulVectorByMatrix)
+            float[] input = vector.getFloat32Values();
+            float[] matrixValues = values.getFloat32Values();
+
+            for (int row = fromRow; row < toRow; row++)
+            {
+                float sum = 0;
+                int index = matrix.rowOffset(row);
+
+                for (int col = 0; col < matrix.getCols(); col++)
+                {
+                    sum = sum + input[col] * matrixValues[index];
+                    index += matrix.getColStride();
+                }
+
+                result.set(row, sum);
+            }
+        }
+        else
+        {
+            for (int row = fromRow; row < toRow; row++)
+            {
+                float sum = 0;
+                int index = matrix.rowOffset(row);
+
+                for (int col = 0; col < matrix.getCols(); col++)
+                {
+                    sum = sum + vector.get(col) * values.get(index);
+                    index += matrix.getColStride();
+                }
+
+                result.set(row, sum);
+            }
+        }
+    }
+
+    /**
+     * Register tiling: four vectors are multiplied together, so every matrix value is loaded once for the four
+     * (The order of the additions is the same as at the vector by matrix multiplication, so is the result.)
+     */
+    @Override
+    protected void mulMatrixByMatrix(Vector[] vectors, Matrix matrix, Vector[] result, int fromCol, int toCol)
+    {
+        if (matrix.getFloatType() != FloatType.FLOAT32 || !matrix.hasContiguousRows()
+                || !isFloat32(vectors) || !isFloat32(result))
+        {
+            super.mulMatrixByMatrix(vectors, matrix, result, fromCol, toCol);
+            return;
+        }
+
+        float[] matrixValues = matrix.getFloat32Values();
+
+        int i = 0;
+        for (; i + 3 < vectors.length; i += 4)
+        {
+            float[] input0 = vectors[i].getFloat32Values();
+            float[] input1 = vectors[i + 1].getFloat32Values();
+            float[] input2 = vectors[i + 2].getFloat32Values();
+            float[] input3 = vectors[i + 3].getFloat32Values();
+
+            float[] output0 = result[i].getFloat32Values();
+            float[] output1 = result[i + 1].getFloat32Values();
+            float[] output2 = result[i + 2].getFloat32Values();
+            float[] output3 = result[i + 3].getFloat32Values();
+
+            Arrays.fill(output0, fromCol, toCol, 0);
+            Arrays.fill(output1, fromCol, toCol, 0);
+            Arrays.fill(output2, fromCol, toCol, 0);
+            Arrays.fill(output3, fromCol, toCol, 0);
+
+            for (int row = 0; row < matrix.getRows(); row++)
+            {
+                float value0 = input0[row];
+                float value1 = input1[row];
+                float value2 = input2[row];
+                float value3 = input3[row];
+                int offset = matrix.rowOffset(row);
+
+                // The row is contiguous, so the JIT can use vector instructions for the loop
+                for (int col = fromCol; col < toCol; col++)
+                {
+                    float matrixValue = matrixValues[offset + col];
+                    output0[col] = output0[col] + value0 * matrixValue;
+                    output1[col] = output1[col] + value1 * matrixValue;
+                    output2[col] = output2[col] + value2 * matrixValue;
+                    output3[col] = output3[col] + value3 * matrixValue;
+                }
+            }
+        }
+
+        // The remaining vectors (if the count isn't divisible by four)
+        for (; i < vectors.length; i++)
+        {
+            mulVectorByMatrix(vectors[i], matrix, result[i], fromCol, toCol);
+        }
+    }
+
+    /**
+     * Register tiling: four dot products are calculated together, so every matrix value is loaded once for the four
+     */
+    @Override
+    protected void mulMatrixByTransposedMatrix(Vector[] vectors, Matrix matrix, Vector[] result,
+                                               int fromRow, int toRow)
+    {
+        if (matrix.getFloatType() != FloatType.FLOAT32 || !isFloat32(vectors) || !isFloat32(result))
+        {
+            super.mulMatrixByTransposedMatrix(vectors, matrix, result, fromRow, toRow);
+            return;
+        }
+
+        float[] matrixValues = matrix.getFloat32Values();
+        int colStride = matrix.getColStride();
+
+        int i = 0;
+        for (; i + 3 < vectors.length; i += 4)
+        {
+            float[] input0 = vectors[i].getFloat32Values();
+            float[] input1 = vectors[i + 1].getFloat32Values();
+            float[] input2 = vectors[i + 2].getFloat32Values();
+            float[] input3 = vectors[i + 3].getFloat32Values();
+
+            for (int row = fromRow; row < toRow; row++)
+            {
+                float sum0 = 0;
+                float sum1 = 0;
+                float sum2 = 0;
+                float sum3 = 0;
+                int index = matrix.rowOffset(row);
+
+                for (int col = 0; col < matrix.getCols(); col++)
+                {
+                    float matrixValue = matrixValues[index];
+                    sum0 = sum0 + input0[col] * matrixValue;
+                    sum1 = sum1 + input1[col] * matrixValue;
+                    sum2 = sum2 + input2[col] * matrixValue;
+                    sum3 = sum3 + input3[col] * matrixValue;
+                    index += colStride;
+                }
+
+                result[i].set(row, sum0);
+                result[i + 1].set(row, sum1);
+                result[i + 2].set(row, sum2);
+                result[i + 3].set(row, sum3);
+            }
+        }
+
+        // The remaining vectors (if the count isn't divisible by four)
+        for (; i < vectors.length; i++)
+        {
+            mulVectorByTransposedMatrix(vectors[i], matrix, result[i], fromRow, toRow);
+        }
+    }
+
+    @Override
+    public void splitVector(Vector vector, Vector[] result)
+    {
+        int size = vector.size() / result.length;
+
+        int segment = 0;
+        int col = 0;
+        for (int i = 0; i < vector.size(); i++)
+        {
+            float value = vector.get(i);
+            result[segment].set(col, value);
+
+            if (col == size - 1)
+            {
+                col = 0;
+                segment++;
+            }
+            else col++;
+        }
+    }
+
+    @Override
+    public void flattenMatrix(Vector[] matrix, Vector result)
+    {
+        int i = 0;
+
+        for (Vector row : matrix)
+        {
+            for (int j = 0; j < row.size(); j++)
+            {
+                float value = row.get(j);
+                result.set(i, value);
+                i++;
+            }
+        }
+    }
+
+    @Override
+    public float average(Vector vector)
+    {
+        double sum = 0;
+
+        for (int i = 0; i < vector.size(); i++)
+        {
+            float value = vector.get(i);
+            sum = sum + value;
+        }
+
+        return (float) sum / vector.size();
+    }
+}
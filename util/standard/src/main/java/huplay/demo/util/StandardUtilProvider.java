@@ -0,0 +1,31 @@
+package huplay.demo.util;
+
+/**
+ * Provider of the standard (pure Java, scalar) implementation, which can be used in every JVM
+ */
+public class StandardUtilProvider implements UtilityProvider
+{
+    @Override
+    public String getName()
+    {
+        return "standard";
+    }
+
+    @Override
+    public int getPriority()
+    {
+        return 20;
+    }
+
+    @Override
+    public boolean isAvailable()
+    {
+        return true;
+    }
+
+    @Override
+    public Utility create()
+    {
+        return new StandardUtil();
+    }
+}
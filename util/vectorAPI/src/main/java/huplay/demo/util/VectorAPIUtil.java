@@ -0,0 +1,920 @@
+package huplay.demo.util;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.ShortVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+import java.util.Arrays;
+
+public class VectorAPIUtil extends AbstractUtil
+{
+    static final VectorSpecies<Float> SPECIES = FloatVector.SPECIES_MAX;
+
+    // The 16-bit values are loaded into a half-sized vector, and widened to the same number of int/float lanes
+    static final VectorSpecies<Short> SHORT_SPECIES =
+            VectorSpecies.of(short.class, VectorShape.forBitSize(SPECIES.vectorBitSize() / 2));
+    static final VectorSpecies<Integer> INT_SPECIES = VectorSpecies.of(int.class, SPECIES.vectorShape());
+
+    // The 8-bit values are loaded into a quarter-sized vector (if the vector is too short for that, it's null)
+    // The lanes of a loaded part have to belong to the same quantization block, so the block size has to be divisible
+    static final VectorSpecies<Byte> BYTE_SPECIES =
+            SPECIES.length() >= 8 && Vector.QUANTIZATION_BLOCK_SIZE % SPECIES.length() == 0
+                    ? VectorSpecies.of(byte.class, VectorShape.forBitSize(SPECIES.length() * 8))
+                    : null;
+
+    // Constants of the GELU and the exp approximation
+    private static final float GELU_SCALE = (float) Math.sqrt(2 / Math.PI);
+    private static final float GELU_CUBE = GELU_SCALE * 0.044715f;
+    private static final float LOG2_E = 1.44269504f;
+    private static final float ROUNDING = 0x1.8p23f;
+    private static final float LN2_HIGH = 0.693359375f;
+    private static final float LN2_LOW = -2.12194440e-4f;
+    private static final float EXP_P0 = 1.9875691500E-4f;
+    private static final float EXP_P1 = 1.3981999507E-3f;
+    private static final float EXP_P2 = 8.3334519073E-3f;
+    private static final float EXP_P3 = 4.1665795894E-2f;
+    private static final float EXP_P4 = 1.6666665459E-1f;
+    private static final float EXP_P5 = 5.0000001201E-1f;
+
+    @Override
+    public String getUtilName()
+    {
+        return "Java Vector API (" + SPECIES.vectorBitSize() + " bit)";
+    }
+
+    @Override
+    public void addVectors(Vector vector1, Vector vector2, Vector result)
+    {
+        for (int i = 0; i < vector1.size(); i += SPECIES.length())
+        {
+            VectorMask<Float> mask = SPECIES.indexInRange(i, vector1.size());
+            FloatVector first = FloatVector.fromArray(SPECIES, vector1.getFloat32Values(), i, mask);
+            FloatVector second = FloatVector.fromArray(SPECIES, vector2.getFloat32Values(), i, mask);
+            first.add(second).intoArray(result.getFloat32Values(), i, mask);
+        }
+    }
+
+    @Override
+    public float dotProduct(Vector vector1, Vector vector2)
+    {
+        return dotProduct(vector1.getFloat32Values(), 0, vector2, 0, vector1.size());
+    }
+
+    /**
+     * Dot product of a float32 array and a segment of a vector (which can be a 16-bit vector, widened on the fly)
+     */
+    private float dotProduct(float[] values1, int offset1, Vector vector2, int offset2, int size)
+    {
+        if (vector2.getFloatType() == FloatType.FLOAT32)
+        {
+            return dotProduct(values1, offset1, vector2.getFloat32Values(), offset2, size);
+        }
+
+        if (!isVectorizable(vector2, offset2))
+        {
+            float result = 0;
+            for (int i = 0; i < size; i++)
+            {
+                result += values1[offset1 + i] * vector2.get(offset2 + i);
+            }
+
+            return result;
+        }
+
+        var upperBound = SPECIES.loopBound(size);
+        var sum = FloatVector.zero(SPECIES);
+
+        var i = 0;
+        for (; i < upperBound; i += SPECIES.length())
+        {
+            var va = FloatVector.fromArray(SPECIES, values1, offset1 + i);
+            var vb = load(vector2, offset2 + i);
+            sum = va.fma(vb, sum);
+        }
+
+        var result = sum.reduceLanes(VectorOperators.ADD);
+
+        // counter "i" has an incremented value from the previous loop
+        for (; i < size; i++)
+        {
+            result += values1[offset1 + i] * vector2.get(offset2 + i);
+        }
+
+        return result;
+    }
+
+    /**
+     * Dot product of two float32 array segments
+     * It's a separate loop (without the widening load), so the other storage types (for example a 16-bit attention
+     * cache) don't slow down the float32 calculations (the JIT can't keep the vectors in registers if different
+     * load paths are merged within the same loop)
+     */
+    private float dotProduct(float[] values1, int offset1, float[] values2, int offset2, int size)
+    {
+        var upperBound = SPECIES.loopBound(size);
+        var sum = FloatVector.zero(SPECIES);
+
+        var i = 0;
+        for (; i < upperBound; i += SPECIES.length())
+        {
+            var va = FloatVector.fromArray(SPECIES, values1, offset1 + i);
+            var vb = FloatVector.fromArray(SPECIES, values2, offset2 + i);
+            sum = va.fma(vb, sum);
+        }
+
+        var result = sum.reduceLanes(VectorOperators.ADD);
+
+        // counter "i" has an incremented value from the previous loop
+        for (; i < size; i++)
+        {
+            result += values1[offset1 + i] * values2[offset2 + i];
+        }
+
+        return result;
+    }
+
+    /**
+     * Can full float vectors be loaded from the position of the vector (and from every following position, stepping
+     * by the vector length). The lanes of a quantized part have to be in the same block.
+     */
+    private static boolean isVectorizable(Vector vector, int offset)
+    {
+        switch (vector.getFloatType())
+        {
+            case Q8: return BYTE_SPECIES != null && offset % SPECIES.length() == 0;
+            case Q4: return BYTE_SPECIES != null && offset % SPECIES.length() == 0 && 16 % SPECIES.length() == 0;
+            default: return true;
+        }
+    }
+
+    /**
+     * Loads a full float vector from the position of the vector, widening the 16-bit or quantized values to float32
+     * (The 4-bit values need a vector length of at most 16, so the loaded lanes are within the half of a block.)
+     */
+    private static FloatVector load(Vector vector, int offset)
+    {
+        switch (vector.getFloatType())
+        {
+            case Q8:
+            {
+                var values = ByteVector.fromArray(BYTE_SPECIES, vector.getQuantizedValues(), offset);
+                var scale = vector.getScales()[offset / Vector.QUANTIZATION_BLOCK_SIZE];
+                return ((FloatVector) values.convertShape(VectorOperators.B2F, SPECIES, 0)).mul(scale);
+            }
+            case Q4:
+            {
+                int block = offset / Vector.QUANTIZATION_BLOCK_SIZE;
+                int position = offset % Vector.QUANTIZATION_BLOCK_SIZE;
+                int byteOffset = block * Vector.QUANTIZATION_BLOCK_SIZE / 2 + (position & 15);
+                var packed = ByteVector.fromArray(BYTE_SPECIES, vector.getQuantizedValues(), byteOffset);
+
+                // The first half of the block is in the lower 4 bits, the second half in the upper 4 bits
+                var values = position < 16
+                        ? packed.and((byte) 0x0F)
+                        : packed.lanewise(VectorOperators.LSHR, 4).and((byte) 0x0F);
+
+                // Dequantized in the register: integer * scale + min
+                return ((FloatVector) values.convertShape(VectorOperators.B2F, SPECIES, 0))
+                        .fma(vector.getScales()[block], vector.getMins()[block]);
+            }
+            case FLOAT16: return widenFloat16(ShortVector.fromArray(SHORT_SPECIES, vector.getFloat16Values(), offset));
+            case BFLOAT16: return widenBFloat16(ShortVector.fromArray(SHORT_SPECIES, vector.getFloat16Values(), offset));
+            default: return FloatVector.fromArray(SPECIES, vector.getFloat32Values(), offset);
+        }
+    }
+
+    /**
+     * The brain float is the upper half of a float32, so it's enough to shift the bits
+     */
+    private static FloatVector widenBFloat16(ShortVector values)
+    {
+        var bits = (IntVector) values.convertShape(VectorOperators.S2I, INT_SPECIES, 0);
+        return bits.lanewise(VectorOperators.LSHL, 16).reinterpretAsFloats();
+    }
+
+    /**
+     * The exponent and mantissa bits of the float16 are moved to the float32 positions, and the different exponent
+     * bias is corrected by a multiplication with 2^112 (it also converts the subnormal values to normal floats)
+     */
+    private static FloatVector widenFloat16(ShortVector values)
+    {
+        var bits = (IntVector) values.convertShape(VectorOperators.S2I, INT_SPECIES, 0);
+        var magnitude = bits.and(0x7FFF);
+        var shifted = magnitude.lanewise(VectorOperators.LSHL, 13);
+
+        var converted = shifted.reinterpretAsFloats().mul(0x1p112f).reinterpretAsInts();
+
+        // Infinity and NaN (max exponent) keep the max exponent
+        var special = magnitude.compare(VectorOperators.GE, 0x7C00);
+        converted = converted.blend(shifted.or(0x7F800000), special);
+
+        var sign = bits.and(0x8000).lanewise(VectorOperators.LSHL, 16);
+        return converted.or(sign).reinterpretAsFloats();
+    }
+
+    @Override
+    protected float quantizedDotProduct(Vector vector1, Vector vector2, int offset2, int size)
+    {
+        if (BYTE_SPECIES == null)
+        {
+            return super.quantizedDotProduct(vector1, vector2, offset2, size);
+        }
+
+        byte[] values1 = vector1.getQuantizedValues();
+        byte[] values2 = vector2.getQuantizedValues();
+        float[] scales1 = vector1.getScales();
+        float[] scales2 = vector2.getScales();
+
+        int blockSize = Vector.QUANTIZATION_BLOCK_SIZE;
+        int blockOffset2 = offset2 / blockSize;
+
+        var sum = FloatVector.zero(SPECIES);
+
+        for (int block = 0; block < size / blockSize; block++)
+        {
+            int index1 = block * blockSize;
+            int index2 = offset2 + index1;
+
+            // The bytes are widened to int lanes, and the products are summed as integers within the block
+            var blockSum = IntVector.zero(INT_SPECIES);
+            for (int i = 0; i < blockSize; i += SPECIES.length())
+            {
+                var a = ByteVector.fromArray(BYTE_SPECIES, values1, index1 + i)
+                        .convertShape(VectorOperators.B2I, INT_SPECIES, 0);
+                var b = ByteVector.fromArray(BYTE_SPECIES, values2, index2 + i)
+                        .convertShape(VectorOperators.B2I, INT_SPECIES, 0);
+                blockSum = blockSum.add(a.mul(b));
+            }
+
+            float scale = scales1[block] * scales2[blockOffset2 + block];
+            sum = ((FloatVector) blockSum.convert(VectorOperators.I2F, 0)).mul(scale).add(sum);
+        }
+
+        return sum.reduceLanes(VectorOperators.ADD);
+    }
+
+    @Override
+    public void mulVectorByScalar(Vector vector, float scalar, Vector result)
+    {
+        for (int i = 0; i < vector.size(); i += SPECIES.length())
+        {
+            VectorMask<Float> mask = SPECIES.indexInRange(i, vector.size());
+            FloatVector floatVector = FloatVector.fromArray(SPECIES, vector.getFloat32Values(), i, mask);
+            floatVector.mul(scalar).intoArray(result.getFloat32Values(), i, mask);
+        }
+    }
+
+    @Override
+    public void mulVectorByScalarAndAdd(Vector vector, float scalar, Vector result)
+    {
+        for (int i = 0; i < vector.size(); i += SPECIES.length())
+        {
+            VectorMask<Float> mask = SPECIES.indexInRange(i, vector.size());
+            FloatVector floatVector = FloatVector.fromArray(SPECIES, vector.getFloat32Values(), i, mask);
+            FloatVector sum = FloatVector.fromArray(SPECIES, result.getFloat32Values(), i, mask);
+            floatVector.mul(scalar).add(sum).intoArray(result.getFloat32Values(), i, mask);
+        }
+    }
+
+    @Override
+    protected void mulVectorByMatrix(Vector vector, Matrix matrix, Vector result, int fromCol, int toCol)
+    {
+        if (matrix.hasContiguousRows() && isVectorizable(matrix.getValues(), matrix.rowOffset(0) + fromCol)
+                && (!matrix.getValues().isQuantized() || matrix.getRowStride() % SPECIES.length() == 0))
+        {
+            mulVectorByRows(vector.getFloat32Values(), matrix, result.getFloat32Values(), fromCol, toCol);
+        }
+        else if (matrix.getRowStride() == 1)
+        {
+            // Transposed view: every column is a contiguous block, so the result is a dot product per column
+            Vector values = matrix.getValues();
+
+            for (int col = fromCol; col < toCol; col++)
+            {
+                int offset = matrix.getOffset() + col * matrix.getColStride();
+                result.set(col, dotProduct(vector.getFloat32Values(), 0, values, offset, matrix.getRows()));
+            }
+        }
+        else
+        {
+            for (int col = fromCol; col < toCol; col++)
+            {
+                float sum = 0;
+
+                for (int row = 0; row < matrix.getRows(); row++)
+                {
+                    sum = sum + vector.get(row) * matrix.get(row, col);
+                }
+
+                result.set(col, sum);
+            }
+        }
+    }
+
+    /**
+     * Adding the rows multiplied by the (broadcast) elements of the vector, so the matrix is read sequentially
+     * Four rows are processed together, so the partial result is loaded and stored only once for every four rows
+     * (The 16-bit matrix values are widened to float32 at loading.)
+     */
+    private void mulVectorByRows(float[] vector, Matrix matrix, float[] result, int fromCol, int toCol)
+    {
+        if (matrix.getFloatType() == FloatType.FLOAT32)
+        {
+            mulVectorByFloat32Rows(vector, matrix, result, fromCol, toCol);
+            return;
+        }
+
+        Vector values = matrix.getValues();
+        int rows = matrix.getRows();
+        int upperBound = fromCol + SPECIES.loopBound(toCol - fromCol);
+
+        Arrays.fill(result, fromCol, toCol, 0);
+
+        int row = 0;
+        for (; row + 3 < rows; row += 4)
+        {
+            int offset0 = matrix.rowOffset(row);
+            int offset1 = matrix.rowOffset(row + 1);
+            int offset2 = matrix.rowOffset(row + 2);
+            int offset3 = matrix.rowOffset(row + 3);
+
+            var scalar0 = FloatVector.broadcast(SPECIES, vector[row]);
+            var scalar1 = FloatVector.broadcast(SPECIES, vector[row + 1]);
+            var scalar2 = FloatVector.broadcast(SPECIES, vector[row + 2]);
+            var scalar3 = FloatVector.broadcast(SPECIES, vector[row + 3]);
+
+            var col = fromCol;
+            for (; col < upperBound; col += SPECIES.length())
+            {
+                var sum = FloatVector.fromArray(SPECIES, result, col);
+                sum = load(values, offset0 + col).fma(scalar0, sum);
+                sum = load(values, offset1 + col).fma(scalar1, sum);
+                sum = load(values, offset2 + col).fma(scalar2, sum);
+                sum = load(values, offset3 + col).fma(scalar3, sum);
+                sum.intoArray(result, col);
+            }
+
+            // counter "col" has an incremented value from the previous loop
+            for (; col < toCol; col++)
+            {
+                result[col] += vector[row] * values.get(offset0 + col) + vector[row + 1] * values.get(offset1 + col)
+                        + vector[row + 2] * values.get(offset2 + col) + vector[row + 3] * values.get(offset3 + col);
+            }
+        }
+
+        // The remaining rows (if the row count isn't divisible by four)
+        for (; row < rows; row++)
+        {
+            int offset = matrix.rowOffset(row);
+            var scalar = FloatVector.broadcast(SPECIES, vector[row]);
+
+            var col = fromCol;
+            for (; col < upperBound; col += SPECIES.length())
+            {
+                var sum = FloatVector.fromArray(SPECIES, result, col);
+                load(values, offset + col).fma(scalar, sum).intoArray(result, col);
+            }
+
+            for (; col < toCol; col++)
+            {
+                result[col] += vector[row] * values.get(offset + col);
+            }
+        }
+    }
+
+    /**
+     * The same as mulVectorByRows for a float32 matrix, but loading the values directly from the array
+     * (A separate loop, so the widening loads of the other types don't slow it down, see dotProduct.)
+     */
+    private void mulVectorByFloat32Rows(float[] vector, Matrix matrix, float[] result, int fromCol, int toCol)
+    {
+        float[] values = matrix.getValues().getFloat32Values();
+        int rows = matrix.getRows();
+        int upperBound = fromCol + SPECIES.loopBound(toCol - fromCol);
+
+        Arrays.fill(result, fromCol, toCol, 0);
+
+        int row = 0;
+        for (; row + 3 < rows; row += 4)
+        {
+            int offset0 = matrix.rowOffset(row);
+            int offset1 = matrix.rowOffset(row + 1);
+            int offset2 = matrix.rowOffset(row + 2);
+            int offset3 = matrix.rowOffset(row + 3);
+
+            var scalar0 = FloatVector.broadcast(SPECIES, vector[row]);
+            var scalar1 = FloatVector.broadcast(SPECIES, vector[row + 1]);
+            var scalar2 = FloatVector.broadcast(SPECIES, vector[row + 2]);
+            var scalar3 = FloatVector.broadcast(SPECIES, vector[row + 3]);
+
+            var col = fromCol;
+            for (; col < upperBound; col += SPECIES.length())
+            {
+                var sum = FloatVector.fromArray(SPECIES, result, col);
+                sum = FloatVector.fromArray(SPECIES, values, offset0 + col).fma(scalar0, sum);
+                sum = FloatVector.fromArray(SPECIES, values, offset1 + col).fma(scalar1, sum);
+                sum = FloatVector.fromArray(SPECIES, values, offset2 + col).fma(scalar2, sum);
+                sum = FloatVector.fromArray(SPECIES, values, offset3 + col).fma(scalar3, sum);
+                sum.intoArray(result, col);
+            }
+
+            // counter "col" has an incremented value from the previous loop
+            for (; col < toCol; col++)
+            {
+                result[col] += vector[row] * values[offset0 + col] + vector[row + 1] * values[offset1 + col]
+                        + vector[row + 2] * values[offset2 + col] + vector[row + 3] * values[offset3 + col];
+            }
+        }
+
+        // The remaining rows (if the row count isn't divisible by four)
+        for (; row < rows; row++)
+        {
+            int offset = matrix.rowOffset(row);
+            var scalar = FloatVector.broadcast(SPECIES, vector[row]);
+
+            var col = fromCol;
+            for (; col < upperBound; col += SPECIES.length())
+            {
+                var sum = FloatVector.fromArray(SPECIES, result, col);
+                FloatVector.fromArray(SPECIES, values, offset + col).fma(scalar, sum).intoArray(result, col);
+            }
+
+            for (; col < toCol; col++)
+            {
+                result[col] += vector[row] * values[offset + col];
+            }
+        }
+    }
+
+    @Override
+    protected void mulVectorByTransposedMatrix(Vector vector, Matrix matrix, Vector result, int fromRow, int toRow)
+    {
+        if (vector.isQuantized())
+        {
+            // Quantized input and matrix: the dot products are calculated on the integer values
+            for (int row = fromRow; row < toRow; row++)
+            {
+                result.set(row, quantizedDotProduct(vector, matrix.getValues(), matrix.rowOffset(row), vector.size()));
+            }
+        }
+        else if (matrix.hasContiguousRows())
+        {
+            // Every row is a contiguous block within the same array, so it can be processed without copying
+            Vector values = matrix.getValues();
+
+            for (int row = fromRow; row < toRow; row++)
+            {
+                result.set(row, dotProduct(vector.getFloat32Values(), 0, values, matrix.rowOffset(row), vector.size()));
+            }
+        }
+        else
+        {
+            for (int row = fromRow; row < toRow; row++)
+            {
+                float sum = 0;
+
+                for (int col = 0; col < matrix.getCols(); col++)
+                {
+                    sum = sum + vector.get(col) * matrix.get(row, col);
+                }
+
+                result.set(row, sum);
+            }
+        }
+    }
+
+    /**
+     * Register tiling: a tile of the result (four vectors, two vector lengths of columns) is accumulated in registers
+     * over all rows of the matrix, and stored only at the end. Every loaded matrix value is used for the four vectors.
+     * (The products are added in the same order as at mulVectorByFloat32Rows, so the result is the same.)
+     */
+    @Override
+    protected void mulMatrixByMatrix(Vector[] vectors, Matrix matrix, Vector[] result, int fromCol, int toCol)
+    {
+        if (matrix.getFloatType() != FloatType.FLOAT32 || !matrix.hasContiguousRows()
+                || !isFloat32(vectors) || !isFloat32(result))
+        {
+            super.mulMatrixByMatrix(vectors, matrix, result, fromCol, toCol);
+            return;
+        }
+
+        int length = SPECIES.length();
+        int upperBound = fromCol + SPECIES.loopBound(toCol - fromCol);
+
+        int i = 0;
+        for (; i + 3 < vectors.length; i += 4)
+        {
+            float[] input0 = vectors[i].getFloat32Values();
+            float[] input1 = vectors[i + 1].getFloat32Values();
+            float[] input2 = vectors[i + 2].getFloat32Values();
+            float[] input3 = vectors[i + 3].getFloat32Values();
+
+            int col = fromCol;
+            for (; col + length < upperBound; col += 2 * length)
+            {
+                mulFourVectorsByFloat32Columns(input0, input1, input2, input3, matrix, col,
+                        result[i].getFloat32Values(), result[i + 1].getFloat32Values(),
+                        result[i + 2].getFloat32Values(), result[i + 3].getFloat32Values());
+            }
+
+            // The remaining columns are calculated vector by vector (the same way as at the vector by matrix)
+            for (int j = i; j < i + 4; j++)
+            {
+                if (col < toCol)
+                {
+                    mulVectorByMatrix(vectors[j], matrix, result[j], col, toCol);
+                }
+            }
+        }
+
+        // The remaining vectors (if the count isn't divisible by four)
+        for (; i < vectors.length; i++)
+        {
+            mulVectorByMatrix(vectors[i], matrix, result[i], fromCol, toCol);
+        }
+    }
+
+    /**
+     * Multiplies four vectors by two vector lengths of columns of the matrix (from the col)
+     */
+    private void mulFourVectorsByFloat32Columns(float[] input0, float[] input1, float[] input2, float[] input3,
+                                                Matrix matrix, int col, float[] output0, float[] output1,
+                                                float[] output2, float[] output3)
+    {
+        float[] values = matrix.getFloat32Values();
+        int next = col + SPECIES.length();
+
+        var sum00 = FloatVector.zero(SPECIES);
+        var sum01 = FloatVector.zero(SPECIES);
+        var sum10 = FloatVector.zero(SPECIES);
+        var sum11 = FloatVector.zero(SPECIES);
+        var sum20 = FloatVector.zero(SPECIES);
+        var sum21 = FloatVector.zero(SPECIES);
+        var sum30 = FloatVector.zero(SPECIES);
+        var sum31 = FloatVector.zero(SPECIES);
+
+        for (int row = 0; row < matrix.getRows(); row++)
+        {
+            int offset = matrix.rowOffset(row);
+            var values0 = FloatVector.fromArray(SPECIES, values, offset + col);
+            var values1 = FloatVector.fromArray(SPECIES, values, offset + next);
+
+            var scalar0 = FloatVector.broadcast(SPECIES, input0[row]);
+            sum00 = values0.fma(scalar0, sum00);
+            sum01 = values1.fma(scalar0, sum01);
+
+            var scalar1 = FloatVector.broadcast(SPECIES, input1[row]);
+            sum10 = values0.fma(scalar1, sum10);
+            sum11 = values1.fma(scalar1, sum11);
+
+            var scalar2 = FloatVector.broadcast(SPECIES, input2[row]);
+            sum20 = values0.fma(scalar2, sum20);
+            sum21 = values1.fma(scalar2, sum21);
+
+            var scalar3 = FloatVector.broadcast(SPECIES, input3[row]);
+            sum30 = values0.fma(scalar3, sum30);
+            sum31 = values1.fma(scalar3, sum31);
+        }
+
+        sum00.intoArray(output0, col);
+        sum01.intoArray(output0, next);
+        sum10.intoArray(output1, col);
+        sum11.intoArray(output1, next);
+        sum20.intoArray(output2, col);
+        sum21.intoArray(output2, next);
+        sum30.intoArray(output3, col);
+        sum31.intoArray(output3, next);
+    }
+
+    /**
+     * Register tiling: four dot products are calculated together, so every matrix value is loaded once for the four
+     * (The lanes are summed in the same way as at dotProduct, so the result is the same.)
+     */
+    @Override
+    protected void mulMatrixByTransposedMatrix(Vector[] vectors, Matrix matrix, Vector[] result,
+                                               int fromRow, int toRow)
+    {
+        if (matrix.getFloatType() != FloatType.FLOAT32 || !matrix.hasContiguousRows()
+                || !isFloat32(vectors) || !isFloat32(result))
+        {
+            super.mulMatrixByTransposedMatrix(vectors, matrix, result, fromRow, toRow);
+            return;
+        }
+
+        float[] values = matrix.getFloat32Values();
+        int size = matrix.getCols();
+        var upperBound = SPECIES.loopBound(size);
+
+        int i = 0;
+        for (; i + 3 < vectors.length; i += 4)
+        {
+            float[] input0 = vectors[i].getFloat32Values();
+            float[] input1 = vectors[i + 1].getFloat32Values();
+            float[] input2 = vectors[i + 2].getFloat32Values();
+            float[] input3 = vectors[i + 3].getFloat32Values();
+
+            for (int row = fromRow; row < toRow; row++)
+            {
+                int offset = matrix.rowOffset(row);
+
+                var sum0 = FloatVector.zero(SPECIES);
+                var sum1 = FloatVector.zero(SPECIES);
+                var sum2 = FloatVector.zero(SPECIES);
+                var sum3 = FloatVector.zero(SPECIES);
+
+                var col = 0;
+                for (; col < upperBound; col += SPECIES.length())
+                {
+                    var rowValues = FloatVector.fromArray(SPECIES, values, offset + col);
+                    sum0 = FloatVector.fromArray(SPECIES, input0, col).fma(rowValues, sum0);
+                    sum1 = FloatVector.fromArray(SPECIES, input1, col).fma(rowValues, sum1);
+                    sum2 = FloatVector.fromArray(SPECIES, input2, col).fma(rowValues, sum2);
+                    sum3 = FloatVector.fromArray(SPECIES, input3, col).fma(rowValues, sum3);
+                }
+
+                var result0 = sum0.reduceLanes(VectorOperators.ADD);
+                var result1 = sum1.reduceLanes(VectorOperators.ADD);
+                var result2 = sum2.reduceLanes(VectorOperators.ADD);
+                var result3 = sum3.reduceLanes(VectorOperators.ADD);
+
+                // counter "col" has an incremented value from the previous loop
+                for (; col < size; col++)
+                {
+                    result0 += input0[col] * values[offset + col];
+                    result1 += input1[col] * values[offset + col];
+                    result2 += input2[col] * values[offset + col];
+                    result3 += input3[col] * values[offset + col];
+                }
+
+                result[i].set(row, result0);
+                result[i + 1].set(row, result1);
+                result[i + 2].set(row, result2);
+                result[i + 3].set(row, result3);
+            }
+        }
+
+        // The remaining vectors (if the count isn't divisible by four)
+        for (; i < vectors.length; i++)
+        {
+            mulVectorByTransposedMatrix(vectors[i], matrix, result[i], fromRow, toRow);
+        }
+    }
+
+    @Override
+    public void splitVector(Vector vector, Vector[] result)
+    {
+        // Copying contiguous blocks (arraycopy is an intrinsic, it uses the vector instructions of the CPU)
+        int size = vector.size() / result.length;
+
+        for (int segment = 0; segment < result.length; segment++)
+        {
+            System.arraycopy(vector.getFloat32Values(), segment * size, result[segment].getFloat32Values(), 0, size);
+        }
+    }
+
+    @Override
+    public void flattenMatrix(Vector[] matrix, Vector result)
+    {
+        int offset = 0;
+
+        for (Vector row : matrix)
+        {
+            System.arraycopy(row.getFloat32Values(), 0, result.getFloat32Values(), offset, row.size());
+            offset += row.size();
+        }
+    }
+
+    @Override
+    public void layerNorm(Vector vector, Vector weight, Vector bias, float epsilon, Vector result)
+    {
+        float[] values = vector.getFloat32Values();
+        int size = vector.size();
+        var upperBound = SPECIES.loopBound(size);
+
+        // The sum is collected shifted by the first value, so it stays small if the values have a large mean
+        // (Summing the large values in float lanes would lose most of the digits of the mean.)
+        float shift = values[0];
+        var shiftVector = FloatVector.broadcast(SPECIES, shift);
+        var sum = FloatVector.zero(SPECIES);
+
+        var i = 0;
+        for (; i < upperBound; i += SPECIES.length())
+        {
+            sum = sum.add(FloatVector.fromArray(SPECIES, values, i).sub(shiftVector));
+        }
+
+        double total = sum.reduceLanes(VectorOperators.ADD);
+
+        // counter "i" has an incremented value from the previous loop
+        for (; i < size; i++)
+        {
+            total = total + (values[i] - shift);
+        }
+
+        double average = shift + total / size;
+
+        // The variance is calculated by a second pass on the differences from the mean (the row is still in the
+        // cache), because the sum of squares minus the squared mean cancels out at a large mean and small variance
+        var meanVector = FloatVector.broadcast(SPECIES, (float) average);
+        var squareSum = FloatVector.zero(SPECIES);
+
+        for (i = 0; i < upperBound; i += SPECIES.length())
+        {
+            var difference = FloatVector.fromArray(SPECIES, values, i).sub(meanVector);
+            squareSum = difference.fma(difference, squareSum);
+        }
+
+        double squareTotal = squareSum.reduceLanes(VectorOperators.ADD);
+
+        for (; i < size; i++)
+        {
+            double difference = values[i] - (float) average;
+            squareTotal = squareTotal + difference * difference;
+        }
+
+        double variance = squareTotal / size;
+
+        float mean = (float) average;
+        float deviation = (float) Math.sqrt(variance + epsilon);
+
+        // Normalization, and applying the trained weights and biases
+        for (i = 0; i < size; i += SPECIES.length())
+        {
+            VectorMask<Float> mask = SPECIES.indexInRange(i, size);
+            var value = FloatVector.fromArray(SPECIES, values, i, mask);
+            var weights = FloatVector.fromArray(SPECIES, weight.getFloat32Values(), i, mask);
+            var biases = FloatVector.fromArray(SPECIES, bias.getFloat32Values(), i, mask);
+
+            value.sub(mean).div(deviation).fma(weights, biases).intoArray(result.getFloat32Values(), i, mask);
+        }
+    }
+
+    @Override
+    public void rmsNorm(Vector vector, Vector weight, float epsilon, Vector result)
+    {
+        float[] values = vector.getFloat32Values();
+        int size = vector.size();
+        var upperBound = SPECIES.loopBound(size);
+
+        var squareSum = FloatVector.zero(SPECIES);
+
+        var i = 0;
+        for (; i < upperBound; i += SPECIES.length())
+        {
+            var value = FloatVector.fromArray(SPECIES, values, i);
+            squareSum = value.fma(value, squareSum);
+        }
+
+        var sum = squareSum.reduceLanes(VectorOperators.ADD);
+
+        // counter "i" has an incremented value from the previous loop
+        for (; i < size; i++)
+        {
+            sum += values[i] * values[i];
+        }
+
+        float scale = 1f / (float) Math.sqrt(sum / size + epsilon);
+
+        // Normalize and scale
+        for (i = 0; i < size; i += SPECIES.length())
+        {
+            VectorMask<Float> mask = SPECIES.indexInRange(i, size);
+            var value = FloatVector.fromArray(SPECIES, values, i, mask);
+            var weights = FloatVector.fromArray(SPECIES, weight.getFloat32Values(), i, mask);
+
+            value.mul(scale).mul(weights).intoArray(result.getFloat32Values(), i, mask);
+        }
+    }
+
+    @Override
+    public void gelu(Vector vector, Vector bias, Vector result)
+    {
+        int size = vector.size();
+
+        for (int i = 0; i < size; i += SPECIES.length())
+        {
+            VectorMask<Float> mask = SPECIES.indexInRange(i, size);
+            var value = FloatVector.fromArray(SPECIES, vector.getFloat32Values(), i, mask);
+
+            if (bias != null)
+            {
+                value = value.add(FloatVector.fromArray(SPECIES, bias.getFloat32Values(), i, mask));
+            }
+
+            // 0.5 * x * (1 + tanh(u)) = x / (1 + exp(-2u)), where u = sqrt(2 / PI) * (x + 0.044715 * x^3)
+            var u = value.mul(value).mul(GELU_CUBE).add(GELU_SCALE).mul(value);
+            var activated = value.div(exp(u.mul(-2f)).add(1f));
+
+            activated.intoArray(result.getFloat32Values(), i, mask);
+        }
+    }
+
+    @Override
+    public void swiglu(Vector gate, Vector up, Vector result)
+    {
+        int size = gate.size();
+
+        for (int i = 0; i < size; i += SPECIES.length())
+        {
+            VectorMask<Float> mask = SPECIES.indexInRange(i, size);
+            var value = FloatVector.fromArray(SPECIES, gate.getFloat32Values(), i, mask);
+            var upValue = FloatVector.fromArray(SPECIES, up.getFloat32Values(), i, mask);
+
+            // SiLU: x * sigmoid(x) = x / (1 + exp(-x))
+            var activated = value.div(exp(value.neg()).add(1f));
+
+            activated.mul(upValue).intoArray(result.getFloat32Values(), i, mask);
+        }
+    }
+
+    @Override
+    public void softmax(Vector vector, Vector result)
+    {
+        float[] values = vector.getFloat32Values();
+        float[] results = result.getFloat32Values();
+        int size = vector.size();
+
+        var maxValue = FloatVector.broadcast(SPECIES, Float.NEGATIVE_INFINITY);
+        for (int i = 0; i < size; i += SPECIES.length())
+        {
+            VectorMask<Float> mask = SPECIES.indexInRange(i, size);
+            maxValue = maxValue.lanewise(VectorOperators.MAX, FloatVector.fromArray(SPECIES, values, i, mask), mask);
+        }
+        float max = maxValue.reduceLanes(VectorOperators.MAX);
+
+        // The exponents are stored in the result, so these are calculated only once
+        var sum = FloatVector.zero(SPECIES);
+        for (int i = 0; i < size; i += SPECIES.length())
+        {
+            VectorMask<Float> mask = SPECIES.indexInRange(i, size);
+            var exp = exp(FloatVector.fromArray(SPECIES, values, i, mask).sub(max));
+
+            exp.intoArray(results, i, mask);
+            sum = sum.add(exp, mask);
+        }
+        double total = sum.reduceLanes(VectorOperators.ADD);
+
+        float scale = (float) (1 / total);
+        for (int i = 0; i < size; i += SPECIES.length())
+        {
+            VectorMask<Float> mask = SPECIES.indexInRange(i, size);
+            FloatVector.fromArray(SPECIES, results, i, mask).mul(scale).intoArray(results, i, mask);
+        }
+    }
+
+    /**
+     * Polynomial approximation of exp(x) (the Cephes expf algorithm)
+     * The input is reduced to x = n * ln(2) + r (|r| <= ln(2) / 2), exp(r) is calculated by a degree 7 polynomial,
+     * and 2^n is built directly as the exponent bits of a float.
+     * The relative error is below 1e-7 (measured against Math.exp), the input is clamped to [-87.3, 88.3],
+     * so the result is always a normal float (never zero or infinity).
+     */
+    private static FloatVector exp(FloatVector x)
+    {
+        x = x.max(-87.3f).min(88.3f);
+
+        // Round to the nearest integer (adding and subtracting 1.5 * 2^23 drops the fraction bits)
+        var n = x.mul(LOG2_E).add(ROUNDING).sub(ROUNDING);
+
+        // The ln(2) is split into two parts, so r is calculated without losing precision
+        var r = x.sub(n.mul(LN2_HIGH)).sub(n.mul(LN2_LOW));
+
+        var polynomial = r.mul(EXP_P0).add(EXP_P1).mul(r).add(EXP_P2).mul(r).add(EXP_P3)
+                .mul(r).add(EXP_P4).mul(r).add(EXP_P5);
+        var expR = polynomial.mul(r.mul(r)).add(r).add(1f);
+
+        var powerOfTwo = ((IntVector) n.convert(VectorOperators.F2I, 0))
+                .add(127).lanewise(VectorOperators.LSHL, 23).reinterpretAsFloats();
+
+        return expR.mul(powerOfTwo);
+    }
+
+    @Override
+    public float average(Vector vector)
+    {
+        float[] values = vector.getFloat32Values();
+        var upperBound = SPECIES.loopBound(vector.size());
+        var sum = FloatVector.zero(SPECIES);
+
+        var i = 0;
+        for (; i < upperBound; i += SPECIES.length())
+        {
+            sum = sum.add(FloatVector.fromArray(SPECIES, values, i));
+        }
+
+        double total = sum.reduceLanes(VectorOperators.ADD);
+
+        // counter "i" has an incremented value from the previous loop
+        for (; i < vector.size(); i++)
+        {
+            total = total + values[i];
+        }
+
+        return (float) total / vector.size();
+    }
+}
@@ -0,0 +1,33 @@
+package huplay.demo.util;
+
+/**
+ * Provider of the Java Vector API (SIMD) implementation
+ * The Vector API is an incubator module, so it's available only if the JVM was started with
+ * the --add-modules=jdk.incubator.vector option.
+ */
+public class VectorAPIUtilProvider implements UtilityProvider
+{
+    @Override
+    public String getName()
+    {
+        return "vector-api";
+    }
+
+    @Override
+    public int getPriority()
+    {
+        return 30;
+    }
+
+    @Override
+    public boolean isAvailable()
+    {
+        return ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent();
+    }
+
+    @Override
+    public Utility create()
+    {
+        return new VectorAPIUtil();
+    }
+}